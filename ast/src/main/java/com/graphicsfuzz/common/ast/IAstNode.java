@@ -18,9 +18,6 @@ package com.graphicsfuzz.common.ast;
 
 import com.graphicsfuzz.common.ast.visitors.IAstVisitor;
 import com.graphicsfuzz.common.tool.PrettyPrinterVisitor;
-import java.io.ByteArrayOutputStream;
-import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
 
 public interface IAstNode extends Cloneable {
 
@@ -66,14 +63,9 @@ public interface IAstNode extends Cloneable {
    * @return Text representation of a node
    */
   default String getText() {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-    try (PrintStream stream = new PrintStream(baos)) {
-      new PrettyPrinterVisitor(stream).visit(this);
-      return baos.toString("UTF8");
-    } catch (UnsupportedEncodingException exception) {
-      return "<unknown>";
-    }
+    final StringBuilder result = new StringBuilder();
+    new PrettyPrinterVisitor(result).visit(this);
+    return result.toString();
   }
 
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.tool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * An Appendable that encodes the text appended to it as UTF-8 and passes the resulting bytes on to
+ * a byte-oriented target, such as a channel or a message digest.
+ *
+ * <p>Text is encoded through a single buffer that is reused for the lifetime of the object, so
+ * that emitting a shader does not require the whole shader to be materialized as a String or a
+ * byte array.  Every append is fully encoded and handed to the target before it returns.
+ *
+ * <p>Instances are not safe for use by multiple threads.
+ */
+public abstract class EncodingAppendable implements Appendable {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final CharsetEncoder encoder;
+  private final ByteBuffer bytes;
+
+  private EncodingAppendable() {
+    this.encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.bytes = ByteBuffer.allocate(BUFFER_SIZE);
+  }
+
+  /**
+   * Yields an Appendable that writes the UTF-8 encoding of the text appended to it to a channel.
+   * The channel is not closed by the Appendable.
+   * @param channel The channel to be written to.
+   * @return An Appendable targeting the channel.
+   */
+  public static EncodingAppendable toChannel(WritableByteChannel channel) {
+    return new EncodingAppendable() {
+      @Override
+      protected void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+    };
+  }
+
+  /**
+   * Yields an Appendable that feeds the UTF-8 encoding of the text appended to it into a message
+   * digest, so that the hash of some text can be computed without the text being stored.
+   * @param digest The digest to be updated.
+   * @return An Appendable targeting the digest.
+   */
+  public static EncodingAppendable toDigest(MessageDigest digest) {
+    return new EncodingAppendable() {
+      @Override
+      protected void write(ByteBuffer buffer) {
+        digest.update(buffer);
+      }
+    };
+  }
+
+  /**
+   * Consumes all remaining bytes of the given buffer.
+   * @param buffer Encoded bytes, ready to be read.
+   * @throws IOException if the target cannot be written to.
+   */
+  protected abstract void write(ByteBuffer buffer) throws IOException;
+
+  @Override
+  public EncodingAppendable append(CharSequence csq) throws IOException {
+    final CharSequence text = csq == null ? "null" : csq;
+    return append(text, 0, text.length());
+  }
+
+  @Override
+  public EncodingAppendable append(CharSequence csq, int start, int end) throws IOException {
+    final CharBuffer chars = CharBuffer.wrap(csq == null ? "null" : csq, start, end);
+    // Malformed and unmappable input is replaced, so the only possible results are underflow,
+    // meaning that all of the input has been consumed, and overflow.
+    while (encoder.encode(chars, bytes, true).isOverflow()) {
+      drain();
+    }
+    CoderResult result;
+    while ((result = encoder.flush(bytes)).isOverflow()) {
+      drain();
+    }
+    assert result.isUnderflow();
+    encoder.reset();
+    drain();
+    return this;
+  }
+
+  @Override
+  public EncodingAppendable append(char ch) throws IOException {
+    return append(String.valueOf(ch));
+  }
+
+  private void drain() throws IOException {
+    bytes.flip();
+    write(bytes);
+    bytes.clear();
+  }
+
+}
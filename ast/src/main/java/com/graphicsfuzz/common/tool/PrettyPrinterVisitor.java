@@ -78,9 +78,9 @@ import com.graphicsfuzz.common.glslversion.ShadingLanguageVersion;
 import com.graphicsfuzz.common.util.MacroNames;
 import com.graphicsfuzz.common.util.ParseHelper;
 import com.graphicsfuzz.util.Constants;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.nio.charset.StandardCharsets;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -92,10 +92,16 @@ public class PrettyPrinterVisitor extends StandardVisitor {
 
   public static final int DEFAULT_INDENTATION_WIDTH = 1;
   public static final Supplier<String> DEFAULT_NEWLINE_SUPPLIER = () -> "\n";
+  // Text is accumulated in 'out' and passed on to 'sink' once this many characters are pending.
+  private static final int FLUSH_THRESHOLD = 8192;
   private final Supplier<String> newLineSupplier;
   private final int indentationWidth;
   private int indentationCount = 0;
-  private final PrintStream out;
+  private final Appendable sink;
+  private final StringBuilder out;
+  // The number of calls to 'visit' that are in progress; pending text is passed on to the sink when
+  // the outermost call completes.
+  private int visitNesting = 0;
   private boolean inFunctionDefinition = false;
   private final boolean emitGraphicsFuzzDefines;
   private final Optional<String> license;
@@ -104,7 +110,7 @@ public class PrettyPrinterVisitor extends StandardVisitor {
   // Allows different formatting of a declaration when part of the header of a for statement.
   private boolean insideForStatementHeader = false;
 
-  public PrettyPrinterVisitor(PrintStream out) {
+  public PrettyPrinterVisitor(Appendable out) {
     this(out, DEFAULT_INDENTATION_WIDTH,
         DEFAULT_NEWLINE_SUPPLIER,
         false,
@@ -112,13 +118,20 @@ public class PrettyPrinterVisitor extends StandardVisitor {
         Optional.empty());
   }
 
-  public PrettyPrinterVisitor(PrintStream out,
+  /**
+   * Creates a pretty printer that writes to the given target.  Text is buffered internally and
+   * passed on to the target in large chunks, as well as when the outermost call to 'visit'
+   * completes.  If the target is a StringBuilder, text is appended to it directly.  An IOException
+   * thrown by the target is rethrown as an UncheckedIOException.
+   */
+  public PrettyPrinterVisitor(Appendable out,
                               int indentationWidth,
                               Supplier<String> newLineSupplier,
                               boolean emitGraphicsFuzzDefines,
                               Optional<String> license,
                               Optional<UniformValueSupplier> uniformValues) {
-    this.out = out;
+    this.sink = out;
+    this.out = out instanceof StringBuilder ? (StringBuilder) out : new StringBuilder();
     this.indentationWidth = indentationWidth;
     this.newLineSupplier = newLineSupplier;
     this.emitGraphicsFuzzDefines = emitGraphicsFuzzDefines;
@@ -133,9 +146,9 @@ public class PrettyPrinterVisitor extends StandardVisitor {
    * @return String representation of the node
    */
   public static String prettyPrintAsString(IAstNode node) {
-    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-    new PrettyPrinterVisitor(new PrintStream(bytes)).visit(node);
-    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    final StringBuilder result = new StringBuilder();
+    new PrettyPrinterVisitor(result).visit(node);
+    return result.toString();
   }
 
   /**
@@ -146,19 +159,19 @@ public class PrettyPrinterVisitor extends StandardVisitor {
    * @return String representation of the node
    */
   public static String prettyPrintAsString(IAstNode node, UniformValueSupplier uniformValues) {
-    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-    new PrettyPrinterVisitor(new PrintStream(bytes),
+    final StringBuilder result = new StringBuilder();
+    new PrettyPrinterVisitor(result,
         DEFAULT_INDENTATION_WIDTH,
         DEFAULT_NEWLINE_SUPPLIER,
         false,
         Optional.empty(),
         Optional.of(uniformValues)).visit(node);
-    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    return result.toString();
   }
 
   public static void emitShader(TranslationUnit shader,
                                 Optional<String> license,
-                                PrintStream stream,
+                                Appendable stream,
                                 int indentationWidth,
                                 Supplier<String> newlineSupplier) {
     emitShader(shader, license, stream, indentationWidth, newlineSupplier, Optional.empty());
@@ -166,7 +179,7 @@ public class PrettyPrinterVisitor extends StandardVisitor {
 
   public static void emitShader(TranslationUnit shader,
                                 Optional<String> license,
-                                PrintStream stream,
+                                Appendable stream,
                                 int indentationWidth,
                                 Supplier<String> newlineSupplier,
                                 Optional<UniformValueSupplier> uniformValueSupplier) {
@@ -186,6 +199,21 @@ public class PrettyPrinterVisitor extends StandardVisitor {
 
   private void newLine() {
     out.append(newLineSupplier.get());
+    if (out.length() >= FLUSH_THRESHOLD) {
+      flush();
+    }
+  }
+
+  private void flush() {
+    if (out == sink || out.length() == 0) {
+      return;
+    }
+    try {
+      sink.append(out);
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+    out.setLength(0);
   }
 
   @Override
@@ -871,9 +899,22 @@ public class PrettyPrinterVisitor extends StandardVisitor {
     indentationCount += indentationWidth;
   }
 
+  @Override
+  public void visit(IAstNode node) {
+    visitNesting++;
+    try {
+      super.visit(node);
+    } finally {
+      visitNesting--;
+    }
+    if (visitNesting == 0) {
+      flush();
+    }
+  }
+
   @Override
   public String toString() {
-    return out.toString();
+    return sink.toString();
   }
 
   @Override
@@ -905,6 +946,13 @@ public class PrettyPrinterVisitor extends StandardVisitor {
 
   public static void emitGraphicsFuzzDefines(PrintStream out,
                                              ShadingLanguageVersion shadingLanguageVersion) {
+    final StringBuilder defines = new StringBuilder();
+    emitGraphicsFuzzDefines(defines, shadingLanguageVersion);
+    out.append(defines);
+  }
+
+  private static void emitGraphicsFuzzDefines(StringBuilder out,
+                                              ShadingLanguageVersion shadingLanguageVersion) {
     out.append("\n");
     out.append("#ifndef REDUCER\n");
     out.append("#define ").append(Constants.GLF_ZERO).append("(X, Y)                   (Y)\n");
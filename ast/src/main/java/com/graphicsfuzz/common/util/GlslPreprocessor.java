@@ -0,0 +1,985 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * An in-process GLSL preprocessor, which saves running glslangValidator -E for every shader that
+ * is parsed.
+ *
+ * <p>Supports line splicing, comment removal, object-like and function-like macros (including
+ * token pasting), conditional compilation, and the __LINE__, __FILE__, __VERSION__, GL_ES and
+ * GL_FRAGMENT_PRECISION_HIGH predefined macros.  #version, #extension and #pragma directives are
+ * passed through unchanged, and every other directive is replaced by a blank line, so that the
+ * line numbers of the output match those of the input.
+ *
+ * <p>The preprocessor is deliberately conservative: rather than guessing at the meaning of a
+ * construct it does not model - such as a test of an extension macro that glslangValidator would
+ * predefine - it throws a GlslPreprocessorException, so that the caller can fall back to
+ * glslangValidator.
+ */
+public final class GlslPreprocessor {
+
+  private static final int DEFAULT_VERSION = 100;
+
+  private static final String GL_ES = "GL_ES";
+  private static final String GL_FRAGMENT_PRECISION_HIGH = "GL_FRAGMENT_PRECISION_HIGH";
+  private static final String LINE_MACRO = "__LINE__";
+  private static final String FILE_MACRO = "__FILE__";
+  private static final String VERSION_MACRO = "__VERSION__";
+
+  private static final List<String> THREE_CHARACTER_PUNCTUATORS = Arrays.asList("<<=", ">>=");
+
+  private static final List<String> TWO_CHARACTER_PUNCTUATORS = Arrays.asList("##", "<<", ">>",
+      "<=", ">=", "==", "!=", "&&", "||", "^^", "++", "--", "+=", "-=", "*=", "/=", "%=", "&=",
+      "|=", "^=");
+
+  // Binary operators that may appear in #if expressions, from lowest to highest precedence.
+  private static final List<List<String>> BINARY_OPERATORS = Arrays.asList(
+      Collections.singletonList("||"),
+      Collections.singletonList("&&"),
+      Collections.singletonList("|"),
+      Collections.singletonList("^"),
+      Collections.singletonList("&"),
+      Arrays.asList("==", "!="),
+      Arrays.asList("<", ">", "<=", ">="),
+      Arrays.asList("<<", ">>"),
+      Arrays.asList("+", "-"),
+      Arrays.asList("*", "/", "%"));
+
+  private enum TokenKind {
+    IDENTIFIER,
+    NUMBER,
+    PUNCTUATOR,
+    WHITESPACE,
+    NEWLINE
+  }
+
+  private static final class Token {
+
+    private final TokenKind kind;
+    private final String text;
+    private final int line;
+
+    // The macros whose expansion led to this token; these are not expanded again if the token is
+    // an identifier naming one of them.
+    private final Set<String> hideSet;
+
+    private Token(TokenKind kind, String text, int line, Set<String> hideSet) {
+      this.kind = kind;
+      this.text = text;
+      this.line = line;
+      this.hideSet = hideSet;
+    }
+
+    private boolean isSpace() {
+      return kind == TokenKind.WHITESPACE || kind == TokenKind.NEWLINE;
+    }
+
+    private boolean is(String punctuator) {
+      return kind == TokenKind.PUNCTUATOR && text.equals(punctuator);
+    }
+
+  }
+
+  private static final class Macro {
+
+    // Null if and only if the macro is object-like.
+    private final List<String> parameters;
+    private final List<Token> body;
+
+    private Macro(List<String> parameters, List<Token> body) {
+      this.parameters = parameters;
+      this.body = body;
+    }
+
+    private boolean isFunctionLike() {
+      return parameters != null;
+    }
+
+    private boolean hasSameDefinitionAs(Macro other) {
+      return (parameters == null ? other.parameters == null : parameters.equals(other.parameters))
+          && bodyText().equals(other.bodyText());
+    }
+
+    private List<String> bodyText() {
+      return body.stream().filter(item -> !item.isSpace()).map(item -> item.text)
+          .collect(Collectors.toList());
+    }
+
+  }
+
+  private static final class ConditionalGroup {
+
+    private final boolean enclosingGroupActive;
+    private boolean active;
+    private boolean branchTaken;
+    private boolean seenElse;
+
+    private ConditionalGroup(boolean enclosingGroupActive, boolean active) {
+      this.enclosingGroupActive = enclosingGroupActive;
+      this.active = active;
+      this.branchTaken = active;
+      this.seenElse = false;
+    }
+
+  }
+
+  // A line of source after backslash-newline sequences have been spliced away.
+  private static final class LogicalLine {
+
+    private final String text;
+    private final int firstPhysicalLine;
+
+    // The number of newlines that ended the physical lines making up this line; this is zero for
+    // the final line of the source.
+    private final int numNewlines;
+
+    private LogicalLine(String text, int firstPhysicalLine, int numNewlines) {
+      this.text = text;
+      this.firstPhysicalLine = firstPhysicalLine;
+      this.numNewlines = numNewlines;
+    }
+
+  }
+
+  private final Map<String, Macro> macros;
+  private final Deque<ConditionalGroup> conditionals;
+  private final StringBuilder output;
+
+  // Active non-directive lines are gathered up and expanded together, because a function-like
+  // macro invocation can span several lines.
+  private final StringBuilder pendingText;
+  private int pendingTextLine;
+
+  // Accounts for #line directives.
+  private int lineAdjustment;
+
+  private int currentLine;
+
+  private GlslPreprocessor() {
+    this.macros = new HashMap<>();
+    this.conditionals = new ArrayDeque<>();
+    this.output = new StringBuilder();
+    this.pendingText = new StringBuilder();
+    this.pendingTextLine = 1;
+    this.lineAdjustment = 0;
+    this.currentLine = 1;
+    defineNumber(FILE_MACRO, 0);
+    // In the absence of a #version directive a shader is an ESSL 100 shader.
+    setVersion(DEFAULT_VERSION, true);
+  }
+
+  /**
+   * Preprocesses the given shader text.
+   * @param source The text of a shader.
+   * @return The preprocessed text, with the same number of lines as the input.
+   * @throws GlslPreprocessorException if the shader is malformed, or uses a preprocessor feature
+   *                                   that is not supported.
+   */
+  public static String preprocess(String source) throws GlslPreprocessorException {
+    final GlslPreprocessor preprocessor = new GlslPreprocessor();
+    for (LogicalLine line : removeComments(spliceLines(source))) {
+      preprocessor.processLine(line);
+    }
+    preprocessor.finish();
+    return preprocessor.output.toString();
+  }
+
+  private static List<LogicalLine> spliceLines(String source) {
+    final String[] physicalLines = source.replace("\r\n", "\n").replace('\r', '\n')
+        .split("\n", -1);
+    final List<LogicalLine> result = new ArrayList<>();
+    int index = 0;
+    while (index < physicalLines.length) {
+      final int firstPhysicalLine = index + 1;
+      final StringBuilder text = new StringBuilder();
+      String current = physicalLines[index++];
+      while (current.endsWith("\\") && index < physicalLines.length) {
+        text.append(current, 0, current.length() - 1);
+        current = physicalLines[index++];
+      }
+      text.append(current);
+      // Physical lines firstPhysicalLine to index (counting from 1) were consumed; all but the
+      // last line of the source end in a newline.
+      final int numNewlines = index + 1 - firstPhysicalLine
+          - (index == physicalLines.length ? 1 : 0);
+      result.add(new LogicalLine(text.toString(), firstPhysicalLine, numNewlines));
+    }
+    return result;
+  }
+
+  private static List<LogicalLine> removeComments(List<LogicalLine> lines)
+      throws GlslPreprocessorException {
+    final List<LogicalLine> result = new ArrayList<>();
+    boolean inBlockComment = false;
+    for (LogicalLine line : lines) {
+      final String text = line.text;
+      final StringBuilder uncommented = new StringBuilder();
+      int index = 0;
+      while (index < text.length()) {
+        if (inBlockComment) {
+          final int end = text.indexOf("*/", index);
+          if (end < 0) {
+            index = text.length();
+          } else {
+            inBlockComment = false;
+            uncommented.append(' ');
+            index = end + 2;
+          }
+        } else if (text.startsWith("//", index)) {
+          break;
+        } else if (text.startsWith("/*", index)) {
+          inBlockComment = true;
+          index += 2;
+        } else {
+          uncommented.append(text.charAt(index));
+          index++;
+        }
+      }
+      result.add(new LogicalLine(uncommented.toString(), line.firstPhysicalLine,
+          line.numNewlines));
+    }
+    if (inBlockComment) {
+      throw new GlslPreprocessorException(lines.get(lines.size() - 1).firstPhysicalLine,
+          "unterminated comment");
+    }
+    return result;
+  }
+
+  private void processLine(LogicalLine line) throws GlslPreprocessorException {
+    currentLine = line.firstPhysicalLine + lineAdjustment;
+    final String trimmed = line.text.trim();
+    if (trimmed.startsWith("#")) {
+      flushText();
+      if (processDirective(trimmed.substring(1), line)) {
+        output.append(trimmed);
+      }
+      appendNewlines(output, line.numNewlines);
+      return;
+    }
+    if (!isActive()) {
+      appendNewlines(output, line.numNewlines);
+      return;
+    }
+    if (pendingText.length() == 0) {
+      pendingTextLine = currentLine;
+    }
+    pendingText.append(line.text);
+    appendNewlines(pendingText, line.numNewlines);
+  }
+
+  private void flushText() throws GlslPreprocessorException {
+    if (pendingText.length() == 0) {
+      return;
+    }
+    final List<Token> tokens = tokenize(pendingText.toString(), pendingTextLine);
+    pendingText.setLength(0);
+    for (Token token : expand(tokens)) {
+      output.append(token.text);
+    }
+  }
+
+  private void finish() throws GlslPreprocessorException {
+    flushText();
+    if (!conditionals.isEmpty()) {
+      throw new GlslPreprocessorException(currentLine, "missing #endif");
+    }
+  }
+
+  private boolean isActive() {
+    return conditionals.isEmpty() || conditionals.peek().active;
+  }
+
+  /**
+   * Processes a directive.
+   * @param directive The directive, without its leading '#'.
+   * @param line The line on which the directive occurs.
+   * @return True if and only if the directive should be passed through to the output.
+   * @throws GlslPreprocessorException if the directive is malformed or unsupported.
+   */
+  private boolean processDirective(String directive, LogicalLine line)
+      throws GlslPreprocessorException {
+    final List<Token> tokens = tokenize(directive, currentLine);
+    final int nameIndex = skipSpace(tokens, 0);
+    final String name = nameIndex < tokens.size() ? tokens.get(nameIndex).text : "";
+    final List<Token> operands = nameIndex < tokens.size()
+        ? tokens.subList(nameIndex + 1, tokens.size())
+        : Collections.emptyList();
+    switch (name) {
+      case "if":
+      case "ifdef":
+      case "ifndef": {
+        final boolean enclosingGroupActive = isActive();
+        conditionals.push(new ConditionalGroup(enclosingGroupActive,
+            enclosingGroupActive && evaluateCondition(name, operands)));
+        return false;
+      }
+      case "elif": {
+        final ConditionalGroup group = getCurrentGroup(name);
+        if (group.seenElse) {
+          throw new GlslPreprocessorException(currentLine, "#elif after #else");
+        }
+        if (group.enclosingGroupActive && !group.branchTaken) {
+          group.active = evaluateCondition(name, operands);
+          group.branchTaken = group.active;
+        } else {
+          group.active = false;
+        }
+        return false;
+      }
+      case "else": {
+        final ConditionalGroup group = getCurrentGroup(name);
+        if (group.seenElse) {
+          throw new GlslPreprocessorException(currentLine, "#else after #else");
+        }
+        group.active = group.enclosingGroupActive && !group.branchTaken;
+        group.branchTaken = true;
+        group.seenElse = true;
+        return false;
+      }
+      case "endif":
+        getCurrentGroup(name);
+        conditionals.pop();
+        return false;
+      default:
+        break;
+    }
+    if (!isActive()) {
+      return false;
+    }
+    switch (name) {
+      case "":
+        return false;
+      case "version":
+        processVersion(operands);
+        return true;
+      case "extension":
+      case "pragma":
+        return true;
+      case "define":
+        processDefine(operands);
+        return false;
+      case "undef":
+        macros.remove(getSoleIdentifier(name, operands));
+        return false;
+      case "line":
+        processLineDirective(operands, line);
+        return false;
+      case "error":
+        throw new GlslPreprocessorException(currentLine, "#error" + concatenate(operands));
+      default:
+        throw new GlslPreprocessorException(currentLine, "unsupported directive #" + name);
+    }
+  }
+
+  private ConditionalGroup getCurrentGroup(String directiveName)
+      throws GlslPreprocessorException {
+    if (conditionals.isEmpty()) {
+      throw new GlslPreprocessorException(currentLine, "#" + directiveName + " without #if");
+    }
+    return conditionals.peek();
+  }
+
+  private void processVersion(List<Token> operands) throws GlslPreprocessorException {
+    final List<Token> significant = withoutSpace(operands);
+    if (significant.isEmpty() || significant.get(0).kind != TokenKind.NUMBER
+        || significant.size() > 2) {
+      throw new GlslPreprocessorException(currentLine, "malformed #version directive");
+    }
+    final int version = (int) parseNumber(significant.get(0));
+    setVersion(version, version == DEFAULT_VERSION
+        || (significant.size() == 2 && significant.get(1).text.equals("es")));
+  }
+
+  private void setVersion(int version, boolean isEs) {
+    defineNumber(VERSION_MACRO, version);
+    if (isEs) {
+      defineNumber(GL_ES, 1);
+      defineNumber(GL_FRAGMENT_PRECISION_HIGH, 1);
+    } else {
+      macros.remove(GL_ES);
+      macros.remove(GL_FRAGMENT_PRECISION_HIGH);
+    }
+  }
+
+  private void defineNumber(String name, int value) {
+    macros.put(name, new Macro(null, Collections.singletonList(
+        new Token(TokenKind.NUMBER, String.valueOf(value), 0, Collections.emptySet()))));
+  }
+
+  private void processDefine(List<Token> operands) throws GlslPreprocessorException {
+    int index = skipSpace(operands, 0);
+    if (index == operands.size() || operands.get(index).kind != TokenKind.IDENTIFIER) {
+      throw new GlslPreprocessorException(currentLine, "expected a macro name after #define");
+    }
+    final String name = operands.get(index).text;
+    if (name.equals("defined") || name.startsWith("GL_") || name.equals(LINE_MACRO)
+        || name.equals(FILE_MACRO) || name.equals(VERSION_MACRO)) {
+      throw new GlslPreprocessorException(currentLine, "reserved macro name " + name);
+    }
+    index++;
+    List<String> parameters = null;
+    // A macro is function-like only if its name is immediately followed by '('.
+    if (index < operands.size() && operands.get(index).is("(")) {
+      parameters = new ArrayList<>();
+      index = skipSpace(operands, index + 1);
+      if (index < operands.size() && operands.get(index).is(")")) {
+        index++;
+      } else {
+        while (true) {
+          if (index == operands.size() || operands.get(index).kind != TokenKind.IDENTIFIER
+              || parameters.contains(operands.get(index).text)) {
+            throw new GlslPreprocessorException(currentLine, "malformed parameters for macro "
+                + name);
+          }
+          parameters.add(operands.get(index).text);
+          index = skipSpace(operands, index + 1);
+          if (index < operands.size() && operands.get(index).is(")")) {
+            index++;
+            break;
+          }
+          if (index == operands.size() || !operands.get(index).is(",")) {
+            throw new GlslPreprocessorException(currentLine, "malformed parameters for macro "
+                + name);
+          }
+          index = skipSpace(operands, index + 1);
+        }
+      }
+    }
+    final List<Token> body = trimSpace(operands.subList(index, operands.size()));
+    if (!body.isEmpty() && (body.get(0).is("##") || body.get(body.size() - 1).is("##"))) {
+      throw new GlslPreprocessorException(currentLine, "'##' at edge of macro " + name);
+    }
+    final Macro macro = new Macro(parameters, body);
+    if (macros.containsKey(name) && !macros.get(name).hasSameDefinitionAs(macro)) {
+      throw new GlslPreprocessorException(currentLine, "macro " + name + " redefined");
+    }
+    macros.put(name, macro);
+  }
+
+  private void processLineDirective(List<Token> operands, LogicalLine line)
+      throws GlslPreprocessorException {
+    final List<Token> significant = withoutSpace(expand(operands));
+    if (significant.isEmpty() || significant.get(0).kind != TokenKind.NUMBER) {
+      throw new GlslPreprocessorException(currentLine, "malformed #line directive");
+    }
+    // The line following the directive takes the given number.
+    lineAdjustment = (int) parseNumber(significant.get(0))
+        - (line.firstPhysicalLine + line.numNewlines);
+  }
+
+  private boolean evaluateCondition(String directiveName, List<Token> operands)
+      throws GlslPreprocessorException {
+    if (directiveName.equals("ifdef")) {
+      return isDefined(getSoleIdentifier(directiveName, operands));
+    }
+    if (directiveName.equals("ifndef")) {
+      return !isDefined(getSoleIdentifier(directiveName, operands));
+    }
+    // Resolve uses of 'defined' before expanding macros, so that the names they test are not
+    // themselves expanded.
+    final List<Token> resolved = new ArrayList<>();
+    for (int index = 0; index < operands.size(); index++) {
+      final Token token = operands.get(index);
+      if (token.kind != TokenKind.IDENTIFIER || !token.text.equals("defined")) {
+        resolved.add(token);
+        continue;
+      }
+      index = skipSpace(operands, index + 1);
+      final boolean parenthesized = index < operands.size() && operands.get(index).is("(");
+      if (parenthesized) {
+        index = skipSpace(operands, index + 1);
+      }
+      if (index == operands.size() || operands.get(index).kind != TokenKind.IDENTIFIER) {
+        throw new GlslPreprocessorException(currentLine, "expected a macro name after defined");
+      }
+      final boolean defined = isDefined(operands.get(index).text);
+      if (parenthesized) {
+        index = skipSpace(operands, index + 1);
+        if (index == operands.size() || !operands.get(index).is(")")) {
+          throw new GlslPreprocessorException(currentLine, "missing ')' after defined");
+        }
+      }
+      resolved.add(new Token(TokenKind.NUMBER, defined ? "1" : "0", token.line,
+          Collections.emptySet()));
+    }
+    final List<Token> expression = withoutSpace(expand(resolved));
+    if (expression.isEmpty()) {
+      throw new GlslPreprocessorException(currentLine, "missing expression after #"
+          + directiveName);
+    }
+    final ExpressionEvaluator evaluator = new ExpressionEvaluator(expression);
+    final long result = evaluator.evaluateExpression(0);
+    if (!evaluator.isAtEnd()) {
+      throw new GlslPreprocessorException(currentLine, "unexpected '"
+          + expression.get(evaluator.position).text + "' in #" + directiveName);
+    }
+    return result != 0;
+  }
+
+  private boolean isDefined(String name) throws GlslPreprocessorException {
+    if (name.equals(LINE_MACRO) || macros.containsKey(name)) {
+      return true;
+    }
+    if (name.startsWith("GL_") && !name.equals(GL_ES) && !name.equals(GL_FRAGMENT_PRECISION_HIGH)) {
+      // glslangValidator predefines a macro for each extension that it supports; we do not try to
+      // model which ones those are.
+      throw new GlslPreprocessorException(currentLine, "cannot tell whether " + name
+          + " is defined");
+    }
+    return false;
+  }
+
+  private String getSoleIdentifier(String directiveName, List<Token> operands)
+      throws GlslPreprocessorException {
+    final List<Token> significant = withoutSpace(operands);
+    if (significant.size() != 1 || significant.get(0).kind != TokenKind.IDENTIFIER) {
+      throw new GlslPreprocessorException(currentLine, "expected a single macro name after #"
+          + directiveName);
+    }
+    return significant.get(0).text;
+  }
+
+  /**
+   * Expands all macros in a sequence of tokens.
+   */
+  private List<Token> expand(List<Token> tokens) throws GlslPreprocessorException {
+    final Deque<Token> pending = new ArrayDeque<>(tokens);
+    final List<Token> result = new ArrayList<>();
+    while (!pending.isEmpty()) {
+      final Token token = pending.removeFirst();
+      if (token.kind != TokenKind.IDENTIFIER || token.hideSet.contains(token.text)) {
+        result.add(token);
+        continue;
+      }
+      if (token.text.equals(LINE_MACRO)) {
+        result.add(new Token(TokenKind.NUMBER, String.valueOf(token.line), token.line,
+            Collections.emptySet()));
+        continue;
+      }
+      final Macro macro = macros.get(token.text);
+      if (macro == null) {
+        result.add(token);
+        continue;
+      }
+      final List<Token> replacement;
+      int consumedNewlines = 0;
+      if (macro.isFunctionLike()) {
+        // The macro is only invoked if the next significant token is '('.
+        final List<Token> skipped = new ArrayList<>();
+        while (!pending.isEmpty() && pending.peekFirst().isSpace()) {
+          skipped.add(pending.removeFirst());
+        }
+        if (pending.isEmpty() || !pending.peekFirst().is("(")) {
+          for (int i = skipped.size() - 1; i >= 0; i--) {
+            pending.addFirst(skipped.get(i));
+          }
+          result.add(token);
+          continue;
+        }
+        pending.removeFirst();
+        final List<List<Token>> arguments = collectArguments(pending, token.text, macro);
+        consumedNewlines = countNewlines(skipped);
+        for (List<Token> argument : arguments) {
+          consumedNewlines += countNewlines(argument);
+        }
+        replacement = substitute(macro, arguments);
+      } else {
+        replacement = paste(macro.body);
+      }
+      // Newlines that were part of the invocation are moved after the expansion, so that line
+      // numbering is unaffected.
+      for (int i = 0; i < consumedNewlines; i++) {
+        pending.addFirst(new Token(TokenKind.NEWLINE, "\n", token.line, Collections.emptySet()));
+      }
+      // The replacement is rescanned for further macros, with this macro hidden.  Surrounding
+      // whitespace stops the replacement from merging with neighbouring tokens in the output.
+      final Set<String> hideSet = new HashSet<>(token.hideSet);
+      hideSet.add(token.text);
+      pending.addFirst(new Token(TokenKind.WHITESPACE, " ", token.line, Collections.emptySet()));
+      for (int i = replacement.size() - 1; i >= 0; i--) {
+        final Token replacementToken = replacement.get(i);
+        final Set<String> combinedHideSet = new HashSet<>(replacementToken.hideSet);
+        combinedHideSet.addAll(hideSet);
+        pending.addFirst(new Token(replacementToken.kind, replacementToken.text, token.line,
+            combinedHideSet));
+      }
+      result.add(new Token(TokenKind.WHITESPACE, " ", token.line, Collections.emptySet()));
+    }
+    return result;
+  }
+
+  /**
+   * Consumes the arguments of a function-like macro invocation, up to and including the closing
+   * parenthesis.
+   */
+  private List<List<Token>> collectArguments(Deque<Token> pending, String name, Macro macro)
+      throws GlslPreprocessorException {
+    final List<List<Token>> arguments = new ArrayList<>();
+    List<Token> current = new ArrayList<>();
+    int depth = 0;
+    while (true) {
+      if (pending.isEmpty()) {
+        throw new GlslPreprocessorException(currentLine, "unterminated invocation of macro "
+            + name);
+      }
+      final Token token = pending.removeFirst();
+      if (token.is(")") && depth == 0) {
+        arguments.add(current);
+        break;
+      }
+      if (token.is(",") && depth == 0) {
+        arguments.add(current);
+        current = new ArrayList<>();
+        continue;
+      }
+      if (token.is("(")) {
+        depth++;
+      } else if (token.is(")")) {
+        depth--;
+      }
+      current.add(token);
+    }
+    if (macro.parameters.isEmpty() && arguments.size() == 1
+        && withoutSpace(arguments.get(0)).isEmpty()) {
+      arguments.clear();
+    }
+    if (arguments.size() != macro.parameters.size()) {
+      throw new GlslPreprocessorException(currentLine, "macro " + name + " expects "
+          + macro.parameters.size() + " arguments, but " + arguments.size() + " were given");
+    }
+    return arguments;
+  }
+
+  private List<Token> substitute(Macro macro, List<List<Token>> arguments)
+      throws GlslPreprocessorException {
+    final List<Token> result = new ArrayList<>();
+    for (int i = 0; i < macro.body.size(); i++) {
+      final Token token = macro.body.get(i);
+      final int parameterIndex = token.kind == TokenKind.IDENTIFIER
+          ? macro.parameters.indexOf(token.text)
+          : -1;
+      if (parameterIndex < 0) {
+        result.add(token);
+        continue;
+      }
+      final List<Token> argument = new ArrayList<>();
+      for (Token argumentToken : trimSpace(arguments.get(parameterIndex))) {
+        argument.add(argumentToken.kind == TokenKind.NEWLINE
+            ? new Token(TokenKind.WHITESPACE, " ", argumentToken.line, argumentToken.hideSet)
+            : argumentToken);
+      }
+      // An argument is macro-expanded before substitution unless it is an operand of '##'.
+      if (isOperandOfPaste(macro.body, i)) {
+        result.addAll(argument);
+      } else {
+        result.addAll(expand(argument));
+      }
+    }
+    return paste(result);
+  }
+
+  private static boolean isOperandOfPaste(List<Token> body, int index) {
+    int before = index - 1;
+    while (before >= 0 && body.get(before).isSpace()) {
+      before--;
+    }
+    final int after = skipSpace(body, index + 1);
+    return (before >= 0 && body.get(before).is("##"))
+        || (after < body.size() && body.get(after).is("##"));
+  }
+
+  private List<Token> paste(List<Token> tokens) throws GlslPreprocessorException {
+    if (tokens.stream().noneMatch(item -> item.is("##"))) {
+      return tokens;
+    }
+    final List<Token> result = new ArrayList<>();
+    for (int i = 0; i < tokens.size(); i++) {
+      final Token token = tokens.get(i);
+      if (!token.is("##")) {
+        result.add(token);
+        continue;
+      }
+      while (!result.isEmpty() && result.get(result.size() - 1).isSpace()) {
+        result.remove(result.size() - 1);
+      }
+      i = skipSpace(tokens, i + 1);
+      if (result.isEmpty() || i == tokens.size()) {
+        throw new GlslPreprocessorException(currentLine, "'##' is missing an operand");
+      }
+      final Token left = result.remove(result.size() - 1);
+      final String pasted = left.text + tokens.get(i).text;
+      final List<Token> retokenized = tokenize(pasted, left.line);
+      if (retokenized.size() != 1) {
+        throw new GlslPreprocessorException(currentLine, "pasting gives invalid token "
+            + pasted);
+      }
+      result.add(new Token(retokenized.get(0).kind, pasted, left.line, left.hideSet));
+    }
+    return result;
+  }
+
+  private static List<Token> tokenize(String text, int firstLine) {
+    final List<Token> result = new ArrayList<>();
+    int line = firstLine;
+    int index = 0;
+    while (index < text.length()) {
+      final int start = index;
+      final char first = text.charAt(index);
+      final TokenKind kind;
+      if (first == '\n') {
+        kind = TokenKind.NEWLINE;
+        index++;
+      } else if (Character.isWhitespace(first)) {
+        kind = TokenKind.WHITESPACE;
+        while (index < text.length() && text.charAt(index) != '\n'
+            && Character.isWhitespace(text.charAt(index))) {
+          index++;
+        }
+      } else if (Character.isLetter(first) || first == '_') {
+        kind = TokenKind.IDENTIFIER;
+        while (index < text.length() && (Character.isLetterOrDigit(text.charAt(index))
+            || text.charAt(index) == '_')) {
+          index++;
+        }
+      } else if (Character.isDigit(first) || (first == '.' && index + 1 < text.length()
+          && Character.isDigit(text.charAt(index + 1)))) {
+        kind = TokenKind.NUMBER;
+        final boolean isHex = text.startsWith("0x", index) || text.startsWith("0X", index);
+        index++;
+        while (index < text.length()) {
+          final char current = text.charAt(index);
+          final char previous = text.charAt(index - 1);
+          if (Character.isLetterOrDigit(current) || current == '_' || current == '.'
+              || ((current == '+' || current == '-') && !isHex
+                  && (previous == 'e' || previous == 'E'))) {
+            index++;
+          } else {
+            break;
+          }
+        }
+      } else {
+        kind = TokenKind.PUNCTUATOR;
+        index += getPunctuatorLength(text, index);
+      }
+      result.add(new Token(kind, text.substring(start, index), line, Collections.emptySet()));
+      if (kind == TokenKind.NEWLINE) {
+        line++;
+      }
+    }
+    return result;
+  }
+
+  private static int getPunctuatorLength(String text, int index) {
+    for (String punctuator : THREE_CHARACTER_PUNCTUATORS) {
+      if (text.startsWith(punctuator, index)) {
+        return 3;
+      }
+    }
+    for (String punctuator : TWO_CHARACTER_PUNCTUATORS) {
+      if (text.startsWith(punctuator, index)) {
+        return 2;
+      }
+    }
+    return 1;
+  }
+
+  private long parseNumber(Token token) throws GlslPreprocessorException {
+    String text = token.text;
+    if (text.endsWith("u") || text.endsWith("U")) {
+      text = text.substring(0, text.length() - 1);
+    }
+    try {
+      if (text.startsWith("0x") || text.startsWith("0X")) {
+        return (int) Long.parseLong(text.substring(2), 16);
+      }
+      if (text.length() > 1 && text.startsWith("0")) {
+        return (int) Long.parseLong(text.substring(1), 8);
+      }
+      return (int) Long.parseLong(text);
+    } catch (NumberFormatException exception) {
+      throw new GlslPreprocessorException(currentLine, "bad integer " + token.text);
+    }
+  }
+
+  private final class ExpressionEvaluator {
+
+    private final List<Token> tokens;
+    private int position;
+
+    private ExpressionEvaluator(List<Token> tokens) {
+      this.tokens = tokens;
+      this.position = 0;
+    }
+
+    private boolean isAtEnd() {
+      return position == tokens.size();
+    }
+
+    private String peek() {
+      return isAtEnd() ? "" : tokens.get(position).text;
+    }
+
+    // Evaluates a binary expression whose operators have at least the given precedence level.
+    // Values are computed as 32-bit integers, as they are in GLSL.
+    private long evaluateExpression(int level) throws GlslPreprocessorException {
+      if (level == BINARY_OPERATORS.size()) {
+        return evaluateUnary();
+      }
+      long result = evaluateExpression(level + 1);
+      while (!isAtEnd() && tokens.get(position).kind == TokenKind.PUNCTUATOR
+          && BINARY_OPERATORS.get(level).contains(peek())) {
+        final String operator = tokens.get(position++).text;
+        final long right = evaluateExpression(level + 1);
+        result = applyBinary(operator, result, right);
+      }
+      return result;
+    }
+
+    private long applyBinary(String operator, long left, long right)
+        throws GlslPreprocessorException {
+      final int leftValue = (int) left;
+      final int rightValue = (int) right;
+      switch (operator) {
+        case "||":
+          return leftValue != 0 || rightValue != 0 ? 1 : 0;
+        case "&&":
+          return leftValue != 0 && rightValue != 0 ? 1 : 0;
+        case "|":
+          return leftValue | rightValue;
+        case "^":
+          return leftValue ^ rightValue;
+        case "&":
+          return leftValue & rightValue;
+        case "==":
+          return leftValue == rightValue ? 1 : 0;
+        case "!=":
+          return leftValue != rightValue ? 1 : 0;
+        case "<":
+          return leftValue < rightValue ? 1 : 0;
+        case ">":
+          return leftValue > rightValue ? 1 : 0;
+        case "<=":
+          return leftValue <= rightValue ? 1 : 0;
+        case ">=":
+          return leftValue >= rightValue ? 1 : 0;
+        case "<<":
+          return leftValue << rightValue;
+        case ">>":
+          return leftValue >> rightValue;
+        case "+":
+          return leftValue + rightValue;
+        case "-":
+          return leftValue - rightValue;
+        case "*":
+          return leftValue * rightValue;
+        case "/":
+        case "%":
+          if (rightValue == 0) {
+            throw new GlslPreprocessorException(currentLine, "division by zero in expression");
+          }
+          return operator.equals("/") ? leftValue / rightValue : leftValue % rightValue;
+        default:
+          throw new RuntimeException("Unknown operator " + operator);
+      }
+    }
+
+    private long evaluateUnary() throws GlslPreprocessorException {
+      if (isAtEnd()) {
+        throw new GlslPreprocessorException(currentLine, "incomplete expression");
+      }
+      final Token token = tokens.get(position++);
+      if (token.kind == TokenKind.NUMBER) {
+        return parseNumber(token);
+      }
+      if (token.kind == TokenKind.IDENTIFIER) {
+        throw new GlslPreprocessorException(currentLine, "undefined identifier " + token.text
+            + " in expression");
+      }
+      switch (token.text) {
+        case "(": {
+          final long result = evaluateExpression(0);
+          if (!peek().equals(")")) {
+            throw new GlslPreprocessorException(currentLine, "missing ')' in expression");
+          }
+          position++;
+          return result;
+        }
+        case "+":
+          return evaluateUnary();
+        case "-":
+          return -(int) evaluateUnary();
+        case "~":
+          return ~(int) evaluateUnary();
+        case "!":
+          return evaluateUnary() == 0 ? 1 : 0;
+        default:
+          throw new GlslPreprocessorException(currentLine, "unexpected '" + token.text
+              + "' in expression");
+      }
+    }
+
+  }
+
+  private static int skipSpace(List<Token> tokens, int index) {
+    int result = index;
+    while (result < tokens.size() && tokens.get(result).isSpace()) {
+      result++;
+    }
+    return result;
+  }
+
+  private static List<Token> trimSpace(List<Token> tokens) {
+    int start = skipSpace(tokens, 0);
+    int end = tokens.size();
+    while (end > start && tokens.get(end - 1).isSpace()) {
+      end--;
+    }
+    return tokens.subList(start, end);
+  }
+
+  private static List<Token> withoutSpace(List<Token> tokens) {
+    return tokens.stream().filter(item -> !item.isSpace()).collect(Collectors.toList());
+  }
+
+  private static int countNewlines(List<Token> tokens) {
+    return (int) tokens.stream().filter(item -> item.kind == TokenKind.NEWLINE).count();
+  }
+
+  private static String concatenate(List<Token> tokens) {
+    return tokens.stream().map(item -> item.text).collect(Collectors.joining());
+  }
+
+  private static void appendNewlines(StringBuilder builder, int count) {
+    for (int i = 0; i < count; i++) {
+      builder.append('\n');
+    }
+  }
+
+}
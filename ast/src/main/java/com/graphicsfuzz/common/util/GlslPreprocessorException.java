@@ -0,0 +1,29 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.util;
+
+/**
+ * Thrown when the in-process preprocessor either finds an error in a shader, or meets a construct
+ * that it does not support.
+ */
+public class GlslPreprocessorException extends Exception {
+
+  public GlslPreprocessorException(int line, String message) {
+    super("Preprocessing failed at line " + line + ": " + message);
+  }
+
+}
@@ -37,24 +37,85 @@ import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.atn.ATN;
 import org.antlr.v4.runtime.atn.LexerATNSimulator;
 import org.antlr.v4.runtime.atn.ParserATNSimulator;
 import org.antlr.v4.runtime.atn.PredictionContextCache;
 import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.dfa.DFA;
 import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTreeListener;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 
 public class ParseHelper {
 
   public static final String END_OF_GRAPHICSFUZZ_DEFINES = "// END OF GENERATED HEADER";
 
+  // When enabled, parses share a single lexer and parser DFA and a single prediction context
+  // cache, which stay warm between parses.  Otherwise each parse starts from scratch with its own
+  // private DFA and cache, which are discarded afterwards.  ANTLR synchronizes access to the shared
+  // DFA and context cache internally, so either way parsing is re-entrant.
+  private static volatile boolean warmCaching = false;
+
+  // Parses that use the shared caches hold the read lock; clearing the caches requires the write
+  // lock.
+  private static final ReadWriteLock sharedCachesLock = new ReentrantReadWriteLock();
+
+  private static PredictionContextCache sharedContextCache = new PredictionContextCache();
+
+  // When enabled, shaders are preprocessed in-process by GlslPreprocessor, falling back to
+  // glslangValidator only for shaders that GlslPreprocessor rejects.  Otherwise every shader is
+  // preprocessed by running glslangValidator.
+  private static volatile boolean inProcessPreprocessing = true;
+
+  /**
+   * Enables or disables sharing of warm lexer and parser caches between parses, including parses
+   * running concurrently on different threads.  Warm caches speed up parsing of many similar
+   * shaders, at the cost of memory that grows with the variety of shaders parsed; use
+   * clearWarmCaches to release it.
+   * @param enabled True if and only if subsequent parses should share warm caches.
+   */
+  public static void setWarmCaching(boolean enabled) {
+    warmCaching = enabled;
+  }
+
+  /**
+   * Chooses between the in-process preprocessor, which is the default, and running
+   * glslangValidator to preprocess every shader.
+   * @param enabled True if and only if subsequent parses should use the in-process preprocessor.
+   */
+  public static void setInProcessPreprocessing(boolean enabled) {
+    inProcessPreprocessing = enabled;
+  }
+
+  /**
+   * Discards the contents of the shared lexer and parser caches.  Waits for any parses that are
+   * using the caches to finish first.
+   */
+  public static void clearWarmCaches() {
+    sharedCachesLock.writeLock().lock();
+    try {
+      final GLSLParser parser = getParser(new ByteArrayInputStream(new byte[0]), null, true);
+      parser.getInterpreter().clearDFA();
+      ((GLSLLexer) parser.getTokenStream().getTokenSource()).getInterpreter().clearDFA();
+      sharedContextCache = new PredictionContextCache();
+    } catch (IOException exception) {
+      // Reading from an in-memory stream cannot fail.
+      throw new RuntimeException(exception);
+    } finally {
+      sharedCachesLock.writeLock().unlock();
+    }
+  }
+
   public static Optional<TranslationUnit> maybeParseShader(File shader)
       throws IOException, ParseTimeoutException, InterruptedException, GlslParserException {
     return shader.isFile()
@@ -62,13 +123,13 @@ public class ParseHelper {
         : Optional.empty();
   }
 
-  public static synchronized TranslationUnit parse(File file)
+  public static TranslationUnit parse(File file)
       throws IOException, ParseTimeoutException, InterruptedException, GlslParserException {
     return parseInputStream(new ByteArrayInputStream(FileUtils.readFileToByteArray(file)),
         ShaderKind.fromExtension(FilenameUtils.getExtension(file.getName())));
   }
 
-  public static synchronized TranslationUnit parse(String string, ShaderKind shaderKind)
+  public static TranslationUnit parse(String string, ShaderKind shaderKind)
       throws IOException, ParseTimeoutException, InterruptedException, GlslParserException {
     return parseInputStream(new ByteArrayInputStream(string.getBytes(StandardCharsets.UTF_8)),
         shaderKind);
@@ -83,13 +144,13 @@ public class ParseHelper {
    * @throws IOException Thrown if parsing leads to an IO exception.
    * @throws ParseTimeoutException Thrown if parsing takes to long.
    */
-  public static synchronized TranslationUnit parse(String string)
+  public static TranslationUnit parse(String string)
       throws IOException, ParseTimeoutException, InterruptedException, GlslParserException {
     return parse(string, ShaderKind.FRAGMENT);
   }
 
-  private static synchronized TranslationUnit parseInputStream(InputStream input,
-                                                               ShaderKind shaderKind)
+  private static TranslationUnit parseInputStream(InputStream input,
+                                                  ShaderKind shaderKind)
       throws IOException, ParseTimeoutException, InterruptedException, GlslParserException {
 
     final boolean hasWebGlHint = checkForWebGlHint(input);
@@ -102,16 +163,24 @@ public class ParseHelper {
     ParseTreeListener listener =
         new TimeoutParseTreeListener(
             System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeLimit));
+    final boolean useWarmCaches = warmCaching;
+    if (useWarmCaches) {
+      sharedCachesLock.readLock().lock();
+    }
     Translation_unitContext ctx;
     try {
       try {
-        ctx = tryFastParse(preprocessedInput, listener);
+        ctx = tryFastParse(preprocessedInput, listener, useWarmCaches);
       } catch (ParseCancellationException exception) {
         preprocessedInput.reset();
-        ctx = slowParse(preprocessedInput, listener);
+        ctx = slowParse(preprocessedInput, listener, useWarmCaches);
       }
     } catch (ParseTimeoutRuntimeException exception) {
       throw new ParseTimeoutException(exception);
+    } finally {
+      if (useWarmCaches) {
+        sharedCachesLock.readLock().unlock();
+      }
     }
 
     return AstBuilder.getTranslationUnit(ctx, shaderKind, hasWebGlHint);
@@ -135,11 +204,23 @@ public class ParseHelper {
   private static InputStream preprocess(InputStream inputStream, ShaderKind shaderKind)
       throws IOException,
       InterruptedException {
+    InputStream glslangInput = inputStream;
+    if (inProcessPreprocessing) {
+      final byte[] source = IOUtils.toByteArray(inputStream);
+      try {
+        return new ByteArrayInputStream(GlslPreprocessor.preprocess(
+            new String(source, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8));
+      } catch (GlslPreprocessorException exception) {
+        // Either the shader is malformed, in which case glslangValidator will give the
+        // authoritative error, or it uses a feature that only glslangValidator supports.
+        glslangInput = new ByteArrayInputStream(source);
+      }
+    }
     // Preprocess the shader using glslangValidator
     final ExecResult preprocessorResult = new ExecHelper().exec(ExecHelper.RedirectType.TO_BUFFER,
         null,
         false,
-        inputStream,
+        glslangInput,
         ToolPaths.glslangValidator(), "-E", "--stdin", "-S", shaderKind.getFileExtension());
     if (preprocessorResult.res != 0) {
       throw new RuntimeException("Preprocessing failed with exit code " + preprocessorResult.res
@@ -151,42 +232,47 @@ public class ParseHelper {
 
   private static Translation_unitContext tryFastParse(
         InputStream inputStream,
-        ParseTreeListener listener) throws IOException {
+        ParseTreeListener listener,
+        boolean useWarmCaches) throws IOException {
 
-    GLSLParser parser = getParser(inputStream, listener);
+    GLSLParser parser = getParser(inputStream, listener, useWarmCaches);
     parser.setErrorHandler(new BailErrorStrategy());
     parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
-    Translation_unitContext result = parser.translation_unit();
-    parser.getInterpreter().clearDFA();
-    return result;
+    return parser.translation_unit();
   }
 
   private static Translation_unitContext slowParse(
         InputStream inputStream,
-        ParseTreeListener listener) throws IOException, GlslParserException {
+        ParseTreeListener listener,
+        boolean useWarmCaches) throws IOException, GlslParserException {
 
-    GLSLParser parser = getParser(inputStream, listener);
-    try {
-      Translation_unitContext tu = parser.translation_unit();
-      if (parser.getNumberOfSyntaxErrors() > 0) {
-        throw new GlslParserException(parser);
-      }
-      return tu;
-    } finally {
-      parser.getInterpreter().clearDFA();
+    GLSLParser parser = getParser(inputStream, listener, useWarmCaches);
+    Translation_unitContext tu = parser.translation_unit();
+    if (parser.getNumberOfSyntaxErrors() > 0) {
+      throw new GlslParserException(parser);
     }
+    return tu;
   }
 
   private static GLSLParser getParser(
         InputStream inputStream,
-        ParseTreeListener listener) throws IOException {
+        ParseTreeListener listener,
+        boolean useWarmCaches) throws IOException {
 
     ANTLRInputStream input = new ANTLRInputStream(inputStream);
     GLSLLexer lexer = new GLSLLexer(input);
-    PredictionContextCache cache = new PredictionContextCache();
+    // The generated lexer and parser share static DFAs, which are used when warm caching is
+    // enabled.  Otherwise, fresh DFAs are used so that the parse is unaffected by, and does not
+    // affect, any other parse.
+    PredictionContextCache cache = useWarmCaches
+        ? sharedContextCache
+        : new PredictionContextCache();
     lexer.setInterpreter(
           new LexerATNSimulator(lexer, lexer.getATN(),
-                lexer.getInterpreter().decisionToDFA, cache));
+                useWarmCaches
+                    ? lexer.getInterpreter().decisionToDFA
+                    : freshDfa(lexer.getATN()),
+                cache));
     CommonTokenStream tokens = new CommonTokenStream(lexer);
     GLSLParser parser = new GLSLParser(tokens);
     // Remove error listeners, otherwise errors get output to the console.
@@ -196,11 +282,21 @@ public class ParseHelper {
     }
     parser.setInterpreter(
           new ParserATNSimulator(parser, parser.getATN(),
-                parser.getInterpreter().decisionToDFA,
+                useWarmCaches
+                    ? parser.getInterpreter().decisionToDFA
+                    : freshDfa(parser.getATN()),
                 cache));
     return parser;
   }
 
+  private static DFA[] freshDfa(ATN atn) {
+    final DFA[] result = new DFA[atn.getNumberOfDecisions()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = new DFA(atn.getDecisionState(i), i);
+    }
+    return result;
+  }
+
   static InputStream stripGraphicsFuzzDefines(InputStream inputStream)
         throws IOException {
     if (!containsEndOfGraphicsFuzzDefines(inputStream)) {
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.util;
+
+import com.graphicsfuzz.common.ast.IAstNode;
+import com.graphicsfuzz.common.ast.TranslationUnit;
+import com.graphicsfuzz.common.ast.decl.ArrayInfo;
+import com.graphicsfuzz.common.ast.decl.DefaultLayout;
+import com.graphicsfuzz.common.ast.decl.FunctionPrototype;
+import com.graphicsfuzz.common.ast.decl.InterfaceBlock;
+import com.graphicsfuzz.common.ast.decl.ParameterDecl;
+import com.graphicsfuzz.common.ast.decl.PrecisionDeclaration;
+import com.graphicsfuzz.common.ast.decl.VariableDeclInfo;
+import com.graphicsfuzz.common.ast.expr.ArrayConstructorExpr;
+import com.graphicsfuzz.common.ast.expr.BinaryExpr;
+import com.graphicsfuzz.common.ast.expr.BoolConstantExpr;
+import com.graphicsfuzz.common.ast.expr.FloatConstantExpr;
+import com.graphicsfuzz.common.ast.expr.FunctionCallExpr;
+import com.graphicsfuzz.common.ast.expr.IntConstantExpr;
+import com.graphicsfuzz.common.ast.expr.MemberLookupExpr;
+import com.graphicsfuzz.common.ast.expr.TypeConstructorExpr;
+import com.graphicsfuzz.common.ast.expr.UIntConstantExpr;
+import com.graphicsfuzz.common.ast.expr.UnaryExpr;
+import com.graphicsfuzz.common.ast.expr.VariableIdentifierExpr;
+import com.graphicsfuzz.common.ast.stmt.BlockStmt;
+import com.graphicsfuzz.common.ast.stmt.ExtensionStatement;
+import com.graphicsfuzz.common.ast.stmt.ForStmt;
+import com.graphicsfuzz.common.ast.stmt.PragmaStatement;
+import com.graphicsfuzz.common.ast.type.ArrayType;
+import com.graphicsfuzz.common.ast.type.AtomicIntType;
+import com.graphicsfuzz.common.ast.type.BasicType;
+import com.graphicsfuzz.common.ast.type.ImageType;
+import com.graphicsfuzz.common.ast.type.QualifiedType;
+import com.graphicsfuzz.common.ast.type.SamplerType;
+import com.graphicsfuzz.common.ast.type.StructDefinitionType;
+import com.graphicsfuzz.common.ast.type.StructNameType;
+import com.graphicsfuzz.common.ast.type.TypeQualifier;
+import com.graphicsfuzz.common.ast.type.VoidType;
+import com.graphicsfuzz.common.ast.visitors.StandardVisitor;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Computes a structural hash of an AST, without pretty-printing it.
+ *
+ * <p>The AST is flattened into a sequence of tokens: for each node, its class, the details of the
+ * node that are not held in child nodes (names, operators, literal values, qualifiers and the
+ * like), then the tokens of its children, then an end marker.  Two ASTs yield the same sequence
+ * if and only if they are structurally identical, and so would be pretty-printed identically.
+ * The hash is a SHA-1 digest of the sequence, so it is stable across runs, and can be used to
+ * recognise shaders that have been seen before.
+ */
+public final class StructuralHash {
+
+  private StructuralHash() {
+    // Utility class
+  }
+
+  /**
+   * Computes the structural hash of a node.
+   * @param node The root of the AST to be hashed.
+   * @return A hex string that is equal for structurally identical ASTs.
+   */
+  public static String hash(IAstNode node) {
+    return hash(Collections.singletonList(node), Collections.emptyList());
+  }
+
+  /**
+   * Computes a single structural hash for a number of nodes, together with some additional text,
+   * e.g. a description of the uniforms with which a number of shaders are to be run.
+   * @param nodes The roots of the ASTs to be hashed, in order.
+   * @param extras Additional strings that contribute to the hash, in order.
+   * @return A hex string that is equal for structurally identical sequences of ASTs with equal
+   *         additional strings.
+   */
+  public static String hash(List<? extends IAstNode> nodes, List<String> extras) {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException exception) {
+      throw new RuntimeException(exception);
+    }
+    final Consumer<String> sink = token -> {
+      digest.update(token.getBytes(StandardCharsets.UTF_8));
+      // Tokens never contain a NUL character, so this separates tokens unambiguously.
+      digest.update((byte) 0);
+    };
+    for (IAstNode node : nodes) {
+      new TokenVisitor(sink).visit(node);
+    }
+    for (String extra : extras) {
+      sink.accept(extra);
+    }
+    final StringBuilder result = new StringBuilder();
+    for (byte item : digest.digest()) {
+      result.append(String.format("%02x", item));
+    }
+    return result.toString();
+  }
+
+  /**
+   * Determines whether two ASTs are structurally identical.
+   * @param first An AST.
+   * @param second Another AST.
+   * @return true if and only if the ASTs are structurally identical.
+   */
+  public static boolean areStructurallyEqual(IAstNode first, IAstNode second) {
+    final List<String> firstTokens = new ArrayList<>();
+    new TokenVisitor(firstTokens::add).visit(first);
+    final List<String> secondTokens = new ArrayList<>();
+    new TokenVisitor(secondTokens::add).visit(second);
+    return firstTokens.equals(secondTokens);
+  }
+
+  private static final class TokenVisitor extends StandardVisitor {
+
+    private static final String END = "}";
+
+    private final Consumer<String> sink;
+
+    private TokenVisitor(Consumer<String> sink) {
+      this.sink = sink;
+    }
+
+    @Override
+    public void visit(IAstNode node) {
+      sink.accept(node.getClass().getSimpleName());
+      super.visit(node);
+      sink.accept(END);
+    }
+
+    @Override
+    public void visitTranslationUnit(TranslationUnit translationUnit) {
+      sink.accept(translationUnit.getShaderKind().toString());
+      sink.accept(translationUnit.hasShadingLanguageVersion()
+          ? translationUnit.getShadingLanguageVersion().getVersionString()
+          : "");
+      super.visitTranslationUnit(translationUnit);
+    }
+
+    @Override
+    public void visitFunctionPrototype(FunctionPrototype functionPrototype) {
+      sink.accept(functionPrototype.getName());
+      super.visitFunctionPrototype(functionPrototype);
+    }
+
+    @Override
+    public void visitBlockStmt(BlockStmt stmt) {
+      sink.accept(String.valueOf(stmt.introducesNewScope()));
+      super.visitBlockStmt(stmt);
+    }
+
+    @Override
+    public void visitPrecisionDeclaration(PrecisionDeclaration precisionDeclaration) {
+      sink.accept(precisionDeclaration.getText());
+      super.visitPrecisionDeclaration(precisionDeclaration);
+    }
+
+    @Override
+    public void visitBinaryExpr(BinaryExpr binaryExpr) {
+      sink.accept(binaryExpr.getOp().toString());
+      super.visitBinaryExpr(binaryExpr);
+    }
+
+    @Override
+    public void visitUnaryExpr(UnaryExpr unaryExpr) {
+      sink.accept(unaryExpr.getOp().toString());
+      super.visitUnaryExpr(unaryExpr);
+    }
+
+    @Override
+    public void visitVariableIdentifierExpr(VariableIdentifierExpr variableIdentifierExpr) {
+      sink.accept(variableIdentifierExpr.getName());
+      super.visitVariableIdentifierExpr(variableIdentifierExpr);
+    }
+
+    @Override
+    public void visitMemberLookupExpr(MemberLookupExpr memberLookupExpr) {
+      sink.accept(memberLookupExpr.getMember());
+      super.visitMemberLookupExpr(memberLookupExpr);
+    }
+
+    @Override
+    public void visitFunctionCallExpr(FunctionCallExpr functionCallExpr) {
+      sink.accept(functionCallExpr.getCallee());
+      super.visitFunctionCallExpr(functionCallExpr);
+    }
+
+    @Override
+    public void visitTypeConstructorExpr(TypeConstructorExpr typeConstructorExpr) {
+      sink.accept(typeConstructorExpr.getTypename());
+      super.visitTypeConstructorExpr(typeConstructorExpr);
+    }
+
+    @Override
+    public void visitBasicType(BasicType basicType) {
+      sink.accept(basicType.toString());
+      super.visitBasicType(basicType);
+    }
+
+    @Override
+    public void visitSamplerType(SamplerType samplerType) {
+      sink.accept(samplerType.toString());
+      super.visitSamplerType(samplerType);
+    }
+
+    @Override
+    public void visitImageType(ImageType imageType) {
+      sink.accept(imageType.toString());
+      super.visitImageType(imageType);
+    }
+
+    @Override
+    public void visitVoidType(VoidType voidType) {
+      sink.accept(voidType.toString());
+      super.visitVoidType(voidType);
+    }
+
+    @Override
+    public void visitAtomicIntType(AtomicIntType atomicIntType) {
+      sink.accept(atomicIntType.toString());
+      super.visitAtomicIntType(atomicIntType);
+    }
+
+    @Override
+    public void visitQualifiedType(QualifiedType qualifiedType) {
+      emitQualifiers(qualifiedType.getQualifiers());
+      super.visitQualifiedType(qualifiedType);
+    }
+
+    @Override
+    public void visitForStmt(ForStmt forStmt) {
+      // Without these, 'for(; x; )' and 'for(; ; x)' would be indistinguishable.
+      sink.accept(String.valueOf(forStmt.hasCondition()));
+      sink.accept(String.valueOf(forStmt.hasIncrement()));
+      super.visitForStmt(forStmt);
+    }
+
+    @Override
+    public void visitArrayInfo(ArrayInfo arrayInfo) {
+      sink.accept(String.valueOf(arrayInfo.getDimensionality()));
+      for (int i = 0; i < arrayInfo.getDimensionality(); i++) {
+        // A size expression, if present, is emitted as a child; otherwise the size is given by a
+        // constant, if known.
+        if (arrayInfo.hasSizeExpr(i)) {
+          sink.accept("expr");
+        } else if (arrayInfo.hasConstantSize(i)) {
+          sink.accept(String.valueOf(arrayInfo.getConstantSize(i)));
+        } else {
+          sink.accept("unsized");
+        }
+      }
+      super.visitArrayInfo(arrayInfo);
+    }
+
+    @Override
+    public void visitVariableDeclInfo(VariableDeclInfo variableDeclInfo) {
+      sink.accept(variableDeclInfo.getName());
+      sink.accept(String.valueOf(variableDeclInfo.hasArrayInfo()));
+      super.visitVariableDeclInfo(variableDeclInfo);
+    }
+
+    @Override
+    public void visitParameterDecl(ParameterDecl parameterDecl) {
+      sink.accept(parameterDecl.getName() == null ? "" : parameterDecl.getName());
+      sink.accept(String.valueOf(parameterDecl.hasArrayInfo()));
+      super.visitParameterDecl(parameterDecl);
+    }
+
+    @Override
+    public void visitIntConstantExpr(IntConstantExpr intConstantExpr) {
+      sink.accept(intConstantExpr.getValue());
+      super.visitIntConstantExpr(intConstantExpr);
+    }
+
+    @Override
+    public void visitUIntConstantExpr(UIntConstantExpr uintConstantExpr) {
+      sink.accept(uintConstantExpr.getValue());
+      super.visitUIntConstantExpr(uintConstantExpr);
+    }
+
+    @Override
+    public void visitFloatConstantExpr(FloatConstantExpr floatConstantExpr) {
+      sink.accept(floatConstantExpr.getValue());
+      super.visitFloatConstantExpr(floatConstantExpr);
+    }
+
+    @Override
+    public void visitBoolConstantExpr(BoolConstantExpr boolConstantExpr) {
+      sink.accept(boolConstantExpr.toString());
+      super.visitBoolConstantExpr(boolConstantExpr);
+    }
+
+    @Override
+    public void visitStructDefinitionType(StructDefinitionType structDefinitionType) {
+      // The field types are emitted as children, in the same order as the names.
+      for (String name : structDefinitionType.getFieldNames()) {
+        sink.accept(name);
+      }
+      super.visitStructDefinitionType(structDefinitionType);
+    }
+
+    @Override
+    public void visitArrayConstructorExpr(ArrayConstructorExpr arrayConstructorExpr) {
+      // The type of an array constructor is not one of its children, so is visited explicitly.
+      visit(arrayConstructorExpr.getArrayType());
+      super.visitArrayConstructorExpr(arrayConstructorExpr);
+    }
+
+    @Override
+    public void visitArrayType(ArrayType arrayType) {
+      // Similarly, the array info of an array type is not one of its children.
+      visit(arrayType.getArrayInfo());
+      super.visitArrayType(arrayType);
+    }
+
+    @Override
+    public void visitInterfaceBlock(InterfaceBlock interfaceBlock) {
+      sink.accept(interfaceBlock.hasLayoutQualifierSequence()
+          ? interfaceBlock.getLayoutQualifierSequence().toString()
+          : "");
+      emitQualifiers(interfaceBlock.getInterfaceQualifiers());
+      sink.accept(interfaceBlock.getStructName());
+      // The member types are emitted as children, in the same order as the names.
+      for (String name : interfaceBlock.getMemberNames()) {
+        sink.accept(name);
+      }
+      sink.accept(interfaceBlock.hasIdentifierName() ? interfaceBlock.getInstanceName() : "");
+      super.visitInterfaceBlock(interfaceBlock);
+    }
+
+    @Override
+    public void visitDefaultLayout(DefaultLayout defaultLayout) {
+      sink.accept(defaultLayout.getLayoutQualifierSequence().toString());
+      sink.accept(defaultLayout.getTypeQualifier().toString());
+      super.visitDefaultLayout(defaultLayout);
+    }
+
+    @Override
+    public void visitStructNameType(StructNameType structNameType) {
+      sink.accept(structNameType.getName());
+      super.visitStructNameType(structNameType);
+    }
+
+    @Override
+    public void visitExtensionStatement(ExtensionStatement extensionStatement) {
+      sink.accept(extensionStatement.getExtensionName());
+      sink.accept(extensionStatement.getExtensionStatus());
+      super.visitExtensionStatement(extensionStatement);
+    }
+
+    @Override
+    public void visitPragmaStatement(PragmaStatement pragmaStatement) {
+      sink.accept(pragmaStatement.getText());
+      super.visitPragmaStatement(pragmaStatement);
+    }
+
+    private void emitQualifiers(List<TypeQualifier> qualifiers) {
+      sink.accept(String.valueOf(qualifiers.size()));
+      for (TypeQualifier qualifier : qualifiers) {
+        sink.accept(qualifier.toString());
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.tool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.graphicsfuzz.common.ast.TranslationUnit;
+import com.graphicsfuzz.common.util.ParseHelper;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Optional;
+import org.junit.Test;
+
+public class EncodingAppendableTest {
+
+  @Test
+  public void testAllTargetsAgree() throws Exception {
+    // Enough functions for the pretty printer to pass text on to its target several times.
+    final StringBuilder program = new StringBuilder("#version 310 es\n");
+    for (int i = 0; i < 500; i++) {
+      program.append("float f").append(i).append("(float x) { return x * ").append(i)
+          .append(".0; }\n");
+    }
+    program.append("void main() { }\n");
+    final TranslationUnit tu = ParseHelper.parse(program.toString());
+    final Optional<String> license = Optional.of("// Licens\u00e9 \u2603 \ud83d\ude00");
+
+    final ByteArrayOutputStream printStreamBytes = new ByteArrayOutputStream();
+    try (PrintStream stream = new PrintStream(printStreamBytes, true, "UTF-8")) {
+      emit(tu, license, stream);
+    }
+    final byte[] expected = printStreamBytes.toByteArray();
+
+    final StringBuilder text = new StringBuilder();
+    emit(tu, license, text);
+    assertArrayEquals(expected, text.toString().getBytes(StandardCharsets.UTF_8));
+
+    final ByteArrayOutputStream channelBytes = new ByteArrayOutputStream();
+    emit(tu, license, EncodingAppendable.toChannel(Channels.newChannel(channelBytes)));
+    assertArrayEquals(expected, channelBytes.toByteArray());
+
+    final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+    emit(tu, license, EncodingAppendable.toDigest(digest));
+    assertArrayEquals(MessageDigest.getInstance("SHA-1").digest(expected), digest.digest());
+  }
+
+  @Test
+  public void testAppendLargerThanBuffer() throws Exception {
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      text.append("\u00e9\u2603\ud83d\ude00");
+    }
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final EncodingAppendable appendable = EncodingAppendable.toChannel(Channels.newChannel(bytes));
+    appendable.append(text).append('x').append(text, 1, 4).append(null);
+    assertEquals(text.toString() + "x" + text.substring(1, 4) + "null",
+        new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  private static void emit(TranslationUnit tu, Optional<String> license, Appendable target) {
+    PrettyPrinterVisitor.emitShader(tu, license, target,
+        PrettyPrinterVisitor.DEFAULT_INDENTATION_WIDTH,
+        PrettyPrinterVisitor.DEFAULT_NEWLINE_SUPPLIER);
+  }
+
+}
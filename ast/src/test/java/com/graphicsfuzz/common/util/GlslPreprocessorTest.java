@@ -0,0 +1,199 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import com.graphicsfuzz.common.tool.PrettyPrinterVisitor;
+import com.graphicsfuzz.util.ToolPaths;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class GlslPreprocessorTest {
+
+  @Test
+  public void testObjectLikeMacros() throws Exception {
+    final String original = "#version 310 es\n"
+        + "#define N 100\n"
+        + "#define M N + 1\n"
+        + "int x = M;\n";
+    final String preprocessed = GlslPreprocessor.preprocess(original);
+    assertEquals(original.split("\n", -1).length, preprocessed.split("\n", -1).length);
+    assertEquals("#version 310 es\n"
+        + "int x = 100 + 1;\n", normalize(preprocessed));
+  }
+
+  @Test
+  public void testFunctionLikeMacros() throws Exception {
+    final String original = "#define SQUARE(X) ((X) * (X))\n"
+        + "#define MAX(A, B) ((A) > (B) ? (A) : (B))\n"
+        + "#define SQUARE_OF_MAX(A, B) \\\n"
+        + "  SQUARE(MAX(A, B))\n"
+        + "int x = SQUARE_OF_MAX(1,\n"
+        + "  SQUARE(2));\n"
+        + "int SQUARE;\n";
+    final String preprocessed = GlslPreprocessor.preprocess(original);
+    assertEquals(original.split("\n", -1).length, preprocessed.split("\n", -1).length);
+    assertEquals("int x = ((((1) > (((2) * (2))) ? (1) : (((2) * (2))))) * "
+        + "(((1) > (((2) * (2))) ? (1) : (((2) * (2))))))\n"
+        + ";\n"
+        + "int SQUARE;\n", normalize(preprocessed));
+  }
+
+  @Test
+  public void testSelfReferentialMacrosAreNotReexpanded() throws Exception {
+    assertEquals("int y = x + 1;\n",
+        normalize(GlslPreprocessor.preprocess("#define x x + 1\n"
+            + "int y = x;\n")));
+  }
+
+  @Test
+  public void testTokenPasting() throws Exception {
+    assertEquals("int ab = 12;\n",
+        normalize(GlslPreprocessor.preprocess("#define CAT(A, B) A ## B\n"
+            + "int CAT(a, b) = CAT(1, 2);\n")));
+  }
+
+  @Test
+  public void testConditionals() throws Exception {
+    final String original = "#version 100\n"
+        + "#define A 2\n"
+        + "#if defined(A) && A * 2 == 4\n"
+        + "int a;\n"
+        + "#elif 1\n"
+        + "int b;\n"
+        + "#else\n"
+        + "int c;\n"
+        + "#endif\n"
+        + "#ifndef GL_ES\n"
+        + "int d;\n"
+        + "#elif (0x10 >> 4) != 1 || !defined A\n"
+        + "int e;\n"
+        + "#else\n"
+        + "#if 0\n"
+        + "#error not reached\n"
+        + "#endif\n"
+        + "int f;\n"
+        + "#endif\n"
+        + "#undef A\n"
+        + "#ifdef A\n"
+        + "int g;\n"
+        + "#endif\n";
+    final String preprocessed = GlslPreprocessor.preprocess(original);
+    assertEquals(original.split("\n", -1).length, preprocessed.split("\n", -1).length);
+    assertEquals("#version 100\n"
+        + "int a;\n"
+        + "int f;\n", normalize(preprocessed));
+  }
+
+  @Test
+  public void testDesktopVersionDoesNotDefineGlEs() throws Exception {
+    assertEquals("#version 440\n"
+        + "int d;\n", normalize(GlslPreprocessor.preprocess("#version 440\n"
+            + "#ifdef GL_ES\n"
+            + "int e;\n"
+            + "#else\n"
+            + "int d;\n"
+            + "#endif\n")));
+  }
+
+  @Test
+  public void testCommentsAreRemoved() throws Exception {
+    assertEquals("int x\n"
+        + "= 1;\n",
+        normalize(GlslPreprocessor.preprocess("int x /* a\n"
+            + "comment */ = 1; // another comment\n")));
+  }
+
+  @Test(expected = GlslPreprocessorException.class)
+  public void testError() throws Exception {
+    GlslPreprocessor.preprocess("#error bad\n");
+  }
+
+  @Test(expected = GlslPreprocessorException.class)
+  public void testMissingEndif() throws Exception {
+    GlslPreprocessor.preprocess("#if 1\n"
+        + "int x;\n");
+  }
+
+  @Test(expected = GlslPreprocessorException.class)
+  public void testUndefinedIdentifierInExpression() throws Exception {
+    GlslPreprocessor.preprocess("#if X\n"
+        + "#endif\n");
+  }
+
+  @Test(expected = GlslPreprocessorException.class)
+  public void testExtensionMacrosAreNotGuessed() throws Exception {
+    GlslPreprocessor.preprocess("#ifdef GL_EXT_shader_texture_lod\n"
+        + "#endif\n");
+  }
+
+  @Test
+  public void testAgreesWithGlslangOnShaderCorpus() throws Exception {
+    final Collection<File> shaders = FileUtils.listFiles(
+        new File(ToolPaths.getShadersDirectory()), new String[] { "frag", "vert", "comp" }, true);
+    assertFalse(shaders.isEmpty());
+    try {
+      for (File shader : shaders) {
+        final String source = FileUtils.readFileToString(shader, StandardCharsets.UTF_8);
+        ParseHelper.setInProcessPreprocessing(false);
+        final String external;
+        try {
+          external = PrettyPrinterVisitor.prettyPrintAsString(ParseHelper.parse(shader));
+        } catch (RuntimeException exception) {
+          // glslangValidator rejects the shader, so the in-process preprocessor should too.
+          try {
+            GlslPreprocessor.preprocess(source);
+            fail("Expected " + shader.getPath() + " to be rejected.");
+          } catch (GlslPreprocessorException expected) {
+            // Expected.
+          }
+          continue;
+        }
+        // The in-process preprocessor should handle every other shader in the corpus, rather
+        // than falling back to glslangValidator.
+        GlslPreprocessor.preprocess(source);
+        ParseHelper.setInProcessPreprocessing(true);
+        final String inProcess = PrettyPrinterVisitor.prettyPrintAsString(
+            ParseHelper.parse(shader));
+        assertEquals(shader.getPath(), external, inProcess);
+      }
+    } finally {
+      ParseHelper.setInProcessPreprocessing(true);
+    }
+  }
+
+  // Drops blank lines and collapses runs of spaces, so that expected output can be written
+  // without regard to the padding that the preprocessor adds.
+  private static String normalize(String preprocessed) {
+    final StringBuilder result = new StringBuilder();
+    for (String line : preprocessed.split("\n")) {
+      final String normalized = line.trim().replaceAll(" +", " ")
+          .replaceAll("\\( ", "(").replaceAll(" \\)", ")").replaceAll(" ;", ";");
+      if (!normalized.isEmpty()) {
+        result.append(normalized).append("\n");
+      }
+    }
+    return result.toString();
+  }
+
+}
@@ -58,7 +58,12 @@ import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import org.apache.commons.io.IOUtils;
 import org.junit.Rule;
@@ -830,4 +835,59 @@ public class ParseHelperTest {
     }
   }
 
+  @Test
+  public void testConcurrentParsing() throws Exception {
+    checkConcurrentParsing(false);
+  }
+
+  @Test
+  public void testConcurrentParsingWithWarmCaches() throws Exception {
+    ParseHelper.setWarmCaching(true);
+    try {
+      checkConcurrentParsing(true);
+    } finally {
+      ParseHelper.setWarmCaching(false);
+      ParseHelper.clearWarmCaches();
+    }
+  }
+
+  private void checkConcurrentParsing(boolean clearCachesMidway) throws Exception {
+    final List<String> programs = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      programs.add("#version 310 es\n"
+          + "precision highp float;\n"
+          + "layout(location = 0) out vec4 color;\n"
+          + "float f" + i + "(float x) { return x * " + i + ".0; }\n"
+          + "void main() {\n"
+          + "  float a[" + (i + 1) + "];\n"
+          + "  for (int j = 0; j < " + i + "; j++) {\n"
+          + "    a[0] += f" + i + "(float(j)) > 1.0 ? sin(float(j)) : cos(float(j));\n"
+          + "  }\n"
+          + "  color = vec4(a[0], 1.0, 0.0, 1.0);\n"
+          + "}\n");
+    }
+    final List<String> expected = new ArrayList<>();
+    for (String program : programs) {
+      expected.add(PrettyPrinterVisitor.prettyPrintAsString(ParseHelper.parse(program)));
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<String>> results = new ArrayList<>();
+      for (int repeat = 0; repeat < 4; repeat++) {
+        for (String program : programs) {
+          results.add(executor.submit(
+              () -> PrettyPrinterVisitor.prettyPrintAsString(ParseHelper.parse(program))));
+        }
+        if (clearCachesMidway) {
+          ParseHelper.clearWarmCaches();
+        }
+      }
+      for (int i = 0; i < results.size(); i++) {
+        assertEquals(expected.get(i % programs.size()), results.get(i).get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.graphicsfuzz.common.ast.TranslationUnit;
+import com.graphicsfuzz.common.tool.PrettyPrinterVisitor;
+import com.graphicsfuzz.util.ToolPaths;
+import java.io.File;
+import java.util.Collection;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class StructuralHashTest {
+
+  private static final String SHADER = "#version 310 es\n"
+      + "precision highp float;\n"
+      + "layout(location = 0) out vec4 _GLF_color;\n"
+      + "uniform vec2 injectionSwitch;\n"
+      + "struct S { int a; float b[2]; };\n"
+      + "float f(S s, int x[3]) { return s.b[1] + float(x[0]); }\n"
+      + "void main() {\n"
+      + "  S s = S(1, float[2](1.0, 2.0));\n"
+      + "  for (int i = 0; i < 4; i++) {\n"
+      + "    if (injectionSwitch.x > 1.0) {\n"
+      + "      discard;\n"
+      + "    }\n"
+      + "  }\n"
+      + "  _GLF_color = vec4(-f(s, int[3](1, 2, 3)), 0.0, 0.0, 1.0);\n"
+      + "}\n";
+
+  @Test
+  public void testLayoutDoesNotAffectHash() throws Exception {
+    final TranslationUnit tu = ParseHelper.parse(SHADER);
+    final TranslationUnit compacted = ParseHelper.parse(SHADER.replaceAll("\n", " ")
+        .replaceFirst("#version 310 es ", "#version 310 es\n")
+        .replaceAll(" +", " "));
+    assertEquals(StructuralHash.hash(tu), StructuralHash.hash(compacted));
+    assertEquals(StructuralHash.hash(tu), StructuralHash.hash(tu.clone()));
+    assertTrue(StructuralHash.areStructurallyEqual(tu, compacted));
+  }
+
+  @Test
+  public void testSmallChangesAffectHash() throws Exception {
+    final String hash = StructuralHash.hash(ParseHelper.parse(SHADER));
+    for (String[] change : new String[][] {
+        { "i < 4", "i < 5" },
+        { "i < 4", "i <= 4" },
+        { "1.0, 2.0", "2.0, 1.0" },
+        { "-f(", "+f(" },
+        { "float b[2]", "float c[2]" },
+        { "injectionSwitch.x", "injectionSwitch.y" },
+        { "precision highp float", "precision mediump float" },
+        { "discard;", "return;" },
+    }) {
+      final TranslationUnit changed = ParseHelper.parse(SHADER.replace(change[0], change[1]));
+      assertNotEquals(change[1], hash, StructuralHash.hash(changed));
+    }
+  }
+
+  @Test
+  public void testOptionalChildrenAreDistinguished() throws Exception {
+    final TranslationUnit conditionOnly = ParseHelper.parse("void main() {\n"
+        + "  int x;\n"
+        + "  for (; x < 2; ) { }\n"
+        + "}\n");
+    final TranslationUnit incrementOnly = ParseHelper.parse("void main() {\n"
+        + "  int x;\n"
+        + "  for (; ; x < 2) { }\n"
+        + "}\n");
+    assertNotEquals(StructuralHash.hash(conditionOnly), StructuralHash.hash(incrementOnly));
+    assertFalse(StructuralHash.areStructurallyEqual(conditionOnly, incrementOnly));
+  }
+
+  @Test
+  public void testHashSurvivesPrettyPrintingShaderCorpus() throws Exception {
+    final Collection<File> shaders = FileUtils.listFiles(
+        new File(ToolPaths.getShadersDirectory()), new String[] { "frag", "vert", "comp" }, true);
+    assertFalse(shaders.isEmpty());
+    for (File shader : shaders) {
+      final TranslationUnit tu;
+      try {
+        tu = ParseHelper.parse(shader);
+      } catch (RuntimeException | GlslParserException exception) {
+        // Not all shaders in the corpus are valid.
+        continue;
+      }
+      final TranslationUnit reparsed = ParseHelper.parse(
+          PrettyPrinterVisitor.prettyPrintAsString(tu), tu.getShaderKind());
+      assertEquals(shader.getPath(), StructuralHash.hash(tu), StructuralHash.hash(reparsed));
+    }
+  }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.util;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Compares the SSBO contents of compute shader results, giving the same results and messages as
+ * the "exactdiff" and "fuzzydiff" commands of the inspect-compute-results Python driver, without
+ * starting a Python process.
+ *
+ * <p>The SSBO is read with a streaming parser directly into arrays of doubles; the rest of a
+ * result is skipped.
+ */
+public final class ComputeResultComparator {
+
+  public static final double DEFAULT_REL_TOL = 1e-9;
+  public static final double DEFAULT_ABS_TOL = 1e-20;
+
+  private ComputeResultComparator() {
+    // Utility class
+  }
+
+  /**
+   * The contents of an SSBO: a list of fields, each of which is a list of numbers.
+   */
+  public static final class Ssbo {
+
+    private final double[][] fields;
+
+    // For each field, the values that were written as integers; these are shown without a
+    // fractional part, as Python would show them.
+    private final BitSet[] integral;
+
+    private Ssbo(double[][] fields, BitSet[] integral) {
+      this.fields = fields;
+      this.integral = integral;
+    }
+
+    private String valueToString(int field, int element) {
+      final double value = fields[field][element];
+      return integral[field].get(element) ? Long.toString((long) value) : formatDouble(value);
+    }
+
+  }
+
+  /**
+   * The outcome of comparing the SSBOs of two results: an exact comparison, and, if that fails,
+   * a fuzzy comparison.  A diff is empty if the SSBOs matched, and otherwise describes why they
+   * did not.
+   */
+  public static final class Comparison {
+
+    private final Optional<String> exactDiff;
+    private final Optional<String> fuzzyDiff;
+
+    private Comparison(Optional<String> exactDiff, Optional<String> fuzzyDiff) {
+      this.exactDiff = exactDiff;
+      this.fuzzyDiff = fuzzyDiff;
+    }
+
+    public boolean isExactMatch() {
+      return !exactDiff.isPresent();
+    }
+
+    public Optional<String> getExactDiff() {
+      return exactDiff;
+    }
+
+    /**
+     * Only meaningful if the results do not match exactly.
+     */
+    public boolean isFuzzyMatch() {
+      return !fuzzyDiff.isPresent();
+    }
+
+    public Optional<String> getFuzzyDiff() {
+      return fuzzyDiff;
+    }
+
+  }
+
+  /**
+   * Compares the SSBO of a stored result against that of a new result, first exactly and then,
+   * if they differ, fuzzily with the default tolerances.
+   * @param firstResultFile A .info.json compute shader result file, e.g. a reference result.
+   * @param secondComputeOutputs The computeOutputs JSON of a compute shader result.
+   * @return The outcome of the comparison.  A result file that is missing or cannot be read is a
+   *     mismatch, as it was for the inspect-compute-results Python driver.
+   */
+  public static Comparison compare(File firstResultFile, String secondComputeOutputs) {
+    Optional<Ssbo> first;
+    try (Reader reader = new InputStreamReader(new FileInputStream(firstResultFile),
+        StandardCharsets.UTF_8)) {
+      first = readSsboFromResult(reader);
+    } catch (IOException exception) {
+      first = Optional.empty();
+    }
+    if (!first.isPresent()) {
+      return mismatch("First input file did not contain valid SSBO data");
+    }
+    Optional<Ssbo> second;
+    try {
+      second = readSsboFromOutputs(new StringReader(secondComputeOutputs));
+    } catch (IOException exception) {
+      second = Optional.empty();
+    }
+    if (!second.isPresent()) {
+      return mismatch("Second input file did not contain valid SSBO data");
+    }
+    final Optional<String> exactDiff = exactDiff(first.get(), second.get());
+    return new Comparison(exactDiff,
+        exactDiff.isPresent()
+            ? fuzzyDiff(first.get(), second.get(), DEFAULT_ABS_TOL, DEFAULT_REL_TOL)
+            : Optional.empty());
+  }
+
+  private static Comparison mismatch(String message) {
+    return new Comparison(Optional.of(message), Optional.of(message));
+  }
+
+  /**
+   * Reads the SSBO from a whole result, i.e. from its "outputs" property.
+   * @return The SSBO, or empty if the result is not valid JSON or has no SSBO.
+   */
+  public static Optional<Ssbo> readSsboFromResult(Reader result) throws IOException {
+    return readSsbo(result, "outputs", "ssbo");
+  }
+
+  /**
+   * Reads the SSBO from the outputs of a result.
+   * @return The SSBO, or empty if the outputs are not valid JSON or have no SSBO.
+   */
+  public static Optional<Ssbo> readSsboFromOutputs(Reader outputs) throws IOException {
+    return readSsbo(outputs, "ssbo");
+  }
+
+  private static Optional<Ssbo> readSsbo(Reader input, String... path) throws IOException {
+    final JsonReader reader = new JsonReader(input);
+    // Python's JSON parser accepts NaN and infinities.
+    reader.setLenient(true);
+    try {
+      for (String name : path) {
+        if (!findProperty(reader, name)) {
+          return Optional.empty();
+        }
+      }
+      if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+        return Optional.empty();
+      }
+      final List<double[]> fields = new ArrayList<>();
+      final List<BitSet> integral = new ArrayList<>();
+      reader.beginArray();
+      while (reader.hasNext()) {
+        final BitSet fieldIntegral = new BitSet();
+        double[] field = new double[16];
+        int size = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+          final String token = reader.nextString();
+          if (size == field.length) {
+            field = Arrays.copyOf(field, size * 2);
+          }
+          if (isIntegerToken(token)) {
+            fieldIntegral.set(size);
+          }
+          field[size++] = Double.parseDouble(token);
+        }
+        reader.endArray();
+        fields.add(Arrays.copyOf(field, size));
+        integral.add(fieldIntegral);
+      }
+      reader.endArray();
+      return Optional.of(new Ssbo(fields.toArray(new double[0][]),
+          integral.toArray(new BitSet[0])));
+    } catch (MalformedJsonException | EOFException | IllegalStateException
+        | NumberFormatException exception) {
+      // Not JSON, or JSON that does not have the shape of a result.
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Advances the reader, which must be positioned at an object, to the value of the named
+   * property.
+   * @return Whether the value was found.
+   */
+  private static boolean findProperty(JsonReader reader, String name) throws IOException {
+    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+      return false;
+    }
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals(name)) {
+        return true;
+      }
+      reader.skipValue();
+    }
+    return false;
+  }
+
+  private static boolean isIntegerToken(String token) {
+    for (int i = 0; i < token.length(); i++) {
+      final char ch = token.charAt(i);
+      if (!(Character.isDigit(ch) || (i == 0 && ch == '-'))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static Optional<String> exactDiff(Ssbo first, Ssbo second) {
+    return diff(first, second, (x, y) -> x == y);
+  }
+
+  public static Optional<String> fuzzyDiff(Ssbo first, Ssbo second, double absTol,
+      double relTol) {
+    return diff(first, second, (x, y) -> isClose(x, y, relTol, absTol));
+  }
+
+  private interface ValueComparator {
+    boolean matches(double first, double second);
+  }
+
+  private static Optional<String> diff(Ssbo first, Ssbo second, ValueComparator comparator) {
+    if (first.fields.length != second.fields.length) {
+      return Optional.of("SSBOs have different numbers of fields: " + first.fields.length
+          + " vs. " + second.fields.length);
+    }
+    for (int i = 0; i < first.fields.length; i++) {
+      final double[] firstField = first.fields[i];
+      final double[] secondField = second.fields[i];
+      if (firstField.length != secondField.length) {
+        return Optional.of("Data for field " + i + " has different lengths: "
+            + firstField.length + " vs. " + secondField.length);
+      }
+      for (int j = 0; j < firstField.length; j++) {
+        if (!comparator.matches(firstField[j], secondField[j])) {
+          return Optional.of("Mismatch at field " + i + " element " + j + ": "
+              + first.valueToString(i, j) + " vs. " + second.valueToString(i, j));
+        }
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Determines whether two values are close, as Python's math.isclose does.
+   */
+  public static boolean isClose(double first, double second, double relTol, double absTol) {
+    if (first == second) {
+      return true;
+    }
+    if (Double.isInfinite(first) || Double.isInfinite(second)) {
+      return false;
+    }
+    final double diff = Math.abs(second - first);
+    return diff <= Math.abs(relTol * second) || diff <= Math.abs(relTol * first)
+        || diff <= absTol;
+  }
+
+  /**
+   * Formats a double as Python's str does, e.g. 100.0, 0.1, 1e-05 and 1.5e+300.
+   */
+  static String formatDouble(double value) {
+    if (Double.isNaN(value)) {
+      return "nan";
+    }
+    if (Double.isInfinite(value)) {
+      return value > 0 ? "inf" : "-inf";
+    }
+    if (value == 0.0) {
+      return 1.0 / value > 0 ? "0.0" : "-0.0";
+    }
+    final String sign = value < 0 ? "-" : "";
+    // Python uses the shortest digits that identify the value.  Double.toString does not always
+    // give these, so we find them by rounding the exact value to increasing precisions.
+    final BigDecimal exact = new BigDecimal(Math.abs(value));
+    BigDecimal decimal = exact;
+    for (int precision = 1; precision <= 17; precision++) {
+      decimal = exact.round(new MathContext(precision, RoundingMode.HALF_EVEN));
+      if (decimal.doubleValue() == Math.abs(value)) {
+        break;
+      }
+    }
+    decimal = decimal.stripTrailingZeros();
+    final String digits = decimal.unscaledValue().toString();
+    final int exponent = digits.length() - 1 - decimal.scale();
+    if (exponent < -4 || exponent >= 16) {
+      final String mantissa = digits.length() == 1
+          ? digits
+          : digits.charAt(0) + "." + digits.substring(1);
+      return sign + mantissa + "e" + (exponent < 0 ? "-" : "+")
+          + (Math.abs(exponent) < 10 ? "0" : "") + Math.abs(exponent);
+    }
+    if (exponent < 0) {
+      return sign + "0." + repeat('0', -exponent - 1) + digits;
+    }
+    if (exponent >= digits.length() - 1) {
+      return sign + digits + repeat('0', exponent - (digits.length() - 1)) + ".0";
+    }
+    return sign + digits.substring(0, exponent + 1) + "." + digits.substring(exponent + 1);
+  }
+
+  private static String repeat(char ch, int count) {
+    final char[] result = new char[count];
+    Arrays.fill(result, ch);
+    return new String(result);
+  }
+
+}
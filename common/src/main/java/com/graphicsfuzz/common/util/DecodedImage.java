@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacpp.opencv_imgproc;
+
+/**
+ * An image that has been decoded once into a buffer of pixels, from which all of the image
+ * comparison metrics are computed.  The OpenCV matrices needed for the histogram and PSNR metrics
+ * are built from the pixel buffer when first needed and are then kept, so that an image that is
+ * compared against many others, such as the reference of a shader family, is only processed once.
+ *
+ * <p>Instances are safe to share between threads.
+ */
+public final class DecodedImage {
+
+  private final int width;
+  private final int height;
+
+  // ARGB pixel values, row by row, as given by BufferedImage.getRGB.
+  private final int[] pixels;
+
+  // Computed on demand; guarded by this.
+  private opencv_core.Mat hsv;
+  private opencv_core.Mat histogram;
+
+  private DecodedImage(BufferedImage image) {
+    this.width = image.getWidth();
+    this.height = image.getHeight();
+    this.pixels = ImageColorComponents.getRgb(image);
+  }
+
+  public static DecodedImage fromPng(byte[] png) throws IOException {
+    final BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+    if (image == null) {
+      throw new IOException("Could not decode image.");
+    }
+    return new DecodedImage(image);
+  }
+
+  public static DecodedImage fromFile(File file) throws IOException {
+    return fromPng(Files.readAllBytes(file.toPath()));
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public boolean isIdenticalTo(DecodedImage other) {
+    return width == other.width && height == other.height
+        && Arrays.equals(pixels, other.pixels);
+  }
+
+  /**
+   * Gives the same result as ImageUtil.compareHistograms on the images' files.
+   */
+  public double histogramDistance(DecodedImage other) {
+    return ImageUtil.compareHistograms(getHistogram(), other.getHistogram());
+  }
+
+  /**
+   * Gives the same result as ImageUtil.comparePsnr on the images' files.
+   */
+  public double psnr(DecodedImage other) {
+    checkSameSize(other);
+    return opencv_core.PSNR(getHsv(), other.getHsv());
+  }
+
+  /**
+   * Gives the same result as FuzzyImageComparison.mainHelper on the images' files, with no
+   * configurations.
+   */
+  public FuzzyImageComparison.MainResult fuzzyDiff(DecodedImage other) {
+    checkSameSize(other);
+    return FuzzyImageComparison.compareImagesWithDefaultConfigurations(pixels, other.pixels,
+        width, height);
+  }
+
+  private void checkSameSize(DecodedImage other) {
+    if (width != other.width || height != other.height) {
+      throw new IllegalArgumentException("Images have different sizes! " + width + "x" + height
+          + " and " + other.width + "x" + other.height);
+    }
+  }
+
+  private synchronized opencv_core.Mat getHsv() {
+    if (hsv == null) {
+      hsv = new opencv_core.Mat();
+      opencv_imgproc.cvtColor(toBgra(), hsv, opencv_imgproc.COLOR_BGRA2BGR);
+      opencv_imgproc.cvtColor(hsv, hsv, opencv_imgproc.COLOR_BGR2HSV);
+    }
+    return hsv;
+  }
+
+  private synchronized opencv_core.Mat getHistogram() {
+    if (histogram == null) {
+      histogram = ImageUtil.getHistogramOfBgra(toBgra());
+    }
+    return histogram;
+  }
+
+  /**
+   * Copies the pixels into a four channel matrix in OpenCV's blue, green, red, alpha order.
+   */
+  private opencv_core.Mat toBgra() {
+    final byte[] bytes = new byte[pixels.length * 4];
+    for (int i = 0; i < pixels.length; i++) {
+      final int pixel = pixels[i];
+      bytes[4 * i] = (byte) ImageColorComponents.getComponentB(pixel);
+      bytes[4 * i + 1] = (byte) ImageColorComponents.getComponentG(pixel);
+      bytes[4 * i + 2] = (byte) ImageColorComponents.getComponentR(pixel);
+      bytes[4 * i + 3] = (byte) ImageColorComponents.getComponentA(pixel);
+    }
+    final opencv_core.Mat mat = new opencv_core.Mat(height, width, opencv_core.CV_8UC4);
+    mat.data().put(bytes);
+    return mat;
+  }
+
+}
@@ -21,8 +21,11 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import javax.imageio.ImageIO;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -76,6 +79,9 @@ public class FuzzyImageComparison {
 
   private static final int GOOD_PIXEL_VALUE = 0;
 
+  // Denotes that there are no pixels within the distance threshold of a pixel.
+  private static final int NO_NEAR_PIXEL = -1;
+
   public static final int CONFIG_NUM_ARGS = 4;
 
   /**
@@ -405,8 +411,198 @@ public class FuzzyImageComparison {
       throw new IllegalArgumentException("Images have different sizes! \n" + left + "\n" + right);
     }
 
-    int[] colorsLeft = ImageColorComponents.getRgb(leftImage);
-    int[] colorsRight = ImageColorComponents.getRgb(rightImage);
+    compareImageColors(
+        ImageColorComponents.getRgb(leftImage),
+        ImageColorComponents.getRgb(rightImage),
+        leftImage.getWidth(),
+        leftImage.getHeight(),
+        thresholdConfigurations);
+  }
+
+  /**
+   * Runs the algorithm on the colors of two images of the same size.  Configurations are grouped by
+   * distance threshold; for each group, a single parallel pass over the rows of the images finds,
+   * for every pixel coordinate, how closely the best match within the distance threshold agrees in
+   * each direction, and the pixel is then bad under a configuration exactly if either direction's
+   * best match differs by more than that configuration's component threshold.  Sparse bad pixels
+   * are counted using an integral image of the bad pixels.
+   *
+   * @param thresholdConfigurations the input thresholds. The results will also be written to each
+   *                                configuration.
+   */
+  static void compareImageColors(
+      int[] colorsLeft,
+      int[] colorsRight,
+      int width,
+      int height,
+      List<ThresholdConfiguration> thresholdConfigurations) {
+
+    assert colorsLeft.length == colorsRight.length;
+
+    if (width != height) {
+      // The original algorithm indexes pixels as though images were square, so for other images
+      // we fall back to it to get identical results.
+      compareImageColorsReference(colorsLeft, colorsRight, width, height,
+          thresholdConfigurations);
+      return;
+    }
+
+    final Map<Integer, List<ThresholdConfiguration>> configurationsByDistance =
+        thresholdConfigurations.stream().collect(Collectors.groupingBy(
+            item -> item.distanceThreshold, LinkedHashMap::new, Collectors.toList()));
+
+    for (Map.Entry<Integer, List<ThresholdConfiguration>> entry
+        : configurationsByDistance.entrySet()) {
+      final int distanceThreshold = entry.getKey();
+      final List<ThresholdConfiguration> configurations = entry.getValue();
+
+      // A search for a near, similar pixel can stop as soon as it finds a match that is similar
+      // under every configuration in the group.
+      final int smallestComponentThreshold = configurations.stream()
+          .mapToInt(item -> item.componentThreshold).min().getAsInt();
+
+      final int[] worstMatches = new int[colorsLeft.length];
+      IntStream.range(0, height).parallel().forEach(y -> {
+        for (int x = 0; x < width; ++x) {
+          worstMatches[y * width + x] = Math.max(
+              closestNearPixelDifference(colorsLeft, colorsRight, width, height,
+                  smallestComponentThreshold, distanceThreshold, x, y),
+              closestNearPixelDifference(colorsRight, colorsLeft, width, height,
+                  smallestComponentThreshold, distanceThreshold, x, y));
+        }
+      });
+
+      for (ThresholdConfiguration thresholdConfiguration : configurations) {
+        final boolean[] badPixels = new boolean[worstMatches.length];
+        int numBad = 0;
+        for (int i = 0; i < worstMatches.length; ++i) {
+          if (worstMatches[i] == NO_NEAR_PIXEL
+              || worstMatches[i] > thresholdConfiguration.componentThreshold) {
+            badPixels[i] = true;
+            ++numBad;
+          }
+        }
+        thresholdConfiguration.outNumBadPixels = numBad;
+        thresholdConfiguration.outNumBadSparsePixels = numBad - countSparseBadPixels(
+            badPixels,
+            width,
+            height,
+            thresholdConfiguration.distanceThreshold,
+            thresholdConfiguration.distanceThreshold * 2);
+      }
+    }
+  }
+
+  /**
+   * Finds how closely the pixels within the distance threshold of (middleX, middleY) in the right
+   * image match the pixel at (middleX, middleY) in the left image, where pixels that differ by at
+   * most n in every component match with difference n.
+   *
+   * @return the smallest difference found, or NO_NEAR_PIXEL if the search window is empty; the
+   *     search stops early if a difference of at most stopThreshold is found.
+   */
+  private static int closestNearPixelDifference(
+      final int[] colorsLeft,
+      final int[] colorsRight,
+      final int width,
+      final int height,
+      final int stopThreshold,
+      final int distanceThreshold,
+      final int middleX,
+      final int middleY) {
+
+    final int middleColor = colorsLeft[middleY * width + middleX];
+
+    final int ystart = Math.max(0, middleY - distanceThreshold);
+    final int xstart = Math.max(0, middleX - distanceThreshold);
+    final int yend = Math.min(height, middleY + distanceThreshold);
+    final int xend = Math.min(width, middleX + distanceThreshold);
+
+    if (ystart >= yend || xstart >= xend) {
+      return NO_NEAR_PIXEL;
+    }
+
+    // The pixel at the same coordinate is the most likely to match, so try it first.
+    int result = maxComponentDifference(middleColor, colorsRight[middleY * width + middleX]);
+    for (int y = ystart; y < yend && result > stopThreshold; ++y) {
+      for (int x = xstart; x < xend; ++x) {
+        result = Math.min(result, maxComponentDifference(middleColor, colorsRight[y * width + x]));
+        if (result <= stopThreshold) {
+          break;
+        }
+      }
+    }
+    return result;
+  }
+
+  private static int maxComponentDifference(int colorLeft, int colorRight) {
+    // Unrolled, as this is the innermost operation of the comparison.
+    return Math.max(
+        Math.max(
+            Math.abs((colorLeft & 0xff) - (colorRight & 0xff)),
+            Math.abs(((colorLeft >>> 8) & 0xff) - ((colorRight >>> 8) & 0xff))),
+        Math.max(
+            Math.abs(((colorLeft >>> 16) & 0xff) - ((colorRight >>> 16) & 0xff)),
+            Math.abs((colorLeft >>> 24) - (colorRight >>> 24))));
+  }
+
+  /**
+   * Counts the bad pixels that removeSparseBadPixelsInCluster would remove, using an integral
+   * image so that each cluster count takes constant time.
+   */
+  private static int countSparseBadPixels(
+      final boolean[] badPixels,
+      final int width,
+      final int height,
+      final int clusterBoxSize,
+      final int numBadPixelsDense) {
+
+    // integral[(y * (width + 1)) + x] is the number of bad pixels above and to the left of (x, y).
+    final int[] integral = new int[(width + 1) * (height + 1)];
+    for (int y = 0; y < height; ++y) {
+      int rowCount = 0;
+      for (int x = 0; x < width; ++x) {
+        if (badPixels[y * width + x]) {
+          ++rowCount;
+        }
+        integral[(y + 1) * (width + 1) + x + 1] = integral[y * (width + 1) + x + 1] + rowCount;
+      }
+    }
+
+    int sparseCount = 0;
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        if (!badPixels[y * width + x]) {
+          continue;
+        }
+        final int ystart = Math.max(0, y - clusterBoxSize);
+        final int xstart = Math.max(0, x - clusterBoxSize);
+        final int yend = Math.max(ystart, Math.min(height, y + clusterBoxSize));
+        final int xend = Math.max(xstart, Math.min(width, x + clusterBoxSize));
+        final int badPixelCount = integral[yend * (width + 1) + xend]
+            - integral[ystart * (width + 1) + xend]
+            - integral[yend * (width + 1) + xstart]
+            + integral[ystart * (width + 1) + xstart];
+        if (badPixelCount < numBadPixelsDense) {
+          ++sparseCount;
+        }
+      }
+    }
+    return sparseCount;
+  }
+
+  /**
+   * The original, unoptimized algorithm; see compareImageColors.
+   *
+   * @param thresholdConfigurations the input thresholds. The results will also be written to each
+   *                                configuration.
+   */
+  static void compareImageColorsReference(
+      int[] colorsLeft,
+      int[] colorsRight,
+      int width,
+      int height,
+      List<ThresholdConfiguration> thresholdConfigurations) {
 
     for (ThresholdConfiguration thresholdConfiguration : thresholdConfigurations) {
 
@@ -418,8 +614,8 @@ public class FuzzyImageComparison {
       thresholdConfiguration.outNumBadPixels = compareImageColors(
           colorsLeft,
           colorsRight,
-          leftImage.getWidth(),
-          leftImage.getHeight(),
+          width,
+          height,
           thresholdConfiguration.componentThreshold,
           thresholdConfiguration.distanceThreshold,
           badPixels);
@@ -429,8 +625,8 @@ public class FuzzyImageComparison {
       int removedCount = removeSparseBadPixelsInCluster(
           badPixels,
           GOOD_PIXEL_VALUE,
-          leftImage.getWidth(),
-          leftImage.getHeight(),
+          width,
+          height,
           thresholdConfiguration.distanceThreshold,
           thresholdConfiguration.distanceThreshold * 2);
 
@@ -523,6 +719,26 @@ public class FuzzyImageComparison {
 
     compareImages(imageA, imageB, configurations);
 
+    return makeMainResult(configurations);
+  }
+
+  /**
+   * Runs the algorithm, under the default configurations, on the colors of two images of the same
+   * size that have already been decoded; gives the same result as mainHelper with no
+   * configurations.
+   */
+  public static MainResult compareImagesWithDefaultConfigurations(
+      int[] colorsLeft,
+      int[] colorsRight,
+      int width,
+      int height) {
+    final List<ThresholdConfiguration> configurations = new ArrayList<>();
+    addDefaultConfigurations(configurations);
+    compareImageColors(colorsLeft, colorsRight, width, height, configurations);
+    return makeMainResult(configurations);
+  }
+
+  private static MainResult makeMainResult(List<ThresholdConfiguration> configurations) {
     boolean different =
         configurations.stream().anyMatch(ThresholdConfiguration::areImagesDifferent);
 
@@ -34,8 +34,6 @@ public class ImageUtil {
       throw new FileNotFoundException();
     }
 
-    System.gc();
-
     opencv_core.Mat mat = opencv_imgcodecs.imread(file.toString());
     opencv_imgproc.cvtColor(mat, mat, opencv_imgproc.COLOR_BGR2HSV);
     return mat;
@@ -46,8 +44,6 @@ public class ImageUtil {
       throw new FileNotFoundException();
     }
 
-    System.gc();
-
     // Load PNG image.
     // IMREAD_UNCHANGED causes the alpha channel to be included, if present.
     opencv_core.Mat matWithAlpha = opencv_imgcodecs.imread(
@@ -64,7 +60,15 @@ public class ImageUtil {
       opencv_imgproc.cvtColor(matWithAlpha, matWithAlpha, opencv_imgproc.COLOR_BGR2BGRA);
     }
 
-    // matWithAlpha has four channels.
+    return getHistogramOfBgra(matWithAlpha);
+  }
+
+  /**
+   * Computes the histogram used by compareHistograms for an image that has already been loaded.
+   * @param matWithAlpha The image, with four channels: blue, green, red and alpha.
+   * @return The image's hue, saturation, value and alpha histogram.
+   */
+  public static opencv_core.Mat getHistogramOfBgra(opencv_core.Mat matWithAlpha) {
     assert matWithAlpha.type() == opencv_core.CV_8UC4;
 
     opencv_core.Mat mat = new opencv_core.Mat();
@@ -523,7 +523,8 @@ public final class PipelineInfo {
 
   @Override
   public PipelineInfo clone() {
-    return new PipelineInfo(toString());
+    // Copy the dictionary directly, rather than going via its string representation.
+    return new PipelineInfo(dictionary.deepCopy());
   }
 
 }
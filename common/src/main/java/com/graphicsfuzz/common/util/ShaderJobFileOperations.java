@@ -18,11 +18,11 @@ package com.graphicsfuzz.common.util;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.graphicsfuzz.alphanumcomparator.AlphanumComparator;
 import com.graphicsfuzz.common.ast.TranslationUnit;
 import com.graphicsfuzz.common.glslversion.ShadingLanguageVersion;
+import com.graphicsfuzz.common.tool.EncodingAppendable;
 import com.graphicsfuzz.common.tool.PrettyPrinterVisitor;
 import com.graphicsfuzz.common.tool.UniformValueSupplier;
 import com.graphicsfuzz.common.transformreduce.GlslShaderJob;
@@ -49,26 +49,28 @@ import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Stream;
 import javax.imageio.ImageIO;
 import javax.imageio.stream.FileImageOutputStream;
 import javax.imageio.stream.ImageOutputStream;
-import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.bytedeco.javacpp.opencv_core;
-import org.bytedeco.javacpp.opencv_imgcodecs;
-import org.bytedeco.javacpp.opencv_imgproc;
+import org.apache.commons.io.output.NullOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -77,6 +79,10 @@ public class ShaderJobFileOperations {
   private static final Logger LOGGER = LoggerFactory.getLogger(ShaderJobFileOperations.class);
   public static final String FUZZY_DIFF_KEY = "fuzzydiff";
 
+  // The most recently decoded reference image, so that when the variants of a shader family are
+  // compared against their reference it is only decoded once.
+  private final AtomicReference<CachedImage> cachedReferenceImage = new AtomicReference<>();
+
   public boolean areImagesOfShaderResultsIdentical(
       File referenceShaderResultFile,
       File variantShaderResultFile) throws IOException {
@@ -111,35 +117,30 @@ public class ShaderJobFileOperations {
     boolean result;
     String comparisonValue;
 
+    final DecodedImage referenceImage = getReferenceImage(reference);
+    final DecodedImage variantImage = DecodedImage.fromFile(variant);
+
     switch (metric) {
 
       case HISTOGRAM_CHISQR: {
-        final double diff = ImageUtil.compareHistograms(
-            ImageUtil.getHistogram(reference.toString()),
-            ImageUtil.getHistogram(variant.toString()));
+        final double diff = referenceImage.histogramDistance(variantImage);
         result = (aboveThresholdIsInteresting ? diff > threshold : diff <= threshold);
         comparisonValue = String.valueOf(diff);
         break;
       }
       case PSNR: {
-        final double diff = ImageUtil.comparePsnr(reference, variant);
+        final double diff = referenceImage.psnr(variantImage);
         result = (aboveThresholdIsInteresting ? diff > threshold : diff <= threshold);
         comparisonValue = String.valueOf(diff);
         break;
       }
       case FUZZY_DIFF: {
-        try {
-          FuzzyImageComparison.MainResult mainResult =
-              FuzzyImageComparison.mainHelper(
-                  new String[] {reference.toString(), variant.toString()});
-          // Fuzzy diff has its own thresholds; images are different if a threshold is exceeded.
-          // We negate this if needed:
-          result = (aboveThresholdIsInteresting == mainResult.areImagesDifferent);
-          comparisonValue = mainResult.outputsString();
-          break;
-        } catch (ArgumentParserException exception) {
-          throw new RuntimeException(exception);
-        }
+        final FuzzyImageComparison.MainResult mainResult = referenceImage.fuzzyDiff(variantImage);
+        // Fuzzy diff has its own thresholds; images are different if a threshold is exceeded.
+        // We negate this if needed:
+        result = (aboveThresholdIsInteresting == mainResult.areImagesDifferent);
+        comparisonValue = mainResult.outputsString();
+        break;
       }
       default:
         throw new RuntimeException("Unrecognised image comparison metric: " + metric.toString());
@@ -156,7 +157,9 @@ public class ShaderJobFileOperations {
   }
 
   /**
-   * Checks whether the shaders listed in shader job are valid.
+   * Checks whether the shaders listed in shader job are valid.  The shaders are validated together,
+   * by a single validator process, and shaders that have been validated before are not validated
+   * again; see {@link ShaderValidationService}.
    * @param shaderJobFile A shader job to check.
    * @param throwExceptionOnInvalid Request exception if the validation fails
    * @param isVulkan Tell the validator that this is a vulkan target
@@ -167,10 +170,19 @@ public class ShaderJobFileOperations {
       boolean throwExceptionOnInvalid,
       boolean isVulkan)
       throws IOException, InterruptedException {
+    final List<File> shaderFiles = new ArrayList<>();
     for (ShaderKind shaderKind : ShaderKind.values()) {
       //noinspection deprecation: OK from within this class.
       final File shaderFile = getUnderlyingShaderFile(shaderJobFile, shaderKind);
-      if (shaderFile.isFile() && !shaderIsValid(shaderFile, throwExceptionOnInvalid, isVulkan)) {
+      if (shaderFile.isFile()) {
+        shaderFiles.add(shaderFile);
+      }
+    }
+    final List<ExecResult> results =
+        ShaderValidationService.getInstance().validateWithGlslang(shaderFiles, isVulkan);
+    for (int i = 0; i < shaderFiles.size(); i++) {
+      if (!checkValidationResult(results.get(i), shaderFiles.get(i).getName(),
+          throwExceptionOnInvalid)) {
         return false;
       }
     }
@@ -376,6 +388,41 @@ public class ShaderJobFileOperations {
     return getMD5(shaderJobFile);
   }
 
+  /**
+   * Computes the hash that getShaderJobFileHash would yield for the shader job, were it written to
+   * a file via writeShaderJobFile with the given uniform values.  The shaders are pretty-printed
+   * straight into the digest, so no file I/O is performed.
+   * @param shaderJob The shader job to be hashed.
+   * @param uniformValues Uniform values that would be passed to writeShaderJobFile.
+   * @return The hash of the shader job.
+   */
+  public String getShaderJobHash(ShaderJob shaderJob,
+                                 Optional<UniformValueSupplier> uniformValues) {
+    final MessageDigest digest = DigestUtils.getMd5Digest();
+    // Match the order in which getMD5 combines the files of a shader job.
+    for (ShaderKind shaderKind : Arrays.asList(ShaderKind.VERTEX, ShaderKind.FRAGMENT,
+        ShaderKind.COMPUTE)) {
+      for (TranslationUnit tu : shaderJob.getShaders()) {
+        if (tu.getShaderKind() != shaderKind) {
+          continue;
+        }
+        PrettyPrinterVisitor.emitShader(
+            tu,
+            shaderJob.getLicense(),
+            EncodingAppendable.toDigest(digest),
+            PrettyPrinterVisitor.DEFAULT_INDENTATION_WIDTH,
+            PrettyPrinterVisitor.DEFAULT_NEWLINE_SUPPLIER,
+            uniformValues
+        );
+      }
+    }
+    // Match writeAdditionalInfo, which is used to write the shader job's .json file.
+    try (PrintStream stream = digestStream(digest)) {
+      stream.println(shaderJob.getPipelineInfo().toString());
+    }
+    return Hex.encodeHexString(digest.digest());
+  }
+
   public long getShaderLength(File shaderJobFile, ShaderKind shaderKind) {
     assertIsShaderJobFile(shaderJobFile);
     //noinspection deprecation: Fine in this class.
@@ -791,6 +838,10 @@ public class ShaderJobFileOperations {
     FileUtils.writeStringToFile(file, contents, Charset.defaultCharset());
   }
 
+  public void appendStringToFile(File file, String contents) throws IOException {
+    FileUtils.writeStringToFile(file, contents, Charset.defaultCharset(), true);
+  }
+
   /**
    * Provides an in-memory representation of the image associated with a shader job result.
    * Assumes that an image file is present as part of the shader job result.
@@ -828,8 +879,7 @@ public class ShaderJobFileOperations {
 
   private static JsonObject makeInfoJson(
       ImageJobResult res,
-      File outputImage,
-      Optional<ImageData> referenceImage) throws IOException {
+      Optional<DecodedImage> referenceImage) throws IOException {
     JsonObject infoJson = new JsonObject();
     if (res.isSetTimingInfo()) {
       JsonObject timingInfoJson = new JsonObject();
@@ -841,12 +891,15 @@ public class ShaderJobFileOperations {
       infoJson.add("timingInfo", timingInfoJson);
     }
     if (res.isSetPNG() && referenceImage.isPresent()) {
-      // Add image data, e.g. histogram distance
+      // Add image data, e.g. histogram distance.  The result's image is decoded once, from the
+      // result itself rather than from the file it was written to, and all metrics use it.
+      final DecodedImage reference = referenceImage.get();
+      final DecodedImage image = DecodedImage.fromPng(res.getPNG());
       final JsonObject metrics = new JsonObject();
-      referenceImage.get().getImageDiffStats(new ImageData(outputImage.getAbsolutePath()), metrics);
-      boolean isIdentical =
-          ImageUtil.identicalImages(outputImage, referenceImage.get().imageFile);
-      metrics.addProperty("identical", isIdentical);
+      metrics.addProperty("histogramDistance", reference.histogramDistance(image));
+      metrics.addProperty("psnr", reference.psnr(image));
+      metrics.add(FUZZY_DIFF_KEY, new Gson().toJsonTree(reference.fuzzyDiff(image)));
+      metrics.addProperty("identical", reference.isIdenticalTo(image));
       infoJson.add("metrics", metrics);
     }
     if (res.isSetStage()) {
@@ -863,21 +916,31 @@ public class ShaderJobFileOperations {
     return new PrintStream(new FileOutputStream(file));
   }
 
+  private static PrintStream digestStream(MessageDigest digest) {
+    return new PrintStream(new DigestOutputStream(NullOutputStream.NULL_OUTPUT_STREAM, digest));
+  }
+
   private static void writeShader(
       TranslationUnit tu,
       Optional<String> license,
       File outputFile,
       Optional<UniformValueSupplier> uniformValues
   ) throws FileNotFoundException {
-    try (PrintStream stream = ps(outputFile)) {
+    // The shader is encoded straight into the file's channel, rather than via an intermediate
+    // string or byte array.
+    try (FileOutputStream stream = new FileOutputStream(outputFile)) {
       PrettyPrinterVisitor.emitShader(
           tu,
           license,
-          stream,
+          EncodingAppendable.toChannel(stream.getChannel()),
           PrettyPrinterVisitor.DEFAULT_INDENTATION_WIDTH,
           PrettyPrinterVisitor.DEFAULT_NEWLINE_SUPPLIER,
           uniformValues
       );
+    } catch (FileNotFoundException exception) {
+      throw exception;
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
     }
   }
 
@@ -1104,15 +1167,6 @@ public class ShaderJobFileOperations {
     }
   }
 
-  private boolean shaderIsValid(
-      File shaderFile,
-      boolean throwExceptionOnValidationError,
-      boolean isVulkan)
-      throws IOException, InterruptedException {
-    return checkValidationResult(ToolHelper.runValidatorOnShader(ExecHelper.RedirectType.TO_BUFFER,
-        shaderFile, isVulkan), shaderFile.getName(), throwExceptionOnValidationError);
-  }
-
   private boolean shaderIsValidShaderTranslator(
       File shaderFile,
       ShadingLanguageVersion shadingLanguageVersion,
@@ -1123,11 +1177,11 @@ public class ShaderJobFileOperations {
       // shader is valid.
       return true;
     }
-    final ExecResult shaderTranslatorResult = ToolHelper.runShaderTranslatorOnShader(
-        ExecHelper.RedirectType.TO_BUFFER,
-        shaderFile,
-        ShaderTranslatorShadingLanguageVersionSupport
-            .getShaderTranslatorArgument(shadingLanguageVersion));
+    final ExecResult shaderTranslatorResult =
+        ShaderValidationService.getInstance().validateWithShaderTranslator(
+            shaderFile,
+            ShaderTranslatorShadingLanguageVersionSupport
+                .getShaderTranslatorArgument(shadingLanguageVersion));
     return checkValidationResult(
         shaderTranslatorResult,
         shaderFile.getName(),
@@ -1194,12 +1248,6 @@ public class ShaderJobFileOperations {
             "outputs", new Gson().fromJson(shaderResult.getComputeOutputs(), JsonObject.class));
       }
 
-      // We write out the .info.json file now, so that the Python tooling for diffing compute
-      // shader results can be invoked on it if needed.
-      fileOps.writeStringToFile(
-          shaderJobResultFile,
-          infoJson.toString());
-
       if (referenceShaderResultFile.isPresent()) {
 
         // We have reference results, so can populate the "comparison_with_reference" property.
@@ -1213,39 +1261,28 @@ public class ShaderJobFileOperations {
         // - "fuzzydiff_output", present only if "fuzzy_diff" is set, with the result of
         //   fuzzy diffing.
 
-        final JsonObject computeShaderComparisonWithReference = new JsonObject();
+        // The comparison is done in-process, giving the same results and output as the
+        // inspect-compute-results Python driver.
+        final ComputeResultComparator.Comparison comparison =
+            ComputeResultComparator.compare(referenceShaderResultFile.get(),
+                shaderResult.getComputeOutputs());
 
-        // Check whether the results exactly match those of the reference.
+        final JsonObject computeShaderComparisonWithReference = new JsonObject();
 
-        final ExecResult exactDiffResult =
-            fileOps.runPythonDriver(ExecHelper.RedirectType.TO_BUFFER,
-            null,
-            "inspect-compute-results",
-            "exactdiff",
-            referenceShaderResultFile.get().getAbsolutePath(),
-            shaderJobResultFile.getAbsolutePath());
         computeShaderComparisonWithReference.addProperty("exact_match",
-            exactDiffResult.res == 0);
+            comparison.isExactMatch());
 
-        if (exactDiffResult.res != 0) {
+        if (!comparison.isExactMatch()) {
 
           // In the case that we do not have an exact match, store the output obtained by exact
           // diffing (as it may be useful to inspect).
           computeShaderComparisonWithReference.addProperty("exactdiff_output",
-              exactDiffResult.stderr.toString());
-
-          // Now perform a fuzzy diff.
-          final ExecResult fuzzyDiffResult =
-              fileOps.runPythonDriver(ExecHelper.RedirectType.TO_BUFFER,
-              null,
-              "inspect-compute-results",
-              "fuzzydiff",
-              referenceShaderResultFile.get().getAbsolutePath(),
-              shaderJobResultFile.getAbsolutePath());
+              comparison.getExactDiff().get() + "\n");
+
           computeShaderComparisonWithReference.addProperty("fuzzy_match",
-              fuzzyDiffResult.res == 0);
+              comparison.isFuzzyMatch());
           computeShaderComparisonWithReference.addProperty("fuzzydiff_output",
-              fuzzyDiffResult.stderr.toString());
+              comparison.getFuzzyDiff().map(diff -> diff + "\n").orElse(""));
         }
         infoJson.add("comparison_with_reference", computeShaderComparisonWithReference);
       }
@@ -1302,19 +1339,18 @@ public class ShaderJobFileOperations {
     }
 
 
-    Optional<ImageData> referenceImageData = Optional.empty();
+    Optional<DecodedImage> referenceImage = Optional.empty();
     // TODO: Not mockable yet; directly accesses files.
     if (referenceShaderResultFile.isPresent()
         && fileOps.doesShaderJobResultFileHaveImage(referenceShaderResultFile.get())) {
-      referenceImageData =
+      referenceImage =
           Optional.of(
-              new ImageData(
+              fileOps.getReferenceImage(
                   fileOps.getUnderlyingImageFileFromShaderJobResultFile(
                       referenceShaderResultFile.get())));
     }
 
-    // TODO: Not mockable yet; directly accesses files.
-    JsonObject infoObject = makeInfoJson(shaderResult, outputImage, referenceImageData);
+    JsonObject infoObject = makeInfoJson(shaderResult, referenceImage);
 
     // Dump job info in JSON
     fileOps.writeStringToFile(
@@ -1345,48 +1381,37 @@ public class ShaderJobFileOperations {
   }
 
   /**
-   * Stores data about an image; right now its file and histogram.
-   * Could be extended in due course with e.g. PSNR
+   * Decodes a reference image, or yields the decoded image from the previous call if it was for the
+   * same, unmodified, file.
    */
-  private static final class ImageData {
-
-    public final File imageFile;
-    private final opencv_core.Mat imageMat;
-    private final opencv_core.Mat histogram;
-
-    public ImageData(File imageFile) throws FileNotFoundException {
-      this.imageFile = imageFile;
-      this.imageMat = opencv_imgcodecs.imread(imageFile.getAbsolutePath());
-      opencv_imgproc.cvtColor(this.imageMat, this.imageMat, opencv_imgproc.COLOR_BGR2HSV);
-      this.histogram = ImageUtil.getHistogram(imageFile.getAbsolutePath());
-    }
-
-    public ImageData(String imageFileName) throws FileNotFoundException {
-      this(new File(imageFileName));
+  private DecodedImage getReferenceImage(File imageFile) throws IOException {
+    final File file = imageFile.getAbsoluteFile();
+    // The file is examined before it is read, so that if it changes in between, the next call
+    // will not match the cached image.
+    final long lastModified = file.lastModified();
+    final long length = file.length();
+    final CachedImage cached = cachedReferenceImage.get();
+    if (cached != null && cached.file.equals(file) && cached.lastModified == lastModified
+        && cached.length == length) {
+      return cached.image;
     }
+    final DecodedImage image = DecodedImage.fromFile(file);
+    cachedReferenceImage.set(new CachedImage(file, lastModified, length, image));
+    return image;
+  }
 
-    public void getImageDiffStats(
-        ImageData other,
-        JsonObject metrics) throws IOException {
-
-      metrics.addProperty(
-          "histogramDistance",
-          ImageUtil.compareHistograms(this.histogram, other.histogram));
-
-      metrics.addProperty(
-          "psnr",
-          opencv_core.PSNR(this.imageMat, other.imageMat));
+  private static final class CachedImage {
 
-      FuzzyImageComparison.MainResult fuzzyDiffResult;
-      try {
-        fuzzyDiffResult = FuzzyImageComparison.mainHelper(
-            new String[] {imageFile.toString(), other.imageFile.toString()});
-      } catch (ArgumentParserException exception) {
-        throw new RuntimeException(exception);
-      }
+    private final File file;
+    private final long lastModified;
+    private final long length;
+    private final DecodedImage image;
 
-      JsonElement fuzzDiffResultJson = new Gson().toJsonTree(fuzzyDiffResult);
-      metrics.add(FUZZY_DIFF_KEY, fuzzDiffResultJson);
+    private CachedImage(File file, long lastModified, long length, DecodedImage image) {
+      this.file = file;
+      this.lastModified = lastModified;
+      this.length = length;
+      this.image = image;
     }
 
   }
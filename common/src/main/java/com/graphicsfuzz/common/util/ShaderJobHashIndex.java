@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.util;
+
+import com.graphicsfuzz.common.transformreduce.ShaderJob;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the structural hashes of shader jobs, e.g. the members of a shader family, so that a
+ * shader job that is structurally identical to one seen before can be recognised without
+ * writing it out.
+ *
+ * <p>The index is safe for use by multiple threads.
+ */
+public final class ShaderJobHashIndex {
+
+  private final Set<String> hashes;
+
+  public ShaderJobHashIndex() {
+    this.hashes = ConcurrentHashMap.newKeySet();
+  }
+
+  /**
+   * Computes the structural hash of a shader job, which takes account of its shaders and of its
+   * pipeline info, such as uniform values.
+   * @param shaderJob The shader job to be hashed.
+   * @return A hex string that is equal for structurally identical shader jobs.
+   */
+  public static String hash(ShaderJob shaderJob) {
+    return StructuralHash.hash(shaderJob.getShaders(),
+        Collections.singletonList(shaderJob.getPipelineInfo().toString()));
+  }
+
+  public boolean contains(String hash) {
+    return hashes.contains(hash);
+  }
+
+  /**
+   * Adds a hash to the index.
+   * @param hash The hash to be added.
+   * @return true if and only if the hash was not already in the index.
+   */
+  public boolean add(String hash) {
+    return hashes.add(hash);
+  }
+
+  public int size() {
+    return hashes.size();
+  }
+
+}
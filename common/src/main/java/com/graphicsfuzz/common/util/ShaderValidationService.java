@@ -0,0 +1,209 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.util;
+
+import com.graphicsfuzz.util.ExecHelper;
+import com.graphicsfuzz.util.ExecResult;
+import com.graphicsfuzz.util.ToolHelper;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Validates shaders using glslangValidator and shader_translator, while running as few external
+ * processes as possible.
+ *
+ * <p>Results are cached, keyed by the validator, its arguments, the shader's extension (from which
+ * glslangValidator infers the shader stage) and a hash of the shader's contents, so that a shader
+ * with the same contents as one seen before is never validated again.  Shaders that are not in the
+ * cache are validated with glslangValidator in batches, one process per batch; only if a batch
+ * fails are its shaders validated one at a time, to find out which of them are invalid.  When
+ * targeting Vulkan, and for shader_translator, each shader gets its own process.
+ *
+ * <p>The service is safe for use by multiple threads.
+ */
+public final class ShaderValidationService {
+
+  private static final int DEFAULT_CACHE_SIZE = 4096;
+
+  // Bounds the length of a validator command line.
+  private static final int MAX_BATCH_SIZE = 64;
+
+  private static final ShaderValidationService INSTANCE =
+      new ShaderValidationService(DEFAULT_CACHE_SIZE);
+
+  private final Map<String, ExecResult> cache;
+
+  // The number of external processes that have been run; exposed for testing.
+  private final AtomicInteger numProcesses;
+
+  ShaderValidationService(int cacheSize) {
+    this.cache = new LinkedHashMap<String, ExecResult>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, ExecResult> eldest) {
+        return size() > cacheSize;
+      }
+    };
+    this.numProcesses = new AtomicInteger(0);
+  }
+
+  public static ShaderValidationService getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Validates shaders using glslangValidator.
+   * @param shaderFiles The shaders to validate.
+   * @param isVulkan Tell the validator that this is a vulkan target.
+   * @return A validation result for each shader, in the order in which the shaders were given.
+   * @throws IOException if a shader cannot be read or the validator cannot be run.
+   * @throws InterruptedException if interrupted while running the validator.
+   */
+  public List<ExecResult> validateWithGlslang(List<File> shaderFiles, boolean isVulkan)
+      throws IOException, InterruptedException {
+    final String validator = isVulkan ? "glslangValidator -V100" : "glslangValidator";
+    final List<String> keys = new ArrayList<>();
+    final List<ExecResult> results = new ArrayList<>();
+    final List<File> uncachedFiles = new ArrayList<>();
+    final List<String> uncachedKeys = new ArrayList<>();
+    for (File shaderFile : shaderFiles) {
+      final String key = makeKey(validator, shaderFile);
+      keys.add(key);
+      final ExecResult cached = lookup(key);
+      results.add(cached);
+      if (cached == null && !uncachedKeys.contains(key)) {
+        uncachedFiles.add(shaderFile);
+        uncachedKeys.add(key);
+      }
+    }
+
+    // Results are collected here as well as being cached, as they might have been evicted from the
+    // cache by the time they are needed.
+    final Map<String, ExecResult> newResults = new HashMap<>();
+    if (isVulkan) {
+      for (int i = 0; i < uncachedFiles.size(); i++) {
+        newResults.put(uncachedKeys.get(i), runGlslang(uncachedFiles.get(i), true));
+      }
+    } else {
+      for (int start = 0; start < uncachedFiles.size(); start += MAX_BATCH_SIZE) {
+        final int end = Math.min(start + MAX_BATCH_SIZE, uncachedFiles.size());
+        validateBatch(uncachedFiles.subList(start, end), uncachedKeys.subList(start, end),
+            newResults);
+      }
+    }
+    for (Map.Entry<String, ExecResult> entry : newResults.entrySet()) {
+      store(entry.getKey(), entry.getValue());
+    }
+
+    for (int i = 0; i < results.size(); i++) {
+      if (results.get(i) == null) {
+        results.set(i, newResults.get(keys.get(i)));
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Validates a shader using shader_translator.
+   * @param shaderFile The shader to validate.
+   * @param arg The shader_translator argument specifying the shading language version.
+   * @return The validation result.
+   * @throws IOException if the shader cannot be read or the validator cannot be run.
+   * @throws InterruptedException if interrupted while running the validator.
+   */
+  public ExecResult validateWithShaderTranslator(File shaderFile, String arg)
+      throws IOException, InterruptedException {
+    final String key = makeKey("shader_translator " + arg, shaderFile);
+    final ExecResult cached = lookup(key);
+    if (cached != null) {
+      return cached;
+    }
+    numProcesses.incrementAndGet();
+    final ExecResult result = ToolHelper.runShaderTranslatorOnShader(
+        ExecHelper.RedirectType.TO_BUFFER, shaderFile, arg);
+    store(key, result);
+    return result;
+  }
+
+  /**
+   * Discards all cached results.
+   */
+  public void clear() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  int getNumProcesses() {
+    return numProcesses.get();
+  }
+
+  private void validateBatch(List<File> shaderFiles, List<String> keys,
+                             Map<String, ExecResult> newResults)
+      throws IOException, InterruptedException {
+    if (shaderFiles.size() == 1) {
+      newResults.put(keys.get(0), runGlslang(shaderFiles.get(0), false));
+      return;
+    }
+    numProcesses.incrementAndGet();
+    final ExecResult batchResult =
+        ToolHelper.runValidatorOnShaders(ExecHelper.RedirectType.TO_BUFFER, shaderFiles);
+    if (batchResult.res == 0) {
+      for (String key : keys) {
+        newResults.put(key, new ExecResult(0, new StringBuffer(), new StringBuffer(), null, null));
+      }
+      return;
+    }
+    // At least one shader is invalid; validate them individually to find out which.
+    for (int i = 0; i < shaderFiles.size(); i++) {
+      newResults.put(keys.get(i), runGlslang(shaderFiles.get(i), false));
+    }
+  }
+
+  private ExecResult runGlslang(File shaderFile, boolean isVulkan)
+      throws IOException, InterruptedException {
+    numProcesses.incrementAndGet();
+    return ToolHelper.runValidatorOnShader(ExecHelper.RedirectType.TO_BUFFER, shaderFile,
+        isVulkan);
+  }
+
+  private static String makeKey(String validator, File shaderFile) throws IOException {
+    return validator + ":" + FilenameUtils.getExtension(shaderFile.getName()) + ":"
+        + DigestUtils.sha1Hex(FileUtils.readFileToByteArray(shaderFile));
+  }
+
+  private ExecResult lookup(String key) {
+    synchronized (cache) {
+      return cache.get(key);
+    }
+  }
+
+  private void store(String key, ExecResult result) {
+    synchronized (cache) {
+      cache.put(key, result);
+    }
+  }
+
+}
@@ -16,6 +16,7 @@
 
 package com.graphicsfuzz.common.util;
 
+import com.graphicsfuzz.common.ast.IAstNode;
 import com.graphicsfuzz.common.ast.TranslationUnit;
 import com.graphicsfuzz.common.ast.decl.Declaration;
 import com.graphicsfuzz.common.ast.decl.FunctionDefinition;
@@ -36,31 +37,55 @@ public class StripUnusedFunctions extends StandardVisitor {
   private Optional<FunctionDefinition> enclosingFunction;
   private Map<String, Set<String>> callGraphEdges;
 
+  // The number of nodes in the translation unit, as StatsVisitor would count them.
+  private int numNodes;
+
   private StripUnusedFunctions() {
     this.enclosingFunction = Optional.empty();
     this.callGraphEdges = new HashMap<>();
+    this.numNodes = 0;
   }
 
   public static void strip(TranslationUnit tu) {
     new StripUnusedFunctions().applyStrip(tu);
   }
 
+  /**
+   * Strips unused functions, counting the nodes of the translation unit while doing so, which
+   * saves a separate traversal for clients that need both.
+   * @param tu The translation unit to be stripped.
+   * @return The number of nodes in the stripped translation unit, as counted by StatsVisitor.
+   */
+  public static int stripAndCountNodes(TranslationUnit tu) {
+    final StripUnusedFunctions stripper = new StripUnusedFunctions();
+    stripper.applyStrip(tu);
+    return stripper.numNodes;
+  }
+
   public void applyStrip(TranslationUnit tu) {
     visit(tu);
     Set<String> callableFromMain = computeCallable("main", new HashSet<>());
     sweep(tu, callableFromMain);
   }
 
+  @Override
+  public void visit(IAstNode node) {
+    super.visit(node);
+    numNodes++;
+  }
+
   private void sweep(TranslationUnit tu, Set<String> callableFromMain) {
     for (int i = tu.getTopLevelDeclarations().size() - 1; i >= 0; i--) {
       Declaration decl = tu.getTopLevelDeclarations().get(i);
       if (decl instanceof FunctionPrototype) {
         if (!callableFromMain.contains(((FunctionPrototype) decl).getName())) {
+          numNodes -= new StatsVisitor(decl).getNumNodes();
           tu.removeTopLevelDeclaration(i);
         }
       }
       if (decl instanceof FunctionDefinition) {
         if (!callableFromMain.contains(((FunctionDefinition) decl).getPrototype().getName())) {
+          numNodes -= new StatsVisitor(decl).getNumNodes();
           tu.removeTopLevelDeclaration(i);
         }
       }
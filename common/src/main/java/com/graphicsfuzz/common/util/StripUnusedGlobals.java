@@ -39,12 +39,24 @@ public class StripUnusedGlobals extends ScopeTrackingVisitor {
     new StripUnusedGlobals(tu);
   }
 
+  /**
+   * Strips unused globals, reporting how much smaller the translation unit became, so that a
+   * client that knows the size of the translation unit does not need to count its nodes again.
+   * @param tu The translation unit to be stripped.
+   * @return The number of nodes, as counted by StatsVisitor, that were removed.
+   */
+  public static int stripAndCountRemovedNodes(TranslationUnit tu) {
+    return new StripUnusedGlobals(tu).numRemovedNodes;
+  }
+
   private final Set<VariableDeclInfo> unusedGlobals;
   private final Set<StructDefinitionType> unusedStructs;
+  private int numRemovedNodes;
 
   private StripUnusedGlobals(TranslationUnit tu) {
     this.unusedGlobals = new HashSet<>();
     this.unusedStructs = new HashSet<>();
+    this.numRemovedNodes = 0;
     visit(tu);
     sweep(tu);
   }
@@ -108,6 +120,8 @@ public class StripUnusedGlobals extends ScopeTrackingVisitor {
       int index = 0;
       while (index < variablesDeclaration.getNumDecls()) {
         if (unusedGlobals.contains(variablesDeclaration.getDeclInfo(index))) {
+          numRemovedNodes += new StatsVisitor(variablesDeclaration.getDeclInfo(index))
+              .getNumNodes();
           variablesDeclaration.removeDeclInfo(index);
         } else {
           index++;
@@ -115,6 +129,7 @@ public class StripUnusedGlobals extends ScopeTrackingVisitor {
       }
       if (variablesDeclaration.getNumDecls() == 0
           && !isUsedStructType(variablesDeclaration.getBaseType())) {
+        numRemovedNodes += new StatsVisitor(variablesDeclaration).getNumNodes();
         tu.removeTopLevelDeclaration(variablesDeclaration);
       }
     }
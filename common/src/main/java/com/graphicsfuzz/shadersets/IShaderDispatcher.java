@@ -18,6 +18,8 @@ package com.graphicsfuzz.shadersets;
 
 import com.graphicsfuzz.server.thrift.ImageJob;
 import com.graphicsfuzz.server.thrift.ImageJobResult;
+import java.util.ArrayList;
+import java.util.List;
 
 public interface IShaderDispatcher {
 
@@ -26,4 +28,17 @@ public interface IShaderDispatcher {
    */
   ImageJobResult getImage(ImageJob imageJob) throws ShaderDispatchException, InterruptedException;
 
+  /**
+   * Gets an ImageJobResult for each of the imageJobs, in order.  By default the jobs are run one
+   * at a time; dispatchers that can have several jobs in flight at once override this.
+   */
+  default List<ImageJobResult> getImages(List<ImageJob> imageJobs)
+      throws ShaderDispatchException, InterruptedException {
+    final List<ImageJobResult> results = new ArrayList<>();
+    for (ImageJob imageJob : imageJobs) {
+      results.add(getImage(imageJob));
+    }
+    return results;
+  }
+
 }
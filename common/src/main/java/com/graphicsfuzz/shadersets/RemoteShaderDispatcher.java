@@ -21,10 +21,16 @@ import com.graphicsfuzz.server.thrift.FuzzerServiceManager.Iface;
 import com.graphicsfuzz.server.thrift.ImageJob;
 import com.graphicsfuzz.server.thrift.ImageJobResult;
 import com.graphicsfuzz.server.thrift.Job;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.thrift.TException;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocol;
@@ -47,6 +53,15 @@ public class RemoteShaderDispatcher implements IShaderDispatcher {
 
   private static final int DEFAULT_RETRY_LIMIT = 2;
 
+  // How long the server is asked to wait for results before replying; kept well below typical
+  // HTTP timeouts.
+  private static final int AWAIT_RESULTS_TIMEOUT_MILLIS = 10000;
+
+  // Shared by all dispatchers, so that connections to the server are kept alive and reused rather
+  // than a new client, and connection, being made for every job.
+  private static final int MAX_CONNECTIONS_PER_SERVER = 64;
+  private static final CloseableHttpClient HTTP_CLIENT = createHttpClient();
+
   public RemoteShaderDispatcher(
       String url,
       String worker,
@@ -72,53 +87,103 @@ public class RemoteShaderDispatcher implements IShaderDispatcher {
     this(url, worker, null, new AtomicLong(), DEFAULT_RETRY_LIMIT);
   }
 
+  /**
+   * Runs a single image job.  The job goes through the same non-blocking submission path as a
+   * batch, so that no server thread waits for the worker on its behalf.
+   */
   @Override
-  public ImageJobResult getImage(ImageJob imageJob) throws ShaderDispatchException {
+  public ImageJobResult getImage(ImageJob imageJob)
+      throws ShaderDispatchException, InterruptedException {
 
     LOGGER.info("Get image (via server) job: {}", imageJob.getName());
 
-    // Due to strange Thrift behaviour, we set this default value explicitly
-    // otherwise "isSetSkipRender()" is false.
-    if (!imageJob.isSetSkipRender()) {
-      imageJob.setSkipRender(false);
+    return getImages(Collections.singletonList(imageJob)).get(0);
+  }
+
+  /**
+   * Submits all of the image jobs to the worker's job queue in one go, and then waits for their
+   * results, so that the jobs are in flight together without a thread being tied up for each.
+   */
+  @Override
+  public List<ImageJobResult> getImages(List<ImageJob> imageJobs)
+      throws ShaderDispatchException, InterruptedException {
+
+    LOGGER.info("Get images (via server) for {} jobs", imageJobs.size());
+
+    for (ImageJob imageJob : imageJobs) {
+      // Due to strange Thrift behaviour, we set this default value explicitly
+      // otherwise "isSetSkipRender()" is false.
+      if (!imageJob.isSetSkipRender()) {
+        imageJob.setSkipRender(false);
+      }
     }
 
     // Optimisation: no need to actually use HTTP if we are on the server.
     if (fuzzerServiceManager != null) {
       try {
-        return getImageHelper(imageJob, fuzzerServiceManager);
+        return getImagesHelper(imageJobs, fuzzerServiceManager);
       } catch (TException exception) {
         throw new ShaderDispatchException(exception);
       }
     } else {
-      try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-        return getImageHelper(imageJob, getFuzzerServiceManagerProxy(httpClient));
-      } catch (IOException | TException exception) {
+      try {
+        return getImagesHelper(imageJobs, getFuzzerServiceManagerProxy());
+      } catch (TException exception) {
         throw new ShaderDispatchException(exception);
       }
     }
   }
 
-  private ImageJobResult getImageHelper(
-      ImageJob imageJob,
-      FuzzerServiceManager.Iface fuzzerServiceManagerProxy) throws TException {
-
-    final Job job = new Job()
-        .setJobId(jobCounter.incrementAndGet())
-        .setImageJob(imageJob);
+  private List<ImageJobResult> getImagesHelper(
+      List<ImageJob> imageJobs,
+      FuzzerServiceManager.Iface fuzzerServiceManagerProxy)
+      throws TException, InterruptedException {
+
+    final List<Job> jobs = imageJobs.stream()
+        .map(imageJob -> new Job()
+            .setJobId(jobCounter.incrementAndGet())
+            .setImageJob(imageJob))
+        .collect(Collectors.toList());
+
+    final List<Long> tickets = fuzzerServiceManagerProxy.submitJobs(jobs, worker, retryLimit);
+    final List<Long> outstanding = new ArrayList<>(tickets);
+    final Map<Long, Job> completed = new HashMap<>();
+    while (!outstanding.isEmpty()) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      final Map<Long, Job> newlyCompleted =
+          fuzzerServiceManagerProxy.awaitResults(outstanding, AWAIT_RESULTS_TIMEOUT_MILLIS);
+      completed.putAll(newlyCompleted);
+      outstanding.removeAll(newlyCompleted.keySet());
+    }
 
-    return fuzzerServiceManagerProxy.submitJob(job, worker, retryLimit)
-        .getImageJob()
-        .getResult();
+    final List<ImageJobResult> results = new ArrayList<>();
+    for (long ticket : tickets) {
+      results.add(completed.get(ticket).getImageJob().getResult());
+    }
+    return results;
   }
 
-  private Iface getFuzzerServiceManagerProxy(CloseableHttpClient httpClient)
+  private Iface getFuzzerServiceManagerProxy()
       throws TTransportException {
-    TTransport transport = new THttpClient(url, httpClient);
+    // A THttpClient is cheap, and is not thread-safe, so one is made per request; the underlying
+    // HTTP client and its connections are shared.
+    TTransport transport = new THttpClient(url, HTTP_CLIENT);
     transport.open();
     TProtocol protocol = new TBinaryProtocol(transport);
     return new FuzzerServiceManager.Client(
         protocol);
   }
 
+  private static CloseableHttpClient createHttpClient() {
+    final PoolingHttpClientConnectionManager connectionManager =
+        new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(MAX_CONNECTIONS_PER_SERVER);
+    connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_SERVER);
+    return HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .build();
+  }
+
 }
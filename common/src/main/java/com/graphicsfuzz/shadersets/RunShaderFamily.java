@@ -22,7 +22,18 @@ import com.graphicsfuzz.server.thrift.ImageJob;
 import com.graphicsfuzz.server.thrift.ImageJobResult;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
@@ -68,9 +79,16 @@ public class RunShaderFamily {
         .type(String.class);
 
     parser.addArgument("--worker")
-        .help("The worker used for get image requests. Used with --server.")
+        .help("The worker used for get image requests. Used with --server. Several workers, "
+            + "e.g. identical devices, can be given separated by commas, in which case variants "
+            + "are shared between them.")
         .type(String.class);
 
+    parser.addArgument("--jobs_per_worker")
+        .help("The number of jobs to submit to each worker at a time. Used with --server.")
+        .setDefault(1)
+        .type(Integer.class);
+
     parser.addArgument("--output")
         .help("Output directory.")
         .setDefault(new File("."))
@@ -88,6 +106,7 @@ public class RunShaderFamily {
     final String server = ns.get("server");
     final String worker = ns.get("worker");
     final File outputDir = ns.get("output");
+    final int jobsPerWorker = ns.getInt("jobs_per_worker");
 
     if (managerOverride != null && (server == null || worker == null)) {
       throw new ArgumentParserException(
@@ -101,16 +120,28 @@ public class RunShaderFamily {
       }
     }
 
+    if (jobsPerWorker < 1) {
+      throw new ArgumentParserException("Must have at least one job per worker.", parser);
+    }
+
     ShaderJobFileOperations fileOps = new ShaderJobFileOperations();
 
-    IShaderDispatcher imageGenerator =
-        server == null
-            ? new LocalShaderDispatcher(false, fileOps, new File(outputDir, "temp"))
-            : new RemoteShaderDispatcher(
-                server + "/manageAPI",
-                worker,
-                managerOverride,
-                new AtomicLong());
+    final List<IShaderDispatcher> imageGenerators = new ArrayList<>();
+    final int jobsPerImageGenerator;
+    if (server == null) {
+      imageGenerators.add(new LocalShaderDispatcher(false, fileOps, new File(outputDir, "temp")));
+      jobsPerImageGenerator = 1;
+    } else {
+      final AtomicLong jobCounter = new AtomicLong();
+      for (String workerName : worker.split(",")) {
+        imageGenerators.add(new RemoteShaderDispatcher(
+            server + "/manageAPI",
+            workerName.trim(),
+            managerOverride,
+            jobCounter));
+      }
+      jobsPerImageGenerator = jobsPerWorker;
+    }
 
     fileOps.mkdir(outputDir);
 
@@ -124,13 +155,14 @@ public class RunShaderFamily {
       runShader(
           new File(outputDir, shaderName + ".info.json"),
           shaderFamily,
-          imageGenerator,
+          imageGenerators.get(0),
           Optional.empty(),
           fileOps);
       return;
     }
 
-    int numRun = runShaderFamily(shaderFamily, outputDir, imageGenerator, fileOps);
+    int numRun = runShaderFamily(shaderFamily, outputDir, imageGenerators, jobsPerImageGenerator,
+        fileOps);
 
     LOGGER.info("Ran {} shaders.", numRun);
   }
@@ -141,6 +173,53 @@ public class RunShaderFamily {
       IShaderDispatcher imageGenerator,
       ShaderJobFileOperations fileOps)
       throws ShaderDispatchException, InterruptedException, IOException {
+    return runShaderFamily(shaderFamilyDir, outputDir, Collections.singletonList(imageGenerator),
+        fileOps);
+  }
+
+  public static int runShaderFamily(
+      File shaderFamilyDir,
+      File outputDir,
+      List<IShaderDispatcher> imageGenerators,
+      ShaderJobFileOperations fileOps)
+      throws ShaderDispatchException, InterruptedException, IOException {
+    return runShaderFamily(shaderFamilyDir, outputDir, imageGenerators, 1, fileOps);
+  }
+
+  /**
+   * Runs the reference of a shader family and then its variants, skipping those that already
+   * have results.  The reference is run first, on the first of the image generators, as variant
+   * results are compared against it; the variants are then shared out between all of the image
+   * generators.  Each image generator is given batches of variants via getImages, so that a
+   * remote worker can have a batch of jobs in flight with a single thread waiting for them.
+   *
+   * @param shaderFamilyDir The shader family directory.
+   * @param outputDir Where the .info.json results are written.
+   * @param imageGenerators The image generators to use; there must be at least one.
+   * @param jobsPerImageGenerator The largest number of variants given to an image generator at
+   *                              once.
+   * @param fileOps File operations.
+   * @return The number of shader jobs that were run.
+   * @throws ShaderDispatchException On failure to run the reference.
+   * @throws InterruptedException If interrupted while running shader jobs.
+   * @throws IOException On IO failure.
+   */
+  public static int runShaderFamily(
+      File shaderFamilyDir,
+      File outputDir,
+      List<IShaderDispatcher> imageGenerators,
+      int jobsPerImageGenerator,
+      ShaderJobFileOperations fileOps)
+      throws ShaderDispatchException, InterruptedException, IOException {
+
+    if (imageGenerators.isEmpty()) {
+      throw new IllegalArgumentException("At least one image generator is required.");
+    }
+    if (jobsPerImageGenerator < 1) {
+      throw new IllegalArgumentException("Each image generator must be given at least one job.");
+    }
+
+    final IShaderDispatcher imageGenerator = imageGenerators.get(0);
 
     int numShadersRun = 0;
 
@@ -167,29 +246,110 @@ public class RunShaderFamily {
     final File[] variants =
         fileOps.listShaderJobFiles(shaderFamilyDir, (dir, name) -> name.startsWith("variant"));
 
-    for (File variant : variants) {
+    final Queue<File> remainingVariants = new ConcurrentLinkedQueue<>(Arrays.asList(variants));
+    final AtomicInteger numVariantsRun = new AtomicInteger(0);
+
+    if (imageGenerators.size() == 1) {
+      runVariants(remainingVariants, outputDir, imageGenerator, jobsPerImageGenerator,
+          referenceResult, numVariantsRun, fileOps);
+      return numShadersRun + numVariantsRun.get();
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(imageGenerators.size());
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (IShaderDispatcher variantImageGenerator : imageGenerators) {
+        futures.add(executor.submit(() -> {
+          runVariants(remainingVariants, outputDir, variantImageGenerator, jobsPerImageGenerator,
+              referenceResult, numVariantsRun, fileOps);
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException exception) {
+      if (exception.getCause() instanceof InterruptedException) {
+        throw (InterruptedException) exception.getCause();
+      }
+      throw new RuntimeException(exception.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    return numShadersRun + numVariantsRun.get();
+  }
+
+  /**
+   * Runs variants taken from the given queue, in batches of up to jobsPerImageGenerator, until
+   * the queue is empty.  Several threads may run this concurrently on the same queue, each with
+   * its own image generator.
+   */
+  private static void runVariants(
+      Queue<File> remainingVariants,
+      File outputDir,
+      IShaderDispatcher imageGenerator,
+      int jobsPerImageGenerator,
+      File referenceResult,
+      AtomicInteger numVariantsRun,
+      ShaderJobFileOperations fileOps)
+      throws InterruptedException {
+
+    while (true) {
+      final List<File> resultFiles = new ArrayList<>();
+      final List<ImageJob> imageJobs = new ArrayList<>();
+      while (imageJobs.size() < jobsPerImageGenerator) {
+        final File variant = remainingVariants.poll();
+        if (variant == null) {
+          break;
+        }
+        final String variantName = FilenameUtils.removeExtension(variant.getName());
+        final File resultFile = new File(outputDir, variantName + ".info.json");
+        if (fileOps.doesShaderJobResultFileExist(resultFile)) {
+          LOGGER.info("Skipping {} because we already have a result.", variant);
+          continue;
+        }
+        numVariantsRun.incrementAndGet();
+        LOGGER.info("Running shader job: {} ", variant);
+        try {
+          final ImageJob imageJob = new ImageJob();
+          fileOps.readShaderJobFileToImageJob(variant, imageJob);
+          imageJobs.add(imageJob);
+          resultFiles.add(resultFile);
+        } catch (Exception err) {
+          LOGGER.error("Could not read {}", variant);
+          err.printStackTrace();
+        }
+      }
+      if (imageJobs.isEmpty()) {
+        // The queue is empty.
+        return;
+      }
 
-      final String variantName = FilenameUtils.removeExtension(variant.getName());
-      final File resultFile = new File(outputDir, variantName + ".info.json");
+      final List<ImageJobResult> imageJobResults;
+      try {
+        imageJobResults = imageGenerator.getImages(imageJobs);
+      } catch (InterruptedException exception) {
+        throw exception;
+      } catch (Exception err) {
+        LOGGER.error("getImages() raised exception on {}", resultFiles);
+        err.printStackTrace();
+        continue;
+      }
 
-      if (fileOps.doesShaderJobResultFileExist(resultFile)) {
-        LOGGER.info("Skipping {} because we already have a result.", variant);
-      } else {
+      for (int i = 0; i < resultFiles.size(); i++) {
         try {
-          runShader(
-              resultFile,
-              variant,
-              imageGenerator,
-              Optional.of(referenceResult),
-              fileOps);
+          fileOps.writeShaderResultToFile(
+              imageJobResults.get(i),
+              resultFiles.get(i),
+              Optional.of(referenceResult));
+        } catch (InterruptedException exception) {
+          throw exception;
         } catch (Exception err) {
-          LOGGER.error("runShader() raise exception on {}", variant);
+          LOGGER.error("Could not write {}", resultFiles.get(i));
           err.printStackTrace();
         }
-        ++numShadersRun;
       }
     }
-    return numShadersRun;
   }
 
   /**
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.graphicsfuzz.common.util.ComputeResultComparator.Comparison;
+import com.graphicsfuzz.common.util.ComputeResultComparator.Ssbo;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Optional;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// The cases mirror those for the inspect-compute-results Python driver.
+public class ComputeResultComparatorTest {
+
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  @Test
+  public void testExactMatches() throws Exception {
+    assertTrue(compare(
+        "{\"status\": \"SUCCESS\", \"log\": \"#### Start compute shader\", \"outputs\": "
+            + "{\"ssbo\":[[88],[28,12,14,14,18,16,18,18,28,22,24,24,28,26]]}}",
+        "{\"ssbo\":[[88],[28,12,14,14,18,16,18,18,28,22,24,24,28,26]]}").isExactMatch());
+    assertTrue(compare(
+        "{\"outputs\": {\"ssbo\":[[2.0]]}}",
+        "{\"ssbo\": [ [2.0] ] }").isExactMatch());
+    assertTrue(compare(
+        "{\"outputs\": {\"ssbo\":[[88.0, 12.3],[28,12,14],[1]]}}",
+        "{\"ssbo\":[[88.0, 12.3],[28,12,14],[1]]}").isExactMatch());
+    // An integer and a float of the same value are equal, as in Python.
+    assertTrue(compare(
+        "{\"outputs\": {\"ssbo\":[[2]]}}",
+        "{\"ssbo\":[[2.0]]}").isExactMatch());
+  }
+
+  @Test
+  public void testInvalidResults() throws Exception {
+    final Comparison firstInvalid = compare("not_json", "{\"ssbo\": [ [2.0] ] }");
+    assertFalse(firstInvalid.isExactMatch());
+    assertFalse(firstInvalid.isFuzzyMatch());
+    assertEquals("First input file did not contain valid SSBO data",
+        firstInvalid.getExactDiff().get());
+    assertEquals("Second input file did not contain valid SSBO data",
+        compare("{\"outputs\": {\"ssbo\":[[2.0]]}}", "not_json").getExactDiff().get());
+    assertEquals("First input file did not contain valid SSBO data",
+        compare("{\"status\": \"CRASH\", \"outputs\": {}}", "{\"ssbo\": [ [2.0] ] }")
+            .getExactDiff().get());
+  }
+
+  @Test
+  public void testMissingResultFile() throws Exception {
+    final Comparison comparison = ComputeResultComparator.compare(
+        new File(testFolder.getRoot(), "missing.info.json"), "{\"ssbo\": [ [2.0] ] }");
+    assertFalse(comparison.isExactMatch());
+    assertFalse(comparison.isFuzzyMatch());
+    assertEquals("First input file did not contain valid SSBO data",
+        comparison.getExactDiff().get());
+  }
+
+  @Test
+  public void testMismatchMessages() throws Exception {
+    assertEquals("SSBOs have different numbers of fields: 2 vs. 1",
+        compare(
+            "{\"outputs\": {\"ssbo\":[[88],[28,12,14,14,18,16,18,18,28,22,24,24,28,26]]}}",
+            "{\"ssbo\":[[88]]}").getExactDiff().get());
+    assertEquals("Data for field 1 has different lengths: 14 vs. 13",
+        compare(
+            "{\"outputs\": {\"ssbo\":[[88],[28,12,14,14,18,16,18,18,28,22,24,24,28,26]]}}",
+            "{\"ssbo\":[[88],[28,12,14,14,18,16,18,18,28,22,24,24,28]]}").getExactDiff().get());
+    final Comparison elementMismatch = compare(
+        "{\"outputs\": {\"ssbo\":[[88],[28,12,14,14,18,16,18,18,28,22,24,24,28]]}}",
+        "{\"ssbo\":[[88],[28,12,14,14,18,16,18,17,28,22,24,24,28]]}");
+    assertEquals("Mismatch at field 1 element 7: 18 vs. 17",
+        elementMismatch.getExactDiff().get());
+    assertEquals("Mismatch at field 1 element 7: 18 vs. 17",
+        elementMismatch.getFuzzyDiff().get());
+    assertEquals("Mismatch at field 0 element 0: 1e-05 vs. 100.0",
+        compare("{\"outputs\": {\"ssbo\":[[1e-5]]}}", "{\"ssbo\":[[1E2]]}")
+            .getExactDiff().get());
+  }
+
+  @Test
+  public void testFuzzyMatchWithDefaultTolerances() throws Exception {
+    final Comparison comparison = compare(
+        "{\"outputs\": {\"ssbo\":[[88.0],[1000000.0,1.3e-06,0.0]]}}",
+        "{\"ssbo\":[[88.00000001],[1000000.0001,1.3000000013e-06,1e-20]]}");
+    assertFalse(comparison.isExactMatch());
+    assertEquals("Mismatch at field 0 element 0: 88.0 vs. 88.00000001",
+        comparison.getExactDiff().get());
+    assertTrue(comparison.isFuzzyMatch());
+  }
+
+  @Test
+  public void testFuzzyDiffWithTolerances() throws Exception {
+    final Ssbo first = ssbo("{\"ssbo\":[[88.0],[1000000.0,1.3e-06,0.0]]}");
+    assertEquals(Optional.empty(), ComputeResultComparator.fuzzyDiff(first,
+        ssbo("{\"ssbo\":[[88.00009],[1000000.00009,9.130000000000001e-05,9e-05]]}"),
+        0.0001, ComputeResultComparator.DEFAULT_REL_TOL));
+    assertEquals(Optional.empty(), ComputeResultComparator.fuzzyDiff(first,
+        ssbo("{\"ssbo\":[[88.0000001],[1000001.0,1.300001e-06,1e-06]]}"),
+        1e-06, 1e-06));
+    assertEquals(Optional.of("Mismatch at field 1 element 2: 0.0 vs. 0.0001"),
+        ComputeResultComparator.fuzzyDiff(first,
+            ssbo("{\"ssbo\":[[88.0000001],[1000001.0,1.300001e-06,0.0001]]}"),
+            1e-06, 1e-06));
+  }
+
+  @Test
+  public void testIsClose() {
+    assertTrue(ComputeResultComparator.isClose(1.0, 1.0, 1e-9, 0.0));
+    assertTrue(ComputeResultComparator.isClose(Double.POSITIVE_INFINITY,
+        Double.POSITIVE_INFINITY, 1e-9, 0.0));
+    assertFalse(ComputeResultComparator.isClose(Double.POSITIVE_INFINITY, 1e308, 1e-9, 1e308));
+    assertFalse(ComputeResultComparator.isClose(Double.NaN, Double.NaN, 1e-9, 1.0));
+    assertTrue(ComputeResultComparator.isClose(100.0, 100.00000001, 1e-9, 0.0));
+    assertFalse(ComputeResultComparator.isClose(100.0, 100.000001, 1e-9, 0.0));
+  }
+
+  @Test
+  public void testFormatDoubleLikePython() {
+    assertEquals("100.0", ComputeResultComparator.formatDouble(100.0));
+    assertEquals("0.1", ComputeResultComparator.formatDouble(0.1));
+    assertEquals("-0.0", ComputeResultComparator.formatDouble(-0.0));
+    assertEquals("0.0001", ComputeResultComparator.formatDouble(0.0001));
+    assertEquals("1e-05", ComputeResultComparator.formatDouble(1e-5));
+    assertEquals("2.5e-07", ComputeResultComparator.formatDouble(2.5e-7));
+    assertEquals("12345.678", ComputeResultComparator.formatDouble(12345.678));
+    assertEquals("1000000000000000.0", ComputeResultComparator.formatDouble(1e15));
+    assertEquals("1e+16", ComputeResultComparator.formatDouble(1e16));
+    assertEquals("1.2345678901234568e+17",
+        ComputeResultComparator.formatDouble(123456789012345678.0));
+    // Double.toString gives 1.15292150460684698E18 for this value, which is not the shortest.
+    assertEquals("1.152921504606847e+18", ComputeResultComparator.formatDouble(Math.pow(2, 60)));
+    assertEquals("-1.5e+300", ComputeResultComparator.formatDouble(-1.5e300));
+    assertEquals("nan", ComputeResultComparator.formatDouble(Double.NaN));
+    assertEquals("-inf", ComputeResultComparator.formatDouble(Double.NEGATIVE_INFINITY));
+  }
+
+  private Comparison compare(String firstResult, String secondOutputs) throws IOException {
+    final File firstResultFile = testFolder.newFile();
+    Files.write(firstResultFile.toPath(), firstResult.getBytes(StandardCharsets.UTF_8));
+    return ComputeResultComparator.compare(firstResultFile, secondOutputs);
+  }
+
+  private static Ssbo ssbo(String outputs) throws IOException {
+    return ComputeResultComparator.readSsboFromOutputs(new StringReader(outputs)).get();
+  }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import javax.imageio.ImageIO;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DecodedImageTest {
+
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  @Test
+  public void testPngAndFileDecodeIdentically() throws Exception {
+    final byte[] png = makePng(32, 32, false);
+    final File file = testFolder.newFile("image.png");
+    Files.write(file.toPath(), png);
+    final DecodedImage fromPng = DecodedImage.fromPng(png);
+    assertEquals(32, fromPng.getWidth());
+    assertEquals(32, fromPng.getHeight());
+    assertTrue(fromPng.isIdenticalTo(DecodedImage.fromFile(file)));
+    assertFalse(fromPng.isIdenticalTo(DecodedImage.fromPng(makePng(32, 32, true))));
+    assertFalse(fromPng.isIdenticalTo(DecodedImage.fromPng(makePng(32, 16, false))));
+  }
+
+  @Test
+  public void testFuzzyDiffAgreesWithFileComparison() throws Exception {
+    final File reference = testFolder.newFile("reference.png");
+    final File variant = testFolder.newFile("variant.png");
+    Files.write(reference.toPath(), makePng(64, 64, false));
+    Files.write(variant.toPath(), makePng(64, 64, true));
+
+    final FuzzyImageComparison.MainResult expected = FuzzyImageComparison.mainHelper(
+        new String[] { reference.toString(), variant.toString() });
+    final FuzzyImageComparison.MainResult actual =
+        DecodedImage.fromFile(reference).fuzzyDiff(DecodedImage.fromFile(variant));
+    assertTrue(actual.areImagesDifferent);
+    assertEquals(expected.areImagesDifferent, actual.areImagesDifferent);
+    assertEquals(expected.exitStatus, actual.exitStatus);
+    assertEquals(expected.outputsString(), actual.outputsString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testFuzzyDiffRejectsDifferentSizes() throws Exception {
+    DecodedImage.fromPng(makePng(32, 32, false))
+        .fuzzyDiff(DecodedImage.fromPng(makePng(16, 32, false)));
+  }
+
+  @Test(expected = IOException.class)
+  public void testUndecodableDataIsRejected() throws Exception {
+    DecodedImage.fromPng(new byte[] { 1, 2, 3, 4 });
+  }
+
+  // Makes a black image, optionally with a 10x10 patch of white pixels.
+  private static byte[] makePng(int width, int height, boolean withPatch) throws IOException {
+    final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        final boolean inPatch = withPatch && x >= 10 && x < 20 && y >= 10 && y < 20;
+        image.setRGB(x, y, inPatch ? 0xffffffff : 0xff000000);
+      }
+    }
+    final ByteArrayOutputStream result = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", result);
+    return result.toByteArray();
+  }
+
+}
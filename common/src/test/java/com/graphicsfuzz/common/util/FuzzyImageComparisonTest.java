@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.graphicsfuzz.common.util.FuzzyImageComparison.ThresholdConfiguration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class FuzzyImageComparisonTest {
+
+  @Test
+  public void testIdenticalImagesHaveNoBadPixels() {
+    final int[] colors = makeImage(new Random(0), 32);
+    final List<ThresholdConfiguration> configurations = new ArrayList<>();
+    FuzzyImageComparison.addDefaultConfigurations(configurations);
+    FuzzyImageComparison.compareImageColors(colors, colors.clone(), 32, 32, configurations);
+    for (ThresholdConfiguration configuration : configurations) {
+      assertEquals(0, configuration.outNumBadPixels);
+      assertEquals(0, configuration.outNumBadSparsePixels);
+    }
+  }
+
+  @Test
+  public void testAgreesWithReferenceImplementation() {
+    final Random generator = new Random(0);
+    for (int size : Arrays.asList(1, 7, 40)) {
+      for (int i = 0; i < 5; i++) {
+        final int[] left = makeImage(generator, size);
+        final int[] right = perturb(generator, left, size);
+        final List<ThresholdConfiguration> fast = makeConfigurations();
+        final List<ThresholdConfiguration> reference = makeConfigurations();
+        FuzzyImageComparison.compareImageColors(left, right, size, size, fast);
+        FuzzyImageComparison.compareImageColorsReference(left, right, size, size, reference);
+        for (int j = 0; j < fast.size(); j++) {
+          assertEquals(reference.get(j).outputsString(), fast.get(j).outputsString());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSmallPatchIsDetected() {
+    final int size = 64;
+    final int[] left = new int[size * size];
+    Arrays.fill(left, 0xff000000);
+    final int[] right = left.clone();
+    // A 10x10 patch of white pixels.
+    for (int y = 20; y < 30; y++) {
+      for (int x = 20; x < 30; x++) {
+        right[y * size + x] = 0xffffffff;
+      }
+    }
+    final List<ThresholdConfiguration> configurations = new ArrayList<>();
+    FuzzyImageComparison.addDefaultConfigurations(configurations);
+    FuzzyImageComparison.compareImageColors(left, right, size, size, configurations);
+    for (ThresholdConfiguration configuration : configurations) {
+      assertTrue(configuration.outNumBadPixels > 0);
+      assertTrue(configuration.areImagesDifferent());
+    }
+  }
+
+  private static List<ThresholdConfiguration> makeConfigurations() {
+    final List<ThresholdConfiguration> result = new ArrayList<>();
+    FuzzyImageComparison.addDefaultConfigurations(result);
+    result.add(new ThresholdConfiguration(0, 0, 0, 0));
+    result.add(new ThresholdConfiguration(10, 1, 0, 0));
+    result.add(new ThresholdConfiguration(0, 4, 0, 0));
+    result.add(new ThresholdConfiguration(100, 2, 0, 0));
+    return result;
+  }
+
+  // Makes an image of blocks of a few colors, so that there are regions of similar pixels.
+  private static int[] makeImage(Random generator, int size) {
+    final int[] palette = new int[4];
+    for (int i = 0; i < palette.length; i++) {
+      palette[i] = generator.nextInt();
+    }
+    final int[] result = new int[size * size];
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        result[y * size + x] = palette[((y / 5) + (x / 3)) % palette.length];
+      }
+    }
+    return result;
+  }
+
+  // Copies an image, nudging the components of some pixels and replacing others outright.
+  private static int[] perturb(Random generator, int[] image, int size) {
+    final int[] result = image.clone();
+    for (int i = 0; i < result.length; i++) {
+      final int choice = generator.nextInt(10);
+      if (choice == 0) {
+        result[i] = generator.nextInt();
+      } else if (choice < 4) {
+        final int shift = 8 * generator.nextInt(4);
+        final int component = (result[i] >> shift) & 0xff;
+        final int nudged = Math.max(0, Math.min(255, component + generator.nextInt(41) - 20));
+        result[i] = (result[i] & ~(0xff << shift)) | (nudged << shift);
+      }
+    }
+    return result;
+  }
+
+}
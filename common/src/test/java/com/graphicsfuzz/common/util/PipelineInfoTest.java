@@ -107,6 +107,21 @@ public class PipelineInfoTest {
     assertEquals(pipelineInfo.toString(), pipelineAfter);
   }
 
+  @Test
+  public void testCloneIsIndependent() {
+    final PipelineInfo pipelineInfo = new PipelineInfo();
+    pipelineInfo.addUniform("a", BasicType.FLOAT, Optional.empty(), Arrays.asList(1.0));
+    pipelineInfo.addUniform("b", BasicType.INT, Optional.empty(), Arrays.asList(2));
+    final PipelineInfo clone = pipelineInfo.clone();
+    assertEquals(pipelineInfo.toString(), clone.toString());
+    assertEquals(pipelineInfo.toString(), new PipelineInfo(pipelineInfo.toString()).toString());
+
+    clone.appendValueToUniform("a", 2.0);
+    clone.removeUniform("b");
+    assertEquals(Collections.singletonList("1.0"), pipelineInfo.getArgs("a"));
+    assertTrue(pipelineInfo.hasUniform("b"));
+  }
+
   @Test
   public void testRename() {
     final PipelineInfo pipelineInfo = new PipelineInfo();
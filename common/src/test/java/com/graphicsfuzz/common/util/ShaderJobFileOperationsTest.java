@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.graphicsfuzz.common.ast.type.BasicType;
+import com.graphicsfuzz.common.tool.UniformValueSupplier;
+import com.graphicsfuzz.common.transformreduce.GlslShaderJob;
+import com.graphicsfuzz.common.transformreduce.ShaderJob;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ShaderJobFileOperationsTest {
+
+  private final ShaderJobFileOperations fileOps = new ShaderJobFileOperations();
+
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  @Test
+  public void testInMemoryHashMatchesFileHash() throws Exception {
+    final PipelineInfo pipelineInfo = new PipelineInfo();
+    pipelineInfo.addUniform("u", BasicType.FLOAT, Optional.empty(),
+        Collections.singletonList(1.0));
+    final ShaderJob shaderJob = new GlslShaderJob(Optional.of("A license"),
+        pipelineInfo,
+        Arrays.asList(
+            ParseHelper.parse("#version 310 es\n"
+                + "void main() { gl_Position = vec4(0.0); }\n", ShaderKind.VERTEX),
+            ParseHelper.parse("#version 310 es\n"
+                + "precision highp float;\n"
+                + "uniform float u;\n"
+                + "layout(location = 0) out vec4 color;\n"
+                + "void main() { color = vec4(u); }\n", ShaderKind.FRAGMENT)));
+
+    final File shaderJobFile = new File(testFolder.getRoot(), "shader.json");
+    final Optional<UniformValueSupplier> uniformValues =
+        Optional.of(new PipelineUniformValueSupplier(pipelineInfo));
+    fileOps.writeShaderJobFile(shaderJob, shaderJobFile, uniformValues);
+
+    assertEquals(fileOps.getShaderJobFileHash(shaderJobFile),
+        fileOps.getShaderJobHash(shaderJob, uniformValues));
+    assertNotEquals(fileOps.getShaderJobFileHash(shaderJobFile),
+        fileOps.getShaderJobHash(shaderJob, Optional.empty()));
+  }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.graphicsfuzz.util.ExecResult;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ShaderValidationServiceTest {
+
+  private static final String VALID_FRAGMENT_SHADER = "#version 310 es\n"
+      + "precision highp float;\n"
+      + "layout(location = 0) out vec4 _GLF_color;\n"
+      + "void main() {\n"
+      + "  _GLF_color = vec4(1.0);\n"
+      + "}\n";
+
+  private static final String VALID_VERTEX_SHADER = "#version 310 es\n"
+      + "void main() {\n"
+      + "  gl_Position = vec4(0.0);\n"
+      + "}\n";
+
+  private static final String INVALID_FRAGMENT_SHADER = "#version 310 es\n"
+      + "precision highp float;\n"
+      + "void main() {\n"
+      + "  undeclared = 1.0;\n"
+      + "}\n";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testShadersAreValidatedTogetherAndOnlyOnce() throws Exception {
+    final ShaderValidationService service = new ShaderValidationService(16);
+    final File fragment = makeShader("a.frag", VALID_FRAGMENT_SHADER);
+    final File vertex = makeShader("a.vert", VALID_VERTEX_SHADER);
+
+    final List<ExecResult> results = service.validateWithGlslang(Arrays.asList(fragment, vertex),
+        false);
+    assertEquals(0, results.get(0).res);
+    assertEquals(0, results.get(1).res);
+    assertEquals(1, service.getNumProcesses());
+
+    // A shader with the same contents as one already validated is not validated again.
+    final File copy = makeShader("b.frag", VALID_FRAGMENT_SHADER);
+    assertEquals(0, service.validateWithGlslang(Collections.singletonList(copy), false)
+        .get(0).res);
+    assertEquals(1, service.getNumProcesses());
+
+    // A shader with the same contents as one already validated, but a different stage, is.
+    final File asVertex = makeShader("b.vert", VALID_FRAGMENT_SHADER);
+    service.validateWithGlslang(Collections.singletonList(asVertex), false);
+    assertEquals(2, service.getNumProcesses());
+  }
+
+  @Test
+  public void testInvalidShaderInBatchIsIdentified() throws Exception {
+    final ShaderValidationService service = new ShaderValidationService(16);
+    final File valid = makeShader("valid.frag", VALID_FRAGMENT_SHADER);
+    final File invalid = makeShader("invalid.frag", INVALID_FRAGMENT_SHADER);
+
+    final List<ExecResult> results = service.validateWithGlslang(Arrays.asList(valid, invalid),
+        false);
+    assertEquals(0, results.get(0).res);
+    assertNotEquals(0, results.get(1).res);
+    // One process for the batch, then one per shader once the batch failed.
+    assertEquals(3, service.getNumProcesses());
+
+    // The failure is remembered.
+    assertNotEquals(0, service.validateWithGlslang(Collections.singletonList(invalid), false)
+        .get(0).res);
+    assertEquals(3, service.getNumProcesses());
+  }
+
+  private File makeShader(String name, String contents) throws Exception {
+    final File result = new File(temporaryFolder.getRoot(), name);
+    FileUtils.writeStringToFile(result, contents, StandardCharsets.UTF_8);
+    return result;
+  }
+
+}
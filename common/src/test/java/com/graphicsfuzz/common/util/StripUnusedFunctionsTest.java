@@ -71,4 +71,21 @@ public class StripUnusedFunctionsTest {
 
   }
 
+  @Test
+  public void stripAndCountNodes() throws Exception {
+    final TranslationUnit tu = ParseHelper.parse("int g;\n"
+        + "void foo(int x) {\n"
+        + "  g = x + 1;\n"
+        + "}\n"
+        + "int bar() {\n"
+        + "  return g;\n"
+        + "}\n"
+        + "void main() {\n"
+        + "  bar();\n"
+        + "}\n");
+    final int numNodes = StripUnusedFunctions.stripAndCountNodes(tu);
+    assertEquals(3, tu.getTopLevelDeclarations().size());
+    assertEquals(new StatsVisitor(tu).getNumNodes(), numNodes);
+  }
+
 }
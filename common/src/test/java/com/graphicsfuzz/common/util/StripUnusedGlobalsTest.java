@@ -16,6 +16,8 @@
 
 package com.graphicsfuzz.common.util;
 
+import static org.junit.Assert.assertEquals;
+
 import com.graphicsfuzz.common.ast.TranslationUnit;
 import org.junit.Test;
 
@@ -97,4 +99,23 @@ public class StripUnusedGlobalsTest {
     CompareAsts.assertEqualAsts(original, tu);
   }
 
+  @Test
+  public void testStripAndCountRemovedNodes() throws Exception {
+    final TranslationUnit tu = ParseHelper.parse(""
+        + "struct S { int a; } s;"
+        + "int a = 0, b = a, c;"
+        + "float d[4];"
+        + "void main() {"
+        + "  c = 1;"
+        + "}");
+    final int numNodesBefore = new StatsVisitor(tu).getNumNodes();
+    final int numRemovedNodes = StripUnusedGlobals.stripAndCountRemovedNodes(tu);
+    CompareAsts.assertEqualAsts(""
+        + "int a = 0, c;"
+        + "void main() {"
+        + "  c = 1;"
+        + "}", tu);
+    assertEquals(numNodesBefore - new StatsVisitor(tu).getNumNodes(), numRemovedNodes);
+  }
+
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.shadersets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.graphicsfuzz.common.util.ShaderJobFileOperations;
+import com.graphicsfuzz.server.thrift.ImageJob;
+import com.graphicsfuzz.server.thrift.ImageJobResult;
+import com.graphicsfuzz.server.thrift.JobStatus;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RunShaderFamilyTest {
+
+  private static final int NUM_VARIANTS = 6;
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testVariantsAreSharedBetweenImageGenerators() throws Exception {
+    final File familyDir = temporaryFolder.newFolder("family");
+    final File outputDir = temporaryFolder.newFolder("output");
+    writeShaderJob(familyDir, "reference");
+    for (int i = 0; i < NUM_VARIANTS; i++) {
+      writeShaderJob(familyDir, "variant_" + i);
+    }
+
+    // Both image generators have to be running a variant at the same time for either to finish
+    // its first variant, so the test only passes if variants are run in parallel.
+    final CountDownLatch bothRunning = new CountDownLatch(2);
+    final ConcurrentHashMap<String, Boolean> jobsRun = new ConcurrentHashMap<>();
+    final FakeShaderDispatcher first = new FakeShaderDispatcher(bothRunning, jobsRun);
+    final FakeShaderDispatcher second = new FakeShaderDispatcher(bothRunning, jobsRun);
+
+    final ShaderJobFileOperations fileOps = new ShaderJobFileOperations();
+    final int numRun = RunShaderFamily.runShaderFamily(familyDir, outputDir,
+        Arrays.asList(first, second), fileOps);
+
+    assertEquals(NUM_VARIANTS + 1, numRun);
+    assertEquals(NUM_VARIANTS + 1, jobsRun.size());
+    assertTrue(first.numVariantsRun.get() > 0);
+    assertTrue(second.numVariantsRun.get() > 0);
+    assertEquals(NUM_VARIANTS, first.numVariantsRun.get() + second.numVariantsRun.get());
+    assertTrue(fileOps.doesShaderJobResultFileExist(new File(outputDir, "reference.info.json")));
+    for (int i = 0; i < NUM_VARIANTS; i++) {
+      assertTrue(fileOps.doesShaderJobResultFileHaveImage(
+          new File(outputDir, "variant_" + i + ".info.json")));
+    }
+  }
+
+  @Test
+  public void testExistingResultsAreSkipped() throws Exception {
+    final File familyDir = temporaryFolder.newFolder("family");
+    final File outputDir = temporaryFolder.newFolder("output");
+    writeShaderJob(familyDir, "reference");
+    for (int i = 0; i < NUM_VARIANTS; i++) {
+      writeShaderJob(familyDir, "variant_" + i);
+    }
+
+    final ShaderJobFileOperations fileOps = new ShaderJobFileOperations();
+    final ConcurrentHashMap<String, Boolean> jobsRun = new ConcurrentHashMap<>();
+    final List<IShaderDispatcher> imageGenerators = Arrays.asList(
+        new FakeShaderDispatcher(new CountDownLatch(0), jobsRun),
+        new FakeShaderDispatcher(new CountDownLatch(0), jobsRun),
+        new FakeShaderDispatcher(new CountDownLatch(0), jobsRun));
+    assertEquals(NUM_VARIANTS + 1,
+        RunShaderFamily.runShaderFamily(familyDir, outputDir, imageGenerators, fileOps));
+
+    FileUtils.forceDelete(new File(outputDir, "variant_2.info.json"));
+    jobsRun.clear();
+    assertEquals(1,
+        RunShaderFamily.runShaderFamily(familyDir, outputDir, imageGenerators, fileOps));
+    assertEquals(1, jobsRun.size());
+    assertTrue(jobsRun.containsKey("variant_2"));
+  }
+
+  @Test
+  public void testVariantsAreRunInBatches() throws Exception {
+    final File familyDir = temporaryFolder.newFolder("family");
+    final File outputDir = temporaryFolder.newFolder("output");
+    writeShaderJob(familyDir, "reference");
+    for (int i = 0; i < NUM_VARIANTS; i++) {
+      writeShaderJob(familyDir, "variant_" + i);
+    }
+
+    final List<Integer> batchSizes = new ArrayList<>();
+    final IShaderDispatcher imageGenerator =
+        new FakeShaderDispatcher(new CountDownLatch(0), new ConcurrentHashMap<>()) {
+          @Override
+          public List<ImageJobResult> getImages(List<ImageJob> imageJobs)
+              throws ShaderDispatchException, InterruptedException {
+            batchSizes.add(imageJobs.size());
+            return super.getImages(imageJobs);
+          }
+        };
+
+    final ShaderJobFileOperations fileOps = new ShaderJobFileOperations();
+    assertEquals(NUM_VARIANTS + 1, RunShaderFamily.runShaderFamily(familyDir, outputDir,
+        Collections.singletonList(imageGenerator), 4, fileOps));
+    // The reference is run on its own, before the variants.
+    assertEquals(Arrays.asList(4, NUM_VARIANTS - 4), batchSizes);
+    for (int i = 0; i < NUM_VARIANTS; i++) {
+      assertTrue(fileOps.doesShaderJobResultFileHaveImage(
+          new File(outputDir, "variant_" + i + ".info.json")));
+    }
+  }
+
+  private static void writeShaderJob(File dir, String name) throws IOException {
+    FileUtils.writeStringToFile(new File(dir, name + ".json"), "{}", StandardCharsets.UTF_8);
+    FileUtils.writeStringToFile(new File(dir, name + ".frag"), "#version 310 es\n"
+        + "precision highp float;\n"
+        + "layout(location = 0) out vec4 _GLF_color;\n"
+        + "void main() {\n"
+        + "  _GLF_color = vec4(1.0);\n"
+        + "}\n", StandardCharsets.UTF_8);
+  }
+
+  private static class FakeShaderDispatcher implements IShaderDispatcher {
+
+    private final CountDownLatch bothRunning;
+    private final ConcurrentHashMap<String, Boolean> jobsRun;
+    private final AtomicInteger numVariantsRun;
+
+    private FakeShaderDispatcher(CountDownLatch bothRunning,
+                                 ConcurrentHashMap<String, Boolean> jobsRun) {
+      this.bothRunning = bothRunning;
+      this.jobsRun = jobsRun;
+      this.numVariantsRun = new AtomicInteger(0);
+    }
+
+    @Override
+    public ImageJobResult getImage(ImageJob imageJob) throws InterruptedException {
+      assertTrue(jobsRun.putIfAbsent(imageJob.getName(), true) == null);
+      if (imageJob.getName().startsWith("variant")) {
+        numVariantsRun.incrementAndGet();
+        bothRunning.countDown();
+        assertTrue(bothRunning.await(10, TimeUnit.SECONDS));
+      }
+      return new ImageJobResult()
+          .setStatus(JobStatus.SUCCESS)
+          .setPNG(makePng());
+    }
+
+    private static byte[] makePng() {
+      final BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+      final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      try {
+        ImageIO.write(image, "png", stream);
+      } catch (IOException exception) {
+        throw new RuntimeException(exception);
+      }
+      return stream.toByteArray();
+    }
+
+  }
+
+}
@@ -75,6 +75,10 @@ public class CommandRunnable implements Runnable {
     return name;
   }
 
+  public String getQueueName() {
+    return queueName;
+  }
+
   public List<String> getCommand() {
     return command;
   }
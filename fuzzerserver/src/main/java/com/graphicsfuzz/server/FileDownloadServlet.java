@@ -19,9 +19,7 @@ package com.graphicsfuzz.server;
 import static com.graphicsfuzz.server.thrift.FuzzerServiceConstants.DOWNLOAD_FIELD_NAME_WORKER;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -29,7 +27,6 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,6 +47,8 @@ public class FileDownloadServlet extends HttpServlet {
 
   private final Path directoryRoot;
 
+  private final FileSender fileSender = new FileSender();
+
   /**
    * @param directoryRoot A safety precaution: only files inside this directory can be accessed.
    *                      Downloading files above this directory is disallowed.
@@ -80,19 +79,17 @@ public class FileDownloadServlet extends HttpServlet {
       throw new IOException("Invalid path!");
     }
 
-    try (FileInputStream fis = new FileInputStream(file)) {
-      response.setStatus(HttpServletResponse.SC_OK);
-      String contentType = "text/plain";
-      try {
-        contentType = Files.probeContentType(pathOfFile);
-      } catch (IOException exception) {
-        LOGGER.info("Failed to probe content type of file path: {}", pathOfFile, exception);
-      }
-      response.setContentType(contentType);
-      try (OutputStream out = response.getOutputStream()) {
-        IOUtils.copy(fis, out);
-      }
+    if (!file.isFile()) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
     }
 
+    String contentType = "text/plain";
+    try {
+      contentType = Files.probeContentType(pathOfFile);
+    } catch (IOException exception) {
+      LOGGER.info("Failed to probe content type of file path: {}", pathOfFile, exception);
+    }
+    fileSender.send(request, response, file, contentType);
   }
 }
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Sends files in HTTP responses without reading them into memory.
+ *
+ * <p>Responses carry an ETag and a Last-Modified date, so that browsers can revalidate the files
+ * they have cached, e.g. result images, and get an empty 304 response if a file has not changed.
+ * A single byte range can be requested.  File contents are copied to the response with
+ * FileChannel.transferTo.
+ *
+ * <p>Small shader and JSON files are sent gzipped to clients that accept this.  The compressed
+ * contents are kept in a cache of bounded size, so that they are not compressed again for each
+ * request.
+ */
+public final class FileSender {
+
+  public static final long DEFAULT_MAX_CACHED_BYTES = 16L << 20;
+
+  private static final long MAX_COMPRESSED_FILE_SIZE = 1L << 20;
+
+  private static final Set<String> COMPRESSED_EXTENSIONS = Collections.unmodifiableSet(
+      new HashSet<>(Arrays.asList("frag", "vert", "comp", "json", "txt")));
+
+  private final long maxCachedBytes;
+
+  // Compressed file contents by absolute path, least recently used first; guarded by this.
+  private final LinkedHashMap<String, CompressedFile> compressedFiles =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private long cachedBytes = 0;
+
+  public FileSender() {
+    this(DEFAULT_MAX_CACHED_BYTES);
+  }
+
+  /**
+   * @param maxCachedBytes The most compressed file data to keep in memory.
+   */
+  public FileSender(long maxCachedBytes) {
+    this.maxCachedBytes = maxCachedBytes;
+  }
+
+  /**
+   * Responds to a GET or HEAD request for a file.
+   * @param contentType The content type of the file, or null if it is not known.
+   */
+  public void send(HttpServletRequest request, HttpServletResponse response, File file,
+      String contentType) throws IOException {
+    final long length = file.length();
+    final long lastModified = file.lastModified();
+    final boolean compressible = length <= MAX_COMPRESSED_FILE_SIZE
+        && COMPRESSED_EXTENSIONS.contains(FilenameUtils.getExtension(file.getName()));
+    final boolean gzip = compressible && request.getHeader("Range") == null
+        && acceptsGzip(request.getHeader("Accept-Encoding"));
+    final String etag = makeEtag(length, lastModified, gzip);
+
+    if (contentType != null) {
+      response.setContentType(contentType);
+    }
+    response.setHeader("Accept-Ranges", "bytes");
+    response.setHeader("ETag", etag);
+    response.setDateHeader("Last-Modified", lastModified);
+    if (compressible) {
+      response.setHeader("Vary", "Accept-Encoding");
+    }
+
+    if (isNotModified(request, etag, lastModified)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    final boolean head = "HEAD".equals(request.getMethod());
+
+    if (gzip) {
+      final byte[] compressed = getCompressed(file, length, lastModified);
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setHeader("Content-Encoding", "gzip");
+      response.setContentLength(compressed.length);
+      if (!head) {
+        response.getOutputStream().write(compressed);
+      }
+      return;
+    }
+
+    ByteRange range = null;
+    final String rangeHeader = request.getHeader("Range");
+    if (rangeHeader != null && ifRangeMatches(request, etag, lastModified)) {
+      range = parseRange(rangeHeader, length);
+    }
+    if (range == ByteRange.UNSATISFIABLE) {
+      response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      response.setHeader("Content-Range", "bytes */" + length);
+      return;
+    }
+    if (range == null) {
+      range = new ByteRange(0, length - 1);
+      response.setStatus(HttpServletResponse.SC_OK);
+    } else {
+      response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      response.setHeader("Content-Range",
+          "bytes " + range.start + "-" + range.end + "/" + length);
+    }
+    response.setContentLengthLong(range.length());
+    if (!head) {
+      transfer(file, range, response.getOutputStream());
+    }
+  }
+
+  private static void transfer(File file, ByteRange range, OutputStream out) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      final WritableByteChannel target = Channels.newChannel(out);
+      long position = range.start;
+      long remaining = range.length();
+      while (remaining > 0) {
+        final long transferred = channel.transferTo(position, remaining, target);
+        if (transferred <= 0) {
+          // The file has been truncated since its length was read.
+          break;
+        }
+        position += transferred;
+        remaining -= transferred;
+      }
+    }
+  }
+
+  static String makeEtag(long length, long lastModified, boolean gzip) {
+    return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length)
+        + (gzip ? "-gzip" : "") + "\"";
+  }
+
+  private static boolean isNotModified(HttpServletRequest request, String etag,
+      long lastModified) {
+    final String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      return etagMatches(ifNoneMatch, etag);
+    }
+    final long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+    // HTTP dates have a resolution of one second.
+    return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+  }
+
+  /**
+   * Determines whether a list of entity tags, as in an If-None-Match header, matches an entity
+   * tag, using weak comparison.
+   */
+  static boolean etagMatches(String etags, String etag) {
+    for (String candidate : etags.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals("*") || candidate.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A range request is only honoured if it has no If-Range header, or if its If-Range header
+   * matches the current version of the file; otherwise the whole file is sent.
+   */
+  private static boolean ifRangeMatches(HttpServletRequest request, String etag,
+      long lastModified) {
+    final String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      // Only strong comparison is allowed here.
+      return ifRange.trim().equals(etag);
+    }
+    final long date = getDateHeader(request, "If-Range");
+    return date >= 0 && lastModified / 1000 == date / 1000;
+  }
+
+  private static long getDateHeader(HttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException exception) {
+      // Not a valid date; treat the header as absent.
+      return -1;
+    }
+  }
+
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      final String[] parts = coding.split(";");
+      if (!parts[0].trim().equalsIgnoreCase("gzip")) {
+        continue;
+      }
+      for (int i = 1; i < parts.length; i++) {
+        final String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            return Double.parseDouble(param.substring(2)) > 0;
+          } catch (NumberFormatException exception) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * An inclusive range of bytes of a file.
+   */
+  static final class ByteRange {
+
+    static final ByteRange UNSATISFIABLE = new ByteRange(0, -1);
+
+    final long start;
+    final long end;
+
+    ByteRange(long start, long end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    long length() {
+      return end - start + 1;
+    }
+  }
+
+  /**
+   * Parses the Range header of a request for a file.
+   * @return The requested range, clamped to the file; UNSATISFIABLE if the range does not
+   *     overlap the file; or null if the header should be ignored, which is the case for headers
+   *     that are invalid or that request several ranges.
+   */
+  static ByteRange parseRange(String header, long length) {
+    final String prefix = "bytes=";
+    if (!header.startsWith(prefix) || header.indexOf(',') >= 0) {
+      return null;
+    }
+    final String spec = header.substring(prefix.length()).trim();
+    final int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      if (dash == 0) {
+        // A suffix range: the last n bytes.
+        final long suffixLength = parseNonNegative(spec.substring(1));
+        if (suffixLength == 0 || length == 0) {
+          return ByteRange.UNSATISFIABLE;
+        }
+        return new ByteRange(Math.max(0, length - suffixLength), length - 1);
+      }
+      final long start = parseNonNegative(spec.substring(0, dash));
+      final String endSpec = spec.substring(dash + 1);
+      long end = endSpec.isEmpty() ? Long.MAX_VALUE : parseNonNegative(endSpec);
+      if (end < start) {
+        return null;
+      }
+      if (start >= length) {
+        return ByteRange.UNSATISFIABLE;
+      }
+      end = Math.min(end, length - 1);
+      return new ByteRange(start, end);
+    } catch (NumberFormatException exception) {
+      return null;
+    }
+  }
+
+  private static long parseNonNegative(String digits) {
+    for (int i = 0; i < digits.length(); i++) {
+      if (!Character.isDigit(digits.charAt(i))) {
+        throw new NumberFormatException("Not a byte position: " + digits);
+      }
+    }
+    return Long.parseLong(digits);
+  }
+
+  private byte[] getCompressed(File file, long length, long lastModified) throws IOException {
+    final String key = file.getAbsolutePath();
+    synchronized (this) {
+      final CompressedFile cached = compressedFiles.get(key);
+      if (cached != null && cached.length == length && cached.lastModified == lastModified) {
+        return cached.data;
+      }
+    }
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(bytes)) {
+      Files.copy(file.toPath(), out);
+    }
+    final byte[] data = bytes.toByteArray();
+    if (data.length <= maxCachedBytes) {
+      synchronized (this) {
+        final CompressedFile previous =
+            compressedFiles.put(key, new CompressedFile(length, lastModified, data));
+        cachedBytes += data.length - (previous == null ? 0 : previous.data.length);
+        final Iterator<CompressedFile> eldest = compressedFiles.values().iterator();
+        while (cachedBytes > maxCachedBytes) {
+          cachedBytes -= eldest.next().data.length;
+          eldest.remove();
+        }
+      }
+    }
+    return data;
+  }
+
+  private static final class CompressedFile {
+    final long length;
+    final long lastModified;
+    final byte[] data;
+
+    CompressedFile(long length, long lastModified, byte[] data) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.data = data;
+    }
+  }
+
+}
@@ -22,6 +22,7 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonWriter;
+import com.graphicsfuzz.server.SessionMap.Lease;
 import com.graphicsfuzz.server.SessionMap.Session;
 import com.graphicsfuzz.server.thrift.FuzzerService;
 import com.graphicsfuzz.server.thrift.GetWorkerNameResult;
@@ -36,7 +37,12 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.security.SecureRandom;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import org.apache.commons.io.FileUtils;
 import org.apache.thrift.TException;
@@ -51,21 +57,43 @@ public class FuzzerServiceImpl implements FuzzerService.Iface {
 
   private final String processingDir;
 
-  private final ExecutorService executorService;
+  private final WorkScheduler scheduler;
+
+  private final int workerQueueParallelism;
 
   private final WorkQueue reductionWorkQueue;
 
   private final Pattern validWorkerNamePattern = Pattern.compile("[a-zA-Z_0-9-]+");
 
+  private final AtomicLong leaseIdCounter = new AtomicLong();
+
+  /**
+   * Creates the service, with each worker's command queue running one command at a time, and the
+   * reduction queue running as many reductions at once as there are processors.
+   */
   public FuzzerServiceImpl(
       String processingDir,
-      ExecutorService executorService) {
+      WorkScheduler scheduler) {
+    this(processingDir, scheduler, 1, Runtime.getRuntime().availableProcessors());
+  }
+
+  public FuzzerServiceImpl(
+      String processingDir,
+      WorkScheduler scheduler,
+      int workerQueueParallelism,
+      int reductionQueueParallelism) {
 
     this.processingDir = processingDir;
-    this.executorService = executorService;
+    this.scheduler = scheduler;
+    this.workerQueueParallelism = workerQueueParallelism;
+
+    reductionWorkQueue = new WorkQueue(this.scheduler, "Reduction Work Queue",
+        reductionQueueParallelism);
 
-    reductionWorkQueue = new WorkQueue(this.executorService, "Reduction Work Queue");
+  }
 
+  public WorkScheduler getScheduler() {
+    return scheduler;
   }
 
   public WorkQueue getReductionWorkQueue() {
@@ -158,7 +186,13 @@ public class FuzzerServiceImpl implements FuzzerService.Iface {
     if (oldWorker != null && (oldClientInfoString.isEmpty() || clientInfoString
         .equals(oldClientInfoString))) {
       LOGGER.info("Using provided worker name.");
-      sessions.putIfAbsent(oldWorker, new Session(oldWorker, platformInfo, executorService));
+      sessions.putIfAbsent(oldWorker, new Session(oldWorker, platformInfo, scheduler,
+          workerQueueParallelism));
+      // A worker asks for its name when it starts, so it no longer holds any jobs it leased.
+      sessions.lockSessionAndExecute(oldWorker, session -> {
+        session.releaseLeases();
+        return null;
+      });
       worker = oldWorker;
     } else {
       LOGGER.info("Generating new worker name. Old then new platform info: \n{}\n{}",
@@ -177,7 +211,8 @@ public class FuzzerServiceImpl implements FuzzerService.Iface {
         }
         worker = worker.replace(' ', '_');
         if (sessions.putIfAbsent(worker, dummy)) {
-          Session newSession = new Session(worker, platformInfo, executorService);
+          Session newSession = new Session(worker, platformInfo, scheduler,
+              workerQueueParallelism);
           sessions.replace(worker, dummy, newSession);
           break;
         }
@@ -293,4 +328,78 @@ public class FuzzerServiceImpl implements FuzzerService.Iface {
       }
     });
   }
+
+  @Override
+  public List<Job> getJobs(String worker, int maxCount) throws TException {
+
+    if (!sessions.containsWorker(worker)) {
+      throw new WorkerNameNotFoundException().setWorkerName(worker);
+    }
+
+    return sessions.lockSessionAndExecute(worker, session -> {
+      try {
+        MDC.put("worker", worker);
+        session.touch();
+
+        final List<Job> result = new ArrayList<>();
+        final Iterator<IServerJob> iterator = session.jobQueue.iterator();
+        while (result.size() < maxCount && iterator.hasNext()) {
+          final IServerJob serverJob = iterator.next();
+          if (session.isLeased(serverJob)) {
+            continue;
+          }
+          final Job job = serverJob.getJob();
+          if (job == null) {
+            LOGGER.info("There was a server job but it returned null, so it will be removed.");
+            iterator.remove();
+            continue;
+          }
+          final long leaseId = leaseIdCounter.incrementAndGet();
+          session.leases.put(leaseId, new Lease(serverJob, job.getJobId()));
+          result.add(job.deepCopy().setJobId(leaseId));
+        }
+        LOGGER.info("getJobs(): worker '{}' leases {} jobs; {} leases outstanding", worker,
+            result.size(), session.leases.size());
+        return result;
+      } catch (ServerJobException exception) {
+        throw new TException(exception);
+      } finally {
+        MDC.remove("worker");
+      }
+    });
+  }
+
+  @Override
+  public void jobsDone(String worker, List<Job> jobs) throws TException {
+
+    if (!sessions.containsWorker(worker)) {
+      throw new WorkerNameNotFoundException().setWorkerName(worker);
+    }
+
+    sessions.lockSessionAndExecute(worker, session -> {
+      try {
+        MDC.put("worker", worker);
+        LOGGER.info("jobsDone(): {} jobs", jobs.size());
+        // Check the whole batch before finishing any of its jobs.
+        final Set<Long> leaseIds = new HashSet<>();
+        for (Job job : jobs) {
+          if (!session.leases.containsKey(job.getJobId()) || !leaseIds.add(job.getJobId())) {
+            throw new TException("Worker returned job " + job.getJobId()
+                + " that it does not hold a lease for.");
+          }
+        }
+        for (Job job : jobs) {
+          final Lease lease = session.leases.remove(job.getJobId());
+          if (lease.serverJob.finishJob(job.deepCopy().setJobId(lease.jobId))) {
+            session.jobQueue.remove(lease.serverJob);
+          }
+        }
+        return null;
+      } catch (ServerJobException exception) {
+        throw new TException(exception);
+      } finally {
+        MDC.remove("worker");
+      }
+    });
+  }
 }
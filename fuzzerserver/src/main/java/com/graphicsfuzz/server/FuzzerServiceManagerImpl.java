@@ -21,6 +21,7 @@ import com.graphicsfuzz.server.thrift.CommandResult;
 import com.graphicsfuzz.server.thrift.FuzzerServiceManager;
 import com.graphicsfuzz.server.thrift.ImageJob;
 import com.graphicsfuzz.server.thrift.Job;
+import com.graphicsfuzz.server.thrift.JobTicketNotFoundException;
 import com.graphicsfuzz.server.thrift.ServerInfo;
 import com.graphicsfuzz.server.thrift.WorkerInfo;
 import com.graphicsfuzz.server.thrift.WorkerNameNotFoundException;
@@ -31,9 +32,18 @@ import com.graphicsfuzz.util.ToolPaths;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 import org.apache.thrift.TException;
 import org.slf4j.Logger;
@@ -43,23 +53,77 @@ public class FuzzerServiceManagerImpl implements FuzzerServiceManager.Iface {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(FuzzerServiceManagerImpl.class);
 
+  // How long the ticket of a job submitted via submitJobs is kept when nobody asks about it: after
+  // the job is submitted, after it completes, and after each awaitResults call that names it.
+  // Clients that crash or give up never collect their results, so their tickets are discarded
+  // eventually, whether or not their jobs complete.
+  public static final long DEFAULT_RESULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
   private FuzzerServiceImpl service;
 
   private final AtomicLong jobIdCounter;
 
   private final ICommandDispatcher commandDispatcher;
 
+  // Results of jobs submitted via submitJobs that have not yet been collected via awaitResults,
+  // keyed by ticket.
+  private final ConcurrentMap<Long, PendingResult> pendingResults;
+
+  private final AtomicLong ticketCounter;
+
+  private final long resultTtlNanos;
+
+  // When tickets were last checked for expiry.
+  private final AtomicLong lastExpiryNanos;
+
+  private static final class PendingResult {
+    private final CompletableFuture<Job> future;
+    // When the ticket was last submitted, completed or awaited.
+    private volatile long lastTouchedNanos;
+
+    private PendingResult(CompletableFuture<Job> future) {
+      this.future = future;
+      this.lastTouchedNanos = System.nanoTime();
+      future.thenRun(this::touch);
+    }
+
+    private void touch() {
+      lastTouchedNanos = System.nanoTime();
+    }
+
+    private boolean hasExpired(long now, long ttlNanos) {
+      return now - lastTouchedNanos > ttlNanos;
+    }
+  }
+
   public FuzzerServiceManagerImpl(FuzzerServiceImpl service,
         ICommandDispatcher commandDispatcher) {
+    this(service, commandDispatcher, DEFAULT_RESULT_TTL_MILLIS);
+  }
+
+  /**
+   * @param resultTtlMillis How long the ticket of a job submitted via submitJobs is kept after
+   *                        the job was submitted, completed or last awaited.
+   */
+  public FuzzerServiceManagerImpl(FuzzerServiceImpl service,
+        ICommandDispatcher commandDispatcher,
+        long resultTtlMillis) {
     this.service = service;
     this.jobIdCounter = new AtomicLong();
     this.commandDispatcher = commandDispatcher;
+    this.pendingResults = new ConcurrentHashMap<>();
+    this.ticketCounter = new AtomicLong();
+    this.resultTtlNanos = TimeUnit.MILLISECONDS.toNanos(resultTtlMillis);
+    this.lastExpiryNanos = new AtomicLong(System.nanoTime());
   }
 
   @Override
   public void clearClientJobQueue(String forClient) throws TException {
     try {
       service.getClientWorkQueue(forClient).clearQueue();
+      // The worker's reductions are also cleared, although they run on the reduction queue.
+      service.getReductionWorkQueue().clearQueue(
+          runnable -> isCommandForWorker(runnable, forClient));
     } catch (InterruptedException exception) {
       throw new TException(exception);
     }
@@ -68,33 +132,118 @@ public class FuzzerServiceManagerImpl implements FuzzerServiceManager.Iface {
   @Override
   public Job submitJob(Job job, String worker, int retryLimit) throws TException {
     LOGGER.info("submitJob {}", worker);
-    Job[] result = new Job[1];
+    final CompletableFuture<Job> result = enqueueJob(job, worker, retryLimit);
+    // A command that calls this in-process is waiting for a worker, not using its thread.
+    return WorkScheduler.managedBlock(() -> {
+      try {
+        return result.get();
+      } catch (InterruptedException | ExecutionException exception) {
+        throw new TException(exception);
+      }
+    });
+  }
 
-    if (!service.getSessionMap().containsWorker(worker)) {
-      throw new WorkerNameNotFoundException().setWorkerName(worker);
+  @Override
+  public List<Long> submitJobs(List<Job> jobs, String worker, int retryLimit) throws TException {
+    LOGGER.info("submitJobs {} {}", worker, jobs.size());
+    expireResults();
+    final List<Long> tickets = new ArrayList<>();
+    for (CompletableFuture<Job> result : enqueueJobs(jobs, worker, retryLimit)) {
+      final long ticket = ticketCounter.incrementAndGet();
+      pendingResults.put(ticket, new PendingResult(result));
+      tickets.add(ticket);
     }
+    return tickets;
+  }
 
-    service.getSessionMap().lockSessionAndExecute(worker, session -> {
-      session.jobQueue.add(new SingleJob(job, job1 -> {
-        synchronized (result) {
-          result[0] = job1;
-          result.notifyAll();
-        }
-      }, jobIdCounter, retryLimit));
-      return null;
-    });
+  /**
+   * Discards the tickets of jobs that nobody has asked about within the TTL, whether or not the
+   * jobs have completed.  The jobs themselves are left for their workers.  The tickets are
+   * checked at most once per TTL, so that this is cheap to call often.
+   */
+  private void expireResults() {
+    final long now = System.nanoTime();
+    final long last = lastExpiryNanos.get();
+    if (now - last < resultTtlNanos || !lastExpiryNanos.compareAndSet(last, now)) {
+      return;
+    }
+    pendingResults.values().removeIf(result -> result.hasExpired(now, resultTtlNanos));
+  }
+
+  @Override
+  public Map<Long, Job> awaitResults(List<Long> tickets, int timeoutMillis) throws TException {
+    expireResults();
+    final List<PendingResult> results = new ArrayList<>();
+    for (long ticket : tickets) {
+      final PendingResult result = pendingResults.get(ticket);
+      if (result == null) {
+        throw new JobTicketNotFoundException().setTicket(ticket);
+      }
+      result.touch();
+      results.add(result);
+    }
 
-    synchronized (result) {
-      while (result[0] == null) {
+    if (!results.isEmpty() && timeoutMillis > 0) {
+      final CompletableFuture<Object> anyCompleted = CompletableFuture.anyOf(results.stream()
+          .map(result -> result.future)
+          .toArray(CompletableFuture[]::new));
+      // A command that calls this in-process is waiting for a worker, not using its thread.
+      WorkScheduler.managedBlock(() -> {
         try {
-          result.wait();
-        } catch (InterruptedException exception) {
+          return anyCompleted.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException exception) {
+          // No job completed in time; the caller is given an empty map and can wait again.
+          return null;
+        } catch (InterruptedException | ExecutionException exception) {
           throw new TException(exception);
         }
+      });
+    }
+
+    final Map<Long, Job> completed = new HashMap<>();
+    for (int i = 0; i < tickets.size(); i++) {
+      final long ticket = tickets.get(i);
+      final PendingResult result = results.get(i);
+      // The ticket is only removed by whichever caller collects the job first.
+      if (result.future.isDone() && pendingResults.remove(ticket, result)) {
+        completed.put(ticket, result.future.join());
       }
     }
+    return completed;
+  }
 
-    return result[0];
+  /**
+   * Adds a job to a worker's job queue without waiting for the job to be completed.
+   *
+   * @return a future that is completed with the job, including its result, once the worker has
+   *     finished with it, or once it has been skipped.
+   */
+  public CompletableFuture<Job> enqueueJob(Job job, String worker, int retryLimit)
+      throws WorkerNameNotFoundException {
+    return enqueueJobs(Collections.singletonList(job), worker, retryLimit).get(0);
+  }
+
+  /**
+   * Adds jobs to a worker's job queue, in order, without waiting for them to be completed.
+   *
+   * @return a future for each job; see enqueueJob.
+   */
+  public List<CompletableFuture<Job>> enqueueJobs(List<Job> jobs, String worker, int retryLimit)
+      throws WorkerNameNotFoundException {
+    if (!service.getSessionMap().containsWorker(worker)) {
+      throw new WorkerNameNotFoundException().setWorkerName(worker);
+    }
+
+    final List<CompletableFuture<Job>> results = new ArrayList<>();
+    service.getSessionMap().lockSessionAndExecute(worker, session -> {
+      for (Job job : jobs) {
+        final CompletableFuture<Job> result = new CompletableFuture<>();
+        session.jobQueue.add(new SingleJob(job, result::complete, jobIdCounter, retryLimit));
+        results.add(result);
+      }
+      return null;
+    });
+    return results;
   }
 
   @Override
@@ -133,23 +282,44 @@ public class FuzzerServiceManagerImpl implements FuzzerServiceManager.Iface {
         }
       }
 
-      service.getSessionMap().lockSessionAndExecute(
-          worker, session -> {
-            session.workQueue.add(new CommandRunnable(
-                name,
-                command,
-                queueName,
-                logFile,
-                this,
-                commandDispatcher));
-            return null;
-          });
+      final CommandRunnable commandRunnable = new CommandRunnable(
+          name,
+          command,
+          queueName,
+          logFile,
+          this,
+          commandDispatcher);
+      if (isReduction(command)) {
+        // Reductions go on the shared reduction queue, so that several can run at once, including
+        // alongside the worker's other commands; their jobs still run on the named worker.
+        service.getReductionWorkQueue().add(commandRunnable, getPriority(command));
+      } else {
+        service.getSessionMap().lockSessionAndExecute(
+            worker, session -> {
+              session.workQueue.add(commandRunnable, getPriority(command));
+              return null;
+            });
+      }
     } catch (Exception ex) {
       LOGGER.error("", ex);
       throw new TException(ex);
     }
   }
 
+  private static boolean isReduction(List<String> command) {
+    return command.get(0).equals("glsl-reduce");
+  }
+
+  /**
+   * Running a whole shader family is batch work; other commands, such as reductions, are
+   * typically requested by someone waiting on the WebUI, so they are run first.
+   */
+  private static WorkQueue.Priority getPriority(List<String> command) {
+    return command.get(0).equals("run_shader_family")
+        ? WorkQueue.Priority.BATCH
+        : WorkQueue.Priority.INTERACTIVE;
+  }
+
   @Override
   public CommandResult executeCommand(String name, List<String> command) throws TException {
     try {
@@ -169,18 +339,28 @@ public class FuzzerServiceManagerImpl implements FuzzerServiceManager.Iface {
     }
   }
 
+  /**
+   * Describes a worker's commands: those on its own queue, followed by its reductions, which run
+   * on the reduction queue.
+   */
+  private List<CommandInfo> getCommandQueue(String worker, WorkQueue workQueue) {
+    final List<CommandInfo> result = workQueue.getQueueAsCommandInfoList();
+    result.addAll(service.getReductionWorkQueue().getQueueAsCommandInfoList(
+        runnable -> isCommandForWorker(runnable, worker)));
+    return result;
+  }
+
+  private static boolean isCommandForWorker(Runnable runnable, String worker) {
+    return runnable instanceof CommandRunnable
+        && ((CommandRunnable) runnable).getQueueName().equals(worker);
+  }
+
   @Override
   public ServerInfo getServerState() throws TException {
 
     // Get reduction queue.
-    List<CommandInfo> reductionQueue = new ArrayList<>();
-
-    {
-      List<String> reductionQueueStr = service.getReductionWorkQueue().queueToStringList();
-      for (String reductionCommand : reductionQueueStr) {
-        reductionQueue.add(new CommandInfo().setWorkerName(reductionCommand));
-      }
-    }
+    List<CommandInfo> reductionQueue =
+        service.getReductionWorkQueue().getQueueAsCommandInfoList();
 
     // Get workers
     List<WorkerInfo> workers = new ArrayList<>();
@@ -193,9 +373,10 @@ public class FuzzerServiceManagerImpl implements FuzzerServiceManager.Iface {
           workers.add(
                 new WorkerInfo()
                       .setWorkerName(worker)
-                      .setCommandQueue(session.workQueue.getQueueAsCommandInfoList())
+                      .setCommandQueue(getCommandQueue(worker, session.workQueue))
                       .setJobQueue(getJobQueueAsJobInfoList(session.jobQueue))
                       .setLive(session.isLive())
+                      .setCommandQueueInfo(session.workQueue.getQueueInfo())
           );
 
           return null;
@@ -206,7 +387,9 @@ public class FuzzerServiceManagerImpl implements FuzzerServiceManager.Iface {
     return
           new ServerInfo()
                 .setReductionQueue(reductionQueue)
-                .setWorkers(workers);
+                .setWorkers(workers)
+                .setReductionQueueInfo(service.getReductionWorkQueue().getQueueInfo())
+                .setSchedulerInfo(service.getScheduler().getSchedulerInfo());
   }
 
   private List<String> getJobQueueAsJobInfoList(Queue<IServerJob> jobQueue) {
@@ -32,4 +32,11 @@ public interface IServerJob {
    * @return true if this IServerJob should be removed from the job list.
    */
   boolean finishJob(Job job) throws ServerJobException;
+
+  /**
+   * Report that a job obtained via getJob was never started, e.g. because it was leased in
+   * advance by a worker that then restarted, so that it should not count as an attempt.
+   */
+  default void abandonJob() {
+  }
 }
@@ -18,17 +18,23 @@ package com.graphicsfuzz.server;
 
 import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutorService;
 
 public final class SessionMap {
 
   public static class Session {
 
     public final Queue<IServerJob> jobQueue = new ArrayDeque<>();
+
+    // Jobs that have been leased to the worker via getJobs and not yet returned, keyed by lease
+    // id, in the order in which they were leased.
+    public final Map<Long, Lease> leases = new LinkedHashMap<>();
     public String platformInfo;
     private final Object mutex = new Object();
     private volatile long touched = System.currentTimeMillis();
@@ -43,6 +49,26 @@ public final class SessionMap {
       return System.currentTimeMillis() - touched < FIVE_MINUTES;
     }
 
+    public boolean isLeased(IServerJob serverJob) {
+      return leases.values().stream().anyMatch(lease -> lease.serverJob == serverJob);
+    }
+
+    /**
+     * Releases all leases, e.g. because the worker has restarted.  A worker works through its
+     * leased jobs in order, so only the earliest outstanding lease counts as an attempt at its
+     * job; the jobs of the other leases were never started.
+     */
+    public void releaseLeases() {
+      final Iterator<Lease> iterator = leases.values().iterator();
+      if (iterator.hasNext()) {
+        iterator.next();
+      }
+      while (iterator.hasNext()) {
+        iterator.next().serverJob.abandonJob();
+      }
+      leases.clear();
+    }
+
     // Uses its own internal mutex:
     public final WorkQueue workQueue;
 
@@ -56,9 +82,24 @@ public final class SessionMap {
     public Session(
         String worker,
         String platformInfo,
-        ExecutorService executorService) {
+        WorkScheduler scheduler,
+        int workQueueParallelism) {
       this.platformInfo = platformInfo;
-      workQueue = new WorkQueue(executorService, "WorkQueue(" + worker + ")");
+      workQueue = new WorkQueue(scheduler, "WorkQueue(" + worker + ")", workQueueParallelism);
+    }
+  }
+
+  public static class Lease {
+
+    public final IServerJob serverJob;
+
+    // The id of the job as it was provided by the server job, which is replaced by the lease id
+    // while the job is leased.
+    public final long jobId;
+
+    public Lease(IServerJob serverJob, long jobId) {
+      this.serverJob = serverJob;
+      this.jobId = jobId;
     }
   }
 
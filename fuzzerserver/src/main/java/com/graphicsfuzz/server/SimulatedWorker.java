@@ -0,0 +1,354 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.server;
+
+import com.graphicsfuzz.server.thrift.FuzzerService;
+import com.graphicsfuzz.server.thrift.GetWorkerNameResult;
+import com.graphicsfuzz.server.thrift.ImageJob;
+import com.graphicsfuzz.server.thrift.ImageJobResult;
+import com.graphicsfuzz.server.thrift.Job;
+import com.graphicsfuzz.server.thrift.JobStage;
+import com.graphicsfuzz.server.thrift.JobStatus;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A worker that speaks the FuzzerService protocol without rendering anything, for load-testing
+ * the server.  It returns canned images and compute results after a simulated delay, and can be
+ * made to report failures and to crash, i.e. to drop a job and restart.
+ *
+ * <p>A simulated worker does not have a thread of its own: each step of its poll loop is a task
+ * on a shared scheduled executor, and simulated latency is a scheduling delay, so that thousands
+ * of workers can be run from one process.  The steps of a worker never overlap, so the service
+ * it is given does not need to be thread-safe, as long as it is used by no other worker.
+ */
+public final class SimulatedWorker {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SimulatedWorker.class);
+
+  private static final String PLATFORM_INFO = "{\"manufacturer\": \"Simulated\", "
+      + "\"model\": \"Worker\"}";
+
+  private static final JobStatus[] FAILURE_STATUSES = new JobStatus[] {
+      JobStatus.CRASH,
+      JobStatus.COMPILE_ERROR,
+      JobStatus.TIMEOUT
+  };
+
+  /**
+   * Controls the behaviour of simulated workers.
+   */
+  public static final class Options {
+
+    private int minLatencyMillis = 0;
+    private int maxLatencyMillis = 0;
+    private double failureProbability = 0.0;
+    private double crashProbability = 0.0;
+    private int pollIntervalMillis = 10;
+    private int restartDelayMillis = 0;
+    private byte[] png = makePng(64, 64, 0);
+    private String computeOutputs = "{\"status\": \"SUCCESS\", \"outputs\": {}}";
+    private JobObserver observer = (worker, job) -> { };
+
+    /**
+     * Sets the range from which the time taken to run each job is drawn uniformly.
+     */
+    public Options setLatencyMillis(int minLatencyMillis, int maxLatencyMillis) {
+      if (minLatencyMillis < 0 || maxLatencyMillis < minLatencyMillis) {
+        throw new IllegalArgumentException("Bad latency range: " + minLatencyMillis + " to "
+            + maxLatencyMillis);
+      }
+      this.minLatencyMillis = minLatencyMillis;
+      this.maxLatencyMillis = maxLatencyMillis;
+      return this;
+    }
+
+    /**
+     * Sets the probability with which a job is reported as having failed, e.g. with a crash or
+     * compile error, rather than succeeding.
+     */
+    public Options setFailureProbability(double failureProbability) {
+      this.failureProbability = failureProbability;
+      return this;
+    }
+
+    /**
+     * Sets the probability with which the worker crashes on receiving a job, never reporting the
+     * job and asking for its worker name again after the restart delay.
+     */
+    public Options setCrashProbability(double crashProbability) {
+      this.crashProbability = crashProbability;
+      return this;
+    }
+
+    /**
+     * Sets how long the worker waits before polling again when it is not given a job.
+     */
+    public Options setPollIntervalMillis(int pollIntervalMillis) {
+      this.pollIntervalMillis = pollIntervalMillis;
+      return this;
+    }
+
+    public Options setRestartDelayMillis(int restartDelayMillis) {
+      this.restartDelayMillis = restartDelayMillis;
+      return this;
+    }
+
+    /**
+     * Sets the image returned for each successful image job.
+     */
+    public Options setPng(byte[] png) {
+      this.png = png;
+      return this;
+    }
+
+    /**
+     * Sets the JSON returned for each successful compute job.
+     */
+    public Options setComputeOutputs(String computeOutputs) {
+      this.computeOutputs = computeOutputs;
+      return this;
+    }
+
+    public Options setObserver(JobObserver observer) {
+      this.observer = observer;
+      return this;
+    }
+  }
+
+  /**
+   * Is told about every job that a simulated worker receives, e.g. so that the time that jobs
+   * spend queued can be measured.  Called from the worker's executor.
+   */
+  @FunctionalInterface
+  public interface JobObserver {
+
+    void jobReceived(String worker, Job job);
+  }
+
+  /**
+   * Counts what a set of simulated workers have done; may be shared between workers.
+   */
+  public static final class Stats {
+
+    public final AtomicLong jobsDone = new AtomicLong();
+    public final AtomicLong failuresReported = new AtomicLong();
+    public final AtomicLong skipJobsDone = new AtomicLong();
+    public final AtomicLong crashes = new AtomicLong();
+    public final AtomicLong emptyPolls = new AtomicLong();
+    public final AtomicLong serviceErrors = new AtomicLong();
+
+    @Override
+    public String toString() {
+      return "jobs done: " + jobsDone + ", failures reported: " + failuresReported
+          + ", skip jobs done: " + skipJobsDone + ", crashes: " + crashes
+          + ", polls without a job: " + emptyPolls + ", service errors: " + serviceErrors;
+    }
+  }
+
+  private final FuzzerService.Iface service;
+  private final Options options;
+  private final Stats stats;
+  private final Random generator;
+
+  private ScheduledExecutorService executor;
+  private volatile String workerName;
+  private volatile boolean stopped;
+
+  public SimulatedWorker(FuzzerService.Iface service, Options options, Stats stats, long seed) {
+    this.service = service;
+    this.options = options;
+    this.stats = stats;
+    this.generator = new Random(seed);
+    this.workerName = null;
+    this.stopped = false;
+  }
+
+  /**
+   * Obtains a worker name from the service; this must be done before the worker is started.
+   * @return The worker name.
+   * @throws TException if the service does not provide a name.
+   */
+  public String register() throws TException {
+    final GetWorkerNameResult result = service.getWorkerName(PLATFORM_INFO,
+        workerName == null ? "" : workerName);
+    if (!result.isSetWorkerName()) {
+      throw new TException("Simulated worker was not given a name: " + result.getError());
+    }
+    workerName = result.getWorkerName();
+    return workerName;
+  }
+
+  public String getWorkerName() {
+    return workerName;
+  }
+
+  /**
+   * Starts polling for jobs, with every step of the worker being run on the given executor.
+   */
+  public void start(ScheduledExecutorService executor) {
+    if (workerName == null) {
+      throw new IllegalStateException("Simulated worker must be registered before it is started.");
+    }
+    this.executor = executor;
+    executor.execute(this::poll);
+  }
+
+  /**
+   * Stops the worker after its current step; a job that it is working on is not reported.
+   */
+  public void stop() {
+    stopped = true;
+  }
+
+  private void poll() {
+    if (stopped) {
+      return;
+    }
+    final Job job;
+    try {
+      job = service.getJob(workerName);
+    } catch (TException exception) {
+      LOGGER.error("getJob failed for simulated worker " + workerName, exception);
+      stats.serviceErrors.incrementAndGet();
+      schedule(this::poll, options.pollIntervalMillis);
+      return;
+    }
+    if (job.isSetNoJob()) {
+      stats.emptyPolls.incrementAndGet();
+      schedule(this::poll, options.pollIntervalMillis);
+      return;
+    }
+    options.observer.jobReceived(workerName, job);
+    if (job.isSetSkipJob()) {
+      finish(job.deepCopy(), true);
+      return;
+    }
+    if (generator.nextDouble() < options.crashProbability) {
+      stats.crashes.incrementAndGet();
+      schedule(this::restart, options.restartDelayMillis);
+      return;
+    }
+    final Job result = runJob(job);
+    schedule(() -> finish(result, false), options.minLatencyMillis
+        + generator.nextInt(options.maxLatencyMillis - options.minLatencyMillis + 1));
+  }
+
+  private Job runJob(Job job) {
+    final Job result = job.deepCopy();
+    final ImageJob imageJob = result.getImageJob();
+    final ImageJobResult imageJobResult = new ImageJobResult()
+        .setPassSanityCheck(true);
+    if (generator.nextDouble() < options.failureProbability) {
+      final JobStatus status = FAILURE_STATUSES[generator.nextInt(FAILURE_STATUSES.length)];
+      imageJobResult
+          .setStatus(status)
+          .setStage(imageJob.isSetComputeSource() ? JobStage.COMPUTE_EXECUTE
+              : JobStage.IMAGE_RENDER)
+          .setLog("Simulated " + status + "\n");
+    } else {
+      imageJobResult
+          .setStatus(JobStatus.SUCCESS)
+          .setLog("Simulated success\n");
+      if (imageJob.isSetComputeSource()) {
+        imageJobResult.setComputeOutputs(options.computeOutputs);
+      } else if (!imageJob.isSkipRender()) {
+        imageJobResult.setPNG(options.png);
+      }
+    }
+    imageJob.setResult(imageJobResult);
+    return result;
+  }
+
+  private void finish(Job result, boolean isSkipJob) {
+    if (stopped) {
+      return;
+    }
+    try {
+      service.jobDone(workerName, result);
+      if (isSkipJob) {
+        stats.skipJobsDone.incrementAndGet();
+      } else {
+        stats.jobsDone.incrementAndGet();
+        if (result.getImageJob().getResult().getStatus() != JobStatus.SUCCESS) {
+          stats.failuresReported.incrementAndGet();
+        }
+      }
+    } catch (TException exception) {
+      LOGGER.error("jobDone failed for simulated worker " + workerName, exception);
+      stats.serviceErrors.incrementAndGet();
+    }
+    poll();
+  }
+
+  private void restart() {
+    if (stopped) {
+      return;
+    }
+    try {
+      register();
+    } catch (TException exception) {
+      LOGGER.error("Simulated worker " + workerName + " failed to restart", exception);
+      stats.serviceErrors.incrementAndGet();
+      schedule(this::restart, options.pollIntervalMillis);
+      return;
+    }
+    poll();
+  }
+
+  private void schedule(Runnable step, int delayMillis) {
+    if (!stopped) {
+      executor.schedule(step, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Makes an image of random noise, which does not compress well, so that a simulated result is
+   * about as large as a real one of the same size.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param seed Seed for the noise.
+   * @return The image, in PNG format.
+   */
+  public static byte[] makePng(int width, int height, long seed) {
+    final Random generator = new Random(seed);
+    final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        image.setRGB(x, y, 0xff000000 | generator.nextInt(0x1000000));
+      }
+    }
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      ImageIO.write(image, "png", bytes);
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+    return bytes.toByteArray();
+  }
+
+}
@@ -91,4 +91,11 @@ public class SingleJob implements IServerJob {
     completer.completeJob(returnedJob);
     return true;
   }
+
+  @Override
+  public void abandonJob() {
+    if (skipJob == null && counter > 0) {
+      --counter;
+    }
+  }
 }
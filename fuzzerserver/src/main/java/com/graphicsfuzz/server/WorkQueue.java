@@ -17,114 +17,112 @@
 package com.graphicsfuzz.server;
 
 import com.graphicsfuzz.server.thrift.CommandInfo;
+import com.graphicsfuzz.server.thrift.QueueInfo;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
+/**
+ * A queue of work items, which are run by a WorkScheduler.  Up to 'parallelism' items of a queue
+ * run at once.  Items are started in order of priority, and in the order in which they were added
+ * within a priority.
+ */
 public class WorkQueue {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(WorkQueue.class);
 
-  private final ExecutorService executor;
-  private final ArrayList<Runnable> workQueue = new ArrayList<>();
-  private final Object mutex = new Object();
+  /**
+   * Work item priorities, highest first.
+   */
+  public enum Priority {
+    // E.g. a reduction requested via the WebUI, for which someone is waiting.
+    INTERACTIVE,
+    // E.g. running a whole shader family.
+    BATCH
+  }
+
+  static final class Item {
+
+    private final WorkQueue queue;
+    private final Runnable runnable;
+    private final Priority priority;
+    private final long enqueuedNanos;
+
+    // The thread running the item, once it has started.
+    private Thread thread;
+
+    private Item(WorkQueue queue, Runnable runnable, Priority priority) {
+      this.queue = queue;
+      this.runnable = runnable;
+      this.priority = priority;
+      this.enqueuedNanos = System.nanoTime();
+    }
+
+    WorkQueue getQueue() {
+      return queue;
+    }
+
+    long getEnqueuedNanos() {
+      return enqueuedNanos;
+    }
+  }
+
+  private final WorkScheduler scheduler;
   private final String name;
+  private final int parallelism;
 
-  private final MyWorker myWorker = new MyWorker();
-  private boolean running;
-  private Future future = null;
-  private final int timeLimit = 60;
-  private final int consecutiveFailureLimit = 5;
+  // All of the following are guarded by the scheduler's lock.
+  private final List<Item> pending = new ArrayList<>();
+  private final List<Item> running = new ArrayList<>();
+  private long numStarted = 0;
+  private long numCompleted = 0;
+  private long totalWaitNanos = 0;
 
-  public WorkQueue(ExecutorService executor, String name) {
-    this.executor = executor;
+  public WorkQueue(WorkScheduler scheduler, String name, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Work queue parallelism must be at least 1.");
+    }
+    this.scheduler = scheduler;
     this.name = name;
+    this.parallelism = parallelism;
   }
 
-  private class MyWorker implements Runnable {
-
-    @Override
-    public void run() {
-      Runnable runnable = null;
-      while (true) {
-        synchronized (mutex) {
-          assert running;
-          // Remove previously completed (or failed) work item r.
-          if (runnable != null) {
-            // Edge case:
-            if (workQueue.isEmpty()) {
-              LOGGER.info(name
-                  + ": front work item failed but queue is now empty. "
-                  + "The queue was probably interrupted and cleared. "
-                  + "Stopping.");
-              running = false;
-              return;
-            }
-            Runnable removed = workQueue.remove(0);
-            assert removed == runnable;
-            // If r failed, add to back of queue.
-          }
-          // Main exit condition.
-          if (workQueue.isEmpty()) {
-            LOGGER.info(name + " queue is empty. Stopping.");
-            running = false;
-            return;
-          }
-          runnable = workQueue.get(0);
-        }
-        // Must execute runnable outside of synchronized block, as
-        // runnables may add work.
-        // Should not use "return" below:
-        try {
-          MDC.put("worker", name + ":" + runnable.toString());
-          LOGGER.info("Dequeued work item. Running it now.");
-          runnable.run();
-        } catch (Throwable ex) {
-          LOGGER.error("Throwable", ex);
-        } finally {
-          MDC.remove("worker");
-        }
-      }
-    }
+  public String getName() {
+    return name;
   }
 
-  public void addNext(Runnable runnable) {
-    add(runnable, 1);
+  /**
+   * Adds an item so that it is the next of its priority to be started.
+   */
+  public void addNext(Runnable runnable, Priority priority) {
+    add(runnable, priority, true);
   }
 
-  public void add(Runnable runnable) {
-    add(runnable, -1);
+  public void add(Runnable runnable, Priority priority) {
+    add(runnable, priority, false);
   }
 
-  public void add(Runnable runnable, int pos) {
-    // boolean startWorker = false;
-    synchronized (mutex) {
-      if (pos < 0 || workQueue.isEmpty()) {
-        workQueue.add(runnable);
-      } else {
-        workQueue.add(pos, runnable);
-      }
-      if (!running) {
-        running = true;
-        // startWorker = true;
-        future = executor.submit(myWorker);
+  private void add(Runnable runnable, Priority priority, boolean next) {
+    synchronized (scheduler.mutex) {
+      int index = 0;
+      // Skip items of higher priority, and, unless the item is to go next, of equal priority.
+      while (index < pending.size()
+          && (pending.get(index).priority.compareTo(priority) < 0
+              || (!next && pending.get(index).priority == priority))) {
+        index++;
       }
+      pending.add(index, new Item(this, runnable, priority));
+      scheduler.queueIsReady(this);
     }
-
-//    if(startWorker) {
-//      executor.execute(myWorker);
-//    }
   }
 
   public String queueToString() {
-    StringBuffer sb = new StringBuffer();
+    StringBuilder sb = new StringBuilder();
     for (String s : queueToStringList()) {
       sb.append(s);
       sb.append(System.lineSeparator());
@@ -132,18 +130,27 @@ public class WorkQueue {
     return sb.toString();
   }
 
+  /**
+   * Describes the running items followed by the pending items.
+   */
   public List<String> queueToStringList() {
-    List<String> res;
-    synchronized (mutex) {
-      res = workQueue.stream().map(Object::toString).collect(Collectors.toList());
-    }
-    return res;
+    return getQueueCopy().stream().map(Object::toString).collect(Collectors.toList());
   }
 
   public List<CommandInfo> getQueueAsCommandInfoList() {
+    return getQueueAsCommandInfoList(runnable -> true);
+  }
+
+  /**
+   * Describes the running and pending items that match a filter.
+   */
+  public List<CommandInfo> getQueueAsCommandInfoList(Predicate<Runnable> filter) {
     List<CommandInfo> res = new ArrayList<>();
     List<Runnable> queue = getQueueCopy();
     for (Runnable item : queue) {
+      if (!filter.test(item)) {
+        continue;
+      }
       if (item instanceof CommandRunnable) {
         CommandRunnable cr = (CommandRunnable) item;
         res.add(
@@ -159,33 +166,111 @@ public class WorkQueue {
     return res;
   }
 
+  /**
+   * Yields the running items followed by the pending items.
+   */
   public List<Runnable> getQueueCopy() {
-    synchronized (mutex) {
-      return new ArrayList<>(workQueue);
+    synchronized (scheduler.mutex) {
+      final List<Runnable> result = new ArrayList<>();
+      running.forEach(item -> result.add(item.runnable));
+      pending.forEach(item -> result.add(item.runnable));
+      return result;
+    }
+  }
+
+  /**
+   * Provides queue depth and wait time metrics.  The wait time of an item is the time from it
+   * being added to it being started.
+   */
+  public QueueInfo getQueueInfo() {
+    synchronized (scheduler.mutex) {
+      final long now = System.nanoTime();
+      return new QueueInfo()
+          .setName(name)
+          .setParallelism(parallelism)
+          .setPending(pending.size())
+          .setRunning(running.size())
+          .setStarted(numStarted)
+          .setCompleted(numCompleted)
+          .setMeanWaitMillis(numStarted == 0 ? 0
+              : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / numStarted))
+          .setOldestPendingWaitMillis(pending.isEmpty() ? 0
+              : TimeUnit.NANOSECONDS.toMillis(now - pending.stream()
+                  .mapToLong(item -> item.enqueuedNanos).min().getAsLong()));
     }
   }
 
+  /**
+   * Removes all pending items, interrupts the running items, and waits for them to stop.
+   */
   public void clearQueue() throws InterruptedException {
-    Future theFuture;
-    synchronized (mutex) {
-      workQueue.clear();
-      theFuture = future;
-      if (theFuture != null) {
-        theFuture.cancel(true);
-      }
+    clearQueue(runnable -> true);
+  }
 
+  /**
+   * Removes the pending items that match a filter, interrupts the running items that match it,
+   * and waits for them to stop.
+   */
+  public void clearQueue(Predicate<Runnable> filter) throws InterruptedException {
+    synchronized (scheduler.mutex) {
+      pending.removeIf(item -> filter.test(item.runnable));
+      if (pending.isEmpty()) {
+        scheduler.queueIsEmpty(this);
+      }
+      final List<Item> stopping = running.stream()
+          .filter(item -> filter.test(item.runnable))
+          .collect(Collectors.toList());
+      for (Item item : stopping) {
+        item.thread.interrupt();
+      }
+      // An item that clears its own queue cannot wait for itself to stop.
+      while (stopping.stream().anyMatch(item -> running.contains(item)
+          && item.thread != Thread.currentThread())) {
+        scheduler.mutex.wait();
+      }
     }
+  }
 
+  int getNumPendingLocked() {
+    return pending.size();
+  }
+
+  boolean canStartLocked() {
+    return !pending.isEmpty() && running.size() < parallelism;
+  }
+
+  Priority peekPriorityLocked() {
+    return pending.get(0).priority;
+  }
+
+  Item startNextLocked(Thread thread) {
+    final Item item = pending.remove(0);
+    item.thread = thread;
+    running.add(item);
+    numStarted++;
+    totalWaitNanos += System.nanoTime() - item.enqueuedNanos;
+    return item;
+  }
+
+  void runItem(Item item) {
+    // Must be called without the scheduler's lock held, as items may add work.
     try {
-      if (theFuture != null) {
-        theFuture.get();
-      }
-    } catch (ExecutionException exception) {
-      LOGGER.info("Error waiting for work queue to stop:", exception);
-    } catch (CancellationException exception) {
-      // ignore
+      MDC.put("worker", name + ":" + item.runnable.toString());
+      LOGGER.info("Dequeued work item. Running it now.");
+      item.runnable.run();
+    } catch (Throwable ex) {
+      LOGGER.error("Throwable", ex);
+    } finally {
+      MDC.remove("worker");
     }
+  }
 
+  void finishItem(Item item) {
+    running.remove(item);
+    numCompleted++;
+    if (!pending.isEmpty()) {
+      scheduler.queueIsReady(this);
+    }
   }
 
 }
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.server;
+
+import com.graphicsfuzz.server.thrift.SchedulerInfo;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the work items of a set of work queues, with at most a bounded number of items running at
+ * once.  Threads are started as they are needed, and a thread that has been idle for the
+ * keep-alive time stops.
+ *
+ * <p>When a thread becomes free it takes an item from one of the queues that have pending items
+ * and are running fewer items than their parallelism allows.  Of these queues, one whose next
+ * item has the highest priority is chosen; ties are broken in round-robin order, so that one
+ * queue with many items cannot starve the others.
+ *
+ * <p>An item that waits for something outside the scheduler, such as a command waiting for its
+ * jobs to run on a worker, should wait inside managedBlock.  While it waits it does not count
+ * against the bound, so that another item can run in its place and the waiting items cannot
+ * leave the scheduler, or the workers, idle.
+ *
+ * <p>The state of all of the scheduler's queues is guarded by the scheduler's lock.
+ */
+public final class WorkScheduler {
+
+  public static final long DEFAULT_KEEP_ALIVE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  /**
+   * Something that an item waits for; see managedBlock.
+   */
+  public interface Blocker<T, E extends Exception> {
+    T block() throws E;
+  }
+
+  // The scheduler whose item the current thread is running, if any, and if the item is not
+  // already inside managedBlock.
+  private static final ThreadLocal<WorkScheduler> currentScheduler = new ThreadLocal<>();
+
+  final Object mutex = new Object();
+
+  private final int numThreads;
+
+  private final long keepAliveNanos;
+
+  // All of the following are guarded by the lock.
+
+  // Queues with pending items, in round-robin order: a queue moves to the back after an item is
+  // taken from it.
+  private final Set<WorkQueue> readyQueues = new LinkedHashSet<>();
+
+  private int threadsCreated = 0;
+  private int liveThreads = 0;
+  // Threads running an item, other than those waiting in managedBlock.
+  private int busyThreads = 0;
+  // Threads running an item that is waiting in managedBlock.
+  private int blockedThreads = 0;
+  private int peakBusyThreads = 0;
+  private long numStarted = 0;
+  private long totalWaitNanos = 0;
+  private long maxWaitNanos = 0;
+
+  private boolean shutdown = false;
+
+  /**
+   * Creates a scheduler whose idle threads stop after DEFAULT_KEEP_ALIVE_MILLIS.  Its threads are
+   * daemon threads.
+   * @param numThreads The maximum number of work items that can run at once, not counting items
+   *                   that are waiting in managedBlock.
+   */
+  public WorkScheduler(int numThreads) {
+    this(numThreads, DEFAULT_KEEP_ALIVE_MILLIS);
+  }
+
+  /**
+   * @param keepAliveMillis How long a thread waits for an item before it stops.
+   */
+  public WorkScheduler(int numThreads, long keepAliveMillis) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("A work scheduler needs at least one thread.");
+    }
+    if (keepAliveMillis < 0) {
+      throw new IllegalArgumentException("The keep-alive time cannot be negative.");
+    }
+    this.numThreads = numThreads;
+    this.keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAliveMillis);
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Stops the scheduler's threads once the items that they are running have finished.  Pending
+   * items are not run.
+   */
+  public void shutdown() {
+    synchronized (mutex) {
+      shutdown = true;
+      mutex.notifyAll();
+    }
+  }
+
+  public SchedulerInfo getSchedulerInfo() {
+    synchronized (mutex) {
+      int pending = 0;
+      for (WorkQueue queue : readyQueues) {
+        pending += queue.getNumPendingLocked();
+      }
+      return new SchedulerInfo()
+          .setThreads(numThreads)
+          .setBusyThreads(busyThreads)
+          .setBlockedThreads(blockedThreads)
+          .setPending(pending)
+          .setLiveThreads(liveThreads)
+          .setPeakBusyThreads(peakBusyThreads)
+          .setStarted(numStarted)
+          .setMeanWaitMillis(numStarted == 0 ? 0
+              : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / numStarted))
+          .setMaxWaitMillis(TimeUnit.NANOSECONDS.toMillis(maxWaitNanos));
+    }
+  }
+
+  /**
+   * Called by a queue, with the lock held, when it may have an item that can be started.
+   */
+  void queueIsReady(WorkQueue queue) {
+    assert Thread.holdsLock(mutex);
+    readyQueues.add(queue);
+    startThreadIfNeeded();
+    mutex.notifyAll();
+  }
+
+  /**
+   * Called by a queue, with the lock held, when it no longer has pending items.
+   */
+  void queueIsEmpty(WorkQueue queue) {
+    assert Thread.holdsLock(mutex);
+    readyQueues.remove(queue);
+  }
+
+  /**
+   * Runs blocker.  If the current thread is running an item of a scheduler then, while blocker
+   * runs, the item does not count against the scheduler's bound, and another thread is started
+   * if there is an item that could run in its place.  Once blocker returns, the scheduler may
+   * briefly run more items than its bound, and starts no more items until it is back within it.
+   */
+  public static <T, E extends Exception> T managedBlock(Blocker<T, E> blocker) throws E {
+    final WorkScheduler scheduler = currentScheduler.get();
+    if (scheduler == null) {
+      return blocker.block();
+    }
+    // Nested calls are not counted again.
+    currentScheduler.remove();
+    scheduler.beginBlocking();
+    try {
+      return blocker.block();
+    } finally {
+      scheduler.endBlocking();
+      currentScheduler.set(scheduler);
+    }
+  }
+
+  private void beginBlocking() {
+    synchronized (mutex) {
+      busyThreads--;
+      blockedThreads++;
+      startThreadIfNeeded();
+      mutex.notifyAll();
+    }
+  }
+
+  private void endBlocking() {
+    synchronized (mutex) {
+      blockedThreads--;
+      busyThreads++;
+      peakBusyThreads = Math.max(peakBusyThreads, busyThreads);
+    }
+  }
+
+  /**
+   * Starts a thread if there is an item that could be started but no thread is free to take it.
+   * A thread that takes an item calls this again, so that a burst of items gets enough threads.
+   */
+  private void startThreadIfNeeded() {
+    final int idleThreads = liveThreads - busyThreads - blockedThreads;
+    if (shutdown || idleThreads > 0 || busyThreads >= numThreads
+        || readyQueues.stream().noneMatch(WorkQueue::canStartLocked)) {
+      return;
+    }
+    final Thread thread = new Thread(this::dispatch, "WorkScheduler-" + threadsCreated++);
+    thread.setDaemon(true);
+    liveThreads++;
+    thread.start();
+  }
+
+  private void dispatch() {
+    currentScheduler.set(this);
+    while (true) {
+      final WorkQueue.Item item;
+      synchronized (mutex) {
+        final long idleSince = System.nanoTime();
+        WorkQueue.Item next;
+        while ((next = takeNext()) == null) {
+          final long keepAliveRemaining = keepAliveNanos - (System.nanoTime() - idleSince);
+          if (shutdown || keepAliveRemaining <= 0) {
+            liveThreads--;
+            return;
+          }
+          try {
+            TimeUnit.NANOSECONDS.timedWait(mutex, keepAliveRemaining);
+          } catch (InterruptedException exception) {
+            // Interrupts are used to stop work items, not the scheduler; ignore.
+          }
+        }
+        item = next;
+        busyThreads++;
+        peakBusyThreads = Math.max(peakBusyThreads, busyThreads);
+        final long waitNanos = System.nanoTime() - item.getEnqueuedNanos();
+        numStarted++;
+        totalWaitNanos += waitNanos;
+        maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        startThreadIfNeeded();
+      }
+      try {
+        item.getQueue().runItem(item);
+      } finally {
+        synchronized (mutex) {
+          busyThreads--;
+          item.getQueue().finishItem(item);
+          mutex.notifyAll();
+        }
+        // The item may have been interrupted after it finished, by a queue being cleared.
+        Thread.interrupted();
+      }
+    }
+  }
+
+  private WorkQueue.Item takeNext() {
+    if (shutdown || busyThreads >= numThreads) {
+      return null;
+    }
+    WorkQueue chosen = null;
+    for (WorkQueue queue : readyQueues) {
+      if (!queue.canStartLocked()) {
+        continue;
+      }
+      if (chosen == null
+          || queue.peekPriorityLocked().compareTo(chosen.peekPriorityLocked()) < 0) {
+        chosen = queue;
+      }
+    }
+    if (chosen == null) {
+      return null;
+    }
+    final WorkQueue.Item item = chosen.startNextLocked(Thread.currentThread());
+    // Move the queue to the back of the round-robin order.
+    readyQueues.remove(chosen);
+    if (chosen.getNumPendingLocked() > 0) {
+      readyQueues.add(chosen);
+    }
+    return item;
+  }
+
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.graphicsfuzz.server.FileSender.ByteRange;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileSenderTest {
+
+  private static final byte[] CONTENTS =
+      "The quick brown fox jumps over the lazy dog.".getBytes(StandardCharsets.UTF_8);
+
+  // A time with no fractional seconds, as HTTP dates have a resolution of one second.
+  private static final long LAST_MODIFIED = 1500000000000L;
+
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  @Test
+  public void testParseRange() {
+    assertRange(0, 99, FileSender.parseRange("bytes=0-99", 1000));
+    assertRange(500, 999, FileSender.parseRange("bytes=500-", 1000));
+    assertRange(900, 999, FileSender.parseRange("bytes=-100", 1000));
+    // Ranges are clamped to the file.
+    assertRange(990, 999, FileSender.parseRange("bytes=990-2000", 1000));
+    assertRange(0, 999, FileSender.parseRange("bytes=-5000", 1000));
+  }
+
+  @Test
+  public void testUnsatisfiableRanges() {
+    assertSame(ByteRange.UNSATISFIABLE, FileSender.parseRange("bytes=1000-", 1000));
+    assertSame(ByteRange.UNSATISFIABLE, FileSender.parseRange("bytes=-0", 1000));
+    assertSame(ByteRange.UNSATISFIABLE, FileSender.parseRange("bytes=0-", 0));
+  }
+
+  @Test
+  public void testIgnoredRanges() {
+    assertNull(FileSender.parseRange("bytes=0-9,20-29", 1000));
+    assertNull(FileSender.parseRange("bytes=9-0", 1000));
+    assertNull(FileSender.parseRange("bytes=a-b", 1000));
+    assertNull(FileSender.parseRange("bytes=--1", 1000));
+    assertNull(FileSender.parseRange("items=0-9", 1000));
+  }
+
+  @Test
+  public void testEtagMatches() {
+    final String etag = FileSender.makeEtag(1234, 5678, false);
+    assertTrue(FileSender.etagMatches(etag, etag));
+    assertTrue(FileSender.etagMatches("\"other\", W/" + etag, etag));
+    assertTrue(FileSender.etagMatches("*", etag));
+    assertFalse(FileSender.etagMatches(FileSender.makeEtag(1234, 5678, true), etag));
+    assertFalse(FileSender.etagMatches(FileSender.makeEtag(1235, 5678, false), etag));
+  }
+
+  @Test
+  public void testAcceptsGzip() {
+    assertTrue(FileSender.acceptsGzip("gzip, deflate, br"));
+    assertTrue(FileSender.acceptsGzip("deflate;q=0.5, GZIP;q=0.8"));
+    assertFalse(FileSender.acceptsGzip("gzip;q=0"));
+    assertFalse(FileSender.acceptsGzip("deflate"));
+    assertFalse(FileSender.acceptsGzip(null));
+  }
+
+  @Test
+  public void testSendsWholeFile() throws Exception {
+    final File file = newFile("result.png", CONTENTS);
+    final FakeResponse response = send(new FileSender(), new FakeRequest(), file);
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    assertArrayEquals(CONTENTS, response.getBody());
+    assertEquals(CONTENTS.length, response.contentLength);
+    assertEquals("bytes", response.getHeader("Accept-Ranges"));
+    assertEquals(FileSender.makeEtag(CONTENTS.length, LAST_MODIFIED, false),
+        response.getHeader("ETag"));
+    assertEquals(formatDate(LAST_MODIFIED), response.getHeader("Last-Modified"));
+    assertNull(response.getHeader("Content-Encoding"));
+  }
+
+  @Test
+  public void testNotModifiedIfEtagMatches() throws Exception {
+    final File file = newFile("result.png", CONTENTS);
+    final FileSender sender = new FileSender();
+    final String etag = send(sender, new FakeRequest(), file).getHeader("ETag");
+
+    final FakeResponse response = send(sender,
+        new FakeRequest().setHeader("If-None-Match", etag), file);
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.status);
+    assertEquals(0, response.getBody().length);
+
+    // A changed file is sent again.
+    assertTrue(file.setLastModified(LAST_MODIFIED + 1000));
+    assertEquals(HttpServletResponse.SC_OK,
+        send(sender, new FakeRequest().setHeader("If-None-Match", etag), file).status);
+  }
+
+  @Test
+  public void testNotModifiedSinceDate() throws Exception {
+    final File file = newFile("result.png", CONTENTS);
+    final FakeResponse response = send(new FileSender(),
+        new FakeRequest().setHeader("If-Modified-Since", formatDate(LAST_MODIFIED)), file);
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.status);
+    assertEquals(0, response.getBody().length);
+
+    assertEquals(HttpServletResponse.SC_OK, send(new FileSender(),
+        new FakeRequest().setHeader("If-Modified-Since", formatDate(LAST_MODIFIED - 1000)),
+        file).status);
+  }
+
+  @Test
+  public void testSendsRange() throws Exception {
+    final File file = newFile("result.png", CONTENTS);
+    final FakeResponse response = send(new FileSender(),
+        new FakeRequest().setHeader("Range", "bytes=4-8"), file);
+    assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.status);
+    assertEquals("bytes 4-8/" + CONTENTS.length, response.getHeader("Content-Range"));
+    assertEquals(5, response.contentLength);
+    assertArrayEquals(Arrays.copyOfRange(CONTENTS, 4, 9), response.getBody());
+  }
+
+  @Test
+  public void testUnsatisfiableRange() throws Exception {
+    final File file = newFile("result.png", CONTENTS);
+    final FakeResponse response = send(new FileSender(),
+        new FakeRequest().setHeader("Range", "bytes=" + CONTENTS.length + "-"), file);
+    assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.status);
+    assertEquals("bytes */" + CONTENTS.length, response.getHeader("Content-Range"));
+    assertEquals(0, response.getBody().length);
+  }
+
+  @Test
+  public void testIfRangeMismatchSendsWholeFile() throws Exception {
+    final File file = newFile("result.png", CONTENTS);
+    final FileSender sender = new FileSender();
+    final String etag = send(sender, new FakeRequest(), file).getHeader("ETag");
+
+    final FakeResponse matching = send(sender, new FakeRequest()
+        .setHeader("Range", "bytes=0-3")
+        .setHeader("If-Range", etag), file);
+    assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, matching.status);
+
+    final FakeResponse mismatching = send(sender, new FakeRequest()
+        .setHeader("Range", "bytes=0-3")
+        .setHeader("If-Range", "\"other\""), file);
+    assertEquals(HttpServletResponse.SC_OK, mismatching.status);
+    assertNull(mismatching.getHeader("Content-Range"));
+    assertArrayEquals(CONTENTS, mismatching.getBody());
+  }
+
+  @Test
+  public void testHeadSendsNoBody() throws Exception {
+    final File file = newFile("result.png", CONTENTS);
+    final FakeResponse response = send(new FileSender(), new FakeRequest().setMethod("HEAD"),
+        file);
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    assertEquals(CONTENTS.length, response.contentLength);
+    assertEquals(0, response.getBody().length);
+  }
+
+  @Test
+  public void testSendsShadersGzipped() throws Exception {
+    final File file = newFile("variant_001.frag", CONTENTS);
+    final FileSender sender = new FileSender();
+    final FakeResponse response = send(sender,
+        new FakeRequest().setHeader("Accept-Encoding", "gzip, deflate"), file);
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    assertEquals("gzip", response.getHeader("Content-Encoding"));
+    assertEquals("Accept-Encoding", response.getHeader("Vary"));
+    assertEquals(FileSender.makeEtag(CONTENTS.length, LAST_MODIFIED, true),
+        response.getHeader("ETag"));
+    assertEquals(response.getBody().length, response.contentLength);
+    assertArrayEquals(CONTENTS, gunzip(response.getBody()));
+
+    // Clients that do not accept gzip get the file as it is.
+    final FakeResponse plain = send(sender, new FakeRequest(), file);
+    assertNull(plain.getHeader("Content-Encoding"));
+    assertEquals("Accept-Encoding", plain.getHeader("Vary"));
+    assertArrayEquals(CONTENTS, plain.getBody());
+  }
+
+  @Test
+  public void testCompressedFilesAreCachedAndEvicted() throws Exception {
+    final byte[] first = repeat('a', 1000);
+    final byte[] second = repeat('b', 1000);
+    final File firstFile = newFile("first.frag", first);
+    final File secondFile = newFile("second.frag", second);
+    // Room for one compressed file, but not for two.
+    final FileSender sender = new FileSender(gzip(first).length * 3 / 2);
+    final FakeRequest request = new FakeRequest().setHeader("Accept-Encoding", "gzip");
+
+    assertArrayEquals(first, gunzip(send(sender, request, firstFile).getBody()));
+
+    // The file changes without its length or modification time changing, so the compressed
+    // contents are taken from the cache.
+    final byte[] changed = repeat('c', 1000);
+    Files.write(firstFile.toPath(), changed);
+    assertTrue(firstFile.setLastModified(LAST_MODIFIED));
+    assertArrayEquals(first, gunzip(send(sender, request, firstFile).getBody()));
+
+    // Caching the second file evicts the first, which is then compressed again.
+    assertArrayEquals(second, gunzip(send(sender, request, secondFile).getBody()));
+    assertArrayEquals(changed, gunzip(send(sender, request, firstFile).getBody()));
+  }
+
+  private File newFile(String name, byte[] contents) throws IOException {
+    final File file = new File(testFolder.getRoot(), name);
+    Files.write(file.toPath(), contents);
+    assertTrue(file.setLastModified(LAST_MODIFIED));
+    return file;
+  }
+
+  private static FakeResponse send(FileSender sender, FakeRequest request, File file)
+      throws IOException {
+    final FakeResponse response = new FakeResponse();
+    sender.send(request.proxy(), response.proxy(), file, "application/octet-stream");
+    return response;
+  }
+
+  private static byte[] repeat(char ch, int count) {
+    final byte[] result = new byte[count];
+    Arrays.fill(result, (byte) ch);
+    return result;
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(bytes)) {
+      out.write(data);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] gunzip(byte[] data) throws IOException {
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+  private static String formatDate(long millis) {
+    return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+        ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+  }
+
+  /**
+   * Gives the value that a method of an interface implemented by a proxy returns by default.
+   */
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    }
+    if (type == int.class) {
+      return 0;
+    }
+    if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+
+  /**
+   * A request with the given method and headers.
+   */
+  private static final class FakeRequest {
+    private String method = "GET";
+    private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    FakeRequest setMethod(String method) {
+      this.method = method;
+      return this;
+    }
+
+    FakeRequest setHeader(String name, String value) {
+      headers.put(name, value);
+      return this;
+    }
+
+    HttpServletRequest proxy() {
+      return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+              case "getMethod":
+                return this.method;
+              case "getHeader":
+                return headers.get((String) args[0]);
+              case "getDateHeader":
+                final String value = headers.get((String) args[0]);
+                if (value == null) {
+                  return -1L;
+                }
+                try {
+                  return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME)
+                      .toInstant().toEpochMilli();
+                } catch (DateTimeParseException exception) {
+                  throw new IllegalArgumentException(value);
+                }
+              default:
+                return defaultValue(method.getReturnType());
+            }
+          });
+    }
+  }
+
+  /**
+   * Records the status, headers and body of a response.
+   */
+  private static final class FakeResponse {
+    private int status = HttpServletResponse.SC_OK;
+    private long contentLength = -1;
+    private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    String getHeader(String name) {
+      return headers.get(name);
+    }
+
+    byte[] getBody() {
+      return body.toByteArray();
+    }
+
+    HttpServletResponse proxy() {
+      final ServletOutputStream out = new ServletOutputStream() {
+        @Override
+        public boolean isReady() {
+          return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+          throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(int value) {
+          body.write(value);
+        }
+      };
+      return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class<?>[] { HttpServletResponse.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+              case "setStatus":
+                status = (Integer) args[0];
+                return null;
+              case "setHeader":
+                headers.put((String) args[0], (String) args[1]);
+                return null;
+              case "setDateHeader":
+                headers.put((String) args[0], formatDate((Long) args[1]));
+                return null;
+              case "setContentType":
+                headers.put("Content-Type", (String) args[0]);
+                return null;
+              case "setContentLength":
+                contentLength = (Integer) args[0];
+                return null;
+              case "setContentLengthLong":
+                contentLength = (Long) args[0];
+                return null;
+              case "getOutputStream":
+                return out;
+              default:
+                return defaultValue(method.getReturnType());
+            }
+          });
+    }
+  }
+
+  private static void assertRange(long start, long end, ByteRange range) {
+    assertEquals(start, range.start);
+    assertEquals(end, range.end);
+  }
+
+}
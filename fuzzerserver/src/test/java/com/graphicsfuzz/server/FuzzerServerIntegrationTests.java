@@ -29,14 +29,20 @@ import com.graphicsfuzz.server.thrift.ImageJob;
 import com.graphicsfuzz.server.thrift.ImageJobResult;
 import com.graphicsfuzz.server.thrift.Job;
 import com.graphicsfuzz.server.thrift.JobStatus;
+import com.graphicsfuzz.server.thrift.JobTicketNotFoundException;
 import com.graphicsfuzz.server.thrift.WorkerNameError;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import org.apache.thrift.TException;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -50,16 +56,19 @@ public class FuzzerServerIntegrationTests {
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
+  private FuzzerServiceImpl fuzzerServiceImpl;
   private FuzzerService.Iface fuzzerService;
   private FuzzerServiceManager.Iface fuzzerServiceManager;
   private ExecutorService executorService;
+  private WorkScheduler scheduler;
 
   @Before
   public void setupServices() throws IOException {
     final String processing = testFolder.newFolder("processing").toString();
 
     this.executorService = Executors.newCachedThreadPool();
-    final FuzzerServiceImpl fuzzerServiceImpl = new FuzzerServiceImpl(processing, executorService);
+    this.scheduler = new WorkScheduler(2);
+    this.fuzzerServiceImpl = new FuzzerServiceImpl(processing, scheduler);
     this.fuzzerService = fuzzerServiceImpl;
     this.fuzzerServiceManager = new FuzzerServiceManagerImpl(fuzzerServiceImpl,
         (command, manager) -> {
@@ -68,6 +77,12 @@ public class FuzzerServerIntegrationTests {
         });
   }
 
+  @After
+  public void shutdownServices() {
+    executorService.shutdownNow();
+    scheduler.shutdown();
+  }
+
   @Test
   public void willErrorOnAMismatchedJobId() throws Exception {
     final String worker = newWorkerName();
@@ -131,6 +146,136 @@ public class FuzzerServerIntegrationTests {
     assertEquals("SKIPPED\n", jobResult.getLog());
   }
 
+  @Test
+  public void willCompleteBatchOfJobsWithoutBlocking() throws Exception {
+    final String worker = newWorkerName();
+
+    final List<Job> jobs = Arrays.asList(
+        new Job().setImageJob(new ImageJob().setName("a")).setJobId(1),
+        new Job().setImageJob(new ImageJob().setName("b")).setJobId(2));
+
+    // Submission returns straight away, before any worker has taken a job.
+    final List<Long> tickets = this.fuzzerServiceManager.submitJobs(jobs, worker, 1);
+    assertEquals(2, tickets.size());
+    assertTrue(this.fuzzerServiceManager.awaitResults(tickets, 1).isEmpty());
+
+    for (int i = 0; i < jobs.size(); i++) {
+      this.clientRuns(worker, (todo) -> {
+        todo.getImageJob().setResult(new ImageJobResult().setStatus(JobStatus.SUCCESS));
+        return todo;
+      });
+    }
+
+    final Map<Long, Job> results = new HashMap<>();
+    while (results.size() < tickets.size()) {
+      final List<Long> outstanding = new ArrayList<>(tickets);
+      outstanding.removeAll(results.keySet());
+      results.putAll(this.fuzzerServiceManager.awaitResults(outstanding, 1000));
+    }
+    assertEquals("a", results.get(tickets.get(0)).getImageJob().getName());
+    assertEquals("b", results.get(tickets.get(1)).getImageJob().getName());
+    assertEquals(JobStatus.SUCCESS,
+        results.get(tickets.get(1)).getImageJob().getResult().getStatus());
+
+    // Collected results cannot be collected again.
+    thrown.expect(JobTicketNotFoundException.class);
+    this.fuzzerServiceManager.awaitResults(tickets, 1);
+  }
+
+  @Test
+  public void willDiscardUncollectedResults() throws Exception {
+    final String worker = newWorkerName();
+    final FuzzerServiceManagerImpl manager = new FuzzerServiceManagerImpl(fuzzerServiceImpl,
+        (command, serviceManager) -> {
+          throw new RuntimeException("Commands are not used by this test.");
+        }, 1);
+
+    final List<Long> tickets = manager.submitJobs(Collections.singletonList(
+        new Job().setImageJob(new ImageJob().setName("a")).setJobId(1)), worker, 1);
+    this.clientRuns(worker, (todo) -> {
+      todo.getImageJob().setResult(new ImageJobResult().setStatus(JobStatus.SUCCESS));
+      return todo;
+    });
+    Thread.sleep(10);
+
+    // The completed job is discarded, as it was not collected in time.
+    manager.submitJobs(Collections.emptyList(), worker, 1);
+    thrown.expect(JobTicketNotFoundException.class);
+    manager.awaitResults(tickets, 1);
+  }
+
+  @Test
+  public void willDiscardAbandonedTickets() throws Exception {
+    final String worker = newWorkerName();
+    final FuzzerServiceManagerImpl manager = new FuzzerServiceManagerImpl(fuzzerServiceImpl,
+        (command, serviceManager) -> {
+          throw new RuntimeException("Commands are not used by this test.");
+        }, 1);
+
+    // The job is never run, and its ticket is never awaited.
+    final List<Long> tickets = manager.submitJobs(Collections.singletonList(
+        new Job().setImageJob(new ImageJob().setName("a")).setJobId(1)), worker, 1);
+    Thread.sleep(10);
+
+    manager.submitJobs(Collections.emptyList(), worker, 1);
+    thrown.expect(JobTicketNotFoundException.class);
+    manager.awaitResults(tickets, 1);
+  }
+
+  @Test
+  public void willLeaseSeveralJobsAtOnce() throws Exception {
+    final String worker = newWorkerName();
+
+    final List<Long> tickets = this.fuzzerServiceManager.submitJobs(Arrays.asList(
+        new Job().setImageJob(new ImageJob().setName("a")).setJobId(1),
+        new Job().setImageJob(new ImageJob().setName("b")).setJobId(2),
+        new Job().setImageJob(new ImageJob().setName("c")).setJobId(3)), worker, 1);
+
+    final List<Job> firstLeases = this.fuzzerService.getJobs(worker, 2);
+    assertEquals(2, firstLeases.size());
+    assertEquals("a", firstLeases.get(0).getImageJob().getName());
+    assertEquals("b", firstLeases.get(1).getImageJob().getName());
+
+    // Jobs that are already leased are not leased again.
+    final List<Job> secondLeases = this.fuzzerService.getJobs(worker, 2);
+    assertEquals(1, secondLeases.size());
+    assertEquals("c", secondLeases.get(0).getImageJob().getName());
+    assertTrue(this.fuzzerService.getJobs(worker, 2).isEmpty());
+
+    // Results can be returned in any order, and are reported with the submitted job ids.
+    final Job resultB = firstLeases.get(1).deepCopy();
+    resultB.getImageJob().setResult(new ImageJobResult().setStatus(JobStatus.SUCCESS));
+    this.fuzzerService.jobsDone(worker, Collections.singletonList(resultB));
+    final Map<Long, Job> results = this.fuzzerServiceManager.awaitResults(tickets, 1000);
+    assertEquals(1, results.size());
+    assertEquals(2, results.get(tickets.get(1)).getJobId());
+    assertEquals(JobStatus.SUCCESS,
+        results.get(tickets.get(1)).getImageJob().getResult().getStatus());
+
+    thrown.expect(TException.class);
+    this.fuzzerService.jobsDone(worker, Collections.singletonList(resultB));
+  }
+
+  @Test
+  public void willOnlyCountFirstOutstandingLeaseWhenWorkerRestarts() throws Exception {
+    final String worker = newWorkerName();
+
+    // With a retry limit of 1, a job is skipped on its second attempt.
+    this.fuzzerServiceManager.submitJobs(Arrays.asList(
+        new Job().setImageJob(new ImageJob().setName("a")).setJobId(1),
+        new Job().setImageJob(new ImageJob().setName("b")).setJobId(2)), worker, 1);
+    assertEquals(2, this.fuzzerService.getJobs(worker, 2).size());
+
+    // The worker restarts, having crashed while working on the first job.
+    assertEquals(worker, this.fuzzerService.getWorkerName("{}", worker).getWorkerName());
+
+    final List<Job> leases = this.fuzzerService.getJobs(worker, 2);
+    assertEquals(2, leases.size());
+    assertTrue(leases.get(0).isSetSkipJob());
+    assertTrue(leases.get(1).isSetImageJob());
+    assertEquals("b", leases.get(1).getImageJob().getName());
+  }
+
   @Test
   public void willSanitizeValueOnOldWorkerName() throws Exception {
     String oldWorkerName = new String("  helloworld ");
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.graphicsfuzz.server.thrift.ImageJob;
+import com.graphicsfuzz.server.thrift.Job;
+import com.graphicsfuzz.server.thrift.JobStatus;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SimulatedWorkerTest {
+
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private WorkScheduler scheduler;
+  private ScheduledExecutorService workerExecutor;
+  private FuzzerServiceImpl fuzzerService;
+  private FuzzerServiceManagerImpl fuzzerServiceManager;
+
+  @Before
+  public void setupServices() throws Exception {
+    scheduler = new WorkScheduler(2);
+    workerExecutor = Executors.newScheduledThreadPool(4);
+    fuzzerService = new FuzzerServiceImpl(testFolder.newFolder("processing").toString(),
+        scheduler);
+    fuzzerServiceManager = new FuzzerServiceManagerImpl(fuzzerService,
+        (command, manager) -> {
+          throw new RuntimeException("Commands are not used by these tests.");
+        });
+  }
+
+  @After
+  public void shutdown() {
+    workerExecutor.shutdownNow();
+    scheduler.shutdown();
+  }
+
+  @Test
+  public void testManyWorkersCompleteAllJobs() throws Exception {
+    final SimulatedWorker.Stats stats = new SimulatedWorker.Stats();
+    final byte[] png = SimulatedWorker.makePng(4, 4, 0);
+    final List<SimulatedWorker> workers = new ArrayList<>();
+    final List<CompletableFuture<Job>> results = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      final SimulatedWorker worker = new SimulatedWorker(fuzzerService,
+          new SimulatedWorker.Options().setLatencyMillis(0, 5).setPollIntervalMillis(1)
+              .setPng(png), stats, i);
+      final String workerName = worker.register();
+      final List<Job> jobs = new ArrayList<>();
+      jobs.add(new Job().setJobId(1).setImageJob(new ImageJob().setName("image")));
+      jobs.add(new Job().setJobId(2).setImageJob(new ImageJob().setName("compute")
+          .setComputeSource("void main() { }")));
+      results.addAll(fuzzerServiceManager.enqueueJobs(jobs, workerName, 1));
+      workers.add(worker);
+    }
+    // Fifty workers share four threads.
+    workers.forEach(worker -> worker.start(workerExecutor));
+
+    for (int i = 0; i < results.size(); i++) {
+      final Job result = results.get(i).get(10, TimeUnit.SECONDS);
+      assertEquals(JobStatus.SUCCESS, result.getImageJob().getResult().getStatus());
+      if (i % 2 == 0) {
+        assertArrayEquals(png, result.getImageJob().getResult().getPNG());
+      } else {
+        assertTrue(result.getImageJob().getResult().isSetComputeOutputs());
+      }
+    }
+    // A worker counts a job once the service has accepted its result.
+    awaitCount(stats.jobsDone, 100);
+    workers.forEach(SimulatedWorker::stop);
+    assertEquals(0, stats.serviceErrors.get());
+  }
+
+  @Test
+  public void testCrashingWorkerLeadsToSkippedJob() throws Exception {
+    final SimulatedWorker.Stats stats = new SimulatedWorker.Stats();
+    final SimulatedWorker worker = new SimulatedWorker(fuzzerService,
+        new SimulatedWorker.Options().setCrashProbability(1.0).setPollIntervalMillis(1),
+        stats, 0);
+    final String workerName = worker.register();
+    // With a retry limit of 2 the job is attempted twice and then skipped.
+    final CompletableFuture<Job> result = fuzzerServiceManager.enqueueJob(
+        new Job().setJobId(1).setImageJob(new ImageJob().setName("crashes")), workerName, 2);
+    worker.start(workerExecutor);
+
+    assertEquals(JobStatus.SKIPPED,
+        result.get(10, TimeUnit.SECONDS).getImageJob().getResult().getStatus());
+    worker.stop();
+    assertEquals(2, stats.crashes.get());
+    assertEquals(0, stats.jobsDone.get());
+  }
+
+  @Test
+  public void testFailuresAreReported() throws Exception {
+    final SimulatedWorker.Stats stats = new SimulatedWorker.Stats();
+    final SimulatedWorker worker = new SimulatedWorker(fuzzerService,
+        new SimulatedWorker.Options().setFailureProbability(1.0).setPollIntervalMillis(1),
+        stats, 0);
+    final String workerName = worker.register();
+    final CompletableFuture<Job> result = fuzzerServiceManager.enqueueJob(
+        new Job().setJobId(1).setImageJob(new ImageJob().setName("fails")), workerName, 1);
+    worker.start(workerExecutor);
+
+    final Job job = result.get(10, TimeUnit.SECONDS);
+    assertTrue(job.getImageJob().getResult().getStatus() != JobStatus.SUCCESS);
+    assertTrue(job.getImageJob().getResult().getLog().startsWith("Simulated"));
+    awaitCount(stats.failuresReported, 1);
+    worker.stop();
+  }
+
+  private static void awaitCount(AtomicLong count, long expected) throws InterruptedException {
+    for (int i = 0; i < 1000 && count.get() < expected; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(expected, count.get());
+  }
+
+}
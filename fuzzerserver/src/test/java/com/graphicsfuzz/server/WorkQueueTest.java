@@ -0,0 +1,269 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.graphicsfuzz.server.WorkQueue.Priority;
+import com.graphicsfuzz.server.thrift.QueueInfo;
+import com.graphicsfuzz.server.thrift.SchedulerInfo;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class WorkQueueTest {
+
+  private WorkScheduler scheduler;
+
+  @After
+  public void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+    }
+  }
+
+  @Test
+  public void testQueueParallelismIsRespected() throws Exception {
+    scheduler = new WorkScheduler(4);
+    final WorkQueue queue = new WorkQueue(scheduler, "queue", 2);
+    final CountDownLatch bothStarted = new CountDownLatch(2);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch thirdFinished = new CountDownLatch(1);
+    for (int i = 0; i < 2; i++) {
+      queue.add(() -> {
+        bothStarted.countDown();
+        await(release);
+      }, Priority.BATCH);
+    }
+    queue.add(thirdFinished::countDown, Priority.BATCH);
+
+    // The first two items run at once, and the third must wait for one of them to finish.
+    assertTrue(bothStarted.await(10, TimeUnit.SECONDS));
+    final QueueInfo info = queue.getQueueInfo();
+    assertEquals(2, info.getRunning());
+    assertEquals(1, info.getPending());
+    assertEquals(1, thirdFinished.getCount());
+
+    release.countDown();
+    assertTrue(thirdFinished.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testInteractiveItemsRunFirst() throws Exception {
+    scheduler = new WorkScheduler(1);
+    final WorkQueue queue = new WorkQueue(scheduler, "queue", 1);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(4);
+    final List<String> order = new CopyOnWriteArrayList<>();
+    queue.add(() -> {
+      started.countDown();
+      await(release);
+    }, Priority.BATCH);
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    queue.add(record(order, "batch1", done), Priority.BATCH);
+    queue.add(record(order, "batch2", done), Priority.BATCH);
+    queue.add(record(order, "interactive1", done), Priority.INTERACTIVE);
+    queue.addNext(record(order, "batch0", done), Priority.BATCH);
+
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("interactive1", "batch0", "batch1", "batch2"), order);
+  }
+
+  @Test
+  public void testQueuesShareThreadsFairly() throws Exception {
+    scheduler = new WorkScheduler(1);
+    final WorkQueue blocked = new WorkQueue(scheduler, "blocked", 1);
+    final WorkQueue busy = new WorkQueue(scheduler, "busy", 1);
+    final WorkQueue quiet = new WorkQueue(scheduler, "quiet", 1);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(5);
+    final List<String> order = new CopyOnWriteArrayList<>();
+    blocked.add(() -> {
+      started.countDown();
+      await(release);
+    }, Priority.BATCH);
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    for (int i = 0; i < 3; i++) {
+      busy.add(record(order, "busy" + i, done), Priority.BATCH);
+    }
+    for (int i = 0; i < 2; i++) {
+      quiet.add(record(order, "quiet" + i, done), Priority.BATCH);
+    }
+
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("busy0", "quiet0", "busy1", "quiet1", "busy2"), order);
+  }
+
+  @Test
+  public void testClearQueueInterruptsRunningItem() throws Exception {
+    scheduler = new WorkScheduler(2);
+    final WorkQueue queue = new WorkQueue(scheduler, "queue", 1);
+    final CountDownLatch started = new CountDownLatch(1);
+    final List<String> order = new CopyOnWriteArrayList<>();
+    queue.add(() -> {
+      started.countDown();
+      try {
+        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+      } catch (InterruptedException exception) {
+        order.add("interrupted");
+      }
+    }, Priority.BATCH);
+    queue.add(() -> order.add("never run"), Priority.BATCH);
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    queue.clearQueue();
+    assertEquals(Collections.singletonList("interrupted"), order);
+    assertTrue(queue.getQueueCopy().isEmpty());
+    assertEquals(0, scheduler.getSchedulerInfo().getPending());
+  }
+
+  @Test
+  public void testBlockedItemsDoNotCountAgainstBound() throws Exception {
+    scheduler = new WorkScheduler(2);
+    assertEquals(0, scheduler.getSchedulerInfo().getLiveThreads());
+
+    // Items that wait in managedBlock, as commands do while they wait for their jobs, each get a
+    // thread, although only two items can run at once.
+    final int numQueues = 20;
+    final CountDownLatch allStarted = new CountDownLatch(numQueues);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(numQueues);
+    for (int i = 0; i < numQueues; i++) {
+      new WorkQueue(scheduler, "queue" + i, 1).add(() -> {
+        WorkScheduler.managedBlock(() -> {
+          allStarted.countDown();
+          await(release);
+          return null;
+        });
+        done.countDown();
+      }, Priority.BATCH);
+    }
+    assertTrue(allStarted.await(10, TimeUnit.SECONDS));
+    SchedulerInfo info = scheduler.getSchedulerInfo();
+    assertEquals(numQueues, info.getLiveThreads());
+    assertEquals(numQueues, info.getBlockedThreads());
+    assertEquals(0, info.getBusyThreads());
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+
+    info = scheduler.getSchedulerInfo();
+    assertEquals(numQueues, info.getStarted());
+    assertEquals(0, info.getBlockedThreads());
+  }
+
+  @Test
+  public void testItemsThatDoNotBlockAreBounded() throws Exception {
+    scheduler = new WorkScheduler(2);
+    final int numQueues = 20;
+    final CountDownLatch twoStarted = new CountDownLatch(2);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(numQueues);
+    for (int i = 0; i < numQueues; i++) {
+      new WorkQueue(scheduler, "queue" + i, 1).add(() -> {
+        twoStarted.countDown();
+        await(release);
+        done.countDown();
+      }, Priority.BATCH);
+    }
+    assertTrue(twoStarted.await(10, TimeUnit.SECONDS));
+    assertEquals(2, scheduler.getSchedulerInfo().getBusyThreads());
+    assertEquals(numQueues - 2, scheduler.getSchedulerInfo().getPending());
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+
+    final SchedulerInfo info = scheduler.getSchedulerInfo();
+    assertEquals(2, info.getPeakBusyThreads());
+    assertTrue(info.getLiveThreads() <= 2);
+  }
+
+  @Test
+  public void testIdleThreadsStop() throws Exception {
+    scheduler = new WorkScheduler(4, 50);
+    final CountDownLatch done = new CountDownLatch(4);
+    for (int i = 0; i < 4; i++) {
+      new WorkQueue(scheduler, "queue" + i, 1).add(done::countDown, Priority.BATCH);
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (scheduler.getSchedulerInfo().getLiveThreads() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, scheduler.getSchedulerInfo().getLiveThreads());
+
+    // Threads are started again for new items.
+    final CountDownLatch ranAgain = new CountDownLatch(1);
+    new WorkQueue(scheduler, "queue", 1).add(ranAgain::countDown, Priority.BATCH);
+    assertTrue(ranAgain.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testClearQueueWithFilter() throws Exception {
+    scheduler = new WorkScheduler(2);
+    final WorkQueue queue = new WorkQueue(scheduler, "queue", 2);
+    final CountDownLatch started = new CountDownLatch(2);
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<String> order = new CopyOnWriteArrayList<>();
+    final Runnable keep = () -> {
+      started.countDown();
+      await(release);
+      order.add("kept");
+    };
+    final Runnable remove = () -> {
+      started.countDown();
+      try {
+        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+      } catch (InterruptedException exception) {
+        order.add("interrupted");
+      }
+    };
+    queue.add(keep, Priority.BATCH);
+    queue.add(remove, Priority.BATCH);
+    queue.add(remove, Priority.BATCH);
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    queue.clearQueue(runnable -> runnable == remove);
+    assertEquals(Collections.singletonList("interrupted"), order);
+    assertEquals(Collections.singletonList(keep), queue.getQueueCopy());
+    release.countDown();
+  }
+
+  private static Runnable record(List<String> order, String name, CountDownLatch done) {
+    return () -> {
+      order.add(name);
+      done.countDown();
+    };
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      assertTrue(latch.await(10, TimeUnit.SECONDS));
+    } catch (InterruptedException exception) {
+      throw new RuntimeException(exception);
+    }
+  }
+
+}
@@ -25,116 +25,301 @@ import com.graphicsfuzz.common.util.ParseTimeoutException;
 import com.graphicsfuzz.common.util.RandomWrapper;
 import com.graphicsfuzz.common.util.ShaderKind;
 import com.graphicsfuzz.generator.fuzzer.FuzzedIntoACornerException;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Server that can accept shaders from a libFuzzer custom mutator and send back a mutated shader.
+ *
+ * <p>Any number of clients can be connected at once.  A single thread uses a selector to read
+ * requests and write responses for all of them, and the mutations themselves are performed on a
+ * fixed-size pool of threads.  Each client's requests are answered in the order they are sent.
  */
-public class CustomMutatorServer {
+public class CustomMutatorServer implements Closeable {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CustomMutatorServer.class);
   private static final int INDENTATION_WIDTH = 0;
   private static final int DEFAULT_PORT = 8666;
 
+  // A request header is composed of
+  // uint64_t size;
+  // uint32_t seed;
+  // uint8_t isFragment;
+  // in little endian byte order, and is followed by the shader.
+  private static final int HEADER_SIZE = Long.BYTES + Integer.BYTES + Byte.BYTES;
+
+  // libFuzzer keeps sending the same corpus entries, so recently parsed shaders are kept.
+  private static final int PARSED_SHADER_CACHE_SIZE = 64;
+  private static final ParsedShaderCache PARSED_SHADERS =
+      new ParsedShaderCache(PARSED_SHADER_CACHE_SIZE);
+
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
+  private final ExecutorService mutationExecutor;
+
+  // Work that mutation threads hand back to the selector thread, such as sending a response.
+  private final Queue<Runnable> selectorTasks;
+
+  private volatile boolean closed;
+
   public static void main(String[] args) {
-    try {
-      // TODO(381): If we don't switch from TCP, allow this to be configured from the command
-      // line.
-      runServer(DEFAULT_PORT);
+    // TODO(381): If we don't switch from TCP, allow the port to be configured from the command
+    // line.
+    try (CustomMutatorServer server = new CustomMutatorServer(DEFAULT_PORT,
+        Runtime.getRuntime().availableProcessors())) {
+      server.serve();
     } catch (IOException exception) {
       LOGGER.error("Failed to listen on port: " + DEFAULT_PORT, exception);
       System.exit(1);
     }
   }
 
-  private static void runServer(int port) throws IOException {
-    LOGGER.info("Listening on port: " + port);
-    final ServerSocket serverSocket = new ServerSocket(port);
-    final Socket socket = serverSocket.accept();
-    final InputStream inputStream = socket.getInputStream();
-    final OutputStream outputStream = socket.getOutputStream();
-    // Header is composed of
-    // uint64_t size;
-    // uint32_t seed;
-    // uint8_t isFragment;
-    final int headerSize = Long.BYTES + Integer.BYTES + Byte.BYTES;
-    final byte[] headerBuff = new byte[headerSize];
-    while (true) {
-      int bytesRead = inputStream.read(headerBuff, 0, headerBuff.length);
-      if (bytesRead == -1) {
-        LOGGER.info("Client closed connection");
-        break;
+  /**
+   * Creates a server listening on the given port.
+   * @param port The port to listen on; 0 means any free port.
+   * @param numThreads The number of threads on which to perform mutations.
+   * @throws IOException if the port cannot be listened on.
+   */
+  public CustomMutatorServer(int port, int numThreads) throws IOException {
+    this.selector = Selector.open();
+    this.serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(port));
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    this.mutationExecutor = Executors.newFixedThreadPool(numThreads);
+    this.selectorTasks = new ConcurrentLinkedQueue<>();
+    this.closed = false;
+  }
+
+  public int getPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  /**
+   * Serves clients until the server is closed.
+   * @throws IOException if the server cannot accept connections.
+   */
+  public void serve() throws IOException {
+    LOGGER.info("Listening on port: " + getPort());
+    try {
+      while (!closed) {
+        selector.select();
+        for (Runnable task = selectorTasks.poll(); task != null; task = selectorTasks.poll()) {
+          task.run();
+        }
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          final SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          final Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.write();
+            }
+          } catch (IOException exception) {
+            LOGGER.error("Closing connection after error", exception);
+            connection.close();
+          }
+        }
+      }
+    } finally {
+      mutationExecutor.shutdownNow();
+      for (SelectionKey key : selector.keys()) {
+        key.channel().close();
       }
-      final ByteBuffer headerByteBuffer = ByteBuffer.wrap(headerBuff);
-      headerByteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-
-      // Java won't allow us to create an array with a "long" size. But the size of a
-      // shader on the client can technically be up to SIZE_T_MAX. Therefore, we must convert it to
-      // int before creating the array. This is probably a non-issue because libFuzzer is unlikely
-      // to ever give us a shader larger than Integer.MAX_VALUE (e.g. ~2G).
-      final long shaderSize = headerByteBuffer.getLong();
-      assert shaderSize <= Integer.MAX_VALUE;
-
-      final int seed = headerByteBuffer.getInt();
-      final byte isFragmentByte = headerByteBuffer.get();
-
-      // Read the shader.
-      byte[] inputShaderBuff = new byte[(int) shaderSize];
-      socket.getInputStream().read(inputShaderBuff, 0, inputShaderBuff.length);
-      final String inputShader = new String(inputShaderBuff);
-
-      // Mutate the shader.
-      String outputShader = mutate(inputShader, seed, isFragmentByte == 0);
-      if (outputShader == null) {
-        // Tell libFuzzer we will "send" it a 0-length shader.
-        for (int idx = 0; idx < Long.BYTES; idx++) {
-          outputStream.write(0);
+      selector.close();
+    }
+  }
+
+  /**
+   * Stops the server; a call to serve that is in progress returns shortly afterwards.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    selector.wakeup();
+  }
+
+  private void accept() throws IOException {
+    final SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+    LOGGER.info("Client connected: " + channel.getRemoteAddress());
+    channel.configureBlocking(false);
+    final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+    key.attach(new Connection(channel, key));
+  }
+
+  private final class Connection {
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+
+    private final ByteBuffer header;
+
+    // Null while the header of a request is being read.
+    private ByteBuffer body;
+    private int seed;
+    private boolean isFragment;
+
+    // Null unless a response is being written.
+    private ByteBuffer response;
+
+    private Connection(SocketChannel channel, SelectionKey key) {
+      this.channel = channel;
+      this.key = key;
+      this.header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      this.body = null;
+      this.response = null;
+    }
+
+    /**
+     * Reads whatever has arrived, which might be any part of a request; once the whole of a
+     * request has arrived, reading stops until the request has been answered.
+     */
+    private void read() throws IOException {
+      while (true) {
+        final ByteBuffer target = body == null ? header : body;
+        if (channel.read(target) == -1) {
+          LOGGER.info("Client closed connection");
+          close();
+          return;
         }
-        continue;
+        if (target.hasRemaining()) {
+          return;
+        }
+        if (body == null) {
+          header.flip();
+          // Java won't allow us to create an array with a "long" size. But the size of a
+          // shader on the client can technically be up to SIZE_T_MAX. This is probably a
+          // non-issue because libFuzzer is unlikely to ever give us a shader larger than
+          // Integer.MAX_VALUE (e.g. ~2G).
+          final long shaderSize = header.getLong();
+          if (shaderSize < 0 || shaderSize > Integer.MAX_VALUE) {
+            throw new IOException("Unsupported shader size: " + shaderSize);
+          }
+          seed = header.getInt();
+          isFragment = header.get() != 0;
+          header.clear();
+          body = ByteBuffer.allocate((int) shaderSize);
+          continue;
+        }
+        final String inputShader = new String(body.array(), StandardCharsets.UTF_8);
+        body = null;
+        key.interestOps(0);
+        submitMutation(inputShader, seed, isFragment);
+        return;
+      }
+    }
+
+    private void submitMutation(String inputShader, int requestSeed, boolean requestIsFragment) {
+      try {
+        mutationExecutor.execute(() -> {
+          String outputShader;
+          try {
+            outputShader = mutate(inputShader, requestSeed, requestIsFragment);
+          } catch (RuntimeException | AssertionError exception) {
+            LOGGER.error("Failed to mutate:\n" + inputShader, exception);
+            outputShader = null;
+          }
+          final ByteBuffer result = encodeResponse(outputShader);
+          selectorTasks.add(() -> respond(result));
+          selector.wakeup();
+        });
+      } catch (RejectedExecutionException exception) {
+        // The server is being closed.
+        close();
       }
+    }
 
-      // Get shader size as a little endian uint64_t then write it to the socket so libFuzzer
-      // knows what to expect.
-      final ByteBuffer lengthByteBuffer = ByteBuffer.allocate(Long.BYTES);
-      lengthByteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-      lengthByteBuffer.putLong((long) outputShader.length());
-      final byte[] length = new byte[Long.BYTES];
-      lengthByteBuffer.position(0);
-      lengthByteBuffer.get(length);
-      outputStream.write(length);
-      outputStream.write(outputShader.getBytes());
+    private void respond(ByteBuffer result) {
+      if (!key.isValid()) {
+        return;
+      }
+      response = result;
+      key.interestOps(SelectionKey.OP_WRITE);
     }
+
+    private void write() throws IOException {
+      channel.write(response);
+      if (!response.hasRemaining()) {
+        response = null;
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    }
+
+    private void close() {
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException exception) {
+        LOGGER.error("Failed to close connection", exception);
+      }
+    }
+
+  }
+
+  /**
+   * Encodes a response as the size of the shader, as a little endian uint64_t, followed by the
+   * shader; a null shader is sent as a 0-length shader.
+   */
+  private static ByteBuffer encodeResponse(String outputShader) {
+    final byte[] bytes = outputShader == null
+        ? new byte[0]
+        : outputShader.getBytes(StandardCharsets.UTF_8);
+    final ByteBuffer result = ByteBuffer.allocate(Long.BYTES + bytes.length)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    result.putLong(bytes.length);
+    result.put(bytes);
+    result.flip();
+    return result;
   }
 
-  private static String mutate(String inputShader, int seed, boolean isFragment) {
+  // Also called directly, via JNI, by the libFuzzer integration.
+  static String mutate(String inputShader, int seed, boolean isFragment) {
     final ShaderKind shaderKind = isFragment ? ShaderKind.FRAGMENT : ShaderKind.VERTEX;
     try {
-      final TranslationUnit tu = ParseHelper.parse(inputShader, shaderKind);
+      final TranslationUnit tu = PARSED_SHADERS.parse(inputShader, shaderKind);
       Mutate.mutate(tu, new RandomWrapper(seed));
-      final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-      try (final PrintStream stream = new PrintStream(byteArrayOutputStream, true, "UTF-8")) {
-        PrettyPrinterVisitor.emitShader(
-            tu,
-            Optional.empty(),
-            stream,
-            INDENTATION_WIDTH,
-            PrettyPrinterVisitor.DEFAULT_NEWLINE_SUPPLIER);
-      }
-      final String outputShader =
-          new String(byteArrayOutputStream.toByteArray(), StandardCharsets.UTF_8);
-      return outputShader;
+      final StringBuilder outputShader = new StringBuilder();
+      PrettyPrinterVisitor.emitShader(
+          tu,
+          Optional.empty(),
+          outputShader,
+          INDENTATION_WIDTH,
+          PrettyPrinterVisitor.DEFAULT_NEWLINE_SUPPLIER);
+      return outputShader.toString();
     } catch (GlslParserException
         | FuzzedIntoACornerException
         | DuplicateVariableException
@@ -146,4 +331,41 @@ public class CustomMutatorServer {
       return null;
     }
   }
+
+  /**
+   * A small least-recently-used cache of parsed shaders, keyed by shader kind and a hash of the
+   * shader text.  Callers get their own copy of each shader, which they are free to mutate.
+   */
+  private static final class ParsedShaderCache {
+
+    private final Map<String, TranslationUnit> entries;
+
+    private ParsedShaderCache(int capacity) {
+      this.entries = new LinkedHashMap<String, TranslationUnit>(capacity, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TranslationUnit> eldest) {
+          return size() > capacity;
+        }
+      };
+    }
+
+    private TranslationUnit parse(String shader, ShaderKind shaderKind)
+        throws IOException, ParseTimeoutException, InterruptedException, GlslParserException {
+      final String key = shaderKind.getFileExtension() + ":" + DigestUtils.sha1Hex(shader);
+      final TranslationUnit cached;
+      synchronized (entries) {
+        cached = entries.get(key);
+      }
+      if (cached != null) {
+        return cached.clone();
+      }
+      final TranslationUnit result = ParseHelper.parse(shader, shaderKind);
+      synchronized (entries) {
+        entries.put(key, result.clone());
+      }
+      return result;
+    }
+
+  }
+
 }
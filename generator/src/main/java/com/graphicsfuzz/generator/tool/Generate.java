@@ -267,6 +267,7 @@ public class Generate {
    * @param generatorArguments     Arguments to control generation.
    * @param random                 Random number generator.
    * @param writeProbabilities     Records whether details about probabilities should be written.
+   * @return The variant that was written.
    * @throws IOException           if file reading or writing goes wrong.
    * @throws ParseTimeoutException if parsing takes too long.
    * @throws InterruptedException  if something goes wrong invoking an external tool such as the
@@ -274,7 +275,7 @@ public class Generate {
    * @throws GlslParserException   if a shader in the job fails to parse.
    */
   @SuppressWarnings("deprecation")
-  public static void generateVariant(ShaderJobFileOperations fileOps,
+  public static ShaderJob generateVariant(ShaderJobFileOperations fileOps,
                                      File referenceShaderJobFile,
                                      File outputShaderJobFile,
                                      GeneratorArguments generatorArguments,
@@ -300,6 +301,7 @@ public class Generate {
           generationInfo.toString());
     }
 
+    return variantShaderJob;
   }
 
   private static StringBuilder transformShader(TranslationUnit shaderToTransform,
@@ -477,9 +479,14 @@ public class Generate {
 
     List<ITransformation> nextRoundTransformations = new ArrayList<>();
     final StringBuilder result = new StringBuilder();
+    // The size of the shader is only recounted when a transformation makes a change, and then
+    // as part of stripping unused functions.  The counts are not incremental: stripping, and so
+    // counting, still traverses the whole translation unit after each transformation that makes
+    // a change, so each such transformation costs time linear in the size of the shader.
+    int numNodes = new StatsVisitor(reference).getNumNodes();
     // Keep applying transformations until all transformations cease to be effective, or
     // we get a large enough shader.
-    while (!transformations.isEmpty() && !shaderLargeEnough(reference, generator)) {
+    while (!transformations.isEmpty() && !shaderLargeEnough(numNodes, generator)) {
       ITransformation transformation = transformations.remove(generator.nextInt(
           transformations.size()));
       result.append(transformation.getName()).append("\n");
@@ -487,8 +494,9 @@ public class Generate {
           generator.spawnChild(),
           generationParams)) {
         // Keep the size down by stripping unused stuff.
-        StripUnusedFunctions.strip(reference);
-        StripUnusedGlobals.strip(reference);
+        numNodes = StripUnusedFunctions.stripAndCountNodes(reference);
+        numNodes -= StripUnusedGlobals.stripAndCountRemovedNodes(reference);
+        assert numNodes == new StatsVisitor(reference).getNumNodes();
         assert canTypeCheckWithoutFailure(reference);
 
         // Only if the transformation applied successfully (i.e., made a change), do we add it
@@ -510,9 +518,7 @@ public class Generate {
     return true;
   }
 
-  private static boolean shaderLargeEnough(TranslationUnit tu, IRandom generator) {
-    final StatsVisitor statsVisitor = new StatsVisitor(tu);
-
+  private static boolean shaderLargeEnough(int numNodes, IRandom generator) {
     // WebGL:
     //final int minNodes = 3000;
     //final int maxNodes = 20000;
@@ -521,7 +527,7 @@ public class Generate {
     final int maxNodes = 22000;
     final int nodeLimit = generator.nextInt(maxNodes - minNodes) + minNodes;
 
-    return statsVisitor.getNumNodes() > nodeLimit;
+    return numNodes > nodeLimit;
 
   }
 
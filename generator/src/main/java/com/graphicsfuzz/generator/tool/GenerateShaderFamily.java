@@ -24,6 +24,7 @@ import com.graphicsfuzz.common.util.IRandom;
 import com.graphicsfuzz.common.util.ParseTimeoutException;
 import com.graphicsfuzz.common.util.RandomWrapper;
 import com.graphicsfuzz.common.util.ShaderJobFileOperations;
+import com.graphicsfuzz.common.util.ShaderJobHashIndex;
 import com.graphicsfuzz.common.util.ShaderKind;
 import com.graphicsfuzz.util.ArgsUtil;
 import com.graphicsfuzz.util.ToolPaths;
@@ -32,7 +33,14 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -47,6 +55,39 @@ public class GenerateShaderFamily {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(GenerateShaderFamily.class);
 
+  // Variants are generated in this subdirectory of the output directory, and moved out of it once
+  // they have been checked.
+  private static final String ATTEMPTS_DIR = "attempts";
+
+  // How long attempts that are underway when generation fails are given to stop.
+  private static final long ABANDONED_ATTEMPTS_TIMEOUT_SECONDS = 60;
+
+  private enum AttemptOutcome {
+    GENERATED,
+    GENERATION_FAILED,
+    INVALID,
+    TOO_LARGE,
+    DUPLICATE
+  }
+
+  private static final class VariantAttempt {
+
+    private final AttemptOutcome outcome;
+
+    // The exception that caused generation to fail, if it did.
+    private final Exception generationFailure;
+
+    // The structural hash of the variant, if one was generated.
+    private final String hash;
+
+    private VariantAttempt(AttemptOutcome outcome, Exception generationFailure, String hash) {
+      this.outcome = outcome;
+      this.generationFailure = generationFailure;
+      this.hash = hash;
+    }
+
+  }
+
   private static Namespace parse(String[] args) throws ArgumentParserException {
     ArgumentParser parser = ArgumentParsers.newArgumentParser("GenerateShaderFamily")
         .defaultHelp(true)
@@ -74,7 +115,11 @@ public class GenerateShaderFamily {
         .type(Integer.class)
         .setDefault(10);
 
-    return parser.parseArgs(args);
+    final Namespace ns = parser.parseArgs(args);
+    if (ns.getInt("threads") < 1) {
+      throw new ArgumentParserException("--threads must be positive", parser);
+    }
+    return ns;
 
   }
 
@@ -112,6 +157,12 @@ public class GenerateShaderFamily {
         .help("Require a license file to be provided alongside the reference and pass details "
             + "through to generated shaders.")
         .action(Arguments.storeTrue());
+
+    parser.addArgument("--threads")
+        .help("Number of variants to generate and validate in parallel.  The variants produced "
+            + "do not depend on this.")
+        .setDefault(1)
+        .type(Integer.class);
   }
 
   public static void mainHelper(String[] args) throws ArgumentParserException,
@@ -130,6 +181,7 @@ public class GenerateShaderFamily {
     final boolean stopOnFail = ns.getBoolean("stop_on_fail");
     final IRandom generator = new RandomWrapper(ArgsUtil.getSeedArgument(ns));
     final int numVariants = ns.getInt("num_variants");
+    final int numThreads = ns.getInt("threads");
     Optional<Integer> maxBytes = ns.get("max_bytes") == null ? Optional.empty() :
         Optional.of(ns.getInt("max_bytes"));
     Optional<Float> maxFactor = ns.get("max_factor") == null ? Optional.empty() :
@@ -155,6 +207,10 @@ public class GenerateShaderFamily {
 
     final File preparedReferenceShaderJob = new File(outputDir, "reference.json");
 
+    // Records the members of the family, so that duplicate variants can be discarded without
+    // being validated, and without being run on every worker that the family is sent to.
+    final ShaderJobHashIndex familyIndex = new ShaderJobHashIndex();
+
     try {
       // Prepare reference shaders.
       PrepareReference.prepareReference(referenceShaderJob,
@@ -163,6 +219,8 @@ public class GenerateShaderFamily {
           generatorArguments.getMaxUniforms() - 1,
           generatorArguments.getIsVulkan(),
           fileOps);
+      familyIndex.add(ShaderJobHashIndex.hash(
+          fileOps.readShaderJobFile(preparedReferenceShaderJob)));
     } catch (ParseTimeoutException | GlslParserException exception) {
       // Remove the created output directory and all of its contents, so that we don't get a
       // defunct shader family, then re-throw the exception.
@@ -204,73 +262,123 @@ public class GenerateShaderFamily {
       }
     }
 
+    final File attemptsDir = new File(outputDir, ATTEMPTS_DIR);
+    fileOps.forceMkdir(attemptsDir);
+    final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    final Deque<Future<VariantAttempt>> pendingAttempts = new ArrayDeque<>();
+
     int generatedVariants = 0;
     int triedVariants = 0;
+    int submittedVariants = 0;
 
-    // Main variant generation loop
-    while (generatedVariants < numVariants) {
-      if (verbose) {
-        LOGGER.info("Trying variant " + triedVariants + " (produced " + generatedVariants
-            + " of " + numVariants + ")");
-      }
-      // Generate a variant
-      final File variantShaderJobFile = new File(outputDir, "variant_" + String.format("%03d",
-          generatedVariants) + ".json");
-      final IRandom childRandom = generator.spawnChild();
-      if (verbose) {
-        LOGGER.info("Generating variant with inner random: " + childRandom.getDescription());
-      }
-
-      triedVariants++;
-      try {
-        Generate.generateVariant(fileOps, referenceShaderJob, variantShaderJobFile,
-            generatorArguments, childRandom, writeProbabilities);
-      } catch (Exception exception) {
-        /*if (verbose)*/ {
-          LOGGER.error("Failed generating variant: "
-              + "\nGenerator arguments: " + generatorArguments
-              + "\nReference shader job: " + referenceShaderJob
-              + "\nRandom: " + childRandom.getDescription(), exception);
+    // Main variant generation loop.  Attempts are made in parallel, but their outcomes are
+    // processed in the order in which they were submitted, and each attempt gets the next child of
+    // the generator, so the family produced does not depend on the number of threads.
+    boolean succeeded = false;
+    try {
+      while (generatedVariants < numVariants) {
+        while (pendingAttempts.size() < Math.min(numThreads, numVariants - generatedVariants)) {
+          final IRandom childRandom = generator.spawnChild();
+          final File attemptShaderJobFile = new File(attemptsDir,
+              "attempt_" + submittedVariants + ".json");
+          submittedVariants++;
+          pendingAttempts.add(executor.submit(() -> attemptVariant(fileOps,
+              referenceShaderJob,
+              preparedReferenceShaderJob,
+              attemptShaderJobFile,
+              familyIndex,
+              generatorArguments,
+              childRandom,
+              writeProbabilities,
+              disableGlslangValidator,
+              disableShaderTranslator,
+              maxFactor,
+              maxBytes,
+              verbose)));
         }
-        if (stopOnFail) {
-          final String message = "Failed generating a variant, stopping.";
-          LOGGER.info(message);
-          throw new RuntimeException(message, exception);
+        final File attemptShaderJobFile = new File(attemptsDir,
+            "attempt_" + triedVariants + ".json");
+        final VariantAttempt attempt = awaitAttempt(pendingAttempts.removeFirst());
+        if (verbose) {
+          LOGGER.info("Tried variant " + triedVariants + " (produced " + generatedVariants
+              + " of " + numVariants + ")");
+        }
+        triedVariants++;
+
+        final File variantShaderJobFile = new File(outputDir, "variant_" + String.format("%03d",
+            generatedVariants) + ".json");
+
+        switch (attempt.outcome) {
+          case GENERATION_FAILED:
+            if (fileOps.isFile(attemptShaderJobFile)) {
+              fileOps.deleteShaderJobFile(attemptShaderJobFile);
+            }
+            if (stopOnFail) {
+              final String message = "Failed generating a variant, stopping.";
+              LOGGER.info(message);
+              throw new RuntimeException(message, attempt.generationFailure);
+            }
+            continue;
+          case INVALID:
+            if (keepBadVariants) {
+              fileOps.moveShaderJobFileTo(attemptShaderJobFile,
+                  new File(outputDir, "bad_" + variantShaderJobFile.getName()), true);
+            } else {
+              fileOps.deleteShaderJobFile(attemptShaderJobFile);
+            }
+            if (stopOnFail) {
+              final String message = "Generated an invalid variant, stopping.";
+              LOGGER.error(message);
+              throw new RuntimeException(message);
+            }
+            continue;
+          case TOO_LARGE:
+            // A generated shader is too large - discard it (but don't log it as bad)
+            fileOps.deleteShaderJobFile(attemptShaderJobFile);
+            continue;
+          case DUPLICATE:
+            if (verbose) {
+              LOGGER.info("Discarding variant identical to a member of the family.");
+            }
+            fileOps.deleteShaderJobFile(attemptShaderJobFile);
+            continue;
+          default:
+            break;
         }
-        continue;
-      }
 
-      // Check the shader is valid
-      if (skipDueToInvalidShader(fileOps,
-          variantShaderJobFile,
-          disableGlslangValidator,
-          disableShaderTranslator,
-          keepBadVariants,
-          stopOnFail,
-          generatorArguments.getIsVulkan())) {
-        continue;
-      }
+        // Attempts run in parallel, so two of them may have produced the same variant; only the
+        // first of these, in submission order, is kept.
+        if (!familyIndex.add(attempt.hash)) {
+          if (verbose) {
+            LOGGER.info("Discarding variant identical to a member of the family.");
+          }
+          fileOps.deleteShaderJobFile(attemptShaderJobFile);
+          continue;
+        }
 
-      // Check code size
-      if (generatedShadersTooLarge(fileOps,
-          preparedReferenceShaderJob,
-          variantShaderJobFile,
-          maxFactor,
-          maxBytes,
-          verbose)) {
-        // A generated shader is too large - discard it (but don't log it as bad)
-        continue;
-      }
+        fileOps.moveShaderJobFileTo(attemptShaderJobFile, variantShaderJobFile, true);
 
-      if (primitivesFile(preparedReferenceShaderJob).isFile()) {
-        FileUtils.copyFile(primitivesFile(preparedReferenceShaderJob),
-            primitivesFile(variantShaderJobFile));
-      }
+        if (primitivesFile(preparedReferenceShaderJob).isFile()) {
+          FileUtils.copyFile(primitivesFile(preparedReferenceShaderJob),
+              primitivesFile(variantShaderJobFile));
+        }
 
-      final int chunkSize = 4;
-      generatedVariants++;
-      if ((generatedVariants % chunkSize) == 0) {
-        LOGGER.info("Done " + (100f * (float) generatedVariants / (float) numVariants) + "%");
+        final int chunkSize = 4;
+        generatedVariants++;
+        if ((generatedVariants % chunkSize) == 0) {
+          LOGGER.info("Done " + (100f * (float) generatedVariants / (float) numVariants) + "%");
+        }
+      }
+      succeeded = true;
+    } finally {
+      // Attempts that are still underway are not needed.
+      executor.shutdownNow();
+      if (succeeded) {
+        // Wait for them to finish so that their files can be cleaned up.
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        fileOps.deleteDirectory(attemptsDir);
+      } else {
+        abandonAttempts(executor, attemptsDir, fileOps);
       }
     }
 
@@ -336,37 +444,119 @@ public class GenerateShaderFamily {
     return false;
   }
 
-  private static boolean skipDueToInvalidShader(ShaderJobFileOperations fileOps,
-                                                File variantShaderJobFile,
-                                                boolean disableGlslangValidator,
-                                                boolean disableShaderTranslator,
-                                                boolean keepBadVariants,
-                                                boolean stopOnFail,
-                                                boolean isVulkan)
+  /**
+   * Generates a variant and checks it, leaving the variant in place whatever the outcome.
+   */
+  private static VariantAttempt attemptVariant(ShaderJobFileOperations fileOps,
+                                               File referenceShaderJob,
+                                               File preparedReferenceShaderJob,
+                                               File attemptShaderJobFile,
+                                               ShaderJobHashIndex familyIndex,
+                                               GeneratorArguments generatorArguments,
+                                               IRandom childRandom,
+                                               boolean writeProbabilities,
+                                               boolean disableGlslangValidator,
+                                               boolean disableShaderTranslator,
+                                               Optional<Float> maxFactor,
+                                               Optional<Integer> maxBytes,
+                                               boolean verbose)
       throws IOException, InterruptedException {
+    if (verbose) {
+      LOGGER.info("Generating variant with inner random: " + childRandom.getDescription());
+    }
 
-    final boolean shaderJobIsValid =
-        (disableGlslangValidator || fileOps.areShadersValid(variantShaderJobFile, false, isVulkan))
-          &&
-        (disableShaderTranslator || fileOps.areShadersValidShaderTranslator(variantShaderJobFile,
-          false));
+    final String hash;
+    try {
+      hash = ShaderJobHashIndex.hash(Generate.generateVariant(fileOps, referenceShaderJob,
+          attemptShaderJobFile, generatorArguments, childRandom, writeProbabilities));
+    } catch (Exception exception) {
+      /*if (verbose)*/ {
+        LOGGER.error("Failed generating variant: "
+            + "\nGenerator arguments: " + generatorArguments
+            + "\nReference shader job: " + referenceShaderJob
+            + "\nRandom: " + childRandom.getDescription(), exception);
+      }
+      return new VariantAttempt(AttemptOutcome.GENERATION_FAILED, exception, null);
+    }
 
-    if (!shaderJobIsValid) {
-      if (keepBadVariants) {
-        fileOps.moveShaderJobFileTo(variantShaderJobFile,
-            new File(variantShaderJobFile.getParentFile(),
-                "bad_" + variantShaderJobFile.getName()), true);
-      } else {
-        fileOps.deleteShaderJobFile(variantShaderJobFile);
+    // A variant that is already in the family need not be checked.  The index only holds
+    // variants from attempts submitted before this one, so the outcome does not depend on timing.
+    if (familyIndex.contains(hash)) {
+      return new VariantAttempt(AttemptOutcome.DUPLICATE, null, hash);
+    }
+
+    // Check the shader is valid
+    if (!isValidShaderJob(fileOps,
+        attemptShaderJobFile,
+        disableGlslangValidator,
+        disableShaderTranslator,
+        generatorArguments.getIsVulkan())) {
+      return new VariantAttempt(AttemptOutcome.INVALID, null, hash);
+    }
+
+    // Check code size
+    if (generatedShadersTooLarge(fileOps,
+        preparedReferenceShaderJob,
+        attemptShaderJobFile,
+        maxFactor,
+        maxBytes,
+        verbose)) {
+      return new VariantAttempt(AttemptOutcome.TOO_LARGE, null, hash);
+    }
+
+    return new VariantAttempt(AttemptOutcome.GENERATED, null, hash);
+  }
+
+  /**
+   * Called when generation has failed: gives the attempts that are still underway a bounded time
+   * to stop, and then cleans up their files.  Nothing is thrown, so that the exception that made
+   * generation fail is the one that is reported.
+   */
+  private static void abandonAttempts(ExecutorService executor, File attemptsDir,
+                                      ShaderJobFileOperations fileOps) {
+    try {
+      if (!executor.awaitTermination(ABANDONED_ATTEMPTS_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOGGER.warn("Variant generation attempts did not stop; leaving " + attemptsDir);
+        return;
+      }
+      fileOps.deleteDirectory(attemptsDir);
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    } catch (IOException exception) {
+      LOGGER.warn("Could not delete " + attemptsDir, exception);
+    }
+  }
+
+  private static VariantAttempt awaitAttempt(Future<VariantAttempt> attempt)
+      throws IOException, InterruptedException {
+    try {
+      return attempt.get();
+    } catch (ExecutionException exception) {
+      final Throwable cause = exception.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
       }
-      if (stopOnFail) {
-        final String message = "Generated an invalid variant, stopping.";
-        LOGGER.error(message);
-        throw new RuntimeException(message);
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
       }
-      return true;
+      throw new RuntimeException(cause);
     }
-    return false;
+  }
+
+  private static boolean isValidShaderJob(ShaderJobFileOperations fileOps,
+                                          File variantShaderJobFile,
+                                          boolean disableGlslangValidator,
+                                          boolean disableShaderTranslator,
+                                          boolean isVulkan)
+      throws IOException, InterruptedException {
+    return
+        (disableGlslangValidator || fileOps.areShadersValid(variantShaderJobFile, false, isVulkan))
+          &&
+        (disableShaderTranslator || fileOps.areShadersValidShaderTranslator(variantShaderJobFile,
+          false));
   }
 
   public static void main(String[] args) {
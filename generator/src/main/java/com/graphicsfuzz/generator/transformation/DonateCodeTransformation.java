@@ -50,7 +50,6 @@ import com.graphicsfuzz.common.util.GlslParserException;
 import com.graphicsfuzz.common.util.IRandom;
 import com.graphicsfuzz.common.util.MakeArrayAccessesInBounds;
 import com.graphicsfuzz.common.util.OpenGlConstants;
-import com.graphicsfuzz.common.util.ParseHelper;
 import com.graphicsfuzz.common.util.ParseTimeoutException;
 import com.graphicsfuzz.common.util.ShaderKind;
 import com.graphicsfuzz.generator.fuzzer.FuzzedIntoACornerException;
@@ -59,6 +58,7 @@ import com.graphicsfuzz.generator.fuzzer.FuzzingContext;
 import com.graphicsfuzz.generator.fuzzer.OpaqueExpressionGenerator;
 import com.graphicsfuzz.generator.transformation.donation.DonationContext;
 import com.graphicsfuzz.generator.transformation.donation.DonationContextFinder;
+import com.graphicsfuzz.generator.transformation.donation.DonorCache;
 import com.graphicsfuzz.generator.transformation.injection.IInjectionPoint;
 import com.graphicsfuzz.generator.transformation.injection.InjectionPoints;
 import com.graphicsfuzz.generator.util.GenerationParams;
@@ -122,12 +122,9 @@ public abstract class DonateCodeTransformation implements ITransformation {
 
   private TranslationUnit prepareTranslationUnit(File donorFile, IRandom generator)
       throws IOException, ParseTimeoutException, InterruptedException, GlslParserException {
-    final TranslationUnit tu = ParseHelper.parse(donorFile);
-
-    // First, simplify the array info objects used by the shader so that they only refer to const
-    // expressions.  This is to avoid the situation where an array with e.g. a constant SOME_SIZE
-    // as its size expression gets donated into a context where SOME_SIZE is not declared.
-    simplifyArrayInfo(tu);
+    // The donor comes from a cache shared by all donation passes; it has already had its array
+    // info objects simplified so that they only refer to const expressions.
+    final TranslationUnit tu = DonorCache.getInstance().getDonor(donorFile);
 
     // Add a prefix to every identifier used in the shader.
     addPrefixes(tu);
@@ -277,25 +274,6 @@ public abstract class DonateCodeTransformation implements ITransformation {
     return tu;
   }
 
-  /**
-   * For every array info object that contains a size expression, replace that size expression with
-   * an integer constant expression reflecting the array's constant-folded size.
-   */
-  private void simplifyArrayInfo(TranslationUnit tu) {
-    new StandardVisitor() {
-      @Override
-      public void visitArrayInfo(ArrayInfo arrayInfo) {
-        super.visitArrayInfo(arrayInfo);
-        for (int i = 0; i < arrayInfo.getDimensionality(); i++) {
-          if (arrayInfo.hasSizeExpr(i)) {
-            assert arrayInfo.hasConstantSize(i);
-            arrayInfo.resetSizeExprToConstant(i);
-          }
-        }
-      }
-    }.visit(tu);
-  }
-
   private void addPrefixes(TranslationUnit tu) {
     new StandardVisitor() {
 
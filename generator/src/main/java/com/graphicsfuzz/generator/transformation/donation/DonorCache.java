@@ -0,0 +1,166 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.generator.transformation.donation;
+
+import com.graphicsfuzz.common.ast.TranslationUnit;
+import com.graphicsfuzz.common.ast.decl.ArrayInfo;
+import com.graphicsfuzz.common.ast.visitors.StandardVisitor;
+import com.graphicsfuzz.common.util.GlslParserException;
+import com.graphicsfuzz.common.util.ParseHelper;
+import com.graphicsfuzz.common.util.ParseTimeoutException;
+import com.graphicsfuzz.common.util.ShaderKind;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * A process-wide cache of parsed donor shaders, so that when many variants are generated from the
+ * same donors directory each donor is parsed once, rather than once per donation pass.
+ *
+ * <p>The cache holds each donor in the form that code donation starts from, and hands out deep
+ * clones of it, which callers are free to mutate.  A cached donor is reused while its file's
+ * modification time and length are unchanged.  If either changes, the file is hashed, and it is
+ * only re-parsed if its contents differ from those of the cached version.  The cache holds a
+ * bounded number of donors, discarding the least recently used donor when it is full.
+ *
+ * <p>The cache is safe for use by multiple threads.
+ */
+public final class DonorCache {
+
+  public static final int DEFAULT_MAX_DONORS = 256;
+
+  private static final DonorCache INSTANCE = new DonorCache(DEFAULT_MAX_DONORS);
+
+  // Donors by absolute path, least recently used first; guarded by the map itself.
+  private final LinkedHashMap<File, Entry> entries;
+
+  // The total number of times a donor has been parsed; exposed for testing.
+  private final AtomicInteger numParses;
+
+  DonorCache(int maxDonors) {
+    if (maxDonors < 1) {
+      throw new IllegalArgumentException("A donor cache must be able to hold a donor.");
+    }
+    this.entries = new LinkedHashMap<File, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<File, Entry> eldest) {
+        return size() > maxDonors;
+      }
+    };
+    this.numParses = new AtomicInteger(0);
+  }
+
+  public static DonorCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Provides a donor, parsing it if it has not been parsed before or has changed since it was last
+   * parsed.  Array size expressions in the donor are replaced by the integer constants to which
+   * they evaluate; this avoids the situation where an array with e.g. a constant SOME_SIZE as its
+   * size expression gets donated into a context where SOME_SIZE is not declared.
+   * @param donorFile A donor shader file.
+   * @return A fresh copy of the donor's translation unit.
+   * @throws IOException if the donor cannot be read.
+   * @throws ParseTimeoutException if parsing the donor takes too long.
+   * @throws InterruptedException if interrupted while parsing the donor.
+   * @throws GlslParserException if the donor does not parse.
+   */
+  public TranslationUnit getDonor(File donorFile)
+      throws IOException, ParseTimeoutException, InterruptedException, GlslParserException {
+    final File key = donorFile.getAbsoluteFile();
+    final Entry entry;
+    synchronized (entries) {
+      entry = entries.computeIfAbsent(key, item -> new Entry());
+    }
+    // The donor is parsed without holding the map's lock, so that different donors can be parsed
+    // concurrently.
+    return entry.getDonor(key);
+  }
+
+  /**
+   * Discards all cached donors.
+   */
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  int getNumParses() {
+    return numParses.get();
+  }
+
+  private final class Entry {
+
+    private long lastModified;
+    private long length;
+    private String hash;
+
+    // Null until the donor has been parsed.
+    private TranslationUnit donor;
+
+    private synchronized TranslationUnit getDonor(File donorFile)
+        throws IOException, ParseTimeoutException, InterruptedException, GlslParserException {
+      final long currentLastModified = donorFile.lastModified();
+      final long currentLength = donorFile.length();
+      if (donor == null || currentLastModified != lastModified || currentLength != length) {
+        final byte[] contents = FileUtils.readFileToByteArray(donorFile);
+        final String currentHash = DigestUtils.md5Hex(contents);
+        if (donor == null || !currentHash.equals(hash)) {
+          final TranslationUnit parsed = ParseHelper.parse(
+              new String(contents, StandardCharsets.UTF_8),
+              ShaderKind.fromExtension(FilenameUtils.getExtension(donorFile.getName())));
+          simplifyArrayInfo(parsed);
+          numParses.incrementAndGet();
+          donor = parsed;
+          hash = currentHash;
+        }
+        lastModified = currentLastModified;
+        length = currentLength;
+      }
+      return donor.clone();
+    }
+
+  }
+
+  /**
+   * For every array info object that contains a size expression, replace that size expression with
+   * an integer constant expression reflecting the array's constant-folded size.
+   */
+  private static void simplifyArrayInfo(TranslationUnit tu) {
+    new StandardVisitor() {
+      @Override
+      public void visitArrayInfo(ArrayInfo arrayInfo) {
+        super.visitArrayInfo(arrayInfo);
+        for (int i = 0; i < arrayInfo.getDimensionality(); i++) {
+          if (arrayInfo.hasSizeExpr(i)) {
+            assert arrayInfo.hasConstantSize(i);
+            arrayInfo.resetSizeExprToConstant(i);
+          }
+        }
+      }
+    }.visit(tu);
+  }
+
+}
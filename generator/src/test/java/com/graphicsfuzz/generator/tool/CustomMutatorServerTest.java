@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.generator.tool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class CustomMutatorServerTest {
+
+  private static final String SHADER = "#version 310 es\n"
+      + "precision highp float;\n"
+      + "layout(location = 0) out vec4 _GLF_color;\n"
+      + "void main() {\n"
+      + "  float x = 1.0;\n"
+      + "  _GLF_color = vec4(x, 0.0, 0.0, 1.0);\n"
+      + "}\n";
+
+  @Test
+  public void testServesSeveralClientsAtOnce() throws Exception {
+    final CustomMutatorServer server = new CustomMutatorServer(0, 2);
+    final Thread serverThread = new Thread(() -> {
+      try {
+        server.serve();
+      } catch (IOException exception) {
+        throw new RuntimeException(exception);
+      }
+    });
+    serverThread.start();
+    try (Socket first = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+         Socket second = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+      // Both clients have requests in flight before either reads a response; the first client's
+      // request arrives in pieces.
+      sendRequest(first.getOutputStream(), SHADER, 1, true);
+      sendRequest(second.getOutputStream(), SHADER, 2, true);
+      final String expectedFirst = CustomMutatorServer.mutate(SHADER, 1, true);
+      final String expectedSecond = CustomMutatorServer.mutate(SHADER, 2, true);
+      assertNotNull(expectedFirst);
+      assertNotNull(expectedSecond);
+      assertEquals(expectedSecond, readResponse(second.getInputStream()));
+      assertEquals(expectedFirst, readResponse(first.getInputStream()));
+
+      // A connection can be used for further requests.
+      sendRequest(first.getOutputStream(), SHADER, 3, true);
+      assertEquals(CustomMutatorServer.mutate(SHADER, 3, true),
+          readResponse(first.getInputStream()));
+    } finally {
+      server.close();
+      serverThread.join();
+    }
+  }
+
+  @Test
+  public void testUnparsableShaderGetsEmptyResponse() throws Exception {
+    final CustomMutatorServer server = new CustomMutatorServer(0, 1);
+    final Thread serverThread = new Thread(() -> {
+      try {
+        server.serve();
+      } catch (IOException exception) {
+        throw new RuntimeException(exception);
+      }
+    });
+    serverThread.start();
+    try (Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+      sendRequest(client.getOutputStream(), "not a shader", 0, true);
+      assertEquals("", readResponse(client.getInputStream()));
+    } finally {
+      server.close();
+      serverThread.join();
+    }
+  }
+
+  private static void sendRequest(OutputStream stream, String shader, int seed,
+                                  boolean isFragment) throws IOException {
+    final byte[] bytes = shader.getBytes(StandardCharsets.UTF_8);
+    final ByteBuffer header = ByteBuffer.allocate(13).order(ByteOrder.LITTLE_ENDIAN);
+    header.putLong(bytes.length);
+    header.putInt(seed);
+    header.put((byte) (isFragment ? 1 : 0));
+    // Send the header and the shader in several writes, so that the server has to reassemble
+    // the request.
+    stream.write(header.array(), 0, 5);
+    stream.flush();
+    stream.write(header.array(), 5, 8);
+    stream.flush();
+    stream.write(bytes, 0, bytes.length / 2);
+    stream.flush();
+    stream.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+    stream.flush();
+  }
+
+  private static String readResponse(InputStream stream) throws IOException {
+    final DataInputStream dataInputStream = new DataInputStream(stream);
+    final byte[] sizeBytes = new byte[8];
+    dataInputStream.readFully(sizeBytes);
+    final long size = ByteBuffer.wrap(sizeBytes).order(ByteOrder.LITTLE_ENDIAN).getLong();
+    final byte[] shader = new byte[(int) size];
+    dataInputStream.readFully(shader);
+    return new String(shader, StandardCharsets.UTF_8);
+  }
+
+}
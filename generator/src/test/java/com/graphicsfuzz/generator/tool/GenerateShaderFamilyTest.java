@@ -16,6 +16,8 @@
 
 package com.graphicsfuzz.generator.tool;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import com.graphicsfuzz.common.glslversion.ShadingLanguageVersion;
@@ -229,6 +231,49 @@ public class GenerateShaderFamilyTest {
         donors);
   }
 
+  @Test
+  public void testMultiThreadedGenerationMatchesSequentialGeneration() throws Exception {
+    final String donors = Paths.get(ToolPaths.getShadersDirectory(), "samples", "100")
+        .toString();
+    final String reference = Paths.get(donors, "stable_bubblesort_flag.json").toString();
+    final File sequentialDir = temporaryFolder.newFolder("sequential");
+    final File multiThreadedDir = temporaryFolder.newFolder("multithreaded");
+    for (File outputDir : Arrays.asList(sequentialDir, multiThreadedDir)) {
+      GenerateShaderFamily.mainHelper(new String[] {
+          reference,
+          donors,
+          outputDir.getAbsolutePath(),
+          "--seed",
+          "7",
+          "--num-variants",
+          "6",
+          "--single-pass",
+          "--threads",
+          outputDir == sequentialDir ? "1" : "4"
+      });
+    }
+
+    // Apart from the record of the arguments used, the families should be identical.
+    final List<String> sequentialFiles = getSortedFileNames(sequentialDir);
+    assertEquals(sequentialFiles, getSortedFileNames(multiThreadedDir));
+    assertFalse(sequentialFiles.contains("attempts"));
+    for (String fileName : sequentialFiles) {
+      if (fileName.equals("infolog.json")) {
+        continue;
+      }
+      assertEquals(fileName,
+          FileUtils.readFileToString(new File(sequentialDir, fileName), StandardCharsets.UTF_8),
+          FileUtils.readFileToString(new File(multiThreadedDir, fileName),
+              StandardCharsets.UTF_8));
+    }
+  }
+
+  private static List<String> getSortedFileNames(File directory) {
+    final List<String> result = new ArrayList<>(Arrays.asList(directory.list()));
+    Collections.sort(result);
+    return result;
+  }
+
   private void checkShaderFamilyGeneration(String samplesSubdir, String referenceShaderName,
                                            int numVariants, int seed,
                                            List<String> extraOptions,
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.generator.transformation.donation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import com.graphicsfuzz.common.ast.TranslationUnit;
+import com.graphicsfuzz.common.tool.PrettyPrinterVisitor;
+import com.graphicsfuzz.common.util.ParseHelper;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DonorCacheTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testDonorIsParsedOnceAndCloned() throws Exception {
+    final DonorCache cache = new DonorCache(DonorCache.DEFAULT_MAX_DONORS);
+    final File donor = temporaryFolder.newFile("donor.frag");
+    FileUtils.writeStringToFile(donor, "#version 310 es\n"
+        + "const int N = 2;\n"
+        + "int A[N + 1];\n"
+        + "void main() { }\n", StandardCharsets.UTF_8);
+
+    final TranslationUnit first = cache.getDonor(donor);
+    // Array sizes should have been simplified to constants.
+    assertEquals(PrettyPrinterVisitor.prettyPrintAsString(ParseHelper.parse("#version 310 es\n"
+        + "const int N = 2;\n"
+        + "int A[3];\n"
+        + "void main() { }\n")), PrettyPrinterVisitor.prettyPrintAsString(first));
+
+    // Mutating a donor obtained from the cache should not affect later donors.
+    first.removeTopLevelDeclaration(first.getTopLevelDeclarations().get(0));
+    final TranslationUnit second = cache.getDonor(donor);
+    assertNotSame(first, second);
+    assertEquals(3, second.getTopLevelDeclarations().size());
+    assertEquals(1, cache.getNumParses());
+  }
+
+  @Test
+  public void testDonorIsReparsedOnlyWhenContentsChange() throws Exception {
+    final DonorCache cache = new DonorCache(DonorCache.DEFAULT_MAX_DONORS);
+    final File donor = temporaryFolder.newFile("donor.frag");
+    final String original = "#version 310 es\n"
+        + "void main() { }\n";
+    FileUtils.writeStringToFile(donor, original, StandardCharsets.UTF_8);
+    assertEquals(1, cache.getDonor(donor).getTopLevelDeclarations().size());
+
+    // Touching the file without changing its contents should not lead to re-parsing.
+    assertTrue(donor.setLastModified(donor.lastModified() + 10000));
+    assertEquals(1, cache.getDonor(donor).getTopLevelDeclarations().size());
+    assertEquals(1, cache.getNumParses());
+
+    FileUtils.writeStringToFile(donor, original + "void foo() { }\n", StandardCharsets.UTF_8);
+    assertTrue(donor.setLastModified(donor.lastModified() + 20000));
+    assertEquals(2, cache.getDonor(donor).getTopLevelDeclarations().size());
+    assertEquals(2, cache.getNumParses());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedDonorIsEvicted() throws Exception {
+    final DonorCache cache = new DonorCache(2);
+    final File[] donors = new File[3];
+    for (int i = 0; i < donors.length; i++) {
+      donors[i] = temporaryFolder.newFile("donor" + i + ".frag");
+      FileUtils.writeStringToFile(donors[i], "#version 310 es\n"
+          + "void main() { }\n", StandardCharsets.UTF_8);
+    }
+    cache.getDonor(donors[0]);
+    cache.getDonor(donors[1]);
+    // Using the first donor again makes the second the least recently used.
+    cache.getDonor(donors[0]);
+    cache.getDonor(donors[2]);
+    assertEquals(3, cache.getNumParses());
+
+    cache.getDonor(donors[0]);
+    assertEquals(3, cache.getNumParses());
+    cache.getDonor(donors[1]);
+    assertEquals(4, cache.getNumParses());
+  }
+
+}
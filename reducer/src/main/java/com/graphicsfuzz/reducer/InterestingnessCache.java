@@ -0,0 +1,283 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.reducer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An on-disk record of interestingness verdicts that persists across reductions.
+ *
+ * <p>Verdicts are appended to a log file in the cache directory, one per line, each tagged with
+ * the fingerprint of the judge that produced it.  Only verdicts from a judge with the same
+ * fingerprint as this cache's judge are ever reported, so a single cache directory can be shared
+ * by reductions that use different interestingness tests.  Entries appended by other processes
+ * sharing the directory are picked up lazily, when a lookup misses.
+ *
+ * <p>When the log grows beyond a size limit it is compacted: only the latest verdict for each
+ * judge and shader job is kept, and the oldest verdicts are dropped until the log is at most half
+ * the limit.  The compacted log replaces the old one atomically.  A verdict that another process
+ * records while the log is being compacted may be lost, which only means that the shader job
+ * will be judged again.
+ */
+public class InterestingnessCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(InterestingnessCache.class);
+
+  public static final String LOG_FILE_NAME = "interestingness-cache.log";
+
+  private static final String INTERESTING = "1";
+  private static final String NOT_INTERESTING = "0";
+
+  public static final long DEFAULT_MAX_LOG_BYTES = 16L << 20;
+
+  // The size of the chunks in which the log is read.
+  private static final int READ_CHUNK_SIZE = 1 << 16;
+
+  private final File cacheDir;
+  private final File logFile;
+  private final long maxLogBytes;
+  private final String judgeFingerprint;
+
+  // Verdicts for this cache's judge fingerprint, keyed by shader job key.
+  private final Map<String, Boolean> index;
+
+  // Identifies the log file that has been read into the index, which changes when the log is
+  // compacted; null if the file system does not provide file keys.
+  private Object indexedFileKey;
+
+  // The number of bytes of the log file that have been read into the index.
+  private long indexedLength;
+
+  /**
+   * Opens the cache stored in the given directory, creating it if necessary.
+   * @param cacheDir The directory in which the cache is stored.
+   * @param judgeFingerprint Identifies the interestingness test whose verdicts are to be cached;
+   *                         must not contain whitespace.
+   * @throws IOException if the cache directory cannot be created or the log cannot be read.
+   */
+  public InterestingnessCache(File cacheDir, String judgeFingerprint) throws IOException {
+    this(cacheDir, judgeFingerprint, DEFAULT_MAX_LOG_BYTES);
+  }
+
+  /**
+   * Opens the cache stored in the given directory, creating it if necessary.
+   * @param cacheDir The directory in which the cache is stored.
+   * @param judgeFingerprint Identifies the interestingness test whose verdicts are to be cached;
+   *                         must not contain whitespace.
+   * @param maxLogBytes The size beyond which the log is compacted when a verdict is recorded.
+   * @throws IOException if the cache directory cannot be created or the log cannot be read.
+   */
+  public InterestingnessCache(File cacheDir, String judgeFingerprint, long maxLogBytes)
+      throws IOException {
+    if (judgeFingerprint.isEmpty() || judgeFingerprint.matches(".*\\s.*")) {
+      throw new IllegalArgumentException("A judge fingerprint must be non-empty and must not "
+          + "contain whitespace.");
+    }
+    if (maxLogBytes <= 0) {
+      throw new IllegalArgumentException("The log size limit must be positive.");
+    }
+    Files.createDirectories(cacheDir.toPath());
+    this.cacheDir = cacheDir;
+    this.logFile = new File(cacheDir, LOG_FILE_NAME);
+    this.maxLogBytes = maxLogBytes;
+    this.judgeFingerprint = judgeFingerprint;
+    this.index = new HashMap<>();
+    this.indexedFileKey = null;
+    this.indexedLength = 0;
+    readNewEntries();
+    LOGGER.info("Loaded " + index.size() + " cached interestingness verdicts from " + logFile);
+  }
+
+  /**
+   * Looks up a previously-recorded verdict.
+   * @param shaderJobKey Uniquely identifies the shader job that would be judged.
+   * @return The recorded verdict, if any.
+   * @throws IOException if new entries in the log cannot be read.
+   */
+  public synchronized Optional<Boolean> lookup(String shaderJobKey) throws IOException {
+    if (!index.containsKey(shaderJobKey)) {
+      readNewEntries();
+    }
+    return Optional.ofNullable(index.get(shaderJobKey));
+  }
+
+  /**
+   * Records a verdict, both in memory and at the end of the log.
+   * @param shaderJobKey Uniquely identifies the shader job that was judged; must not contain
+   *                     whitespace.
+   * @param interesting The verdict.
+   * @throws IOException if the log cannot be appended to or compacted.
+   */
+  public synchronized void record(String shaderJobKey, boolean interesting) throws IOException {
+    if (shaderJobKey.isEmpty() || shaderJobKey.matches(".*\\s.*")) {
+      throw new IllegalArgumentException("A shader job key must be non-empty and must not "
+          + "contain whitespace.");
+    }
+    index.put(shaderJobKey, interesting);
+    final byte[] entry = (judgeFingerprint + " " + shaderJobKey + " "
+        + (interesting ? INTERESTING : NOT_INTERESTING) + "\n").getBytes(StandardCharsets.UTF_8);
+    try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+         FileLock ignored = channel.lock()) {
+      final ByteBuffer buffer = ByteBuffer.wrap(entry);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      if (channel.size() > maxLogBytes) {
+        compact();
+      }
+    }
+  }
+
+  public synchronized int size() {
+    return index.size();
+  }
+
+  private void readNewEntries() throws IOException {
+    if (!logFile.isFile()) {
+      return;
+    }
+    final Object fileKey = getFileKey();
+    if (!Objects.equals(fileKey, indexedFileKey)) {
+      // The log has been compacted since it was read, so read it again from the start.  Verdicts
+      // that were dropped from the log are kept in the index.
+      indexedFileKey = fileKey;
+      indexedLength = 0;
+    }
+    try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() < indexedLength) {
+        indexedLength = 0;
+      }
+      if (channel.size() > indexedLength) {
+        indexedLength = readLines(channel, indexedLength, this::indexEntry);
+      }
+    }
+  }
+
+  /**
+   * Rewrites the log, keeping only the latest verdict for each judge and shader job and, if that
+   * is still too large, dropping the oldest verdicts.  Must be called with the log locked.
+   */
+  private void compact() throws IOException {
+    // Lines of the log, keyed by their judge and shader job, from least to most recently recorded.
+    final Map<String, String> latest = new LinkedHashMap<>();
+    try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+      readLines(channel, 0, line -> {
+        final int verdictStart = line.lastIndexOf(' ');
+        if (verdictStart <= 0) {
+          return;
+        }
+        final String entryKey = line.substring(0, verdictStart);
+        latest.remove(entryKey);
+        latest.put(entryKey, line);
+      });
+    }
+    long retainedBytes = 0;
+    for (String line : latest.values()) {
+      retainedBytes += getEntryLength(line);
+    }
+    for (Iterator<String> iterator = latest.values().iterator();
+         retainedBytes > maxLogBytes / 2 && iterator.hasNext(); ) {
+      retainedBytes -= getEntryLength(iterator.next());
+      iterator.remove();
+    }
+    final File compactedFile = new File(cacheDir, LOG_FILE_NAME + ".compacted");
+    try (OutputStream out = Files.newOutputStream(compactedFile.toPath())) {
+      for (String line : latest.values()) {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    Files.move(compactedFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    LOGGER.info("Compacted " + logFile + " to " + latest.size() + " verdicts");
+    // Everything in the compacted log is already in the index; entries that are appended to it
+    // from now on come after what was written.
+    indexedFileKey = getFileKey();
+    indexedLength = retainedBytes;
+  }
+
+  private Object getFileKey() throws IOException {
+    return Files.readAttributes(logFile.toPath(), BasicFileAttributes.class).fileKey();
+  }
+
+  private static long getEntryLength(String line) {
+    return line.getBytes(StandardCharsets.UTF_8).length + 1;
+  }
+
+  /**
+   * Passes each complete line of the log from the given offset to the consumer, reading the log
+   * in fixed-size chunks.  Only complete lines are consumed: another process may be part-way
+   * through appending an entry.
+   * @return The offset just past the last complete line.
+   */
+  private static long readLines(FileChannel channel, long offset, Consumer<String> consumer)
+      throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(READ_CHUNK_SIZE);
+    final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    long position = offset;
+    long consumed = offset;
+    while (channel.read(buffer, position) > 0) {
+      buffer.flip();
+      position += buffer.remaining();
+      while (buffer.hasRemaining()) {
+        final byte next = buffer.get();
+        if (next == '\n') {
+          consumer.accept(new String(line.toByteArray(), StandardCharsets.UTF_8));
+          line.reset();
+          consumed = position - buffer.remaining();
+        } else {
+          line.write(next);
+        }
+      }
+      buffer.clear();
+    }
+    return consumed;
+  }
+
+  private void indexEntry(String line) {
+    final String[] components = line.trim().split(" ");
+    if (components.length != 3) {
+      LOGGER.warn("Ignoring malformed interestingness cache entry: " + line);
+      return;
+    }
+    if (!components[0].equals(judgeFingerprint)) {
+      return;
+    }
+    index.put(components[1], components[2].equals(INTERESTING));
+  }
+
+}
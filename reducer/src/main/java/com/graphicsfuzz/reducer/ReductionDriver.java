@@ -23,6 +23,7 @@ import com.graphicsfuzz.common.util.GloballyTruncateLoops;
 import com.graphicsfuzz.common.util.MakeArrayAccessesInBounds;
 import com.graphicsfuzz.common.util.PipelineUniformValueSupplier;
 import com.graphicsfuzz.common.util.ShaderJobFileOperations;
+import com.graphicsfuzz.common.util.ShaderKind;
 import com.graphicsfuzz.reducer.glslreducers.IReductionPass;
 import com.graphicsfuzz.reducer.glslreducers.IReductionPassManager;
 import com.graphicsfuzz.reducer.glslreducers.SystematicReductionPass;
@@ -42,7 +43,13 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -54,6 +61,9 @@ public class ReductionDriver {
 
   private static final int NUM_INITIAL_TRIES = 5;
 
+  // Sub-directory of the work directory in which speculative candidates are judged.
+  private static final String SPECULATIVE_DIR = "speculative";
+
   private final ReducerContext context;
 
   private final ShaderJobFileOperations fileOps;
@@ -69,8 +79,69 @@ public class ReductionDriver {
 
   private int failHashCacheHits;
 
+  private final Optional<InterestingnessCache> interestingnessCache;
+
+  private int persistentCacheHits;
+
   private final IReductionPassManager passManager;
 
+  private final int speculativeCandidates;
+
+  private final ReductionMetrics metrics;
+
+  private final boolean liveMetrics;
+
+  /**
+   * Optional settings of a reduction; the defaults give a sequential reduction with no
+   * persistent cache.
+   */
+  public static final class Options {
+
+    private boolean literalsToUniforms = false;
+    private int speculativeCandidates = 1;
+    private Optional<InterestingnessCache> interestingnessCache = Optional.empty();
+    private boolean liveMetrics = false;
+
+    public Options setLiteralsToUniforms(boolean literalsToUniforms) {
+      this.literalsToUniforms = literalsToUniforms;
+      return this;
+    }
+
+    /**
+     * Sets the number of reduction candidates to judge concurrently.  When greater than 1, the
+     * judge is invoked from multiple threads at once, each time on a shader job in its own
+     * sub-directory of the work directory, so it must be safe to use concurrently.  The first
+     * interesting candidate in pass order is committed, so the sequence of reduction steps
+     * matches that of a sequential reduction with a deterministic judge.
+     */
+    public Options setSpeculativeCandidates(int speculativeCandidates) {
+      if (speculativeCandidates < 1) {
+        throw new IllegalArgumentException(
+            "The number of speculative candidates must be positive.");
+      }
+      this.speculativeCandidates = speculativeCandidates;
+      return this;
+    }
+
+    /**
+     * Sets a cache in which verdicts are looked up and recorded, so that they survive across
+     * reductions.  The cache must have been opened with a fingerprint that identifies the judge.
+     */
+    public Options setInterestingnessCache(InterestingnessCache interestingnessCache) {
+      this.interestingnessCache = Optional.of(interestingnessCache);
+      return this;
+    }
+
+    /**
+     * If set, a line of progress metrics is appended to {@link ReductionMetrics#LIVE_FILE} in
+     * the work directory after each reduction step.
+     */
+    public Options setLiveMetrics(boolean liveMetrics) {
+      this.liveMetrics = liveMetrics;
+      return this;
+    }
+  }
+
   public ReductionDriver(ReducerContext context,
                          boolean verbose,
                          ShaderJobFileOperations fileOps,
@@ -90,25 +161,50 @@ public class ReductionDriver {
                          IFileJudge judge,
                          File workDir,
                          boolean literalsToUniforms) {
+    this(context,
+        verbose,
+        fileOps,
+        judge,
+        workDir,
+        new Options().setLiteralsToUniforms(literalsToUniforms));
+  }
+
+  /**
+   * Creates a reduction driver.  Metrics on the reduction are written to
+   * {@link ReductionMetrics#SUMMARY_FILE} in the work directory when the reduction ends.
+   */
+  public ReductionDriver(ReducerContext context,
+                         boolean verbose,
+                         ShaderJobFileOperations fileOps,
+                         IFileJudge judge,
+                         File workDir,
+                         Options options) {
     this.context = context;
     this.fileOps = fileOps;
     this.judge = judge;
     this.workDir = workDir;
+    this.speculativeCandidates = options.speculativeCandidates;
     this.failHashCache = new HashSet<>();
     this.passHashCache = new HashSet<>();
     this.failHashCacheHits = 0;
-
-    if (literalsToUniforms) {
-      this.passManager = ReductionDriver.getLiteralsToUniformsPassManager(context, verbose);
+    this.interestingnessCache = options.interestingnessCache;
+    this.persistentCacheHits = 0;
+    this.metrics = new ReductionMetrics();
+    this.liveMetrics = options.liveMetrics;
+
+    if (options.literalsToUniforms) {
+      this.passManager = ReductionDriver.getLiteralsToUniformsPassManager(context, verbose,
+          metrics);
     } else {
-      this.passManager = ReductionDriver.getDefaultPassManager(context, verbose);
+      this.passManager = ReductionDriver.getDefaultPassManager(context, verbose, metrics);
     }
 
   }
 
   private static IReductionPassManager getDefaultPassManager(
       ReducerContext context,
-      boolean verbose) {
+      boolean verbose,
+      ReductionMetrics metrics) {
 
     final List<IReductionPass> initialPasses = new ArrayList<>();
     initialPasses.add(new SystematicReductionPass(context, verbose,
@@ -165,12 +261,14 @@ public class ReductionDriver {
       corePasses.add(pass);
       cleanupPasses.add(pass);
     }
-    return new SystematicReductionPassManager(initialPasses, corePasses, cleanupPasses);
+    return new SystematicReductionPassManager(initialPasses, corePasses, cleanupPasses,
+        metrics);
   }
 
   private static IReductionPassManager getLiteralsToUniformsPassManager(
       ReducerContext context,
-      boolean verbose) {
+      boolean verbose,
+      ReductionMetrics metrics) {
 
     return new SystematicReductionPassManager(
         Collections.emptyList(),
@@ -179,7 +277,12 @@ public class ReductionDriver {
             new SystematicReductionPass(
                 context,
                 verbose,
-                IReductionOpportunityFinder.literalToUniformFinder())));
+                IReductionOpportunityFinder.literalToUniformFinder())),
+        metrics);
+  }
+
+  public ReductionMetrics getMetrics() {
+    return metrics;
   }
 
   public String doReduction(
@@ -203,6 +306,10 @@ public class ReductionDriver {
       initialState.removeUniformBindings();
     }
 
+    final ExecutorService judgeExecutor = speculativeCandidates > 1
+        ? Executors.newFixedThreadPool(speculativeCandidates)
+        : null;
+
     try {
       if (fileCountOffset > 0) {
         LOGGER.info("Continuing reduction for {}", shaderJobShortName);
@@ -284,51 +391,123 @@ public class ReductionDriver {
       int stepCount = 0;
       boolean stoppedEarly = false;
 
+      reductionLoop:
       while (true) {
         LOGGER.info("Trying reduction attempt " + stepCount + " (" + numSuccessfulReductions
             + " successful so far).");
-        final Optional<ShaderJob> maybeNewState = passManager.applyReduction(currentState);
-        if (!maybeNewState.isPresent()) {
+        final List<ShaderJob> candidates =
+            passManager.applyReductions(currentState, speculativeCandidates);
+        if (candidates.isEmpty()) {
           LOGGER.info("No more to reduce; stopping.");
           break;
         }
-        final ShaderJob newState = maybeNewState.get();
-        stepCount++;
-        final int currentReductionAttempt = stepCount + fileCountOffset;
-        String currentShaderJobShortName =
-            getReductionStepShaderJobShortName(
-                shaderJobShortName,
-                currentReductionAttempt);
-        final boolean interesting = isInterestingWithCache(newState,
-            requiresUniformBindings,
-            pushConstant,
-            addGlobalLoopLimiters,
-            makeArrayAccessesInBounds,
-            addInitializers,
-            currentShaderJobShortName);
-        passManager.notifyInteresting(interesting);
-        final String currentStepShaderJobShortNameWithOutcome =
-            getReductionStepShaderJobShortName(
-                shaderJobShortName,
-                currentReductionAttempt,
-                Optional.of(interesting ? "success" : "fail"));
-        fileOps.moveShaderJobFileTo(
-            new File(workDir, currentShaderJobShortName + ".json"),
-            new File(workDir, currentStepShaderJobShortNameWithOutcome + ".json"),
-            true
-        );
-        if (interesting) {
-          LOGGER.info("Successful reduction.");
-          numSuccessfulReductions++;
-          currentState = newState;
+
+        // The shader job files on which each candidate gets judged.  A lone candidate is judged
+        // directly in the work directory; speculative candidates are judged concurrently, each in
+        // its own sub-directory, and are only moved into the work directory if they are consumed.
+        final List<File> judgedShaderJobFiles = new ArrayList<>();
+        final List<String> candidateHashes = new ArrayList<>();
+        final List<Boolean> verdicts;
+        if (candidates.size() == 1) {
+          final String currentShaderJobShortName =
+              getReductionStepShaderJobShortName(
+                  shaderJobShortName,
+                  stepCount + 1 + fileCountOffset);
+          verdicts = Collections.singletonList(isInterestingWithCache(candidates.get(0),
+              requiresUniformBindings,
+              pushConstant,
+              addGlobalLoopLimiters,
+              makeArrayAccessesInBounds,
+              addInitializers,
+              currentShaderJobShortName));
+          judgedShaderJobFiles.add(new File(workDir, currentShaderJobShortName + ".json"));
         } else {
-          LOGGER.info("Failed reduction.");
+          for (int i = 0; i < candidates.size(); i++) {
+            judgedShaderJobFiles.add(new File(new File(new File(workDir, SPECULATIVE_DIR),
+                "slot_" + i), getReductionStepShaderJobShortName(shaderJobShortName,
+                stepCount + 1 + i + fileCountOffset) + ".json"));
+          }
+          verdicts = areInterestingSpeculatively(candidates,
+              judgedShaderJobFiles,
+              candidateHashes,
+              judgeExecutor,
+              requiresUniformBindings,
+              pushConstant,
+              addGlobalLoopLimiters,
+              makeArrayAccessesInBounds,
+              addInitializers);
         }
 
-        if (stepLimit > -1 && stepCount >= stepLimit) {
-          LOGGER.info("Stopping reduction due to hitting step limit {}.", stepLimit);
-          stoppedEarly = true;
-          break;
+        int consumed = 0;
+        try {
+          for (int i = 0; i < candidates.size(); i++) {
+            if (verdicts.get(i) == null) {
+              throw new RuntimeException("Reduction loop detected!");
+            }
+            stepCount++;
+            final int currentReductionAttempt = stepCount + fileCountOffset;
+            final String currentShaderJobShortName =
+                getReductionStepShaderJobShortName(
+                    shaderJobShortName,
+                    currentReductionAttempt);
+            final boolean interesting = verdicts.get(i);
+            passManager.notifyInteresting(interesting);
+            consumed++;
+            metrics.recordStep(interesting);
+            if (liveMetrics) {
+              fileOps.appendStringToFile(new File(workDir, ReductionMetrics.LIVE_FILE),
+                  metrics.toProgressJson() + "\n");
+            }
+            final String currentStepShaderJobShortNameWithOutcome =
+                getReductionStepShaderJobShortName(
+                    shaderJobShortName,
+                    currentReductionAttempt,
+                    Optional.of(interesting ? "success" : "fail"));
+            final File judgedShaderJobFile = judgedShaderJobFiles.get(i);
+            // Candidates resolved via a cache are never written out.
+            if (fileOps.doesShaderJobExist(judgedShaderJobFile)) {
+              fileOps.moveShaderJobFileTo(
+                  judgedShaderJobFile,
+                  new File(workDir, currentStepShaderJobShortNameWithOutcome + ".json"),
+                  true
+              );
+            }
+            final File judgedResultFile = new File(judgedShaderJobFile.getParentFile(),
+                currentShaderJobShortName + ".info.json");
+            if (candidates.size() > 1 && fileOps.isFile(judgedResultFile)) {
+              fileOps.moveShaderJobResultFileTo(
+                  judgedResultFile,
+                  new File(workDir, currentShaderJobShortName + ".info.json"),
+                  true
+              );
+            }
+            if (interesting) {
+              LOGGER.info("Successful reduction.");
+              numSuccessfulReductions++;
+              currentState = candidates.get(i);
+              if (candidates.size() > 1) {
+                passHashCache.add(candidateHashes.get(i));
+              }
+            } else {
+              LOGGER.info("Failed reduction.");
+            }
+
+            if (stepLimit > -1 && stepCount >= stepLimit) {
+              LOGGER.info("Stopping reduction due to hitting step limit {}.", stepLimit);
+              stoppedEarly = true;
+              break reductionLoop;
+            }
+            if (interesting) {
+              // Any remaining candidates were derived from the state prior to this successful
+              // step, so they are discarded.
+              break;
+            }
+          }
+        } finally {
+          if (candidates.size() > 1) {
+            metrics.recordSpeculativeBatch(candidates.size() - consumed);
+            fileOps.deleteDirectory(new File(workDir, SPECULATIVE_DIR));
+          }
         }
       }
 
@@ -352,9 +531,27 @@ public class ReductionDriver {
       }
 
       LOGGER.info("Total fail hash cache hits: " + failHashCacheHits);
+      if (interestingnessCache.isPresent()) {
+        LOGGER.info("Total persistent cache hits: " + persistentCacheHits);
+      }
       return finalOutputFilePrefix;
     } catch (FileNotFoundException | FileJudgeException exception) {
       throw new RuntimeException(exception);
+    } finally {
+      if (judgeExecutor != null) {
+        judgeExecutor.shutdownNow();
+      }
+      writeMetrics();
+    }
+  }
+
+  private void writeMetrics() {
+    try {
+      fileOps.writeStringToFile(new File(workDir, ReductionMetrics.SUMMARY_FILE),
+          metrics.toJsonString());
+    } catch (IOException exception) {
+      // The metrics are informative only, so failing to write them should not fail the reduction.
+      LOGGER.warn("Failed to write reduction metrics.", exception);
     }
   }
 
@@ -369,17 +566,14 @@ public class ReductionDriver {
 
     final File shaderJobFile = new File(workDir, shaderJobShortName + ".json");
     String hash = null;
+    String persistentCacheKey = null;
+    Optional<Boolean> persistentVerdict = Optional.empty();
     if (useCache) {
       // The cache is enabled, so first check for a cache hit.
-
-      // Write the state out to a shader job file, without doing any post-processing
-      // transformations.  This is because two different shader jobs might get post-processed to the
-      // same thing, and we want to avoid treating this as a reduction loop (and we *do* want to
-      // guard against reduction loops).
-      writeState(state, shaderJobFile, false, Optional.empty(), false, false, false);
-
-      hash = fileOps.getShaderJobFileHash(shaderJobFile);
-      if (failHashCache.contains(hash)) {
+      hash = getUnprocessedStateHash(state);
+      final boolean failHashCacheHit = failHashCache.contains(hash);
+      metrics.recordHashCacheLookup(failHashCacheHit);
+      if (failHashCacheHit) {
         LOGGER.info(
             "Fail hash cache hit.");
         failHashCacheHits++;
@@ -388,25 +582,191 @@ public class ReductionDriver {
       if (passHashCache.contains(hash)) {
         throw new RuntimeException("Reduction loop detected!");
       }
+      persistentCacheKey = getPersistentCacheKey(hash, requiresUniformBindings, pushConstant,
+          addGlobalLoopLimiters, makeArrayAccessesInBounds, addInitializers);
+      persistentVerdict = lookUpPersistentVerdict(persistentCacheKey);
+      if (persistentVerdict.isPresent() && !persistentVerdict.get()) {
+        failHashCache.add(hash);
+        return false;
+      }
     }
 
-    // If we used the cache, we will have already written the shader job out, but without any post-
-    // processing; we overwrite it now with any relevant post-processing.
     writeState(state, shaderJobFile, requiresUniformBindings, pushConstant, addGlobalLoopLimiters,
         makeArrayAccessesInBounds, addInitializers);
 
-    if (judge.isInteresting(
-        shaderJobFile,
-        new File(workDir, shaderJobShortName + ".info.json"))) {
+    final boolean interesting;
+    if (persistentVerdict.isPresent()) {
+      interesting = persistentVerdict.get();
+    } else {
+      interesting = runJudge(
+          shaderJobFile,
+          new File(workDir, shaderJobShortName + ".info.json"));
       if (useCache) {
-        passHashCache.add(hash);
+        recordPersistentVerdict(persistentCacheKey, interesting);
       }
-      return true;
     }
     if (useCache) {
-      failHashCache.add(hash);
+      if (interesting) {
+        passHashCache.add(hash);
+      } else {
+        failHashCache.add(hash);
+      }
     }
-    return false;
+    return interesting;
+  }
+
+  /**
+   * Yields a key for a shader job in the persistent interestingness cache.  The key accounts for
+   * the post-processing that is applied before the shader job is judged, since that affects the
+   * verdict.
+   */
+  private static String getPersistentCacheKey(String hash,
+                                              boolean requiresUniformBindings,
+                                              Optional<String> pushConstant,
+                                              boolean addGlobalLoopLimiters,
+                                              boolean makeArrayAccessesInBounds,
+                                              boolean addInitializers) {
+    return hash
+        + ":" + (requiresUniformBindings ? "b" : "")
+        + (addGlobalLoopLimiters ? "l" : "")
+        + (makeArrayAccessesInBounds ? "a" : "")
+        + (addInitializers ? "i" : "")
+        + pushConstant.map(item -> ":" + item).orElse("");
+  }
+
+  private Optional<Boolean> lookUpPersistentVerdict(String persistentCacheKey)
+      throws IOException {
+    if (!interestingnessCache.isPresent()) {
+      return Optional.empty();
+    }
+    final Optional<Boolean> result = interestingnessCache.get().lookup(persistentCacheKey);
+    metrics.recordPersistentCacheLookup(result.isPresent());
+    if (result.isPresent()) {
+      LOGGER.info("Persistent cache hit: " + (result.get() ? "interesting." : "not interesting."));
+      persistentCacheHits++;
+    }
+    return result;
+  }
+
+  private void recordPersistentVerdict(String persistentCacheKey, boolean interesting)
+      throws IOException {
+    if (interestingnessCache.isPresent()) {
+      interestingnessCache.get().record(persistentCacheKey, interesting);
+    }
+  }
+
+  /**
+   * Yields the hash of the shader job file that would be written for the state without any
+   * post-processing transformations, without actually writing it.  Post-processing is avoided
+   * because two different shader jobs might get post-processed to the same thing, and we want to
+   * avoid treating this as a reduction loop (and we *do* want to guard against reduction loops).
+   */
+  private String getUnprocessedStateHash(ShaderJob state) {
+    final long startNanos = System.nanoTime();
+    final String hash = fileOps.getShaderJobHash(state,
+        Optional.of(new PipelineUniformValueSupplier(state.getPipelineInfo())));
+    metrics.recordHash(System.nanoTime() - startNanos);
+    return hash;
+  }
+
+  private boolean runJudge(File shaderJobFile, File shaderResultFile)
+      throws FileJudgeException {
+    final long startNanos = System.nanoTime();
+    final boolean interesting = judge.isInteresting(shaderJobFile, shaderResultFile);
+    metrics.recordJudgement(System.nanoTime() - startNanos, interesting);
+    return interesting;
+  }
+
+  /**
+   * Judges the given candidates concurrently, each on its own shader job file.  Candidates known
+   * to be uninteresting from the fail hash cache are not judged.
+   * @param candidates The candidates to be judged.
+   * @param shaderJobFiles The shader job file to which each candidate should be written; each
+   *                       file should reside in its own directory.
+   * @param candidateHashes Populated with the hash of each candidate.
+   * @return A verdict for each candidate, or null for a candidate that would take the reduction
+   *     back to a state that was previously deemed interesting.
+   */
+  private List<Boolean> areInterestingSpeculatively(List<ShaderJob> candidates,
+                                                    List<File> shaderJobFiles,
+                                                    List<String> candidateHashes,
+                                                    ExecutorService judgeExecutor,
+                                                    boolean requiresUniformBindings,
+                                                    Optional<String> pushConstant,
+                                                    boolean addGlobalLoopLimiters,
+                                                    boolean makeArrayAccessesInBounds,
+                                                    boolean addInitializers)
+      throws IOException, FileJudgeException {
+    final List<Future<Boolean>> pendingVerdicts = new ArrayList<>();
+    // The persistent cache key of each candidate that gets judged; null for other candidates.
+    final List<String> persistentCacheKeys = new ArrayList<>();
+    for (int i = 0; i < candidates.size(); i++) {
+      final File shaderJobFile = shaderJobFiles.get(i);
+      final String hash = getUnprocessedStateHash(candidates.get(i));
+      candidateHashes.add(hash);
+      final boolean failHashCacheHit = failHashCache.contains(hash);
+      metrics.recordHashCacheLookup(failHashCacheHit);
+      if (failHashCacheHit) {
+        LOGGER.info("Fail hash cache hit.");
+        failHashCacheHits++;
+        pendingVerdicts.add(CompletableFuture.completedFuture(false));
+        persistentCacheKeys.add(null);
+        continue;
+      }
+      if (passHashCache.contains(hash)) {
+        // This is only a reduction loop if the candidate ends up being consumed.
+        pendingVerdicts.add(CompletableFuture.completedFuture(null));
+        persistentCacheKeys.add(null);
+        continue;
+      }
+      final String persistentCacheKey = getPersistentCacheKey(hash, requiresUniformBindings,
+          pushConstant, addGlobalLoopLimiters, makeArrayAccessesInBounds, addInitializers);
+      final Optional<Boolean> persistentVerdict = lookUpPersistentVerdict(persistentCacheKey);
+      if (persistentVerdict.isPresent() && !persistentVerdict.get()) {
+        pendingVerdicts.add(CompletableFuture.completedFuture(false));
+        persistentCacheKeys.add(null);
+        continue;
+      }
+      fileOps.forceMkdir(shaderJobFile.getParentFile());
+      writeState(candidates.get(i), shaderJobFile, requiresUniformBindings, pushConstant,
+          addGlobalLoopLimiters, makeArrayAccessesInBounds, addInitializers);
+      if (persistentVerdict.isPresent()) {
+        pendingVerdicts.add(CompletableFuture.completedFuture(true));
+        persistentCacheKeys.add(null);
+        continue;
+      }
+      persistentCacheKeys.add(persistentCacheKey);
+      final File shaderResultFile = new File(shaderJobFile.getParentFile(),
+          FilenameUtils.removeExtension(shaderJobFile.getName()) + ".info.json");
+      pendingVerdicts.add(judgeExecutor.submit(
+          () -> runJudge(shaderJobFile, shaderResultFile)));
+    }
+
+    final List<Boolean> verdicts = new ArrayList<>();
+    for (int i = 0; i < pendingVerdicts.size(); i++) {
+      final Boolean verdict;
+      try {
+        verdict = pendingVerdicts.get(i).get();
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+        throw new FileJudgeException(exception);
+      } catch (ExecutionException exception) {
+        if (exception.getCause() instanceof FileJudgeException) {
+          throw (FileJudgeException) exception.getCause();
+        }
+        throw new FileJudgeException(exception.getCause());
+      }
+      if (persistentCacheKeys.get(i) != null) {
+        recordPersistentVerdict(persistentCacheKeys.get(i), verdict);
+      }
+      if (verdict != null && !verdict) {
+        // The verdict for a candidate does not depend on whether it gets consumed, so failures
+        // can be cached regardless.
+        failHashCache.add(candidateHashes.get(i));
+      }
+      verdicts.add(verdict);
+    }
+    return verdicts;
   }
 
   private boolean isInterestingWithCache(ShaderJob state,
@@ -438,7 +798,10 @@ public class ReductionDriver {
                           boolean addGlobalLoopLimiters,
                           boolean makeArrayAccessesInBounds,
                           boolean addInitializers) throws FileNotFoundException {
-    ShaderJob stateToWrite = state.clone();
+    final long startNanos = System.nanoTime();
+    // The state only needs to be cloned if it is going to be transformed before being written.
+    final ShaderJob stateToWrite = requiresUniformBindings || addGlobalLoopLimiters
+        || makeArrayAccessesInBounds || addInitializers ? state.clone() : state;
     if (requiresUniformBindings) {
       assert !stateToWrite.hasUniformBindings();
       stateToWrite.makeUniformBindings(pushConstant);
@@ -460,6 +823,18 @@ public class ReductionDriver {
         shaderJobFileOutput,
         Optional.of(new PipelineUniformValueSupplier(stateToWrite.getPipelineInfo()))
     );
+    final long writeNanos = System.nanoTime() - startNanos;
+    metrics.recordWrite(writeNanos, getShaderJobSize(shaderJobFileOutput));
+  }
+
+  private long getShaderJobSize(File shaderJobFile) {
+    long size = fileOps.getFileLength(shaderJobFile);
+    for (ShaderKind shaderKind : ShaderKind.values()) {
+      if (fileOps.doesShaderExist(shaderJobFile, shaderKind)) {
+        size += fileOps.getShaderLength(shaderJobFile, shaderKind);
+      }
+    }
+    return size;
   }
 
   public static String getReductionStepShaderJobShortName(String variantPrefix,
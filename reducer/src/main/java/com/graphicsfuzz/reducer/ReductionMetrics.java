@@ -0,0 +1,327 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.reducer;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters and timers describing where a reduction spends its time: per reduction pass (passes
+ * that use the same kind of opportunity finder are counted together), in the caches that avoid
+ * judging candidates, in writing candidates out, and in the interestingness judge.
+ *
+ * <p>A summary is written as JSON to the reduction's work directory when the reduction ends.
+ * Metrics may be recorded from several threads, as speculative candidates are judged
+ * concurrently.
+ */
+public final class ReductionMetrics {
+
+  public static final String SUMMARY_FILE = "reduction_metrics.json";
+
+  // One JSON object per line, appended after each reduction step if live metrics are enabled.
+  public static final String LIVE_FILE = "reduction_metrics.jsonl";
+
+  // Upper bounds, in milliseconds, of the buckets of the judge latency histogram; the last bucket
+  // is unbounded.
+  private static final long[] LATENCY_BUCKETS_MILLIS =
+      { 10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+
+  private final long startNanos = System.nanoTime();
+
+  // All of the following are guarded by this.
+
+  private final Map<String, PassMetrics> passes = new LinkedHashMap<>();
+  private String lastPass = null;
+
+  private long steps = 0;
+  private long successfulSteps = 0;
+  private long speculativeBatches = 0;
+  private long discardedCandidates = 0;
+
+  private long hashNanos = 0;
+  private long hashCacheLookups = 0;
+  private long failHashCacheHits = 0;
+  private long persistentCacheLookups = 0;
+  private long persistentCacheHits = 0;
+
+  private long shaderJobsWritten = 0;
+  private long bytesWritten = 0;
+  private long writeNanos = 0;
+
+  private long judgements = 0;
+  private long interestingJudgements = 0;
+  private long judgeNanos = 0;
+  private long maxJudgeNanos = 0;
+  private final long[] judgeLatencyCounts = new long[LATENCY_BUCKETS_MILLIS.length + 1];
+
+  /**
+   * Metrics for one kind of reduction pass.  Passes time their own work; the pass manager records
+   * each invocation of a pass and the verdicts on the candidates that it produced.
+   */
+  public static final class PassMetrics {
+
+    private final ReductionMetrics owner;
+    private final String name;
+
+    // Guarded by owner.
+    private long invocations = 0;
+    private long exhaustedInvocations = 0;
+    private long nanos = 0;
+    private long findCalls = 0;
+    private long opportunitiesFound = 0;
+    private long findNanos = 0;
+    private long clones = 0;
+    private long cloneNanos = 0;
+    private long applyNanos = 0;
+    private long candidatesProduced = 0;
+    private long candidatesJudged = 0;
+    private long candidatesInteresting = 0;
+
+    private PassMetrics(ReductionMetrics owner, String name) {
+      this.owner = owner;
+      this.name = name;
+    }
+
+    public void recordFind(long nanos, int numOpportunities) {
+      synchronized (owner) {
+        findCalls++;
+        opportunitiesFound += numOpportunities;
+        findNanos += nanos;
+      }
+    }
+
+    public void recordClone(long nanos) {
+      synchronized (owner) {
+        clones++;
+        cloneNanos += nanos;
+      }
+    }
+
+    public void recordApply(long nanos) {
+      synchronized (owner) {
+        applyNanos += nanos;
+      }
+    }
+
+    /**
+     * Records a request for candidates from the pass, and the time it took.
+     */
+    public void recordInvocation(long nanos, int numCandidates) {
+      synchronized (owner) {
+        invocations++;
+        this.nanos += nanos;
+        candidatesProduced += numCandidates;
+        if (numCandidates == 0) {
+          exhaustedInvocations++;
+        }
+        owner.lastPass = name;
+      }
+    }
+
+    /**
+     * Records the verdict on a candidate produced by the pass.
+     */
+    public void recordVerdict(boolean interesting) {
+      synchronized (owner) {
+        candidatesJudged++;
+        if (interesting) {
+          candidatesInteresting++;
+        }
+      }
+    }
+
+    private JsonObject toJson() {
+      final JsonObject result = new JsonObject();
+      result.addProperty("invocations", invocations);
+      result.addProperty("exhaustedInvocations", exhaustedInvocations);
+      result.addProperty("totalMillis", toMillis(nanos));
+      result.addProperty("findOpportunitiesCalls", findCalls);
+      result.addProperty("opportunitiesFound", opportunitiesFound);
+      result.addProperty("findOpportunitiesMillis", toMillis(findNanos));
+      result.addProperty("clones", clones);
+      result.addProperty("cloneMillis", toMillis(cloneNanos));
+      result.addProperty("applyMillis", toMillis(applyNanos));
+      result.addProperty("candidatesProduced", candidatesProduced);
+      result.addProperty("candidatesJudged", candidatesJudged);
+      result.addProperty("candidatesInteresting", candidatesInteresting);
+      result.addProperty("successRate", ratio(candidatesInteresting, candidatesJudged));
+      return result;
+    }
+  }
+
+  /**
+   * Gives the metrics for passes with the given name, creating them on first use.
+   */
+  public synchronized PassMetrics getPassMetrics(String name) {
+    return passes.computeIfAbsent(name, item -> new PassMetrics(this, item));
+  }
+
+  public synchronized void recordStep(boolean interesting) {
+    steps++;
+    if (interesting) {
+      successfulSteps++;
+    }
+  }
+
+  /**
+   * Records that several candidates were judged at once, of which some were discarded unused
+   * because an earlier candidate was interesting.
+   */
+  public synchronized void recordSpeculativeBatch(int numDiscarded) {
+    speculativeBatches++;
+    discardedCandidates += numDiscarded;
+  }
+
+  public synchronized void recordHash(long nanos) {
+    hashNanos += nanos;
+  }
+
+  public synchronized void recordHashCacheLookup(boolean failHit) {
+    hashCacheLookups++;
+    if (failHit) {
+      failHashCacheHits++;
+    }
+  }
+
+  public synchronized void recordPersistentCacheLookup(boolean hit) {
+    persistentCacheLookups++;
+    if (hit) {
+      persistentCacheHits++;
+    }
+  }
+
+  public synchronized void recordWrite(long nanos, long bytes) {
+    shaderJobsWritten++;
+    bytesWritten += bytes;
+    writeNanos += nanos;
+  }
+
+  public synchronized void recordJudgement(long nanos, boolean interesting) {
+    judgements++;
+    if (interesting) {
+      interestingJudgements++;
+    }
+    judgeNanos += nanos;
+    maxJudgeNanos = Math.max(maxJudgeNanos, nanos);
+    final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+    int bucket = 0;
+    while (bucket < LATENCY_BUCKETS_MILLIS.length && millis > LATENCY_BUCKETS_MILLIS[bucket]) {
+      bucket++;
+    }
+    judgeLatencyCounts[bucket]++;
+  }
+
+  public synchronized long getJudgements() {
+    return judgements;
+  }
+
+  public synchronized long getFailHashCacheHits() {
+    return failHashCacheHits;
+  }
+
+  /**
+   * A short record of the progress of the reduction, for streaming after each step.
+   */
+  public synchronized JsonObject toProgressJson() {
+    final JsonObject result = new JsonObject();
+    result.addProperty("elapsedMillis", toMillis(System.nanoTime() - startNanos));
+    result.addProperty("steps", steps);
+    result.addProperty("successfulSteps", successfulSteps);
+    result.addProperty("pass", lastPass);
+    result.addProperty("judgements", judgements);
+    result.addProperty("judgeMillis", toMillis(judgeNanos));
+    result.addProperty("failHashCacheHits", failHashCacheHits);
+    result.addProperty("persistentCacheHits", persistentCacheHits);
+    return result;
+  }
+
+  public synchronized JsonObject toJson() {
+    final JsonObject result = new JsonObject();
+    result.addProperty("elapsedMillis", toMillis(System.nanoTime() - startNanos));
+
+    final JsonObject stepsJson = new JsonObject();
+    stepsJson.addProperty("total", steps);
+    stepsJson.addProperty("successful", successfulSteps);
+    stepsJson.addProperty("speculativeBatches", speculativeBatches);
+    stepsJson.addProperty("discardedCandidates", discardedCandidates);
+    result.add("steps", stepsJson);
+
+    final JsonObject cachesJson = new JsonObject();
+    cachesJson.addProperty("hashMillis", toMillis(hashNanos));
+    cachesJson.addProperty("hashCacheLookups", hashCacheLookups);
+    cachesJson.addProperty("failHashCacheHits", failHashCacheHits);
+    cachesJson.addProperty("failHashCacheHitRate", ratio(failHashCacheHits, hashCacheLookups));
+    cachesJson.addProperty("persistentCacheLookups", persistentCacheLookups);
+    cachesJson.addProperty("persistentCacheHits", persistentCacheHits);
+    cachesJson.addProperty("persistentCacheHitRate",
+        ratio(persistentCacheHits, persistentCacheLookups));
+    result.add("caches", cachesJson);
+
+    final JsonObject writesJson = new JsonObject();
+    writesJson.addProperty("shaderJobs", shaderJobsWritten);
+    writesJson.addProperty("bytes", bytesWritten);
+    writesJson.addProperty("millis", toMillis(writeNanos));
+    result.add("writes", writesJson);
+
+    final JsonObject judgeJson = new JsonObject();
+    judgeJson.addProperty("judgements", judgements);
+    judgeJson.addProperty("interesting", interestingJudgements);
+    judgeJson.addProperty("totalMillis", toMillis(judgeNanos));
+    judgeJson.addProperty("meanMillis", judgements == 0 ? 0.0 : toMillis(judgeNanos) / judgements);
+    judgeJson.addProperty("maxMillis", toMillis(maxJudgeNanos));
+    final JsonArray histogram = new JsonArray();
+    for (int i = 0; i < judgeLatencyCounts.length; i++) {
+      final JsonObject bucket = new JsonObject();
+      if (i < LATENCY_BUCKETS_MILLIS.length) {
+        bucket.addProperty("maxMillis", LATENCY_BUCKETS_MILLIS[i]);
+      }
+      bucket.addProperty("count", judgeLatencyCounts[i]);
+      histogram.add(bucket);
+    }
+    judgeJson.add("latencyHistogram", histogram);
+    result.add("judge", judgeJson);
+
+    // Passes are listed with those that took longest first.
+    final List<PassMetrics> sortedPasses = new ArrayList<>(passes.values());
+    sortedPasses.sort((first, second) -> Long.compare(second.nanos, first.nanos));
+    final JsonObject passesJson = new JsonObject();
+    for (PassMetrics pass : sortedPasses) {
+      passesJson.add(pass.name, pass.toJson());
+    }
+    result.add("passes", passesJson);
+    return result;
+  }
+
+  public String toJsonString() {
+    return new GsonBuilder().setPrettyPrinting().create().toJson(toJson());
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  private static double ratio(long count, long total) {
+    return total == 0 ? 0.0 : (double) count / total;
+  }
+
+}
@@ -16,19 +16,30 @@
 
 package com.graphicsfuzz.reducer.glslreducers;
 
+import com.graphicsfuzz.common.transformreduce.ShaderJob;
+import com.graphicsfuzz.reducer.ReductionMetrics;
 import com.graphicsfuzz.reducer.reductionopportunities.IReductionOpportunity;
 import com.graphicsfuzz.reducer.reductionopportunities.IReductionOpportunityFinder;
 import com.graphicsfuzz.reducer.reductionopportunities.ReducerContext;
+import java.util.List;
 
 public abstract class AbstractReductionPass implements IReductionPass {
 
   private final ReducerContext reducerContext;
   private final IReductionOpportunityFinder<? extends IReductionOpportunity> finder;
+  private ReductionMetrics.PassMetrics metrics;
 
   AbstractReductionPass(ReducerContext reducerContext,
                         IReductionOpportunityFinder<? extends IReductionOpportunity> finder) {
     this.reducerContext = reducerContext;
     this.finder = finder;
+    // Recorded nowhere until the pass manager provides metrics.
+    this.metrics = new ReductionMetrics().getPassMetrics(finder.getName());
+  }
+
+  @Override
+  public final void setMetrics(ReductionMetrics.PassMetrics metrics) {
+    this.metrics = metrics;
   }
 
   @Override
@@ -44,4 +55,29 @@ public abstract class AbstractReductionPass implements IReductionPass {
     return reducerContext;
   }
 
+  protected final ReductionMetrics.PassMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Finds the opportunities of the pass's kind in a shader job, recording the time taken.
+   */
+  protected final List<? extends IReductionOpportunity> findOpportunities(ShaderJob shaderJob) {
+    final long startNanos = System.nanoTime();
+    final List<? extends IReductionOpportunity> opportunities =
+        finder.findOpportunities(shaderJob, reducerContext);
+    metrics.recordFind(System.nanoTime() - startNanos, opportunities.size());
+    return opportunities;
+  }
+
+  /**
+   * Clones a shader job, recording the time taken.
+   */
+  protected final ShaderJob cloneShaderJob(ShaderJob shaderJob) {
+    final long startNanos = System.nanoTime();
+    final ShaderJob result = shaderJob.clone();
+    metrics.recordClone(System.nanoTime() - startNanos);
+    return result;
+  }
+
 }
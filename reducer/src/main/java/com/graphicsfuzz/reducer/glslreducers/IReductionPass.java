@@ -17,12 +17,31 @@
 package com.graphicsfuzz.reducer.glslreducers;
 
 import com.graphicsfuzz.common.transformreduce.ShaderJob;
+import com.graphicsfuzz.reducer.ReductionMetrics;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
 public interface IReductionPass {
 
   Optional<ShaderJob> tryApplyReduction(ShaderJob shaderJob);
 
+  /**
+   * Speculatively produces a sequence of candidate shader jobs, where the candidate at position i
+   * is the shader job that tryApplyReduction would produce if the candidates at positions 0 to
+   * i - 1 were all found to be uninteresting.  The pass is not advanced by this call: the caller
+   * must call notifyInteresting once for each candidate that it consumes, in order.
+   * Passes that cannot predict their future steps yield at most one candidate.
+   * @param shaderJob The shader job to be reduced.
+   * @param maxCandidates The maximum number of candidates to produce; must be positive.
+   * @return An empty list if the pass has nothing left to try, otherwise between 1 and
+   *     maxCandidates transformed shader jobs.
+   */
+  default List<ShaderJob> tryApplyReductions(ShaderJob shaderJob, int maxCandidates) {
+    return tryApplyReduction(shaderJob).map(Collections::singletonList)
+        .orElse(Collections.emptyList());
+  }
+
   void notifyInteresting(boolean interesting);
 
   String getName();
@@ -31,4 +50,10 @@ public interface IReductionPass {
 
   boolean reachedMinimumGranularity();
 
+  /**
+   * Gives the pass somewhere to record the time it spends finding and applying opportunities.
+   */
+  default void setMetrics(ReductionMetrics.PassMetrics metrics) {
+  }
+
 }
@@ -17,6 +17,8 @@
 package com.graphicsfuzz.reducer.glslreducers;
 
 import com.graphicsfuzz.common.transformreduce.ShaderJob;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
 public interface IReductionPassManager {
@@ -29,6 +31,22 @@ public interface IReductionPassManager {
    */
   Optional<ShaderJob> applyReduction(ShaderJob shaderJob);
 
+  /**
+   * Uses the managed passes to speculatively produce several simpler shader jobs, so that they can
+   * be judged concurrently.  The candidate at position i is the shader job that applyReduction
+   * would yield if all earlier candidates were deemed uninteresting.  The caller must call
+   * notifyInteresting once for each candidate it consumes, in order, stopping after the first
+   * interesting candidate; any remaining candidates must be discarded.
+   * @param shaderJob The shader job to be reduced.
+   * @param maxCandidates The maximum number of candidates to produce; must be positive.
+   * @return An empty list if the reduction passes have nothing left to try, otherwise a
+   *     non-empty list of transformed shader jobs.
+   */
+  default List<ShaderJob> applyReductions(ShaderJob shaderJob, int maxCandidates) {
+    return applyReduction(shaderJob).map(Collections::singletonList)
+        .orElse(Collections.emptyList());
+  }
+
   /**
    * Notify the pass manager whether the last reduction it applied turned out to be interesting.
    * @param isInteresting True if and only if the last reduction applied by the pass manager
@@ -61,7 +61,7 @@ public class RandomizedReductionPass extends AbstractReductionPass {
 
   @Override
   public Optional<ShaderJob> tryApplyReduction(ShaderJob shaderJob) {
-    final ShaderJob workingShaderJob = shaderJob.clone();
+    final ShaderJob workingShaderJob = cloneShaderJob(shaderJob);
     int localPercentageToReduce = percentageToReduce;
     while (true) {
       if (attemptToTransform(workingShaderJob, localPercentageToReduce)) {
@@ -136,8 +136,7 @@ public class RandomizedReductionPass extends AbstractReductionPass {
     for (; taken < maxOpportunitiesToTake; taken++) {
 
       final List<? extends IReductionOpportunity> currentReductionOpportunities =
-            getFinder().findOpportunities(
-                  shaderJob, getReducerContext());
+            findOpportunities(shaderJob);
       if (currentReductionOpportunities.isEmpty()) {
         break;
       }
@@ -163,7 +162,7 @@ public class RandomizedReductionPass extends AbstractReductionPass {
         ShaderJob shaderJob) {
     // Get the available reduction opportunities.
     final List<? extends IReductionOpportunity> initialReductionOpportunities =
-        getFinder().findOpportunities(shaderJob, getReducerContext());
+        findOpportunities(shaderJob);
 
     initialReductionOpportunities.sort((first, second) -> first.depth().compareTo(second.depth()));
     return initialReductionOpportunities;
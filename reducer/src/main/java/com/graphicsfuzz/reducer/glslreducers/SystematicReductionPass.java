@@ -20,6 +20,8 @@ import com.graphicsfuzz.common.transformreduce.ShaderJob;
 import com.graphicsfuzz.reducer.reductionopportunities.IReductionOpportunity;
 import com.graphicsfuzz.reducer.reductionopportunities.IReductionOpportunityFinder;
 import com.graphicsfuzz.reducer.reductionopportunities.ReducerContext;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
@@ -31,6 +33,12 @@ public class SystematicReductionPass extends AbstractReductionPass {
   private int granularity;
   private final int maximumGranularity;
 
+  // The shader job in which opportunities were most recently found, and the number found.  A pass
+  // never modifies the shader job it is given, so when the same shader job is presented again,
+  // because the previous step was not interesting, the number of opportunities is still known.
+  private ShaderJob lastShaderJob;
+  private int lastNumOpportunities;
+
   public SystematicReductionPass(
       ReducerContext reducerContext,
       boolean verbose,
@@ -52,32 +60,64 @@ public class SystematicReductionPass extends AbstractReductionPass {
 
   @Override
   public Optional<ShaderJob> tryApplyReduction(ShaderJob shaderJob) {
-    final ShaderJob workingShaderJob = shaderJob.clone();
-    List<? extends IReductionOpportunity> opportunities =
-        getFinder().findOpportunities(workingShaderJob, getReducerContext());
-
-    opportunities.sort(Comparator.comparing(IReductionOpportunity::depth));
+    final List<ShaderJob> candidates = tryApplyReductions(shaderJob, 1);
+    return candidates.isEmpty() ? Optional.empty() : Optional.of(candidates.get(0));
+  }
 
-    if (!isInitialized) {
-      isInitialized = true;
-      index = 0;
-      granularity = Math.min(maximumGranularity, Math.max(1, opportunities.size()));
+  @Override
+  public List<ShaderJob> tryApplyReductions(ShaderJob shaderJob, int maxCandidates) {
+    assert maxCandidates > 0;
+    if (isInitialized && shaderJob == lastShaderJob && index >= lastNumOpportunities) {
+      // Every opportunity has been tried at the current granularity, so there is no need to clone
+      // the shader job and find the opportunities again to discover this.
+      return finishRound();
     }
-
-    assert granularity > 0;
-
-    if (index >= opportunities.size()) {
-      index = 0;
-      granularity = Math.max(1, granularity / 2);
-      return Optional.empty();
+    final List<ShaderJob> candidates = new ArrayList<>();
+    int numOpportunities = -1;
+    for (int i = 0; i < maxCandidates; i++) {
+      // Candidate i is what we would try next if candidates 0 to i - 1 all turned out to be
+      // uninteresting: each such failure causes the index to move on by the granularity, and
+      // leaves the shader job unchanged.
+      if (i > 0 && index + i * granularity >= numOpportunities) {
+        break;
+      }
+      final ShaderJob workingShaderJob = cloneShaderJob(shaderJob);
+      List<? extends IReductionOpportunity> opportunities = findOpportunities(workingShaderJob);
+
+      opportunities.sort(Comparator.comparing(IReductionOpportunity::depth));
+      numOpportunities = opportunities.size();
+      lastShaderJob = shaderJob;
+      lastNumOpportunities = numOpportunities;
+
+      if (!isInitialized) {
+        isInitialized = true;
+        index = 0;
+        granularity = Math.min(maximumGranularity, Math.max(1, opportunities.size()));
+      }
+
+      assert granularity > 0;
+
+      if (index >= opportunities.size()) {
+        assert i == 0;
+        return finishRound();
+      }
+
+      final int start = index + i * granularity;
+      final long applyStartNanos = System.nanoTime();
+      for (int j = start; j < Math.min(start + granularity, opportunities.size()); j++) {
+        opportunities.get(j).applyReduction();
+      }
+      getMetrics().recordApply(System.nanoTime() - applyStartNanos);
+      candidates.add(workingShaderJob);
     }
 
+    return candidates;
+  }
 
-    for (int i = index; i < Math.min(index + granularity, opportunities.size()); i++) {
-      opportunities.get(i).applyReduction();
-    }
-
-    return Optional.of(workingShaderJob);
+  private List<ShaderJob> finishRound() {
+    index = 0;
+    granularity = Math.max(1, granularity / 2);
+    return Collections.emptyList();
   }
 
   @Override
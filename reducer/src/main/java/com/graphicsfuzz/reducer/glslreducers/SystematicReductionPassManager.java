@@ -17,7 +17,10 @@
 package com.graphicsfuzz.reducer.glslreducers;
 
 import com.graphicsfuzz.common.transformreduce.ShaderJob;
+import com.graphicsfuzz.reducer.ReductionMetrics;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import org.slf4j.Logger;
@@ -47,9 +50,21 @@ public class SystematicReductionPassManager implements IReductionPassManager {
   // The index of the pass currently being applied.
   private int passIndex;
 
+  private final ReductionMetrics metrics;
+
   public SystematicReductionPassManager(List<IReductionPass> initialPasses,
                                         List<IReductionPass> corePasses,
                                         List<IReductionPass> exhaustivePasses) {
+    this(initialPasses, corePasses, exhaustivePasses, new ReductionMetrics());
+  }
+
+  /**
+   * @param metrics Receives the time spent in, and the verdicts on the candidates of, each pass.
+   */
+  public SystematicReductionPassManager(List<IReductionPass> initialPasses,
+                                        List<IReductionPass> corePasses,
+                                        List<IReductionPass> exhaustivePasses,
+                                        ReductionMetrics metrics) {
     this.initialPasses = new ArrayList<>();
     this.initialPasses.addAll(initialPasses);
     this.corePasses = new ArrayList<>();
@@ -58,6 +73,13 @@ public class SystematicReductionPassManager implements IReductionPassManager {
     this.exhaustivePasses.addAll(exhaustivePasses);
     this.anotherRoundWorthwhile = false;
     this.passIndex = 0;
+    this.metrics = metrics;
+    for (List<IReductionPass> passes : Arrays.asList(initialPasses, corePasses,
+        exhaustivePasses)) {
+      for (IReductionPass pass : passes) {
+        pass.setMetrics(metrics.getPassMetrics(pass.getName()));
+      }
+    }
 
     if (!this.initialPasses.isEmpty()) {
       this.currentPasses = this.initialPasses;
@@ -72,13 +94,27 @@ public class SystematicReductionPassManager implements IReductionPassManager {
 
   @Override
   public Optional<ShaderJob> applyReduction(ShaderJob shaderJob) {
+    final List<ShaderJob> candidates = applyReductions(shaderJob, 1);
+    return candidates.isEmpty() ? Optional.empty() : Optional.of(candidates.get(0));
+  }
+
+  @Override
+  public List<ShaderJob> applyReductions(ShaderJob shaderJob, int maxCandidates) {
     while (true) {
       LOGGER.info("About to apply pass " + getCurrentPass().getName() + ": " + getCurrentPass());
-      Optional<ShaderJob> maybeResult =
-          getCurrentPass().tryApplyReduction(shaderJob);
-      if (maybeResult.isPresent()) {
-        LOGGER.info("Pass " + getCurrentPass().getName() + " made a reduction step.");
-        return maybeResult;
+      final long startNanos = System.nanoTime();
+      final List<ShaderJob> candidates =
+          getCurrentPass().tryApplyReductions(shaderJob, maxCandidates);
+      metrics.getPassMetrics(getCurrentPass().getName())
+          .recordInvocation(System.nanoTime() - startNanos, candidates.size());
+      if (!candidates.isEmpty()) {
+        if (candidates.size() == 1) {
+          LOGGER.info("Pass " + getCurrentPass().getName() + " made a reduction step.");
+        } else {
+          LOGGER.info("Pass " + getCurrentPass().getName() + " made " + candidates.size()
+              + " speculative reduction steps.");
+        }
+        return candidates;
       }
       // This pass did not have any impact.
       LOGGER.info("Pass " + getCurrentPass().getName() + " did not make a reduction step.");
@@ -101,7 +137,7 @@ public class SystematicReductionPassManager implements IReductionPassManager {
         LOGGER.info("Moving to exhaustive passes (cleanup)");
         startNewRound(exhaustivePasses);
       } else {
-        return Optional.empty();
+        return Collections.emptyList();
       }
     }
   }
@@ -115,6 +151,7 @@ public class SystematicReductionPassManager implements IReductionPassManager {
   @Override
   public void notifyInteresting(boolean isInteresting) {
     getCurrentPass().notifyInteresting(isInteresting);
+    metrics.getPassMetrics(getCurrentPass().getName()).recordVerdict(isInteresting);
     if (isInteresting) {
       anotherRoundWorthwhile = true;
     }
@@ -18,6 +18,7 @@ package com.graphicsfuzz.reducer.tool;
 
 import com.graphicsfuzz.common.glslversion.ShadingLanguageVersion;
 import com.graphicsfuzz.common.transformreduce.ShaderJob;
+import com.graphicsfuzz.common.util.FileHelper;
 import com.graphicsfuzz.common.util.GlslParserException;
 import com.graphicsfuzz.common.util.IRandom;
 import com.graphicsfuzz.common.util.IdGenerator;
@@ -27,7 +28,9 @@ import com.graphicsfuzz.common.util.ReductionProgressHelper;
 import com.graphicsfuzz.common.util.ShaderJobFileOperations;
 import com.graphicsfuzz.common.util.ShaderKind;
 import com.graphicsfuzz.reducer.IFileJudge;
+import com.graphicsfuzz.reducer.InterestingnessCache;
 import com.graphicsfuzz.reducer.ReductionDriver;
+import com.graphicsfuzz.reducer.ReductionMetrics;
 import com.graphicsfuzz.reducer.ReductionKind;
 import com.graphicsfuzz.reducer.filejudge.CustomFileJudge;
 import com.graphicsfuzz.reducer.filejudge.FuzzingFileJudge;
@@ -46,6 +49,7 @@ import com.graphicsfuzz.util.ArgsUtil;
 import com.graphicsfuzz.util.Constants;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicLong;
@@ -54,6 +58,7 @@ import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
@@ -220,6 +225,37 @@ public class GlslReduce {
               + "numbers with uniforms.")
           .action(Arguments.storeTrue());
 
+    parser.addArgument("--speculative-candidates")
+        .help("The number of reduction candidates to judge concurrently.  Values greater than 1 "
+            + "allow several interestingness tests to run at once; the first interesting "
+            + "candidate in pass order is always the one that is taken, so results match those of "
+            + "a sequential reduction.  Requires an interestingness test that can safely be run "
+            + "concurrently.")
+        .setDefault(1)
+        .type(Integer.class);
+
+    parser.addArgument("--interestingness-cache")
+        .help("Directory in which to persist interestingness verdicts, so that they can be reused "
+            + "when a reduction is continued, and by other reductions that use the same "
+            + "interestingness test.  The directory can be shared between reductions.  Verdicts "
+            + "are only reused if the following are unchanged: the --reduction-kind, --metric, "
+            + "--threshold, --error-string, --server, --worker, --retry-limit, --skip-render, "
+            + "--swiftshader and --stop-on-error options; the interestingness-test command line; "
+            + "the contents of the interestingness test script, i.e. the first word of the "
+            + "command line; and the contents of the --reference result file and of its .png "
+            + "image.  Nothing else is checked: if you change a program or helper script that the "
+            + "interestingness test calls, clear the directory.  Once the cache grows beyond "
+            + (InterestingnessCache.DEFAULT_MAX_LOG_BYTES >> 20) + " MiB, its oldest verdicts "
+            + "are discarded.")
+        .type(File.class);
+
+    parser.addArgument("--live-metrics")
+        .help("After each reduction step, append a line of JSON describing the progress of the "
+            + "reduction to " + ReductionMetrics.LIVE_FILE + " in the output directory.  A "
+            + "summary of reduction metrics is always written to " + ReductionMetrics.SUMMARY_FILE
+            + " when the reduction ends.")
+        .action(Arguments.storeTrue());
+
     parser.addArgument("--no-ub-guards")
         .help("Do not emit guards against undefined behaviour (such as loop limiters and array "
             + "bounds clamping).")
@@ -312,6 +348,11 @@ public class GlslReduce {
 
       final boolean literalsToUniforms = ns.get("literals_to_uniforms");
 
+      final int speculativeCandidates = ns.get("speculative_candidates");
+      if (speculativeCandidates < 1) {
+        throw new ArgumentParserException("--speculative-candidates must be positive", parser);
+      }
+
       if (managerOverride != null && (server == null || worker == null)) {
         throw new ArgumentParserException(
               "Must supply server (dummy string) and worker when executing in server process.",
@@ -463,6 +504,16 @@ public class GlslReduce {
                 parser);
       }
 
+      final ReductionDriver.Options options = new ReductionDriver.Options()
+          .setLiteralsToUniforms(literalsToUniforms)
+          .setSpeculativeCandidates(speculativeCandidates)
+          .setLiveMetrics(ns.get("live_metrics"));
+      final File interestingnessCacheDir = ns.get("interestingness_cache");
+      if (interestingnessCacheDir != null) {
+        options.setInterestingnessCache(new InterestingnessCache(interestingnessCacheDir,
+            getJudgeFingerprint(ns, fileOps)));
+      }
+
       doReductionHelper(
           inputShaderJobFile,
           shaderJobShortName,
@@ -473,7 +524,7 @@ public class GlslReduce {
           reduceEverywhere,
           addUbGuards,
           continuePreviousReduction,
-          literalsToUniforms,
+          options,
           verbose,
           fileOps);
 
@@ -501,7 +552,7 @@ public class GlslReduce {
       boolean reduceEverywhere,
       boolean addUbGuards,
       boolean continuePreviousReduction,
-      boolean literalsToUniforms,
+      ReductionDriver.Options options,
       boolean verbose,
       ShaderJobFileOperations fileOps)
       throws IOException, ParseTimeoutException, InterruptedException, GlslParserException {
@@ -542,7 +593,7 @@ public class GlslReduce {
         fileOps,
         fileJudge,
         workDir,
-        literalsToUniforms)
+        options)
         .doReduction(
             initialState,
             outputShortName,
@@ -550,6 +601,42 @@ public class GlslReduce {
             stepLimit);
   }
 
+  /**
+   * Computes a fingerprint of everything that the verdict of the interestingness test depends on,
+   * other than the shader job being judged: the kind of reduction and its settings, and the
+   * contents of the reference result and custom interestingness test script, if any.
+   */
+  private static String getJudgeFingerprint(Namespace ns, ShaderJobFileOperations fileOps)
+      throws IOException {
+    final StringBuilder description = new StringBuilder();
+    for (String key : Arrays.asList("reduction_kind", "interestingness_test", "metric",
+        "threshold", "error_string", "server", "worker", "retry_limit", "skip_render",
+        "swiftshader", "stop_on_error")) {
+      description.append(key).append("=").append((Object) ns.get(key)).append("\n");
+    }
+    final List<String> customJudgeScript = ns.get("interestingness_test");
+    if (!customJudgeScript.isEmpty()) {
+      final File scriptFile = new File(customJudgeScript.get(0));
+      if (fileOps.isFile(scriptFile)) {
+        description.append("script=")
+            .append(DigestUtils.md5Hex(fileOps.readFileToByteArray(scriptFile))).append("\n");
+      }
+    }
+    final File referenceResultFile = ns.get("reference");
+    if (referenceResultFile != null) {
+      description.append("reference=")
+          .append(DigestUtils.md5Hex(fileOps.readFileToByteArray(referenceResultFile)));
+      final File referenceImageFile = new File(
+          FileHelper.removeEnd(referenceResultFile.toString(), ".info.json") + ".png");
+      if (fileOps.isFile(referenceImageFile)) {
+        description.append(" ")
+            .append(DigestUtils.md5Hex(fileOps.readFileToByteArray(referenceImageFile)));
+      }
+      description.append("\n");
+    }
+    return DigestUtils.md5Hex(description.toString());
+  }
+
   private static ShadingLanguageVersion getGlslVersionForShaderJob(
       File shaderFileJob,
       ShaderJobFileOperations fileOps)
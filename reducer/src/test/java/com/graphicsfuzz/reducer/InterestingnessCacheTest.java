@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.reducer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Optional;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class InterestingnessCacheTest {
+
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  @Test
+  public void testVerdictsPersist() throws Exception {
+    final File cacheDir = new File(testFolder.getRoot(), "cache");
+    final InterestingnessCache cache = new InterestingnessCache(cacheDir, "judge1");
+    assertFalse(cache.lookup("abc").isPresent());
+    cache.record("abc", true);
+    cache.record("def", false);
+    assertEquals(Optional.of(true), cache.lookup("abc"));
+    assertEquals(Optional.of(false), cache.lookup("def"));
+
+    final InterestingnessCache reopened = new InterestingnessCache(cacheDir, "judge1");
+    assertEquals(2, reopened.size());
+    assertEquals(Optional.of(true), reopened.lookup("abc"));
+    assertEquals(Optional.of(false), reopened.lookup("def"));
+  }
+
+  @Test
+  public void testVerdictsAreSpecificToJudge() throws Exception {
+    final File cacheDir = new File(testFolder.getRoot(), "cache");
+    new InterestingnessCache(cacheDir, "judge1").record("abc", true);
+    final InterestingnessCache otherJudgeCache = new InterestingnessCache(cacheDir, "judge2");
+    assertFalse(otherJudgeCache.lookup("abc").isPresent());
+    otherJudgeCache.record("abc", false);
+    assertEquals(Optional.of(true), new InterestingnessCache(cacheDir, "judge1").lookup("abc"));
+    assertEquals(Optional.of(false), new InterestingnessCache(cacheDir, "judge2").lookup("abc"));
+  }
+
+  @Test
+  public void testVerdictsFromConcurrentUserAreSeen() throws Exception {
+    final File cacheDir = new File(testFolder.getRoot(), "cache");
+    final InterestingnessCache first = new InterestingnessCache(cacheDir, "judge1");
+    final InterestingnessCache second = new InterestingnessCache(cacheDir, "judge1");
+    first.record("abc", false);
+    assertEquals(Optional.of(false), second.lookup("abc"));
+  }
+
+  @Test
+  public void testLogIsReadInChunks() throws Exception {
+    final File cacheDir = new File(testFolder.getRoot(), "cache");
+    final InterestingnessCache cache = new InterestingnessCache(cacheDir, "judge1");
+    // Enough entries that the log spans several read chunks.
+    for (int i = 0; i < 5000; i++) {
+      cache.record("key" + i, i % 3 == 0);
+    }
+    final InterestingnessCache reopened = new InterestingnessCache(cacheDir, "judge1");
+    assertEquals(5000, reopened.size());
+    assertEquals(Optional.of(true), reopened.lookup("key0"));
+    assertEquals(Optional.of(false), reopened.lookup("key4999"));
+  }
+
+  @Test
+  public void testLogIsCompacted() throws Exception {
+    final File cacheDir = new File(testFolder.getRoot(), "cache");
+    final File logFile = new File(cacheDir, InterestingnessCache.LOG_FILE_NAME);
+    final long maxLogBytes = 1000;
+    final InterestingnessCache cache = new InterestingnessCache(cacheDir, "judge1", maxLogBytes);
+    final InterestingnessCache other = new InterestingnessCache(cacheDir, "judge1", maxLogBytes);
+    for (int i = 0; i < 200; i++) {
+      cache.record("key" + i, true);
+      assertTrue(logFile.length() <= maxLogBytes);
+    }
+    // The cache that recorded the verdicts remembers all of them.
+    assertEquals(Optional.of(true), cache.lookup("key0"));
+    // Only the most recent verdicts survive in the log.
+    assertFalse(other.lookup("key0").isPresent());
+    assertEquals(Optional.of(true), other.lookup("key199"));
+    cache.record("key200", false);
+    assertEquals(Optional.of(false), other.lookup("key200"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBadKey() throws Exception {
+    new InterestingnessCache(testFolder.getRoot(), "judge1").record("a b", true);
+  }
+
+}
@@ -1118,4 +1118,76 @@ public class ReductionDriverTest {
 
   }
 
+  @Test
+  public void testSpeculativeReductionMatchesSequentialReduction() throws Exception {
+    final String shader = "#version 310 es\n"
+        + "precision highp float;\n"
+        + "layout(location = 0) out vec4 color;\n"
+        + "void main()\n"
+        + "{\n"
+        + " float a = 1.0;\n"
+        + " float b = sin(a) + cos(2.0);\n"
+        + " for (int i = 0; i < 10; i++) {\n"
+        + "  b += float(i) * 3.0;\n"
+        + " }\n"
+        + " color = vec4(b, a, 0.0, 1.0);\n"
+        + " if (b > 4.0) {\n"
+        + "  color.x = sin(b);\n"
+        + " }\n"
+        + "}\n";
+
+    final IFileJudge judge = (shaderJobFile, unused) -> {
+      try {
+        return FileUtils.readFileToString(
+            FileHelper.replaceExtension(shaderJobFile, ".frag"), StandardCharsets.UTF_8)
+            .contains("sin(");
+      } catch (IOException exception) {
+        throw new RuntimeException(exception);
+      }
+    };
+
+    final File sequentialWorkDir = testFolder.newFolder("sequential");
+    final File speculativeWorkDir = testFolder.newFolder("speculative_reduction");
+
+    final String sequentialPrefix = reduceWithSpeculativeCandidates(shader, judge,
+        sequentialWorkDir, 1);
+    final String speculativePrefix = reduceWithSpeculativeCandidates(shader, judge,
+        speculativeWorkDir, 4);
+
+    assertEquals(sequentialPrefix, speculativePrefix);
+    assertEquals(
+        FileUtils.readFileToString(new File(sequentialWorkDir, sequentialPrefix + ".frag"),
+            StandardCharsets.UTF_8),
+        FileUtils.readFileToString(new File(speculativeWorkDir, speculativePrefix + ".frag"),
+            StandardCharsets.UTF_8));
+
+    // The same reduction steps, with the same outcomes, should have been recorded, and no
+    // speculative work should be left behind.
+    final String[] sequentialFiles = sequentialWorkDir.list();
+    final String[] speculativeFiles = speculativeWorkDir.list();
+    assertNotNull(sequentialFiles);
+    assertNotNull(speculativeFiles);
+    Arrays.sort(sequentialFiles);
+    Arrays.sort(speculativeFiles);
+    assertEquals(Arrays.asList(sequentialFiles), Arrays.asList(speculativeFiles));
+  }
+
+  private String reduceWithSpeculativeCandidates(String shader, IFileJudge judge, File workDir,
+                                                 int speculativeCandidates) throws Exception {
+    final ShaderJob shaderJob = new GlslShaderJob(Optional.empty(),
+        new PipelineInfo(),
+        ParseHelper.parse(shader));
+    return new ReductionDriver(new ReducerContext(true,
+        true,
+        ShadingLanguageVersion.ESSL_310,
+        new RandomWrapper(0),
+        new IdGenerator()),
+        false,
+        fileOps,
+        judge,
+        workDir,
+        new ReductionDriver.Options().setSpeculativeCandidates(speculativeCandidates))
+        .doReduction(shaderJob, "temp", 0, -1);
+  }
+
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.reducer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ReductionMetricsTest {
+
+  @Test
+  public void testPassMetrics() {
+    final ReductionMetrics metrics = new ReductionMetrics();
+    final ReductionMetrics.PassMetrics pass = metrics.getPassMetrics("stmt");
+    // Passes with the same name share their metrics.
+    assertSame(pass, metrics.getPassMetrics("stmt"));
+    pass.recordInvocation(100, 1);
+    pass.recordVerdict(true);
+    pass.recordInvocation(100, 1);
+    pass.recordVerdict(false);
+    pass.recordInvocation(100, 0);
+
+    final JsonObject passJson = metrics.toJson().getAsJsonObject("passes")
+        .getAsJsonObject("stmt");
+    assertEquals(3, passJson.get("invocations").getAsLong());
+    assertEquals(1, passJson.get("exhaustedInvocations").getAsLong());
+    assertEquals(2, passJson.get("candidatesJudged").getAsLong());
+    assertEquals(0.5, passJson.get("successRate").getAsDouble(), 0.0);
+    assertEquals("stmt", metrics.toProgressJson().get("pass").getAsString());
+  }
+
+  @Test
+  public void testCaches() {
+    final ReductionMetrics metrics = new ReductionMetrics();
+    metrics.recordHashCacheLookup(true);
+    metrics.recordHashCacheLookup(false);
+    metrics.recordHashCacheLookup(false);
+    metrics.recordHashCacheLookup(false);
+    metrics.recordPersistentCacheLookup(false);
+
+    final JsonObject caches = metrics.toJson().getAsJsonObject("caches");
+    assertEquals(1, caches.get("failHashCacheHits").getAsLong());
+    assertEquals(0.25, caches.get("failHashCacheHitRate").getAsDouble(), 0.0);
+    assertEquals(0.0, caches.get("persistentCacheHitRate").getAsDouble(), 0.0);
+  }
+
+  @Test
+  public void testJudgeLatencyHistogram() {
+    final ReductionMetrics metrics = new ReductionMetrics();
+    metrics.recordJudgement(TimeUnit.MILLISECONDS.toNanos(5), true);
+    metrics.recordJudgement(TimeUnit.MILLISECONDS.toNanos(10), false);
+    metrics.recordJudgement(TimeUnit.MILLISECONDS.toNanos(20), false);
+    metrics.recordJudgement(TimeUnit.MINUTES.toNanos(5), false);
+
+    final JsonObject judge = metrics.toJson().getAsJsonObject("judge");
+    assertEquals(4, judge.get("judgements").getAsLong());
+    assertEquals(1, judge.get("interesting").getAsLong());
+    final JsonArray histogram = judge.getAsJsonArray("latencyHistogram");
+    assertEquals(2, histogram.get(0).getAsJsonObject().get("count").getAsLong());
+    assertEquals(1, histogram.get(1).getAsJsonObject().get("count").getAsLong());
+    final JsonObject last = histogram.get(histogram.size() - 1).getAsJsonObject();
+    assertEquals(1, last.get("count").getAsLong());
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.reducer.glslreducers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.graphicsfuzz.common.glslversion.ShadingLanguageVersion;
+import com.graphicsfuzz.common.transformreduce.GlslShaderJob;
+import com.graphicsfuzz.common.transformreduce.ShaderJob;
+import com.graphicsfuzz.common.util.IdGenerator;
+import com.graphicsfuzz.common.util.ParseHelper;
+import com.graphicsfuzz.common.util.PipelineInfo;
+import com.graphicsfuzz.common.util.RandomWrapper;
+import com.graphicsfuzz.reducer.reductionopportunities.IReductionOpportunityFinder;
+import com.graphicsfuzz.reducer.reductionopportunities.ReducerContext;
+import com.graphicsfuzz.reducer.reductionopportunities.StmtReductionOpportunity;
+import java.util.List;
+import java.util.Optional;
+import org.junit.Test;
+
+public class SystematicReductionPassTest {
+
+  @Test
+  public void testOpportunitiesAreNotSoughtAgainToEndRound() throws Exception {
+    final ShaderJob shaderJob = new GlslShaderJob(Optional.empty(), new PipelineInfo(),
+        ParseHelper.parse("void main() {\n"
+            + "  int a;\n"
+            + "  a = 1;\n"
+            + "  a = 2;\n"
+            + "  a = 3;\n"
+            + "}\n"));
+    final CountingFinder finder = new CountingFinder();
+    final SystematicReductionPass pass = new SystematicReductionPass(
+        new ReducerContext(false, true, ShadingLanguageVersion.ESSL_100, new RandomWrapper(0),
+            new IdGenerator()), false, finder, 1);
+
+    // Try every opportunity, none of which turns out to be interesting.
+    while (!pass.tryApplyReductions(shaderJob, 1).isEmpty()) {
+      pass.notifyInteresting(false);
+    }
+    assertTrue(finder.numOpportunities > 0);
+    // Opportunities were found once per step; discovering that there were no more steps to take
+    // did not require them to be found again.
+    assertEquals(finder.numOpportunities, finder.numCalls);
+
+    // A different shader job must be searched, even if it is equivalent.
+    assertEquals(1, pass.tryApplyReductions(shaderJob.clone(), 1).size());
+    assertEquals(finder.numOpportunities + 1, finder.numCalls);
+  }
+
+  private static class CountingFinder
+      implements IReductionOpportunityFinder<StmtReductionOpportunity> {
+
+    private final IReductionOpportunityFinder<StmtReductionOpportunity> delegate =
+        IReductionOpportunityFinder.stmtFinder();
+    private int numCalls = 0;
+    private int numOpportunities = 0;
+
+    @Override
+    public List<StmtReductionOpportunity> findOpportunities(ShaderJob shaderJob,
+                                                            ReducerContext context) {
+      numCalls++;
+      final List<StmtReductionOpportunity> result =
+          delegate.findOpportunities(shaderJob, context);
+      numOpportunities = result.size();
+      return result;
+    }
+
+    @Override
+    public String getName() {
+      return delegate.getName();
+    }
+  }
+
+}
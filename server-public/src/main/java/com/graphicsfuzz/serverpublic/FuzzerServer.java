@@ -19,12 +19,11 @@ package com.graphicsfuzz.serverpublic;
 import com.graphicsfuzz.server.FileDownloadServlet;
 import com.graphicsfuzz.server.FuzzerServiceImpl;
 import com.graphicsfuzz.server.FuzzerServiceManagerImpl;
+import com.graphicsfuzz.server.WorkScheduler;
 import com.graphicsfuzz.server.thrift.FuzzerService;
 import com.graphicsfuzz.server.thrift.FuzzerServiceManager;
 import com.graphicsfuzz.util.ToolPaths;
 import java.nio.file.Paths;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TJSONProtocol;
 import org.apache.thrift.server.TServlet;
@@ -43,8 +42,6 @@ public final class FuzzerServer {
   private final String shaderSetsDir = "shaderfamilies";
   private final String processingDir = "processing";
 
-  private final ExecutorService executorService = Executors.newCachedThreadPool();
-
   private final int port;
 
   public FuzzerServer(int port) {
@@ -55,7 +52,7 @@ public final class FuzzerServer {
 
     FuzzerServiceImpl fuzzerService = new FuzzerServiceImpl(
         Paths.get(workingDir, processingDir).toString(),
-        executorService);
+        new WorkScheduler(Runtime.getRuntime().availableProcessors()));
 
     FuzzerService.Processor processor =
         new FuzzerService.Processor<FuzzerService.Iface>(fuzzerService);
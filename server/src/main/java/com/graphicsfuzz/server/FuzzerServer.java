@@ -22,8 +22,6 @@ import com.graphicsfuzz.server.thrift.FuzzerServiceManager;
 import com.graphicsfuzz.server.webui.WebUi;
 import com.graphicsfuzz.util.ToolPaths;
 import java.nio.file.Paths;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TJSONProtocol;
 import org.apache.thrift.server.TServlet;
@@ -42,27 +40,43 @@ public final class FuzzerServer {
   private final String shaderSetsDir = "shaderfamilies";
   private final String processingDir = "processing";
 
-  private final ExecutorService executorService = Executors.newCachedThreadPool();
-
   private final int port;
 
   private final ShaderJobFileOperations fileOps;
 
+  // The number of commands, across all command queues, that can run at once, or 0 for no limit.
+  private final int numThreads;
+
+  private final int workerQueueParallelism;
+
+  private final int reductionQueueParallelism;
+
   public FuzzerServer(int port, ShaderJobFileOperations fileOps) {
     this("", port, fileOps);
   }
 
   public FuzzerServer(String workingDir, int port, ShaderJobFileOperations fileOps) {
+    this(workingDir, port, fileOps, 0, 1, Runtime.getRuntime().availableProcessors());
+  }
+
+  public FuzzerServer(String workingDir, int port, ShaderJobFileOperations fileOps,
+                      int numThreads, int workerQueueParallelism,
+                      int reductionQueueParallelism) {
     this.workingDir = workingDir;
     this.port = port;
     this.fileOps = fileOps;
+    this.numThreads = numThreads;
+    this.workerQueueParallelism = workerQueueParallelism;
+    this.reductionQueueParallelism = reductionQueueParallelism;
   }
 
   public void start() throws Exception {
 
     FuzzerServiceImpl fuzzerService = new FuzzerServiceImpl(
         Paths.get(workingDir, processingDir).toString(),
-        executorService);
+        new WorkScheduler(numThreads),
+        workerQueueParallelism,
+        reductionQueueParallelism);
 
     FuzzerService.Processor processor =
         new FuzzerService.Processor<FuzzerService.Iface>(fuzzerService);
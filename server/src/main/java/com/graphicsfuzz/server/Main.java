@@ -32,12 +32,33 @@ public class Main {
         .setDefault(8080)
         .type(Integer.class);
 
+    parser.addArgument("--threads")
+        .help("Number of commands, across all command queues, that can run at once.  A command "
+            + "that is waiting for its jobs to run on a worker does not count against this.")
+        .setDefault(Runtime.getRuntime().availableProcessors())
+        .type(Integer.class);
+
+    parser.addArgument("--worker_queue_parallelism")
+        .help("Number of commands from one worker's command queue that can run at once.")
+        .setDefault(1)
+        .type(Integer.class);
+
+    parser.addArgument("--reduction_queue_parallelism")
+        .help("Number of reductions that can run at once.  Reductions, for any worker, go on the "
+            + "shared reduction queue rather than on the worker's command queue.")
+        .setDefault(Runtime.getRuntime().availableProcessors())
+        .type(Integer.class);
+
     try {
       Namespace ns = parser.parseArgs(args);
+      if (ns.getInt("threads") < 1) {
+        throw new ArgumentParserException("--threads must be positive", parser);
+      }
 
       ShaderJobFileOperations fileOps = new ShaderJobFileOperations();
 
-      new FuzzerServer(ns.get("port"), fileOps).start();
+      new FuzzerServer("", ns.get("port"), fileOps, ns.get("threads"),
+          ns.get("worker_queue_parallelism"), ns.get("reduction_queue_parallelism")).start();
 
     } catch (ArgumentParserException ex) {
       ex.getParser().handleError(ex);
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.server;
+
+import com.graphicsfuzz.server.thrift.FuzzerService;
+import com.graphicsfuzz.server.thrift.FuzzerServiceManager;
+import com.graphicsfuzz.server.thrift.ImageJob;
+import com.graphicsfuzz.server.thrift.Job;
+import com.graphicsfuzz.server.thrift.JobStatus;
+import com.graphicsfuzz.server.thrift.SchedulerInfo;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.apache.commons.io.FileUtils;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.THttpClient;
+
+/**
+ * Measures the throughput of the fuzzer server using simulated workers, so that the scaling
+ * limits of the server's job queues can be found without real devices.
+ *
+ * <p>By default the server runs in-process and is called directly, which measures the job queue
+ * machinery on its own; with --server, a running server is load-tested over HTTP.  Either way,
+ * the simulated workers and the job submitters run in this process.  Jobs are submitted to each
+ * worker via the blocking submitJob call, one thread per submitter, or with --batch via
+ * submitJobs and awaitResults.
+ */
+public final class SimulatedWorkerBenchmark {
+
+  private static final String FRAGMENT_SOURCE = "#version 310 es\n"
+      + "precision highp float;\n"
+      + "layout(location = 0) out vec4 _GLF_color;\n"
+      + "void main() {\n"
+      + "  _GLF_color = vec4(1.0, 0.0, 0.0, 1.0);\n"
+      + "}\n";
+
+  private static final String COMPUTE_SOURCE = "#version 310 es\n"
+      + "layout(local_size_x = 1) in;\n"
+      + "void main() { }\n";
+
+  private SimulatedWorkerBenchmark() {
+    // Utility class
+  }
+
+  public static void main(String[] args) {
+    try {
+      mainHelper(args);
+    } catch (ArgumentParserException exception) {
+      exception.getParser().handleError(exception);
+      System.exit(1);
+    } catch (Exception exception) {
+      exception.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  public static void mainHelper(String[] args) throws Exception {
+    final ArgumentParser parser = ArgumentParsers.newArgumentParser("SimulatedWorkerBenchmark")
+        .defaultHelp(true)
+        .description("Load-test the fuzzer server with simulated workers.");
+
+    parser.addArgument("--server")
+        .help("URL of a running server to load-test, e.g. http://localhost:8080.  If not given, "
+            + "a server is run in-process and called directly.")
+        .type(String.class);
+
+    parser.addArgument("--workers")
+        .help("Number of simulated workers.")
+        .setDefault(100)
+        .type(Integer.class);
+
+    parser.addArgument("--jobs_per_worker")
+        .help("Number of jobs submitted to each worker.")
+        .setDefault(20)
+        .type(Integer.class);
+
+    parser.addArgument("--submitters_per_worker")
+        .help("Number of threads submitting jobs to each worker via the blocking submitJob call.")
+        .setDefault(1)
+        .type(Integer.class);
+
+    parser.addArgument("--batch")
+        .help("Submit each worker's jobs in one call to submitJobs, and collect them via "
+            + "awaitResults, rather than using submitJob.")
+        .action(Arguments.storeTrue());
+
+    parser.addArgument("--worker_threads")
+        .help("Number of threads shared by the simulated workers.")
+        .setDefault(8)
+        .type(Integer.class);
+
+    parser.addArgument("--min_latency")
+        .help("Minimum time, in milliseconds, that a simulated worker takes to run a job.")
+        .setDefault(0)
+        .type(Integer.class);
+
+    parser.addArgument("--max_latency")
+        .help("Maximum time, in milliseconds, that a simulated worker takes to run a job.")
+        .setDefault(20)
+        .type(Integer.class);
+
+    parser.addArgument("--poll_interval")
+        .help("Time, in milliseconds, that a worker waits before polling again when it has no "
+            + "job.")
+        .setDefault(10)
+        .type(Integer.class);
+
+    parser.addArgument("--failure_rate")
+        .help("Probability with which a job is reported as having failed.")
+        .setDefault(0.0)
+        .type(Double.class);
+
+    parser.addArgument("--crash_rate")
+        .help("Probability with which a worker crashes, and restarts, on receiving a job.")
+        .setDefault(0.0)
+        .type(Double.class);
+
+    parser.addArgument("--retry_limit")
+        .help("Retry limit passed when submitting jobs.")
+        .setDefault(2)
+        .type(Integer.class);
+
+    parser.addArgument("--compute_fraction")
+        .help("Fraction of jobs that are compute jobs rather than image jobs.")
+        .setDefault(0.0)
+        .type(Double.class);
+
+    parser.addArgument("--image_size")
+        .help("Width and height of the image returned for each image job.")
+        .setDefault(256)
+        .type(Integer.class);
+
+    final Namespace ns = parser.parseArgs(args);
+    final String server = ns.get("server");
+    final int numWorkers = ns.getInt("workers");
+    final int jobsPerWorker = ns.getInt("jobs_per_worker");
+    final int submittersPerWorker = ns.getInt("submitters_per_worker");
+    final boolean batch = ns.getBoolean("batch");
+    final int retryLimit = ns.getInt("retry_limit");
+    final double computeFraction = ns.getDouble("compute_fraction");
+
+    // The server's command scheduler, when the server runs in-process.
+    WorkScheduler scheduler = null;
+    File processingDir = null;
+    final FuzzerServiceImpl localService;
+    final FuzzerServiceManagerImpl localManager;
+    if (server == null) {
+      scheduler = new WorkScheduler(Runtime.getRuntime().availableProcessors());
+      processingDir = Files.createTempDirectory("simulated-workers").toFile();
+      localService = new FuzzerServiceImpl(processingDir.toString(), scheduler);
+      localManager = new FuzzerServiceManagerImpl(localService,
+          (command, manager) -> {
+            throw new UnsupportedOperationException("Commands are not used by the benchmark.");
+          });
+    } else {
+      localService = null;
+      localManager = null;
+    }
+
+    // Records when each job was submitted, so that the time it spends queued can be measured.
+    final ConcurrentMap<String, Long> submissionTimes = new ConcurrentHashMap<>();
+    final ConcurrentLinkedQueue<Long> queueLatencies = new ConcurrentLinkedQueue<>();
+    final ConcurrentLinkedQueue<Long> endToEndLatencies = new ConcurrentLinkedQueue<>();
+
+    final SimulatedWorker.Options options = new SimulatedWorker.Options()
+        .setLatencyMillis(ns.getInt("min_latency"), ns.getInt("max_latency"))
+        .setPollIntervalMillis(ns.getInt("poll_interval"))
+        .setFailureProbability(ns.getDouble("failure_rate"))
+        .setCrashProbability(ns.getDouble("crash_rate"))
+        .setPng(SimulatedWorker.makePng(ns.getInt("image_size"), ns.getInt("image_size"), 0))
+        .setObserver((worker, job) -> {
+          if (job.isSetImageJob()) {
+            // Only the first time that a job is received counts.
+            final Long submitted = submissionTimes.remove(job.getImageJob().getName());
+            if (submitted != null) {
+              queueLatencies.add(System.nanoTime() - submitted);
+            }
+          }
+        });
+
+    final SimulatedWorker.Stats stats = new SimulatedWorker.Stats();
+    final List<SimulatedWorker> workers = new ArrayList<>();
+    for (int i = 0; i < numWorkers; i++) {
+      final FuzzerService.Iface service = server == null
+          ? localService
+          : new FuzzerService.Client(new TBinaryProtocol(new THttpClient(server + "/request")));
+      final SimulatedWorker worker = new SimulatedWorker(service, options, stats, i);
+      worker.register();
+      workers.add(worker);
+    }
+
+    final ScheduledExecutorService workerExecutor =
+        Executors.newScheduledThreadPool(ns.getInt("worker_threads"));
+    final int numSubmitters = batch ? numWorkers : numWorkers * submittersPerWorker;
+    final ExecutorService submitterExecutor = Executors.newFixedThreadPool(numSubmitters);
+    final AtomicLong jobIdCounter = new AtomicLong();
+    final Map<JobStatus, Long> statusCounts = Collections.synchronizedMap(
+        new EnumMap<>(JobStatus.class));
+
+    final long startTime = System.nanoTime();
+    workers.forEach(worker -> worker.start(workerExecutor));
+    final List<Future<?>> submitters = new ArrayList<>();
+    for (SimulatedWorker worker : workers) {
+      final int numSubmittersForWorker = batch ? 1 : submittersPerWorker;
+      for (int i = 0; i < numSubmittersForWorker; i++) {
+        // Share the worker's jobs between its submitters.
+        final int numJobs = jobsPerWorker / numSubmittersForWorker
+            + (i < jobsPerWorker % numSubmittersForWorker ? 1 : 0);
+        submitters.add(submitterExecutor.submit(() -> {
+          final FuzzerServiceManager.Iface manager = server == null
+              ? localManager
+              : new FuzzerServiceManager.Client(
+                  new TBinaryProtocol(new THttpClient(server + "/manageAPI")));
+          final List<Job> jobs = new ArrayList<>();
+          for (int j = 0; j < numJobs; j++) {
+            jobs.add(makeJob(jobIdCounter.incrementAndGet(), computeFraction));
+          }
+          final List<Job> results = batch
+              ? submitBatch(manager, jobs, worker.getWorkerName(), retryLimit, submissionTimes,
+                  endToEndLatencies)
+              : submitOneByOne(manager, jobs, worker.getWorkerName(), retryLimit,
+                  submissionTimes, endToEndLatencies);
+          for (Job result : results) {
+            statusCounts.merge(result.getImageJob().getResult().getStatus(), 1L, Long::sum);
+          }
+          return null;
+        }));
+      }
+    }
+    for (Future<?> submitter : submitters) {
+      submitter.get();
+    }
+    final long elapsedNanos = System.nanoTime() - startTime;
+
+    workers.forEach(SimulatedWorker::stop);
+    workerExecutor.shutdownNow();
+    submitterExecutor.shutdownNow();
+
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    final long totalJobs = (long) numWorkers * jobsPerWorker;
+    final double seconds = elapsedNanos / 1e9;
+    System.out.println("Workers: " + numWorkers + ", submitter threads: " + numSubmitters
+        + ", worker threads: " + ns.getInt("worker_threads")
+        + (batch ? ", batch submission" : ", blocking submission"));
+    System.out.printf("Jobs: %d in %.2f s (%.1f jobs/s)%n", totalJobs, seconds,
+        totalJobs / seconds);
+    System.out.println("Job statuses: " + statusCounts);
+    System.out.println("Queue latency: " + summarize(queueLatencies));
+    System.out.println("End-to-end latency: " + summarize(endToEndLatencies));
+    System.out.println("Simulated workers: " + stats);
+    if (scheduler != null) {
+      final SchedulerInfo schedulerInfo = scheduler.getSchedulerInfo();
+      System.out.println("Server scheduler: threads " + schedulerInfo.getLiveThreads()
+          + ", peak busy threads " + schedulerInfo.getPeakBusyThreads()
+          + ", commands started " + schedulerInfo.getStarted()
+          + ", mean wait " + schedulerInfo.getMeanWaitMillis() + " ms"
+          + ", max wait " + schedulerInfo.getMaxWaitMillis() + " ms");
+    }
+    System.out.println("Process threads: peak " + threads.getPeakThreadCount() + ", live "
+        + threads.getThreadCount());
+
+    if (scheduler != null) {
+      scheduler.shutdown();
+      FileUtils.deleteQuietly(processingDir);
+    }
+  }
+
+  private static Job makeJob(long jobId, double computeFraction) {
+    final ImageJob imageJob = new ImageJob()
+        .setName("simulated_" + jobId)
+        .setUniformsInfo("{}");
+    // Spread compute jobs evenly, so that runs are repeatable.
+    if (Math.floor(jobId * computeFraction) != Math.floor((jobId - 1) * computeFraction)) {
+      imageJob.setComputeSource(COMPUTE_SOURCE).setComputeInfo("{}");
+    } else {
+      imageJob.setFragmentSource(FRAGMENT_SOURCE);
+    }
+    return new Job().setJobId(jobId).setImageJob(imageJob);
+  }
+
+  private static List<Job> submitOneByOne(FuzzerServiceManager.Iface manager, List<Job> jobs,
+                                          String worker, int retryLimit,
+                                          Map<String, Long> submissionTimes,
+                                          ConcurrentLinkedQueue<Long> endToEndLatencies)
+      throws TException {
+    final List<Job> results = new ArrayList<>();
+    for (Job job : jobs) {
+      final long submitted = System.nanoTime();
+      submissionTimes.put(job.getImageJob().getName(), submitted);
+      results.add(manager.submitJob(job, worker, retryLimit));
+      endToEndLatencies.add(System.nanoTime() - submitted);
+    }
+    return results;
+  }
+
+  private static List<Job> submitBatch(FuzzerServiceManager.Iface manager, List<Job> jobs,
+                                       String worker, int retryLimit,
+                                       Map<String, Long> submissionTimes,
+                                       ConcurrentLinkedQueue<Long> endToEndLatencies)
+      throws TException {
+    final long submitted = System.nanoTime();
+    for (Job job : jobs) {
+      submissionTimes.put(job.getImageJob().getName(), submitted);
+    }
+    final List<Long> outstanding = new ArrayList<>(manager.submitJobs(jobs, worker, retryLimit));
+    final Map<Long, Job> results = new HashMap<>();
+    while (!outstanding.isEmpty()) {
+      final Map<Long, Job> completed = manager.awaitResults(outstanding, 1000);
+      final long now = System.nanoTime();
+      for (int i = 0; i < completed.size(); i++) {
+        endToEndLatencies.add(now - submitted);
+      }
+      results.putAll(completed);
+      outstanding.removeAll(completed.keySet());
+    }
+    return new ArrayList<>(results.values());
+  }
+
+  private static String summarize(ConcurrentLinkedQueue<Long> latencyNanos) {
+    final List<Long> sorted = new ArrayList<>(latencyNanos);
+    if (sorted.isEmpty()) {
+      return "no samples";
+    }
+    Collections.sort(sorted);
+    double total = 0.0;
+    for (long latency : sorted) {
+      total += latency;
+    }
+    return String.format("mean %.1f ms, p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms "
+            + "(%d samples)",
+        total / sorted.size() / 1e6,
+        percentile(sorted, 0.50) / 1e6,
+        percentile(sorted, 0.95) / 1e6,
+        percentile(sorted, 0.99) / 1e6,
+        sorted.get(sorted.size() - 1) / 1e6,
+        sorted.size());
+  }
+
+  private static double percentile(List<Long> sorted, double fraction) {
+    return sorted.get(Math.min(sorted.size() - 1, (int) (fraction * sorted.size())));
+  }
+
+}
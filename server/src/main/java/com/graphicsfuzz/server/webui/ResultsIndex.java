@@ -0,0 +1,677 @@
+/*
+ * Copyright 2018 The GraphicsFuzz Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.graphicsfuzz.server.webui;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.graphicsfuzz.alphanumcomparator.AlphanumComparator;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index of the shader families and of the results of the workers, shared by all of the
+ * threads that serve the web UI.
+ *
+ * <p>Directory listings, shader families and per worker, per shader family result counts are
+ * computed when first needed and then kept until a file system watcher reports a change to the
+ * directory that they came from.  When results are added, only the new result files are read.
+ * If the watcher cannot be set up, everything is checked against the file system on each access,
+ * and only result files whose size or modification time have changed are read again.
+ *
+ * <p>Whole info JSON files, which pages showing individual results need, are kept in a cache of
+ * bounded size.
+ */
+final class ResultsIndex implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ResultsIndex.class);
+
+  private static final String INFO_SUFFIX = ".info.json";
+
+  /**
+   * How a variant result compares with the reference.
+   */
+  enum Outcome {
+    IDENTICAL,
+    SIMILAR,
+    DIFFERENT,
+    METRICS_DISAGREE,
+    ERROR
+  }
+
+  interface Classifier {
+    Outcome classify(JsonObject info, boolean isCompute);
+  }
+
+  static final class ShaderFamily {
+    final String name;
+    final File dir;
+    final File preview;
+    final int nbVariants;
+    final boolean isCompute;
+
+    // Names of the variant shader job files, in alphanumeric order.
+    final List<String> variantShaderJobs;
+
+    private ShaderFamily(File shaderFamiliesDir, String name) {
+      this.name = name;
+      this.dir = new File(shaderFamiliesDir, name);
+      this.preview = new File(dir, "thumb.png");
+      this.isCompute = new File(dir, "reference.comp").isFile();
+      final String shaderExtension = isCompute ? ".comp" : ".frag";
+      int variants = 0;
+      final List<String> shaderJobs = new ArrayList<>();
+      for (String file : list(dir)) {
+        if (file.startsWith("variant") && file.endsWith(shaderExtension)) {
+          variants++;
+        }
+        if (file.startsWith("variant_") && file.endsWith(".json")) {
+          shaderJobs.add(file);
+        }
+      }
+      shaderJobs.sort(new AlphanumComparator());
+      this.nbVariants = variants;
+      this.variantShaderJobs = Collections.unmodifiableList(shaderJobs);
+    }
+  }
+
+  /**
+   * The number of variant results of a worker for a shader family, by outcome.
+   */
+  static final class ResultCounts {
+    private final int[] counts;
+    private final int total;
+
+    private ResultCounts(int[] counts, int total) {
+      this.counts = counts;
+      this.total = total;
+    }
+
+    int getTotal() {
+      return total;
+    }
+
+    int get(Outcome outcome) {
+      return counts[outcome.ordinal()];
+    }
+  }
+
+  private final File workerDir;
+  private final File shaderFamiliesDir;
+
+  // The absolute paths of the directories, as reported by the watcher.
+  private final Path workerRoot;
+  private final Path shaderFamiliesRoot;
+  private final Classifier classifier;
+  private final Gson gson = new Gson();
+
+  private final WatchService watchService;
+
+  // Whether both directories are being watched, so that cached state can be trusted until the
+  // watcher reports a change.
+  private volatile boolean watching;
+
+  // Set if a directory could not be watched, after which the directories are always scanned.
+  private volatile boolean watchFailed;
+
+  // Subdirectories of the worker directory, with whether each has a worker info file.
+  private final CachedValue<Map<String, Boolean>> workerDirs = new CachedValue<>();
+
+  // Names of the shader families, sorted.
+  private final CachedValue<List<String>> shaderFamilyNames = new CachedValue<>();
+
+  private final Map<String, ShaderFamily> shaderFamilies = new ConcurrentHashMap<>();
+
+  // Names of the shader family result directories of each worker.
+  private final Map<String, List<String>> workerShaderFamilies = new ConcurrentHashMap<>();
+
+  // Keyed by worker and shader family names, separated by '/'.
+  private final Map<String, Results> results = new ConcurrentHashMap<>();
+
+  private final Map<String, CachedJson> jsonCache;
+
+  ResultsIndex(File workerDir, File shaderFamiliesDir, Classifier classifier,
+      int maxCachedJsonFiles) {
+    this.workerDir = workerDir;
+    this.shaderFamiliesDir = shaderFamiliesDir;
+    this.workerRoot = workerDir.getAbsoluteFile().toPath();
+    this.shaderFamiliesRoot = shaderFamiliesDir.getAbsoluteFile().toPath();
+    this.classifier = classifier;
+    this.jsonCache = Collections.synchronizedMap(
+        new LinkedHashMap<String, CachedJson>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, CachedJson> eldest) {
+            return size() > maxCachedJsonFiles;
+          }
+        });
+    WatchService service = null;
+    try {
+      service = FileSystems.getDefault().newWatchService();
+    } catch (IOException exception) {
+      LOGGER.warn("Could not watch the results directories; the web UI will scan them on each "
+          + "request.", exception);
+    }
+    this.watchService = service;
+    if (service != null) {
+      startWatching();
+      final Thread thread = new Thread(this::watch, "ResultsIndex-watcher");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  @Override
+  public void close() {
+    watchFailed = true;
+    watching = false;
+    closeQuietly(watchService);
+  }
+
+  /**
+   * Gives the names of the workers, i.e. the directories of the worker directory that contain a
+   * worker info file, in natural order.
+   */
+  List<String> getWorkers() {
+    final List<String> workers = new ArrayList<>();
+    for (Map.Entry<String, Boolean> entry : getWorkerDirs().entrySet()) {
+      if (entry.getValue()) {
+        workers.add(entry.getKey());
+      }
+    }
+    return workers;
+  }
+
+  /**
+   * Gives the names of the directories of the worker directory that have results for the given
+   * shader family, in natural order.
+   */
+  List<String> getWorkersWithResults(String shaderFamily) {
+    final List<String> workers = new ArrayList<>();
+    for (String worker : getWorkerDirs().keySet()) {
+      if (getShaderFamiliesOfWorker(worker).contains(shaderFamily)) {
+        workers.add(worker);
+      }
+    }
+    return workers;
+  }
+
+  /**
+   * Gives the names of the shader families for which a worker has results, in alphanumeric
+   * order.
+   */
+  List<String> getShaderFamiliesOfWorker(String worker) {
+    startWatching();
+    if (!watching) {
+      return listShaderFamiliesOfWorker(worker);
+    }
+    return workerShaderFamilies.computeIfAbsent(worker, this::listShaderFamiliesOfWorker);
+  }
+
+  List<String> getShaderFamilies() {
+    startWatching();
+    return shaderFamilyNames.get(watching, () -> {
+      final List<String> names = new ArrayList<>();
+      for (String name : list(shaderFamiliesDir)) {
+        if (new File(shaderFamiliesDir, name).isDirectory()) {
+          names.add(name);
+        }
+      }
+      Collections.sort(names);
+      return Collections.unmodifiableList(names);
+    });
+  }
+
+  ShaderFamily getShaderFamily(String name) {
+    startWatching();
+    if (!watching) {
+      return new ShaderFamily(shaderFamiliesDir, name);
+    }
+    return shaderFamilies.computeIfAbsent(name,
+        item -> new ShaderFamily(shaderFamiliesDir, item));
+  }
+
+  ResultCounts getResultCounts(String worker, String shaderFamily) {
+    return getResults(worker, shaderFamily).getCounts();
+  }
+
+  /**
+   * Determines whether a worker has a result for a shader of a shader family.
+   * @param shader The shader job name, without extension, e.g. "variant_001".
+   */
+  boolean hasResult(String worker, String shaderFamily, String shader) {
+    return getResults(worker, shaderFamily).hasResult(shader + INFO_SUFFIX);
+  }
+
+  /**
+   * Gives the "platform_info" of a worker's info file.
+   */
+  JsonObject getWorkerInfo(String worker) throws IOException {
+    return getJson(new File(new File(workerDir, worker), WebUiConstants.WORKER_INFO_FILE))
+        .getAsJsonObject("platform_info");
+  }
+
+  JsonObject getResultInfo(File resultInfoFile) throws IOException {
+    return getJson(resultInfoFile);
+  }
+
+  private Map<String, Boolean> getWorkerDirs() {
+    startWatching();
+    return workerDirs.get(watching, () -> {
+      final List<String> names = new ArrayList<>();
+      for (String name : list(workerDir)) {
+        if (new File(workerDir, name).isDirectory()) {
+          names.add(name);
+        }
+      }
+      Collections.sort(names);
+      final Map<String, Boolean> dirs = new LinkedHashMap<>();
+      for (String name : names) {
+        dirs.put(name, new File(new File(workerDir, name), WebUiConstants.WORKER_INFO_FILE)
+            .exists());
+      }
+      return Collections.unmodifiableMap(dirs);
+    });
+  }
+
+  private List<String> listShaderFamiliesOfWorker(String worker) {
+    final File dir = new File(workerDir, worker);
+    final List<String> names = new ArrayList<>();
+    for (String name : list(dir)) {
+      if (new File(dir, name).isDirectory()) {
+        names.add(name);
+      }
+    }
+    names.sort(new AlphanumComparator());
+    return Collections.unmodifiableList(names);
+  }
+
+  private Results getResults(String worker, String shaderFamily) {
+    startWatching();
+    return results.computeIfAbsent(worker + "/" + shaderFamily,
+        key -> new Results(new File(new File(workerDir, worker), shaderFamily), shaderFamily));
+  }
+
+  /**
+   * A value computed from a scan of a directory, which the watcher invalidates when the directory
+   * changes.  A scan only publishes its value if there was no invalidation while it ran, as the
+   * scan may have missed the change.
+   */
+  private static final class CachedValue<T> {
+
+    // Each invalidation installs a new, empty, version, so that a scan can tell whether the
+    // version that it started from is still current.
+    private static final class Version<T> {
+      final T value;
+
+      Version(T value) {
+        this.value = value;
+      }
+    }
+
+    private final AtomicReference<Version<T>> current = new AtomicReference<>(new Version<>(null));
+
+    /**
+     * Gives the cached value if there is one and it can be trusted, and otherwise scans.
+     */
+    T get(boolean trusted, Supplier<T> scan) {
+      final Version<T> version = current.get();
+      if (trusted && version.value != null) {
+        return version.value;
+      }
+      final T value = scan.get();
+      current.compareAndSet(version, new Version<>(value));
+      return value;
+    }
+
+    void invalidate() {
+      current.set(new Version<>(null));
+    }
+  }
+
+  private JsonObject getJson(File file) throws IOException {
+    final String key = file.getAbsolutePath();
+    final long lastModified = file.lastModified();
+    final long length = file.length();
+    final CachedJson cached = jsonCache.get(key);
+    if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+      return cached.json;
+    }
+    final JsonObject json = readJson(file);
+    jsonCache.put(key, new CachedJson(lastModified, length, json));
+    return json;
+  }
+
+  private JsonObject readJson(File file) throws IOException {
+    try (Reader reader = new InputStreamReader(new FileInputStream(file),
+        StandardCharsets.UTF_8)) {
+      final JsonObject json = gson.fromJson(reader, JsonObject.class);
+      if (json == null) {
+        throw new JsonParseException("No JSON in " + file);
+      }
+      return json;
+    }
+  }
+
+  private static final class CachedJson {
+    final long lastModified;
+    final long length;
+    final JsonObject json;
+
+    CachedJson(long lastModified, long length, JsonObject json) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.json = json;
+    }
+  }
+
+  /**
+   * The results of one worker for one shader family.  Only a small summary of each result is
+   * kept, from which the counts are maintained as results are added, changed and removed.
+   */
+  private final class Results {
+
+    private final File dir;
+    private final String shaderFamily;
+
+    // Guarded by this.
+    private final Map<String, ResultSummary> summaries = new HashMap<>();
+    private final Set<String> changedFiles = new HashSet<>();
+    private boolean rescan = true;
+    private final int[] counts = new int[Outcome.values().length];
+    private int total;
+
+    Results(File dir, String shaderFamily) {
+      this.dir = dir;
+      this.shaderFamily = shaderFamily;
+    }
+
+    synchronized void fileChanged(String name) {
+      changedFiles.add(name);
+    }
+
+    synchronized void invalidate() {
+      rescan = true;
+    }
+
+    synchronized ResultCounts getCounts() {
+      refresh();
+      return new ResultCounts(counts.clone(), total);
+    }
+
+    synchronized boolean hasResult(String name) {
+      refresh();
+      return summaries.containsKey(name);
+    }
+
+    private void refresh() {
+      final Set<String> names;
+      if (rescan || !watching) {
+        names = new HashSet<>(summaries.keySet());
+        names.addAll(list(dir));
+      } else {
+        names = changedFiles;
+      }
+      if (names.isEmpty()) {
+        return;
+      }
+      final boolean isCompute = getShaderFamily(shaderFamily).isCompute;
+      for (String name : names) {
+        if (name.endsWith(INFO_SUFFIX)) {
+          update(name, isCompute);
+        }
+      }
+      changedFiles.clear();
+      rescan = false;
+    }
+
+    private void update(String name, boolean isCompute) {
+      final File file = new File(dir, name);
+      final long lastModified = file.lastModified();
+      final long length = file.length();
+      final ResultSummary previous = summaries.get(name);
+      if (previous != null && previous.lastModified == lastModified
+          && previous.length == length) {
+        return;
+      }
+      if (previous != null) {
+        summaries.remove(name);
+        count(name, previous.outcome, -1);
+      }
+      if (!file.isFile()) {
+        return;
+      }
+      Outcome outcome;
+      try {
+        outcome = classifier.classify(readJson(file), isCompute);
+      } catch (IOException | JsonParseException exception) {
+        // Most likely the result is still being written; it will be read again when the watcher
+        // reports the rest of the write, or on the next scan.
+        LOGGER.debug("Could not read result " + file, exception);
+        return;
+      } catch (RuntimeException exception) {
+        // The result is complete JSON, but not in the expected form, e.g. it has no status.  It
+        // is counted as an error, rather than failing the whole page.
+        LOGGER.warn("Could not classify result " + file, exception);
+        outcome = Outcome.ERROR;
+      }
+      summaries.put(name, new ResultSummary(lastModified, length, outcome));
+      count(name, outcome, 1);
+    }
+
+    private void count(String name, Outcome outcome, int delta) {
+      if (name.startsWith("variant")) {
+        counts[outcome.ordinal()] += delta;
+        total += delta;
+      }
+    }
+  }
+
+  private static final class ResultSummary {
+    final long lastModified;
+    final long length;
+    final Outcome outcome;
+
+    ResultSummary(long lastModified, long length, Outcome outcome) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.outcome = outcome;
+    }
+  }
+
+  // Watching ===============================================================
+
+  /**
+   * Starts watching the directories if they exist and are not yet watched.  Until then, and if
+   * this fails, they are scanned on each access.
+   */
+  private void startWatching() {
+    if (watching || watchFailed || watchService == null) {
+      return;
+    }
+    synchronized (watchService) {
+      if (watching || !workerDir.isDirectory() || !shaderFamiliesDir.isDirectory()) {
+        return;
+      }
+      try {
+        registerTree(watchService, workerRoot, 2);
+        registerTree(watchService, shaderFamiliesRoot, 1);
+      } catch (IOException exception) {
+        LOGGER.warn("Could not watch the results directories; the web UI will scan them on each "
+            + "request.", exception);
+        watchFailed = true;
+        return;
+      }
+      // Anything cached so far came from scans.
+      invalidateAll();
+      watching = true;
+    }
+  }
+
+  private void watch() {
+    while (true) {
+      final WatchKey key;
+      try {
+        key = watchService.take();
+      } catch (InterruptedException | ClosedWatchServiceException exception) {
+        return;
+      }
+      final Path dir = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == OVERFLOW) {
+          invalidateAll();
+        } else {
+          handleEvent(dir, dir.resolve((Path) event.context()), event.kind());
+        }
+      }
+      if (!key.reset()
+          && (dir.equals(workerRoot) || dir.equals(shaderFamiliesRoot))) {
+        // The directory was removed; scan until it is back.
+        watching = false;
+      }
+    }
+  }
+
+  private void handleEvent(Path dir, Path child, WatchEvent.Kind<?> kind) {
+    final String name = child.getFileName().toString();
+    if (dir.equals(workerRoot)) {
+      // A worker directory was added or removed.
+      workerDirs.invalidate();
+      workerShaderFamilies.remove(name);
+      registerIfCreated(child, kind, 1);
+      invalidateResults(name + "/");
+    } else if (workerRoot.equals(dir.getParent())) {
+      // The worker info file or a shader family directory of a worker was changed.
+      final String worker = dir.getFileName().toString();
+      workerDirs.invalidate();
+      workerShaderFamilies.remove(worker);
+      registerIfCreated(child, kind, 0);
+      invalidateResults(worker + "/" + name);
+    } else if (dir.getParent() != null && workerRoot.equals(dir.getParent().getParent())) {
+      // A result was changed.
+      if (name.endsWith(INFO_SUFFIX)) {
+        final Results changed = results.get(dir.getParent().getFileName() + "/"
+            + dir.getFileName());
+        if (changed != null) {
+          changed.fileChanged(name);
+        }
+      }
+    } else if (dir.equals(shaderFamiliesRoot)) {
+      shaderFamilyNames.invalidate();
+      shaderFamilies.remove(name);
+      registerIfCreated(child, kind, 0);
+    } else if (shaderFamiliesRoot.equals(dir.getParent())) {
+      shaderFamilies.remove(dir.getFileName().toString());
+    }
+  }
+
+  private void registerIfCreated(Path child, WatchEvent.Kind<?> kind, int depth) {
+    if (kind != ENTRY_CREATE || !child.toFile().isDirectory()) {
+      return;
+    }
+    try {
+      registerTree(watchService, child, depth);
+    } catch (IOException exception) {
+      LOGGER.warn("Could not watch " + child + "; the web UI will scan the results directories "
+          + "on each request.", exception);
+      watchFailed = true;
+      watching = false;
+    }
+  }
+
+  private void invalidateResults(String keyPrefix) {
+    for (Map.Entry<String, Results> entry : results.entrySet()) {
+      if (entry.getKey().startsWith(keyPrefix)) {
+        // Files may have been added before the directory was watched.
+        entry.getValue().invalidate();
+      }
+    }
+  }
+
+  private void invalidateAll() {
+    workerDirs.invalidate();
+    shaderFamilyNames.invalidate();
+    shaderFamilies.clear();
+    workerShaderFamilies.clear();
+    for (Results value : results.values()) {
+      value.invalidate();
+    }
+  }
+
+  /**
+   * Watches a directory and its subdirectories down to the given depth.
+   */
+  private static void registerTree(WatchService service, Path dir, int depth)
+      throws IOException {
+    dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+    if (depth == 0) {
+      return;
+    }
+    for (String name : list(dir.toFile())) {
+      final Path child = dir.resolve(name);
+      if (child.toFile().isDirectory()) {
+        registerTree(service, child, depth - 1);
+      }
+    }
+  }
+
+  private static List<String> list(File dir) {
+    final String[] names = dir.list();
+    return names == null ? Collections.emptyList() : Arrays.asList(names);
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException exception) {
+      LOGGER.debug("Failed to close " + closeable, exception);
+    }
+  }
+
+}
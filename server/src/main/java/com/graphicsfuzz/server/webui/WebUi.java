@@ -18,21 +18,20 @@ package com.graphicsfuzz.server.webui;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.graphicsfuzz.alphanumcomparator.AlphanumComparator;
 import com.graphicsfuzz.common.util.FileHelper;
 import com.graphicsfuzz.common.util.FuzzyImageComparison;
 import com.graphicsfuzz.common.util.ReductionProgressHelper;
 import com.graphicsfuzz.common.util.ShaderJobFileOperations;
 import com.graphicsfuzz.reducer.ReductionKind;
 import com.graphicsfuzz.reducer.tool.GlslReduce;
+import com.graphicsfuzz.server.FileSender;
 import com.graphicsfuzz.server.thrift.CommandInfo;
 import com.graphicsfuzz.server.thrift.CommandResult;
 import com.graphicsfuzz.server.thrift.FuzzerServiceManager;
 import com.graphicsfuzz.server.thrift.WorkerInfo;
+import com.graphicsfuzz.server.webui.ResultsIndex.ShaderFamily;
 import com.graphicsfuzz.util.Constants;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
@@ -40,7 +39,6 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
@@ -82,7 +80,11 @@ public class WebUi extends HttpServlet {
 
   private final StringBuilder html;
   private long startTime;
-  private final AccessFileInfo accessFileInfo;
+  private final ResultsIndex resultsIndex;
+  private final FileSender fileSender;
+
+  // The number of info JSON files, e.g. of the results shown on a page, that are kept in memory.
+  private static final int MAX_CACHED_JSON_FILES = 4096;
 
   private static final String WARNING_CLASS_WRONG_RESULT = "wrongresult";
   private static final String WARNING_CLASS_WARN_RESULT = "warnresult";
@@ -113,37 +115,18 @@ public class WebUi extends HttpServlet {
 
   public WebUi(FuzzerServiceManager.Iface fuzzerServiceManager, ShaderJobFileOperations fileOps) {
     this.html = new StringBuilder();
-    this.accessFileInfo = new AccessFileInfo();
+    this.resultsIndex = new ResultsIndex(new File(WebUiConstants.WORKER_DIR),
+        new File(WebUiConstants.SHADER_FAMILIES_DIR), WebUi::classifyResult,
+        MAX_CACHED_JSON_FILES);
+    this.fileSender = new FileSender();
     this.fileOps = fileOps;
     this.fuzzerServiceManagerProxy = fuzzerServiceManager;
   }
 
-  private static final class ShaderFamily {
-    final String name;
-    final File dir;
-    final File preview;
-    final int nbVariants;
-    final boolean isCompute;
-
-    public ShaderFamily(String name) {
-      this.name = name;
-      this.dir = new File(WebUiConstants.SHADER_FAMILIES_DIR, name);
-      this.preview = new File(dir, "thumb.png");
-      this.isCompute = new File(dir, "reference.comp").isFile();
-      this.nbVariants = getNbVariants();
-    }
-
-    private int getNbVariants() {
-      final File[] variants;
-      if (this.isCompute) {
-        variants = dir.listFiles(item -> item.getName().startsWith("variant")
-            && item.getName().endsWith(".comp"));
-      } else {
-        variants = dir.listFiles(item -> item.getName().startsWith("variant")
-            && item.getName().endsWith(".frag"));
-      }
-      return variants == null ? 0 : variants.length;
-    }
+  @Override
+  public void destroy() {
+    resultsIndex.close();
+    super.destroy();
   }
 
   private static final class ShaderFamilyResult {
@@ -166,64 +149,40 @@ public class WebUi extends HttpServlet {
     int nbSlightlyDifferentComputeResult;
     int nbWrongComputeResult;
 
-    public ShaderFamilyResult(String name, String worker, AccessFileInfo accessFileInfo)
-        throws FileNotFoundException {
-      this.name = name;
+    public ShaderFamilyResult(ShaderFamily shaderFamily, String worker,
+        ResultsIndex.ResultCounts counts) {
+      this.name = shaderFamily.name;
       this.worker = worker;
       this.dir = new File(WebUiConstants.WORKER_DIR + "/" + worker + "/" + name);
-      this.shaderFamily = new ShaderFamily(name);
+      this.shaderFamily = shaderFamily;
       this.nbVariants = shaderFamily.nbVariants;
 
       // Set variant counters
-      for (File file : dir.listFiles()) {
-        if (file.getName().startsWith("variant") && file.getName().endsWith(".info.json")) {
-          nbVariantDone++;
-          JsonObject info = accessFileInfo.getResultInfo(file);
-          String status = info.get("status").getAsString();
-          if (status.contentEquals("SUCCESS")) {
-            if (shaderFamily.isCompute) {
-              ComputeDifferenceResult result = getComputeDiffResult(info);
-              switch (result) {
-                case IDENTICAL:
-                  ++nbSameComputeResult;
-                  break;
-                case SIMILAR:
-                  ++nbSlightlyDifferentComputeResult;
-                  break;
-                case DIFFERENT:
-                  ++nbWrongComputeResult;
-                  break;
-                default:
-                  LOGGER.error("Unrecognized compute difference result: " + result);
-              }
-            } else {
-              ImageDifferenceResult result = getImageDiffResult(info).summary;
-              switch (result) {
-                case IDENTICAL:
-                  ++nbSameImage;
-                  break;
-                case SIMILAR:
-                  ++nbSlightlyDifferentImage;
-                  break;
-                case DIFFERENT:
-                  ++nbWrongImage;
-                  break;
-                case METRICS_DISAGREE:
-                  ++nbWrongImage;
-                  ++nbMetricsDisagree;
-                  break;
-                default:
-                  LOGGER.error("Unrecognized image difference result: " + result);
-              }
-            }
-          } else {
-            nbErrors++;
-          }
-        }
+      nbVariantDone = counts.getTotal();
+      nbErrors = counts.get(ResultsIndex.Outcome.ERROR);
+      if (shaderFamily.isCompute) {
+        nbSameComputeResult = counts.get(ResultsIndex.Outcome.IDENTICAL);
+        nbSlightlyDifferentComputeResult = counts.get(ResultsIndex.Outcome.SIMILAR);
+        nbWrongComputeResult = counts.get(ResultsIndex.Outcome.DIFFERENT);
+      } else {
+        nbSameImage = counts.get(ResultsIndex.Outcome.IDENTICAL);
+        nbSlightlyDifferentImage = counts.get(ResultsIndex.Outcome.SIMILAR);
+        nbMetricsDisagree = counts.get(ResultsIndex.Outcome.METRICS_DISAGREE);
+        nbWrongImage = counts.get(ResultsIndex.Outcome.DIFFERENT) + nbMetricsDisagree;
       }
     }
   }
 
+  private static ResultsIndex.Outcome classifyResult(JsonObject info, boolean isCompute) {
+    if (!info.has("status") || !info.get("status").getAsString().contentEquals("SUCCESS")) {
+      return ResultsIndex.Outcome.ERROR;
+    }
+    if (isCompute) {
+      return ResultsIndex.Outcome.valueOf(getComputeDiffResult(info).name());
+    }
+    return ResultsIndex.Outcome.valueOf(getImageDiffResult(info).summary.name());
+  }
+
   private static ImageDifferenceResultSet getImageDiffResult(JsonObject info) {
 
     // This method is a refactor/merge of two older methods.
@@ -350,18 +309,10 @@ public class WebUi extends HttpServlet {
       err404(request, response);
       return null;
     }
-    File[] workerCandidates = workerDir.listFiles();
     List<File> workers = new ArrayList<>();
-    if (workerCandidates != null) {
-      for (File wc : workerCandidates) {
-        // a directory is a worker if it does contains client.json file
-        File info = new File(wc.getPath() + "/client.json");
-        if (info.exists()) {
-          workers.add(wc);
-        }
-      }
+    for (String worker : resultsIndex.getWorkers()) {
+      workers.add(new File(workerDir, worker));
     }
-    workers.sort(Comparator.naturalOrder());
     return workers;
   }
 
@@ -386,13 +337,9 @@ public class WebUi extends HttpServlet {
       err404(request, response);
       return shaderFamilies;
     }
-    File[] shaderFamilyFiles = shaderFamiliesDir.listFiles();
-    for (File shaderFamily : shaderFamilyFiles) {
-      if (shaderFamily.isDirectory()) {
-        shaderFamilies.add(shaderFamily);
-      }
+    for (String shaderFamily : resultsIndex.getShaderFamilies()) {
+      shaderFamilies.add(new File(shaderFamiliesDir, shaderFamily));
     }
-    shaderFamilies.sort(Comparator.naturalOrder());
     return shaderFamilies;
   }
 
@@ -469,7 +416,7 @@ public class WebUi extends HttpServlet {
     List<File> shaderFamilies = getAllShaderFamilies(request, response);
     if (shaderFamilies.size() > 0) {
       for (File file : shaderFamilies) {
-        ShaderFamily shaderFamily = new ShaderFamily(file.getName());
+        ShaderFamily shaderFamily = resultsIndex.getShaderFamily(file.getName());
         htmlAppendLn("<a class='item' href='/webui/shaderset/", shaderFamily.name, "'>",
             "<img class='ui mini image' alt='Reference image preview' src='/webui/file/",
             shaderFamily.preview.getPath(), "' onerror=\"this.style.display='none'\">",
@@ -553,7 +500,7 @@ public class WebUi extends HttpServlet {
         "<a class='ui button' href='/webui/file/", infoPath, "'>",
         "Get worker info as JSON</a>");
 
-    JsonObject info = accessFileInfo.getWorkerInfo(workerName);
+    JsonObject info = resultsIndex.getWorkerInfo(workerName);
 
     htmlAppendLn("<table class='worker-info invisible ui celled compact table'>",
         "<thead><tr><th>Attribute</th><th>Value</th></tr></thead>",
@@ -609,14 +556,10 @@ public class WebUi extends HttpServlet {
 
     htmlAppendLn("<div class='ui middle aligned selection animated celled list'>");
 
-    File[] shaderFamilies = workerDir.listFiles(File::isDirectory);
-    Arrays.sort(shaderFamilies,
-        (f1, f2) -> new AlphanumComparator().compare(f1.getName(), f2.getName()));
-    for (File shaderFamilyFile : shaderFamilies) {
-      final String shaderFamily = shaderFamilyFile.getName();
-
-      ShaderFamilyResult shaderFamilyResult = new ShaderFamilyResult(shaderFamily, workerName,
-          accessFileInfo);
+    for (String shaderFamily : resultsIndex.getShaderFamiliesOfWorker(workerName)) {
+      ShaderFamilyResult shaderFamilyResult = new ShaderFamilyResult(
+          resultsIndex.getShaderFamily(shaderFamily), workerName,
+          resultsIndex.getResultCounts(workerName, shaderFamily));
 
       if (shaderFamilyResult.shaderFamily.isCompute) {
         htmlAppendLn(
@@ -721,12 +664,8 @@ public class WebUi extends HttpServlet {
     }
 
     //Iterate through files in workerDir - get experiment results
-    File[] shaderFamilies = workerDir.listFiles(File::isDirectory);
-    Arrays.sort(shaderFamilies,
-        (f1, f2) -> new AlphanumComparator().compare(f1.getName(), f2.getName()));
     String[] workers = new String[1];
-    for (File shaderFamilyFile : shaderFamilies) {
-      final String shaderFamily = shaderFamilyFile.getName();
+    for (String shaderFamily : resultsIndex.getShaderFamiliesOfWorker(workerName)) {
       htmlAppendLn("<div class='ui segment'>\n", "<h3>", shaderFamily, "</h3>");
       workers[0] = workerName;
       htmlComparativeTable(shaderFamily, workers);
@@ -829,19 +768,7 @@ public class WebUi extends HttpServlet {
     htmlAppendLn("<div class='ui segment'>\n",
         "<h3>All results for shader family: ", shaderFamily, "</h3>");
 
-    // FIXME: how to cleanly get an array of worker names? (the list-to-array below is ugly)
-    File[] workerDirs = new File(WebUiConstants.WORKER_DIR).listFiles();
-    List<String> workerList = new ArrayList<String>();
-    for (File workerDir : workerDirs) {
-      File expResult = new File(workerDir, shaderFamily);
-      if (expResult.isDirectory()) {
-        workerList.add(workerDir.getName());
-      }
-    }
-    String[] workers = new String[workerList.size()];
-    for (int i = 0; i < workerList.size(); i++) {
-      workers[i] = workerList.get(i);
-    }
+    String[] workers = resultsIndex.getWorkersWithResults(shaderFamily).toArray(new String[0]);
 
     htmlComparativeTable(shaderFamily, workers);
 
@@ -944,7 +871,7 @@ public class WebUi extends HttpServlet {
         posixPathToFile("shaderfamilies", shaderFamily, variant + ".comp")
             .isFile();
 
-    JsonObject info = accessFileInfo.getResultInfo(infoFile);
+    JsonObject info = resultsIndex.getResultInfo(infoFile);
     final String status = info.get("status").getAsString();
     final String shaderPath = "shaderfamilies/" + shaderFamily + "/" + variant + "."
         + (isCompute ? "comp" : "frag");
@@ -1492,7 +1419,7 @@ public class WebUi extends HttpServlet {
     for (File shaderFamilyFile: getAllShaderFamilies(request, response)) {
 
       // TODO(360): Handle compute shaders
-      ShaderFamily shaderFamily = new ShaderFamily(shaderFamilyFile.getName());
+      ShaderFamily shaderFamily = resultsIndex.getShaderFamily(shaderFamilyFile.getName());
       if (shaderFamily.isCompute) {
         continue;
       }
@@ -1876,9 +1803,7 @@ public class WebUi extends HttpServlet {
       err404(request, response);
       return;
     }
-    response.setContentType(getContentType(filename));
-    ServletOutputStream outputStream = response.getOutputStream();
-    outputStream.write(Files.readAllBytes(Paths.get(filename)));
+    fileSender.send(request, response, file, getContentType(filename));
   }
 
   // ========================= "GET" requests dispatcher =======================================
@@ -2051,9 +1976,9 @@ public class WebUi extends HttpServlet {
   }
 
   private void htmlVariantResultTableCell(File variantInfoFile, String referencePngPath,
-      ReductionStatus reductionStatus, boolean isCompute) throws FileNotFoundException {
+      ReductionStatus reductionStatus, boolean isCompute) throws IOException {
 
-    JsonObject info = accessFileInfo.getResultInfo(variantInfoFile);
+    JsonObject info = resultsIndex.getResultInfo(variantInfoFile);
     String status = info.get("status").getAsString();
     String cellHref = "/webui/result/" + variantInfoFile.getPath().replace(".info.json", "");
 
@@ -2314,27 +2239,18 @@ public class WebUi extends HttpServlet {
   }
 
   private void htmlComparativeTable(String shaderFamilyFilename, String[] workers)
-      throws FileNotFoundException {
-
-    final ShaderFamily shaderFamily = new ShaderFamily(shaderFamilyFilename);
+      throws IOException {
 
-    // A filter for all variant shader jobs
-    final FilenameFilter variantShaderJobFilter =
-        (dir, name) -> name.startsWith("variant_") && name.endsWith(".json");
+    final ShaderFamily shaderFamily = resultsIndex.getShaderFamily(shaderFamilyFilename);
 
     htmlAppendLn("<table class='ui celled compact collapsing table'>\n",
         "<thead><tr>");
-    final File variantsDir = new File(WebUiConstants.SHADER_FAMILIES_DIR, shaderFamilyFilename);
-    File[] variantShaderJobFiles = variantsDir.listFiles(variantShaderJobFilter);
-    if (variantShaderJobFiles == null) {
-      // If no variant shader job files are found, the array reference will be null; set it to an
-      // empty array so that we can render a table with references only.
-      variantShaderJobFiles = new File[0];
+    // All variant shader jobs, in alphanumeric order
+    final List<File> variantShaderJobFiles = new ArrayList<>();
+    for (String variantShaderJob : shaderFamily.variantShaderJobs) {
+      variantShaderJobFiles.add(new File(shaderFamily.dir, variantShaderJob));
     }
 
-    Arrays.sort(variantShaderJobFiles, (f1, f2) ->
-        new AlphanumComparator().compare(f1.getName(), f2.getName()));
-
     boolean showWorkerNames = workers.length > 1;
 
     final String extension = shaderFamily.isCompute ? "comp" : "frag";
@@ -2374,7 +2290,7 @@ public class WebUi extends HttpServlet {
 
       htmlAppendLn("<td ");
       if (refInfoFile.exists()) {
-        JsonObject refInfo = accessFileInfo.getResultInfo(refInfoFile);
+        JsonObject refInfo = resultsIndex.getResultInfo(refInfoFile);
         String refStatus = refInfo.get("status").getAsString();
         if (refStatus.contentEquals("SUCCESS")) {
           htmlAppendLn("class='selectable center aligned'><a href='/webui/result/",
@@ -2405,7 +2321,7 @@ public class WebUi extends HttpServlet {
             Paths.get(worker, shaderFamilyFilename, filenameWithoutExtension + ".info.json")
             .toString());
 
-        if (infoFile.isFile()) {
+        if (resultsIndex.hasResult(worker, shaderFamilyFilename, filenameWithoutExtension)) {
           ReductionStatus reductionStatus = getReductionStatus(worker, shaderFamilyFilename,
               filenameWithoutExtension);
 
@@ -81,16 +81,48 @@ struct CommandInfo {
   3 : optional string logFile,
 }
 
+// Depth and wait time metrics of a command queue.  Wait times are from a command being queued
+// to it being started.
+struct QueueInfo {
+  1 : optional string name,
+  2 : optional i32 parallelism,
+  3 : optional i32 pending,
+  4 : optional i32 running,
+  5 : optional i64 started,
+  6 : optional i64 completed,
+  7 : optional i64 meanWaitMillis,
+  8 : optional i64 oldestPendingWaitMillis,
+}
+
+// The threads shared by all command queues.  Wait times are from a command being queued to it
+// being started.
+struct SchedulerInfo {
+  1 : optional i32 threads,
+  2 : optional i32 busyThreads,
+  3 : optional i32 pending,
+  4 : optional i32 liveThreads,
+  5 : optional i32 peakBusyThreads,
+  6 : optional i64 started,
+  7 : optional i64 meanWaitMillis,
+  8 : optional i64 maxWaitMillis,
+  // Threads whose command is waiting for its jobs to run on a worker; these do not count
+  // against the limit on running commands.
+  9 : optional i32 blockedThreads,
+}
+
 struct WorkerInfo {
   1 : optional string workerName,
   2 : optional list<CommandInfo> commandQueue,
   3 : optional list<string> jobQueue,
   4 : optional bool live,
+  5 : optional QueueInfo commandQueueInfo,
 }
 
 struct ServerInfo {
   1 : optional list<CommandInfo> reductionQueue,
-  2 : optional list<WorkerInfo> workers
+  2 : optional list<WorkerInfo> workers,
+  3 : optional QueueInfo reductionQueueInfo,
+  4 : optional SchedulerInfo schedulerInfo,
 }
 
 struct GetWorkerNameResult {
@@ -218,6 +250,10 @@ exception WorkerNameNotFoundException {
   1 : optional string workerName
 }
 
+exception JobTicketNotFoundException {
+  1 : optional i64 ticket
+}
+
 
 /**
 * Our public FuzzerService interface.
@@ -229,6 +265,20 @@ service FuzzerService {
   Job getJob(1 : string workerName) throws (1 : WorkerNameNotFoundException ex),
 
   void jobDone(1 : string workerName, 2 : Job job) throws (1 : WorkerNameNotFoundException ex),
+
+  /**
+  * Leases up to maxCount jobs from the front of the worker's job queue, so that the worker
+  * can start on one job while it is still reporting the result of another.  Each leased job
+  * is given a job id that identifies the lease, and should be returned via jobsDone.  An empty
+  * list means that there are no jobs to lease.  Leases that have not been returned when the
+  * worker next calls getWorkerName are released, so that their jobs can be leased again.
+  **/
+  list<Job> getJobs(1 : string workerName, 2 : i32 maxCount) throws (1 : WorkerNameNotFoundException ex),
+
+  /**
+  * Returns completed jobs that were leased via getJobs.
+  **/
+  void jobsDone(1 : string workerName, 2 : list<Job> jobs) throws (1 : WorkerNameNotFoundException ex),
 }
 
 /**
@@ -257,6 +307,22 @@ service FuzzerServiceManager {
   **/
   Job submitJob(1 : Job job, 2 : string forClient, 3 : i32 retryLimit) throws (1 : WorkerNameNotFoundException ex),
 
+  /**
+  * Submit jobs to a worker job queue without waiting for them to complete.
+  * Returns one ticket per job, in order; the completed jobs are obtained by passing
+  * the tickets to awaitResults.
+  **/
+  list<i64> submitJobs(1 : list<Job> jobs, 2 : string forClient, 3 : i32 retryLimit) throws (1 : WorkerNameNotFoundException ex),
+
+  /**
+  * Waits for at least one of the jobs with the given tickets to complete, or for
+  * timeoutMillis to elapse, and returns the completed jobs, keyed by ticket.
+  * A completed job is returned only once; its ticket is then no longer valid.
+  * A ticket that is not awaited for an hour, counting from when its job was
+  * submitted, completed or last awaited, is discarded and is no longer valid.
+  **/
+  map<i64, Job> awaitResults(1 : list<i64> tickets, 2 : i32 timeoutMillis) throws (1 : JobTicketNotFoundException ex),
+
   /**
   * Clears a worker job queue.
   **/
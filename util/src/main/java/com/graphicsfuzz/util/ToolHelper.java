@@ -60,6 +60,28 @@ public class ToolHelper {
           command);
   }
 
+  /**
+   * Run shader validator on several shaders in one go.  Each shader is compiled separately, and
+   * the result is only successful if every shader is valid.
+   * @param redirectType How shader validator output should be redirected (buffer, file, etc)
+   * @param files Files to be checked
+   * @return Result of the validator execution
+   */
+  public static ExecResult runValidatorOnShaders(ExecHelper.RedirectType redirectType,
+                                                 List<File> files)
+      throws IOException, InterruptedException {
+    final List<String> command = new ArrayList<>();
+    command.add(ToolPaths.glslangValidator());
+    for (File file : files) {
+      command.add(file.toString());
+    }
+    return new ExecHelper().exec(
+          redirectType,
+          null,
+          false,
+          command.toArray(new String[]{}));
+  }
+
   public static ExecResult runShaderTranslatorOnShader(ExecHelper.RedirectType redirectType,
         File file,
         String arg)